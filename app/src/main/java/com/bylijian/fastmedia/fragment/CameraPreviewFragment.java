@@ -2,7 +2,11 @@ package com.bylijian.fastmedia.fragment;
 
 import android.app.Activity;
 import android.hardware.camera2.CameraCharacteristics;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -21,24 +25,42 @@ import com.bylijian.fastmedia.widget.FocusView;
 import com.bylijian.fastmedia.widget.RatioImageView;
 import com.bylijian.fastmedia.widget.ShutterButton;
 import com.bylijian.cameralibrary.CameraRecorder;
+import com.bylijian.cameralibrary.CameraStartup;
 import com.bylijian.cameralibrary.FocusManager;
 import com.bylijian.cameralibrary.webrtc.Camera1Enumerator;
 import com.bylijian.cameralibrary.webrtc.Camera2Enumerator;
+import com.bylijian.cameralibrary.webrtc.CameraCapabilityCache;
 import com.bylijian.cameralibrary.webrtc.CameraEnumerator;
 import com.bylijian.cameralibrary.webrtc.CameraVideoCapturer;
 import com.bylijian.cameralibrary.webrtc.CapturerObserver;
 import com.bylijian.cameralibrary.webrtc.EglBase;
+import com.bylijian.cameralibrary.webrtc.GlRectDrawer;
+import com.bylijian.cameralibrary.webrtc.Histogram;
 import com.bylijian.cameralibrary.webrtc.RendererCommon;
 import com.bylijian.cameralibrary.webrtc.Size;
 import com.bylijian.cameralibrary.webrtc.SurfaceTextureHelper;
 import com.bylijian.cameralibrary.webrtc.SurfaceViewRenderer;
 import com.bylijian.cameralibrary.webrtc.VideoFrame;
+import com.bylijian.medialibrary.record.video.AdaptiveBitrateController;
+import com.bylijian.medialibrary.record.video.EncoderCapabilityProbe;
+import com.bylijian.medialibrary.record.video.EncoderProfile;
+import com.bylijian.medialibrary.trace.FrameTracer;
+import com.bylijian.medialibrary.trace.StartupTimeline;
+
+import java.io.File;
+import java.io.IOException;
 
 
 public class CameraPreviewFragment extends Fragment implements View.OnClickListener, RatioImageView.OnRatioChangedListener, ShutterButton.OnShutterListener {
     private static final String TAG = "CameraPreviewFragment";
+    private static final int CAPTURE_FRAME_RATE = 25;
     private SurfaceViewRenderer surfaceViewRenderer;
     private CameraVideoCapturer videoCapturer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 录制时可能被自适应码率降低
+     */
+    private int captureFrameRate = CAPTURE_FRAME_RATE;
     private SurfaceTextureHelper surfaceTextureHelper;
     final EglBase eglBase = EglBase.create();
 
@@ -49,12 +71,17 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
     private AspectFrameLayout aspectFrameLayout;
     private FocusView focusView;
     private ShutterButton shutterButton;
+    private ImageView deleteButton;
 
     private FocusManager focusManager;
     private boolean isShowingFilters;
     private int mFilterIndex = 0;
 
     private CameraRecorder cameraRecorder;
+    /**
+     * 并行初始化摄像头、采集线程EGL和AudioRecord，onCreateView创建，onDestroyView释放
+     */
+    private CameraStartup cameraStartup;
 
     private int cameraZoom = 1;
 
@@ -65,16 +92,22 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
         super.onCreate(savedInstanceState);
         Log.d(TAG, "onCreate()");
         focusManager = new FocusManager();
+        //提前查询编码器能力，开始录制时不用再查MediaCodecList
+        EncoderCapabilityProbe.prefetch();
+        //后台读取上次启动保存的摄像头能力，打开摄像头时不用重新枚举分辨率
+        CameraCapabilityCache.getInstance().load(
+                new File(requireContext().getFilesDir(), "camera_capabilities"), Build.FINGERPRINT);
+        //逐帧记录采集、渲染和编码的时间，onPause时输出各阶段延迟
+        FrameTracer.getInstance().setEnabled(true);
     }
 
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         Log.d(TAG, "onCreateView()");
-        View view = inflater.inflate(R.layout.fragment_preview, container, false);
-        initView(view);
-        videoCapturer = createVideoCapturer();
-        videoCapturer.initialize(surfaceTextureHelper, getContext(), new CapturerObserver() {
+        //先在后台开始打开摄像头，和下面的布局、预览EGL初始化同时进行
+        cameraStartup = new CameraStartup(requireContext(), eglBase.getEglBaseContext(),
+                EglBase.CONFIG_RECORDABLE_PIXEL_BUFFER, createCameraEnumerator(), new CapturerObserver() {
             @Override
             public void onCapturerStarted(boolean success, Size previewSize, CameraCharacteristics cameraCharacteristics) {
                 Log.d(TAG, "onCapturerStarted() success=" + success);
@@ -94,12 +127,34 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
             @Override
             public void onFrameCaptured(VideoFrame frame) {
                 Log.d(TAG, "onFrameCaptured()");
-                if (cameraRecorder != null) {
-                    cameraRecorder.onVideoFrame(frame);
+                // 录制时预览的渲染线程同时画到编码器的surface上
+                // 摄像头在后台打开，第一帧可能比布局完成更早
+                SurfaceViewRenderer renderer = surfaceViewRenderer;
+                if (renderer != null) {
+                    renderer.onFrame(frame);
+                }
+                // 开启ByteBuffer输入时由采集线程直接拷贝到编码器，其他模式下直接返回
+                CameraRecorder recorder = cameraRecorder;
+                if (recorder != null) {
+                    recorder.onFrame(frame);
                 }
-                surfaceViewRenderer.onFrame(frame);
+            }
+        }, new CameraStartup.Callback() {
+            @Override
+            public void onCapturerReady(CameraVideoCapturer capturer, SurfaceTextureHelper helper) {
+                videoCapturer = capturer;
+                surfaceTextureHelper = helper;
+            }
+
+            @Override
+            public void onFailure(String error) {
+                Log.e(TAG, "Failed to open camera: " + error);
             }
         });
+        cameraStartup.start();
+        cameraStartup.startCapture(cameraPreviewSize.width, cameraPreviewSize.height, CAPTURE_FRAME_RATE);
+        View view = inflater.inflate(R.layout.fragment_preview, container, false);
+        initView(view);
         return view;
     }
 
@@ -115,6 +170,8 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
         shutterButton = view.findViewById(R.id.btn_shutter);
         shutterButton.setIsRecorder(true);
         shutterButton.setOnShutterListener(this);
+        deleteButton = view.findViewById(R.id.btn_delete);
+        deleteButton.setOnClickListener(this);
         initSurfaceViewRenderer();
         closeButton.setOnClickListener(this);
         selectMusic.setOnClickListener(this);
@@ -124,9 +181,25 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
 
     private void initSurfaceViewRenderer() {
         if (surfaceViewRenderer != null) {
-            surfaceViewRenderer.init(eglBase.getEglBaseContext(), null);
+            StartupTimeline.getInstance().begin(StartupTimeline.PHASE_RENDER_EGL);
+            surfaceViewRenderer.init(eglBase.getEglBaseContext(), new RendererCommon.RendererEvents() {
+                @Override
+                public void onFirstFrameRendered() {
+                    StartupTimeline.getInstance().mark(StartupTimeline.EVENT_FIRST_RENDER);
+                    Log.d(TAG, "startup timeline (ms):\n" + StartupTimeline.getInstance().getReport());
+                }
+
+                @Override
+                public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {
+                }
+            }, EglBase.CONFIG_RECORDABLE, new GlRectDrawer());
+            StartupTimeline.getInstance().end(StartupTimeline.PHASE_RENDER_EGL);
+            //着色器在surface创建以后马上编译，不用等到第一帧
+            surfaceViewRenderer.prewarmOesShader();
             surfaceViewRenderer.setScalingType(RendererCommon.ScalingType.SCALE_ASPECT_FILL);
             surfaceViewRenderer.setEnableHardwareScaler(false);
+            //跟随屏幕vsync绘制预览，高刷新率屏幕上不再抖动
+            surfaceViewRenderer.enableVsyncScheduling();
             surfaceViewRenderer.setonGestureListener(new SurfaceViewRenderer.OnGestureListener() {
                 @Override
                 public void onSingleClick(float x, float y) {
@@ -172,55 +245,41 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
     @Override
     public void onResume() {
         super.onResume();
-        if (videoCapturer != null) {
-            videoCapturer.startCapture(cameraPreviewSize.width, cameraPreviewSize.height, 25);
-        }
+        //第一次进入时onCreateView已经请求过，这里直接返回
+        cameraStartup.startCapture(cameraPreviewSize.width, cameraPreviewSize.height, captureFrameRate);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        if (videoCapturer != null) {
-            try {
-                videoCapturer.stopCapture();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                Log.e(TAG, "stopCapture exception", e);
-            }
-        }
+        //相机停止以后不会再有新的帧，录好的分段直接拼接
+        finishRecord();
+        cameraStartup.stopCapture();
+        //相机启动、停止耗时等统计
+        Log.d(TAG, "histograms:\n" + Histogram.dump());
+        Log.d(TAG, "startup timeline (ms):\n" + StartupTimeline.getInstance().getReport());
+        Log.d(TAG, "frame latency since capture (ms):\n" + FrameTracer.getInstance().getReport());
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (videoCapturer != null) {
-            videoCapturer.dispose();
-        }
+        //释放capturer和SurfaceTextureHelper
+        cameraStartup.release();
+        videoCapturer = null;
+        surfaceTextureHelper = null;
         if (surfaceViewRenderer != null) {
             surfaceViewRenderer.release();
         }
-        if (surfaceTextureHelper != null) {
-            surfaceTextureHelper.dispose();
-        }
     }
 
-    @Nullable
-    private CameraVideoCapturer createVideoCapturer() {
-        CameraVideoCapturer videoCapturer;
-        surfaceTextureHelper =
-                SurfaceTextureHelper.create("CaptureThread", eglBase.getEglBaseContext());
+    private CameraEnumerator createCameraEnumerator() {
         if (useCamera2()) {
             Log.d(TAG, "Creating capturer using camera2 API.");
-            videoCapturer = createCameraCapturer(new Camera2Enumerator(requireContext()));
-        } else {
-            Log.d(TAG, "Creating capturer using camera1 API.");
-            videoCapturer = createCameraCapturer(new Camera1Enumerator(captureToTexture()));
+            return new Camera2Enumerator(requireContext());
         }
-        if (videoCapturer == null) {
-            Log.e(TAG, "Failed to open camera");
-            return null;
-        }
-        return videoCapturer;
+        Log.d(TAG, "Creating capturer using camera1 API.");
+        return new Camera1Enumerator(captureToTexture());
     }
 
     private boolean captureToTexture() {
@@ -231,43 +290,11 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
         return true;
     }
 
-    private @Nullable
-    CameraVideoCapturer createCameraCapturer(CameraEnumerator enumerator) {
-        final String[] deviceNames = enumerator.getDeviceNames();
-
-        // Front back camera not found, try something else
-        Log.d(TAG, "Looking for back cameras.");
-        for (String deviceName : deviceNames) {
-            if (!enumerator.isFrontFacing(deviceName)) {
-                Log.d(TAG, "Creating other camera capturer.");
-                CameraVideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
-
-                if (videoCapturer != null) {
-                    return videoCapturer;
-                }
-            }
-        }
-
-        // then, try to find front facing camera
-        Log.d(TAG, "Looking for front facing cameras.");
-        for (String deviceName : deviceNames) {
-            if (enumerator.isFrontFacing(deviceName)) {
-                Log.d(TAG, "Creating front facing camera capturer.");
-                CameraVideoCapturer videoCapturer = enumerator.createCapturer(deviceName, null);
-
-                if (videoCapturer != null) {
-                    return videoCapturer;
-                }
-            }
-        }
-        return null;
-    }
-
-
     @Override
     public void onClick(View v) {
         switch (v.getId()) {
             case R.id.btn_close:
+                finishRecord();
                 Activity activity = getActivity();
                 if (activity != null) {
                     activity.finish();
@@ -290,6 +317,16 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                     });
                 }
                 break;
+            case R.id.btn_delete:
+                //第一次点击选中最后一段，再点击删除
+                if (cameraRecorder != null && !cameraRecorder.isRecordingSegment()) {
+                    if (!shutterButton.isDeleteMode()) {
+                        shutterButton.setDeleteMode(true);
+                    } else if (cameraRecorder.deleteLastSegment()) {
+                        shutterButton.deleteSplitView();
+                    }
+                }
+                break;
         }
     }
 
@@ -319,31 +356,93 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
     }
 
     private void resizeVideoCapturer(int width, int height) {
-        try {
-            videoCapturer.stopCapture();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        videoCapturer.startCapture(width, height, 25);
+        cameraStartup.stopCapture();
+        cameraStartup.startCapture(width, height, captureFrameRate);
     }
 
     @Override
     public void onStartRecord() {
+        shutterButton.setDeleteMode(false);
+        if (cameraRecorder == null) {
+            startSegmentedRecord();
+        }
+        cameraRecorder.startSegment();
+        shutterButton.setEnableEncoder(true);
+    }
+
+    /**
+     * 第一次按下快门时启动编码器，之后每次按下只开始一个新的分段
+     */
+    private void startSegmentedRecord() {
         cameraRecorder = new CameraRecorder();
-        cameraRecorder.init(eglBase);
+        cameraRecorder.init(surfaceViewRenderer, surfaceTextureHelper);
+        //过热或者存储太慢时先降码率，降到最低仍然跟不上再降采集帧率
+        cameraRecorder.setAdaptiveBitrate(1500000, 15, new AdaptiveBitrateController.Listener() {
+            @Override
+            public void onBitrateChanged(int bitrate) {
+            }
+
+            @Override
+            public void onFrameRateChanged(final int frameRate) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (videoCapturer != null && cameraRecorder != null) {
+                            captureFrameRate = frameRate;
+                            videoCapturer.changeCaptureFormat(cameraPreviewSize.width, cameraPreviewSize.height,
+                                    frameRate);
+                        }
+                    }
+                });
+            }
+        });
         //摄像机的宽高和实际视频宽高刚好是相反的
-        cameraRecorder.startRecord(cameraPreviewSize.height, cameraPreviewSize.width, 6000000);
-        shutterButton.setEnableEncoder(true);
+        EncoderProfile profile = new EncoderProfile(cameraPreviewSize.height, cameraPreviewSize.width)
+                .setBitrate(6000000)
+                .setFrameRate(CAPTURE_FRAME_RATE)
+                .setProfile(EncoderProfile.AVC_PROFILE_HIGH, EncoderProfile.DEFAULT)
+                .setPriority(EncoderProfile.PRIORITY_REALTIME);
+        cameraRecorder.startSegmentedRecord(profile, new File(getContext().getCacheDir(), "segments"));
     }
 
     @Override
     public void onStopRecord() {
-        cameraRecorder.stopRecord();
+        cameraRecorder.endSegment();
+        shutterButton.addSplitView();
+        shutterButton.setEnableEncoder(true);
+    }
+
+    /**
+     * 停止编码器，在后台把所有分段拼接成一个文件
+     */
+    private void finishRecord() {
+        final CameraRecorder recorder = cameraRecorder;
+        if (recorder == null) {
+            return;
+        }
         cameraRecorder = null;
+        final File output = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES) + "/grafika", "Segments" + System.currentTimeMillis() / 1000 + ".mp4");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.finishSegmentedRecord(output);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "finishSegmentedRecord()", e);
+                }
+            }
+        }, "segment-concat").start();
+        shutterButton.cleanSplitView();
+        mainHandler.removeCallbacksAndMessages(null);
+        if (captureFrameRate != CAPTURE_FRAME_RATE && videoCapturer != null) {
+            captureFrameRate = CAPTURE_FRAME_RATE;
+            videoCapturer.changeCaptureFormat(cameraPreviewSize.width, cameraPreviewSize.height, CAPTURE_FRAME_RATE);
+        }
     }
 
     @Override
     public void onProgressOver() {
-
+        finishRecord();
     }
 }
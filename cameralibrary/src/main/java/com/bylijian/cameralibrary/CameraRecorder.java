@@ -5,61 +5,444 @@ import android.os.Environment;
 import android.util.Log;
 import android.view.Surface;
 
-import com.bylijian.cameralibrary.webrtc.EglBase;
-import com.bylijian.cameralibrary.webrtc.GlRectDrawer;
-import com.bylijian.cameralibrary.webrtc.SurfaceEglRenderer;
+import com.bylijian.cameralibrary.webrtc.FifoFrameQueue;
+import com.bylijian.cameralibrary.webrtc.FrameRateGate;
+import com.bylijian.cameralibrary.webrtc.LatestFrameQueue;
+import com.bylijian.cameralibrary.webrtc.NV12Buffer;
+import com.bylijian.cameralibrary.webrtc.NV21Buffer;
+import com.bylijian.cameralibrary.webrtc.SurfaceTextureHelper;
+import com.bylijian.cameralibrary.webrtc.SurfaceViewRenderer;
+import com.bylijian.cameralibrary.webrtc.TextureBufferImpl;
 import com.bylijian.cameralibrary.webrtc.VideoCapturer;
 import com.bylijian.cameralibrary.webrtc.VideoFrame;
+import com.bylijian.cameralibrary.webrtc.YuvConverter;
 import com.bylijian.medialibrary.record.Mp4Recorder;
+import com.bylijian.medialibrary.record.mux.AndroidRemuxFactory;
+import com.bylijian.medialibrary.record.mux.Mp4Remuxer;
+import com.bylijian.medialibrary.record.video.AdaptiveBitrateController;
+import com.bylijian.medialibrary.record.video.EncoderProfile;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CameraRecorder {
     private static final String TAG = "CameraRecorder";
+    /**
+     * 录制时渲染线程最多积压的帧数，再多就丢最早的帧
+     */
+    private static final int RECORD_FRAME_QUEUE_SIZE = 4;
+    /**
+     * 预录缓存按码率估算大小，编码器的实际码率会有波动
+     */
+    private static final int PRE_ROLL_BUFFER_HEADROOM = 2;
+    private static final int PRE_ROLL_AUDIO_BITRATE = 64000;
 
-    private SurfaceEglRenderer surfaceEglRenderer;
+    private SurfaceViewRenderer previewRenderer;
+    private SurfaceTextureHelper captureHelper;
     private Mp4Recorder mp4Recorder;
-    private EglBase eglBase;
 
     private AtomicBoolean recording = new AtomicBoolean(false);
     private OnFrameListener onFrameListener;
 
     private Surface outputSurface;
+    private int outputFrameRate;
+    /**
+     * 编码器surface是否挂在采集线程上，采集线程通过onFrame()检查
+     */
+    private volatile boolean writingOnCaptureThread;
+    /**
+     * 保护编码器surface在采集线程和渲染线程之间切换
+     */
+    private final Object outputLock = new Object();
+    /**
+     * 是否优先用CPU拷贝YUV数据到编码器
+     */
+    private boolean byteBufferInput;
+    /**
+     * ByteBuffer输入的录制器，只在这种模式下不为null，由采集线程通过onFrame()送帧
+     */
+    private volatile Mp4Recorder byteBufferRecorder;
+    private EncoderProfile byteBufferProfile;
+    /**
+     * 和surface输入一样按profile的帧率限制送入编码器的帧，只在采集线程访问
+     */
+    private FrameRateGate frameRateGate;
 
-    public void init(EglBase eglBase) {
-        this.eglBase = EglBase.create(eglBase.getEglBaseContext());
+    /**
+     * 分段录制时不为null
+     */
+    private File segmentDir;
+    private int segmentIndex;
+    /**
+     * 预录中，编码器已经在工作，startRecord()时直接开始写文件
+     */
+    private boolean preRolling;
+
+    private int minAdaptiveBitrate;
+    private int minAdaptiveFrameRate;
+    private AdaptiveBitrateController.Listener adaptiveBitrateListener;
+
+    /**
+     * 编码器的输入surface挂到预览的渲染线程上，每一帧只上传一次纹理，不再单独起一个GL线程和EGLContext
+     *
+     * @param previewRenderer 需要用EglBase.CONFIG_RECORDABLE初始化
+     */
+    public void init(SurfaceViewRenderer previewRenderer) {
+        init(previewRenderer, null);
     }
 
-    public void startRecord(int width, int height, int frameRate) {
-        Log.d(TAG, "startRecord() width=" + width + "height=" + height + "frameRate=" + frameRate);
-        if (recording.get()) {
-            Log.e(TAG, "already recording must stop first");
+    /**
+     * 采集帧是OES纹理时，直接在采集线程把纹理画到编码器surface上，不再经过预览的渲染线程
+     * 需要把采集到的每一帧传给{@link #onFrame(VideoFrame)}，收到不是OES纹理的帧时(比如Camera1没有用纹理采集)，
+     * 这些帧不经过captureHelper，编码器surface换回预览的渲染线程
+     *
+     * @param captureHelper 需要用EglBase.CONFIG_RECORDABLE_PIXEL_BUFFER创建；
+     *                      为null或者不支持时退回到预览的渲染线程
+     */
+    public void init(SurfaceViewRenderer previewRenderer, SurfaceTextureHelper captureHelper) {
+        this.previewRenderer = previewRenderer;
+        this.captureHelper = captureHelper;
+    }
+
+    /**
+     * 需要在startRecord()之前调用
+     *
+     * @see Mp4Recorder#setAdaptiveBitrate(int, int, AdaptiveBitrateController.Listener)
+     */
+    public void setAdaptiveBitrate(int minBitrate, int minFrameRate, AdaptiveBitrateController.Listener listener) {
+        this.minAdaptiveBitrate = minBitrate;
+        this.minAdaptiveFrameRate = minFrameRate;
+        this.adaptiveBitrateListener = listener;
+    }
+
+    /**
+     * 优先把采集到的YUV数据直接拷贝到编码器的输入buffer，不经过GPU，适合GPU较弱的设备
+     * 编码器不支持YUV420输入时仍然使用surface输入，需要在startRecord()之前调用
+     * 开启以后要把采集到的每一帧传给{@link #onFrame(VideoFrame)}
+     */
+    public void setByteBufferInput(boolean byteBufferInput) {
+        this.byteBufferInput = byteBufferInput;
+    }
+
+    /**
+     * @param profile 编码参数，渲染到编码器的帧率也限制在profile的帧率
+     */
+    public void startRecord(EncoderProfile profile) {
+        Log.d(TAG, "startRecord() " + profile + " preRolling=" + preRolling);
+        if (preRolling) {
+            //沿用预录的编码器，profile在startPreRoll()时已经确定
+            preRolling = false;
+        } else if (!prepare(profile)) {
             return;
         }
-        recording.set(true);
-        surfaceEglRenderer = new SurfaceEglRenderer("SurfaceEglRenderer");
-        surfaceEglRenderer.init(eglBase.getEglBaseContext(), null, EglBase.CONFIG_RECORDABLE, new GlRectDrawer());
-//            surfaceEglRenderer.setRenderMode(EglRenderer.RENDERMODE_CONTINUOUSLY);
-//            surfaceEglRenderer.setFpsReduction(25);
-        mp4Recorder = new Mp4Recorder();
-        outputSurface = mp4Recorder.prepareVideoEncoder(width, height, frameRate);
-        surfaceEglRenderer.createEglSurface(outputSurface);
         //fixme
         File outputFile = new File(Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES) + "/grafika", "ScreenRecord" +
                 System.currentTimeMillis() / 1000 + ".mp4");
 
         mp4Recorder.startRecord(outputFile);
+        onRecordStarted();
+    }
+
+    /**
+     * 开始预录，之后的{@link #startRecord(EncoderProfile)}会包含之前durationMs左右的画面
+     * 预录期间用preRollBitrate编码，开始录制以后恢复profile的码率。stopRecord()同时结束预录
+     */
+    public void startPreRoll(EncoderProfile profile, int durationMs, int preRollBitrate) {
+        Log.d(TAG, "startPreRoll() " + profile + " durationMs=" + durationMs);
+        if (!prepare(profile)) {
+            return;
+        }
+        //缓存时长加上最多一个GOP
+        long bufferMs = durationMs + (long) (profile.getKeyFrameInterval() * 1000);
+        long maxBytes = (long) (preRollBitrate + PRE_ROLL_AUDIO_BITRATE) / 8 * bufferMs / 1000
+                * PRE_ROLL_BUFFER_HEADROOM;
+        mp4Recorder.startPreRoll(durationMs, (int) Math.min(maxBytes, Integer.MAX_VALUE), preRollBitrate);
+        preRolling = true;
+        onRecordStarted();
+    }
+
+    public boolean isPreRolling() {
+        return recording.get() && preRolling;
+    }
+
+    /**
+     * 分段录制，编码器在分段之间保持工作，{@link #startSegment()}只需要等下一个关键帧
+     * 结束时调用{@link #finishSegmentedRecord(File)}把分段拼接成一个文件
+     *
+     * @param profile    分段按显示时间切分，B帧设置会被忽略
+     * @param segmentDir 分段文件的目录
+     */
+    public void startSegmentedRecord(EncoderProfile profile, File segmentDir) {
+        Log.d(TAG, "startSegmentedRecord() " + profile);
+        if (!prepare(profile.copy().setMaxBFrames(0))) {
+            return;
+        }
+        this.segmentDir = segmentDir;
+        segmentIndex = 0;
+        mp4Recorder.startSegmentedRecord();
+        onRecordStarted();
+    }
+
+    public void startSegment() {
+        if (recording.get() && segmentDir != null) {
+            mp4Recorder.startSegment(new File(segmentDir, "segment_" + segmentIndex++ + ".mp4"));
+        }
+    }
+
+    public void endSegment() {
+        if (recording.get() && segmentDir != null) {
+            mp4Recorder.endSegment();
+        }
+    }
+
+    public boolean isRecordingSegment() {
+        return recording.get() && segmentDir != null && mp4Recorder.isRecordingSegment();
+    }
+
+    /**
+     * 删除最后一个分段
+     *
+     * @return 没有分段时返回false
+     */
+    public boolean deleteLastSegment() {
+        return recording.get() && segmentDir != null && mp4Recorder.deleteLastSegment();
+    }
+
+    /**
+     * 所有分段的总时长，用来显示进度
+     */
+    public long getSegmentDurationUs() {
+        return recording.get() && segmentDir != null ? mp4Recorder.getSegmentDurationUs() : 0;
+    }
+
+    /**
+     * 停止录制，不重新编码，把所有分段按顺序拼接成output，成功以后删除分段文件
+     * 拼接耗时和文件大小成正比，不要在主线程调用
+     *
+     * @return 没有分段时返回false
+     */
+    public boolean finishSegmentedRecord(File output) throws IOException {
+        if (segmentDir == null) {
+            throw new IllegalStateException("not a segmented record");
+        }
+        stopRecord();
+        List<File> segments = mp4Recorder.getSegmentFiles();
+        segmentDir = null;
+        if (segments.isEmpty()) {
+            return false;
+        }
+        new Mp4Remuxer<>(new AndroidRemuxFactory()).concat(segments, output);
+        for (File segment : segments) {
+            if (!segment.delete()) {
+                Log.w(TAG, "can not delete " + segment);
+            }
+        }
+        return true;
+    }
+
+    private boolean prepare(EncoderProfile profile) {
+        if (recording.get()) {
+            Log.e(TAG, "already recording must stop first");
+            return false;
+        }
+        recording.set(true);
+        segmentDir = null;
+        mp4Recorder = new Mp4Recorder();
+        mp4Recorder.setAdaptiveBitrate(minAdaptiveBitrate, minAdaptiveFrameRate, adaptiveBitrateListener);
+        writingOnCaptureThread = false;
+        if (byteBufferInput && mp4Recorder.prepareByteBufferVideoEncoder(profile)) {
+            byteBufferProfile = profile;
+            frameRateGate = new FrameRateGate(profile.getFrameRate());
+        } else {
+            outputSurface = mp4Recorder.prepareVideoEncoder(profile);
+        }
+        outputFrameRate = profile.getFrameRate();
+        synchronized (outputLock) {
+            if (outputSurface != null && captureHelper != null) {
+                try {
+                    captureHelper.addOutputSurface(outputSurface, outputFrameRate, false);
+                    writingOnCaptureThread = true;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "can not write encoder surface on capture thread", e);
+                }
+            }
+            if (outputSurface != null && !writingOnCaptureThread) {
+                addRendererOutputSurface();
+            }
+        }
+        return true;
+    }
+
+    private void addRendererOutputSurface() {
+        // 录制时渲染线程短暂卡顿不能丢帧，按采集节奏把积压的帧画完
+        previewRenderer.setFrameQueue(new FifoFrameQueue(RECORD_FRAME_QUEUE_SIZE, true));
+        previewRenderer.addOutputSurface(outputSurface, outputFrameRate, false);
+    }
+
+    /**
+     * 采集线程上的编码器surface只能画SurfaceTextureHelper输出的OES纹理，其他帧不经过它，
+     * 收到第一个这样的帧时把编码器surface换到预览的渲染线程
+     */
+    private void checkCaptureThreadInput(VideoFrame frame) {
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        if (buffer instanceof VideoFrame.TextureBuffer
+                && ((VideoFrame.TextureBuffer) buffer).getType() == VideoFrame.TextureBuffer.Type.OES) {
+            return;
+        }
+        synchronized (outputLock) {
+            if (!writingOnCaptureThread || outputSurface == null) {
+                return;
+            }
+            Log.w(TAG, "captured frames are not OES textures, write encoder surface on render thread");
+            captureHelper.removeOutputSurface(outputSurface);
+            writingOnCaptureThread = false;
+            addRendererOutputSurface();
+        }
+    }
+
+    private void onRecordStarted() {
+        if (outputSurface == null) {
+            byteBufferRecorder = mp4Recorder;
+        }
+    }
+
+    /**
+     * 在采集线程调用。ByteBuffer输入模式下把帧拷贝到编码器，编码器surface在采集线程上时检查帧的类型，其他模式下直接返回
+     * NV21和NV12直接拷贝平面，纹理帧经过YuvConverter异步转换成编码器要求的NV12或I420，旋转在拷贝时完成
+     */
+    public void onFrame(VideoFrame frame) {
+        if (writingOnCaptureThread) {
+            checkCaptureThreadInput(frame);
+        }
+        Mp4Recorder recorder = byteBufferRecorder;
+        if (recorder == null) {
+            return;
+        }
+        long timestampNs = frame.getTimestampNs();
+        if (!frameRateGate.shouldPass(timestampNs)) {
+            return;
+        }
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        int rotation = frame.getRotation();
+        boolean transposed = rotation % 180 != 0;
+        int targetWidth = transposed ? byteBufferProfile.getHeight() : byteBufferProfile.getWidth();
+        int targetHeight = transposed ? byteBufferProfile.getWidth() : byteBufferProfile.getHeight();
+        if (buffer.getWidth() == targetWidth && buffer.getHeight() == targetHeight) {
+            buffer.retain();
+        } else {
+            buffer = cropAndScale(buffer, targetWidth, targetHeight);
+        }
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        if (buffer instanceof NV21Buffer) {
+            //Y平面后面紧跟着VU交错的平面
+            ByteBuffer data = ByteBuffer.wrap(((NV21Buffer) buffer).getData());
+            int chromaOffset = width * height;
+            recorder.queueVideoFrame(width, height, data, width,
+                    slice(data, chromaOffset + 1), slice(data, chromaOffset), width, 2, rotation, timestampNs);
+        } else if (buffer instanceof NV12Buffer) {
+            queueSemiPlanarFrame(recorder, (NV12Buffer) buffer, rotation, timestampNs);
+        } else if (buffer instanceof TextureBufferImpl) {
+            queueTextureFrame(recorder, (TextureBufferImpl) buffer, rotation, timestampNs);
+        } else {
+            //I420直接拷贝
+            VideoFrame.I420Buffer i420Buffer = buffer.toI420();
+            recorder.queueVideoFrame(width, height, i420Buffer.getDataY(), i420Buffer.getStrideY(),
+                    i420Buffer.getDataU(), i420Buffer.getDataV(), i420Buffer.getStrideU(), 1,
+                    rotation, timestampNs);
+            i420Buffer.release();
+        }
+        buffer.release();
+    }
+
+    /**
+     * 宽高比不一致时先居中裁剪
+     */
+    private static void queueSemiPlanarFrame(Mp4Recorder recorder, NV12Buffer buffer, int rotation,
+                                             long timestampNs) {
+        ByteBuffer data = buffer.getBuffer();
+        int stride = buffer.getStride();
+        int chromaOffset = stride * buffer.getSliceHeight();
+        int uOffset = buffer.isVFirst() ? chromaOffset + 1 : chromaOffset;
+        int vOffset = buffer.isVFirst() ? chromaOffset : chromaOffset + 1;
+        recorder.queueVideoFrame(buffer.getWidth(), buffer.getHeight(), data, stride,
+                slice(data, uOffset), slice(data, vOffset), stride, 2, rotation, timestampNs);
+    }
+
+    /**
+     * 纹理帧通过PBO异步读回，采集线程不等GPU，纹理可以马上还给SurfaceTextureHelper接收下一帧
+     * 编码器要求NV12时着色器直接画出UV交错的色度平面，否则读回成I420
+     * 读回完成以后在采集线程送入编码器，这时录制可能已经停止，queueVideoFrame直接返回
+     */
+    private static void queueTextureFrame(final Mp4Recorder recorder, TextureBufferImpl buffer,
+                                          final int rotation, final long timestampNs) {
+        if (recorder.isSemiPlanarInput()) {
+            buffer.toSemiPlanarAsync(false, new YuvConverter.SemiPlanarCallback() {
+                @Override
+                public void onSemiPlanarBuffer(NV12Buffer nv12Buffer) {
+                    if (nv12Buffer == null) {
+                        return;
+                    }
+                    queueSemiPlanarFrame(recorder, nv12Buffer, rotation, timestampNs);
+                    nv12Buffer.release();
+                }
+            });
+            return;
+        }
+        buffer.toI420Async(new YuvConverter.I420Callback() {
+            @Override
+            public void onI420Buffer(VideoFrame.I420Buffer i420Buffer) {
+                if (i420Buffer == null) {
+                    return;
+                }
+                recorder.queueVideoFrame(i420Buffer.getWidth(), i420Buffer.getHeight(), i420Buffer.getDataY(),
+                        i420Buffer.getStrideY(), i420Buffer.getDataU(), i420Buffer.getDataV(),
+                        i420Buffer.getStrideU(), 1, rotation, timestampNs);
+                i420Buffer.release();
+            }
+        });
+    }
+
+    private static VideoFrame.Buffer cropAndScale(VideoFrame.Buffer buffer, int width, int height) {
+        int cropWidth = buffer.getWidth();
+        int cropHeight = buffer.getHeight();
+        if (cropWidth * height > cropHeight * width) {
+            cropWidth = cropHeight * width / height;
+        } else {
+            cropHeight = cropWidth * height / width;
+        }
+        return buffer.cropAndScale((buffer.getWidth() - cropWidth) / 2, (buffer.getHeight() - cropHeight) / 2,
+                cropWidth, cropHeight, width, height);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
     }
 
     public void stopRecord() {
         Log.d(TAG, "stopRecord()");
         if (recording.get()) {
             recording.set(false);
-            if (surfaceEglRenderer != null) {
-                surfaceEglRenderer.pauseVideo();
-                surfaceEglRenderer.release();
+            preRolling = false;
+            byteBufferRecorder = null;
+            synchronized (outputLock) {
+                if (outputSurface != null) {
+                    // 等渲染线程不再往编码器surface上画，再停止编码器
+                    if (writingOnCaptureThread) {
+                        captureHelper.removeOutputSurface(outputSurface);
+                        writingOnCaptureThread = false;
+                    } else {
+                        previewRenderer.removeOutputSurface(outputSurface);
+                        previewRenderer.setFrameQueue(new LatestFrameQueue());
+                    }
+                    outputSurface = null;
+                }
             }
             if (mp4Recorder != null) {
                 mp4Recorder.stopRecord();
@@ -67,17 +450,11 @@ public class CameraRecorder {
         }
     }
 
+    /**
+     * 预录期间返回false
+     */
     public boolean isRecording() {
-        return recording.get();
-    }
-
-    public void onVideoFrame(VideoFrame frame) {
-        if (surfaceEglRenderer != null) {
-            surfaceEglRenderer.onFrame(frame);
-        } else {
-            Log.e(TAG, "onVideoFrame() but surfaceEglRenderer null ");
-        }
-
+        return recording.get() && !preRolling;
     }
 
     public void setFrameListener(OnFrameListener onFrameListener) {
@@ -90,10 +467,6 @@ public class CameraRecorder {
         }
     }
 
-    public EglBase getEglBase() {
-        return eglBase;
-    }
-
     public class RecordServiceBinder extends Binder {
 
         public CameraRecorder getService() {
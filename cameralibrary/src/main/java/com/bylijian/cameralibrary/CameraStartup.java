@@ -0,0 +1,333 @@
+package com.bylijian.cameralibrary;
+
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bylijian.cameralibrary.webrtc.CameraEnumerator;
+import com.bylijian.cameralibrary.webrtc.CameraVideoCapturer;
+import com.bylijian.cameralibrary.webrtc.CapturerObserver;
+import com.bylijian.cameralibrary.webrtc.EglBase;
+import com.bylijian.cameralibrary.webrtc.Size;
+import com.bylijian.cameralibrary.webrtc.SurfaceTextureHelper;
+import com.bylijian.cameralibrary.webrtc.VideoFrame;
+import com.bylijian.medialibrary.record.Mp4Recorder;
+import com.bylijian.medialibrary.trace.StartupTimeline;
+
+/**
+ * 并行完成打开预览之前的初始化，缩短从进入页面到第一帧的时间
+ * 1.{@link #start()}以后几个后台线程同时进行：查询摄像头并创建capturer，采集线程创建EGL context和SurfaceTexture，
+ * 创建AudioRecord
+ * 2.capturer和SurfaceTextureHelper都准备好以后，如果已经调用了{@link #startCapture}就在后台线程直接打开摄像头，
+ * 不等主线程，和布局、预览的EGL初始化以及着色器编译同时进行
+ * 3.各阶段的时间记录在{@link StartupTimeline}
+ * 公开的方法在主线程调用，{@link Callback}也在主线程回调
+ */
+public class CameraStartup {
+    private static final String TAG = "CameraStartup";
+
+    public interface Callback {
+        /**
+         * capturer已经initialize，之后可以直接调用它的方法，startCapture/stopCapture仍然通过CameraStartup
+         */
+        void onCapturerReady(CameraVideoCapturer capturer, SurfaceTextureHelper surfaceTextureHelper);
+
+        void onFailure(String error);
+    }
+
+    private final Context applicationContext;
+    private final EglBase.Context sharedContext;
+    private final int[] captureConfigAttributes;
+    private final CameraEnumerator enumerator;
+    private final CapturerObserver observer;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Object lock = new Object();
+    private CameraVideoCapturer capturer;
+    private SurfaceTextureHelper surfaceTextureHelper;
+    /**
+     * 还没完成的capturer和SurfaceTextureHelper创建任务
+     */
+    private int pendingTasks;
+    private boolean initialized;
+    private boolean captureRequested;
+    private boolean capturing;
+    private int width;
+    private int height;
+    private int framerate;
+    private boolean released;
+
+    /**
+     * 只在采集线程访问
+     */
+    private boolean firstFrameMarked;
+
+    private final CapturerObserver timelineObserver = new CapturerObserver() {
+        @Override
+        public void onCapturerStarted(boolean success, Size previewSize, CameraCharacteristics cameraCharacteristics) {
+            StartupTimeline.getInstance().end(StartupTimeline.PHASE_CAMERA_OPEN);
+            observer.onCapturerStarted(success, previewSize, cameraCharacteristics);
+        }
+
+        @Override
+        public void onCapturerStopped() {
+            observer.onCapturerStopped();
+        }
+
+        @Override
+        public void onFrameCaptured(VideoFrame frame) {
+            if (!firstFrameMarked) {
+                firstFrameMarked = true;
+                StartupTimeline.getInstance().mark(StartupTimeline.EVENT_FIRST_FRAME);
+            }
+            observer.onFrameCaptured(frame);
+        }
+    };
+
+    /**
+     * @param captureConfigAttributes 采集线程EGL的配置，录制时在采集线程画编码器surface需要支持recordable
+     * @param observer                采集线程回调
+     */
+    public CameraStartup(Context context, EglBase.Context sharedContext, int[] captureConfigAttributes,
+                         CameraEnumerator enumerator, CapturerObserver observer, Callback callback) {
+        this.applicationContext = context.getApplicationContext();
+        this.sharedContext = sharedContext;
+        this.captureConfigAttributes = captureConfigAttributes;
+        this.enumerator = enumerator;
+        this.observer = observer;
+        this.callback = callback;
+    }
+
+    /**
+     * 开始后台初始化，同时重新开始记录{@link StartupTimeline}
+     */
+    public void start() {
+        StartupTimeline.getInstance().start();
+        synchronized (lock) {
+            pendingTasks = 2;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StartupTimeline.getInstance().begin(StartupTimeline.PHASE_CAMERA_ENUMERATE);
+                CameraVideoCapturer created = null;
+                try {
+                    created = createCapturer();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "createCapturer()", e);
+                }
+                StartupTimeline.getInstance().end(StartupTimeline.PHASE_CAMERA_ENUMERATE);
+                synchronized (lock) {
+                    capturer = created;
+                }
+                onTaskDone();
+            }
+        }, "startup-camera").start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StartupTimeline.getInstance().begin(StartupTimeline.PHASE_CAPTURE_EGL);
+                //帧时间戳对齐到System.nanoTime()，FrameTracer按它计算各阶段延迟
+                SurfaceTextureHelper helper = SurfaceTextureHelper.create("CaptureThread", sharedContext,
+                        true, captureConfigAttributes);
+                StartupTimeline.getInstance().end(StartupTimeline.PHASE_CAPTURE_EGL);
+                synchronized (lock) {
+                    surfaceTextureHelper = helper;
+                }
+                onTaskDone();
+            }
+        }, "startup-egl").start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StartupTimeline.getInstance().begin(StartupTimeline.PHASE_AUDIO_RECORD);
+                try {
+                    Mp4Recorder.prepareAudioSource();
+                } catch (RuntimeException e) {
+                    //没有录音权限等情况，开始录制时再创建
+                    Log.w(TAG, "prepareAudioSource()", e);
+                }
+                StartupTimeline.getInstance().end(StartupTimeline.PHASE_AUDIO_RECORD);
+                synchronized (lock) {
+                    if (!released) {
+                        return;
+                    }
+                }
+                //release()先于这里执行
+                Mp4Recorder.releasePreparedAudioSource();
+            }
+        }, "startup-audio").start();
+    }
+
+    /**
+     * 还没准备好时记下参数，准备好以后立即打开摄像头。已经在采集时忽略
+     */
+    public void startCapture(int width, int height, int framerate) {
+        synchronized (lock) {
+            if (released || capturing) {
+                return;
+            }
+            captureRequested = true;
+            this.width = width;
+            this.height = height;
+            this.framerate = framerate;
+            if (initialized) {
+                startCaptureLocked();
+            }
+        }
+    }
+
+    /**
+     * 阻塞到摄像头停止
+     */
+    public void stopCapture() {
+        final CameraVideoCapturer stopping;
+        synchronized (lock) {
+            captureRequested = false;
+            if (!capturing) {
+                return;
+            }
+            capturing = false;
+            stopping = capturer;
+        }
+        try {
+            stopping.stopCapture();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stopCapture()", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 还没准备好时返回null
+     */
+    public SurfaceTextureHelper getSurfaceTextureHelper() {
+        synchronized (lock) {
+            return initialized ? surfaceTextureHelper : null;
+        }
+    }
+
+    /**
+     * 停止采集，释放capturer、SurfaceTextureHelper和没有用到的AudioRecord。后台任务还没结束时由任务结束后释放
+     */
+    public void release() {
+        stopCapture();
+        final CameraVideoCapturer releasingCapturer;
+        final SurfaceTextureHelper releasingHelper;
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (pendingTasks > 0) {
+                //最后一个任务结束时释放
+                releasingCapturer = null;
+                releasingHelper = null;
+            } else {
+                releasingCapturer = capturer;
+                releasingHelper = surfaceTextureHelper;
+                capturer = null;
+                surfaceTextureHelper = null;
+            }
+        }
+        mainHandler.removeCallbacksAndMessages(null);
+        dispose(releasingCapturer, releasingHelper);
+        Mp4Recorder.releasePreparedAudioSource();
+    }
+
+    private CameraVideoCapturer createCapturer() {
+        final String[] deviceNames = enumerator.getDeviceNames();
+        //优先后置摄像头
+        for (String deviceName : deviceNames) {
+            if (!enumerator.isFrontFacing(deviceName)) {
+                CameraVideoCapturer created = enumerator.createCapturer(deviceName, null);
+                if (created != null) {
+                    return created;
+                }
+            }
+        }
+        for (String deviceName : deviceNames) {
+            if (enumerator.isFrontFacing(deviceName)) {
+                CameraVideoCapturer created = enumerator.createCapturer(deviceName, null);
+                if (created != null) {
+                    return created;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在后台线程调用，最后一个任务完成时初始化capturer
+     */
+    private void onTaskDone() {
+        final CameraVideoCapturer readyCapturer;
+        final SurfaceTextureHelper readyHelper;
+        final boolean ready;
+        final boolean cancelled;
+        synchronized (lock) {
+            if (--pendingTasks > 0) {
+                return;
+            }
+            readyCapturer = capturer;
+            readyHelper = surfaceTextureHelper;
+            cancelled = released;
+            ready = !released && readyCapturer != null && readyHelper != null;
+            if (ready) {
+                readyCapturer.initialize(readyHelper, applicationContext, timelineObserver);
+                initialized = true;
+                if (captureRequested) {
+                    startCaptureLocked();
+                }
+            } else {
+                capturer = null;
+                surfaceTextureHelper = null;
+            }
+        }
+        if (!ready) {
+            dispose(readyCapturer, readyHelper);
+            if (cancelled) {
+                return;
+            }
+            final String error = readyCapturer == null ? "no camera" : "failed to create SurfaceTextureHelper";
+            Log.e(TAG, error);
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(error);
+                }
+            });
+            return;
+        }
+        Log.d(TAG, "capturer ready\n" + StartupTimeline.getInstance().getReport());
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (released) {
+                        return;
+                    }
+                }
+                callback.onCapturerReady(readyCapturer, readyHelper);
+            }
+        });
+    }
+
+    private void startCaptureLocked() {
+        StartupTimeline.getInstance().begin(StartupTimeline.PHASE_CAMERA_OPEN);
+        capturer.startCapture(width, height, framerate);
+        capturing = true;
+    }
+
+    private static void dispose(CameraVideoCapturer capturer, SurfaceTextureHelper helper) {
+        if (capturer != null) {
+            capturer.dispose();
+        }
+        if (helper != null) {
+            helper.dispose();
+        }
+    }
+}
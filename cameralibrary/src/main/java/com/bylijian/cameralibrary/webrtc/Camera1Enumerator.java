@@ -17,15 +17,17 @@ import android.util.Log;
 import com.bylijian.cameralibrary.webrtc.CameraEnumerationAndroid.CaptureFormat;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("deprecation")
 public class Camera1Enumerator implements CameraEnumerator {
   private final static String TAG = "Camera1Enumerator";
-  // Each entry contains the supported formats for corresponding camera index. The formats for all
-  // cameras are enumerated on the first call to getSupportedFormats(), and cached for future
-  // reference.
-  private static List<List<CaptureFormat>> cachedSupportedFormats;
+  // Supported formats by camera index. A camera is opened to enumerate them on the first call to
+  // getSupportedFormats() for it, unless CameraCapabilityCache has them from a previous launch.
+  private static final Map<Integer, List<CaptureFormat>> cachedSupportedFormats =
+      new HashMap<Integer, List<CaptureFormat>>();
 
   private final boolean captureToTexture;
 
@@ -89,13 +91,22 @@ public class Camera1Enumerator implements CameraEnumerator {
   }
 
   static synchronized List<CaptureFormat> getSupportedFormats(int cameraId) {
-    if (cachedSupportedFormats == null) {
-      cachedSupportedFormats = new ArrayList<List<CaptureFormat>>();
-      for (int i = 0; i < android.hardware.Camera.getNumberOfCameras(); ++i) {
-        cachedSupportedFormats.add(enumerateFormats(i));
+    List<CaptureFormat> formats = cachedSupportedFormats.get(cameraId);
+    if (formats != null) {
+      return formats;
+    }
+    final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance();
+    final String id = Integer.toString(cameraId);
+    formats = capabilityCache.getSupportedFormats(CameraCapabilityCache.CAMERA1, id);
+    if (formats == null) {
+      formats = enumerateFormats(cameraId);
+      // An empty list means the camera couldn't be opened, try again next launch.
+      if (!formats.isEmpty()) {
+        capabilityCache.putSupportedFormats(CameraCapabilityCache.CAMERA1, id, formats);
       }
     }
-    return cachedSupportedFormats.get(cameraId);
+    cachedSupportedFormats.put(cameraId, formats);
+    return formats;
   }
 
   private static List<CaptureFormat> enumerateFormats(int cameraId) {
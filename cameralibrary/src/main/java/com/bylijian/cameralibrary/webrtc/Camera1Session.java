@@ -95,7 +95,7 @@ class Camera1Session implements CameraSession {
         final CaptureFormat captureFormat;
         try {
             final android.hardware.Camera.Parameters parameters = camera.getParameters();
-            captureFormat = findClosestCaptureFormat(parameters, width, height, framerate);
+            captureFormat = findClosestCaptureFormat(cameraId, parameters, width, height, framerate);
             final Size pictureSize = findClosestPictureSize(parameters, width, height);
             updateCameraParameters(camera, parameters, captureFormat, pictureSize, captureToTexture);
         } catch (RuntimeException e) {
@@ -142,8 +142,17 @@ class Camera1Session implements CameraSession {
         camera.setParameters(parameters);
     }
 
-    private static CaptureFormat findClosestCaptureFormat(
+    private static CaptureFormat findClosestCaptureFormat(int cameraId,
             android.hardware.Camera.Parameters parameters, int width, int height, int framerate) {
+        final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance();
+        final String id = Integer.toString(cameraId);
+        final CaptureFormat cachedFormat = capabilityCache.getSelectedFormat(
+                CameraCapabilityCache.CAMERA1, id, width, height, framerate);
+        if (cachedFormat != null) {
+            previewSize = new Size(cachedFormat.width, cachedFormat.height);
+            return cachedFormat;
+        }
+
         // Find closest supported format for |width| x |height| @ |framerate|.
         final List<CaptureFormat.FramerateRange> supportedFramerates =
                 Camera1Enumerator.convertFramerates(parameters.getSupportedPreviewFpsRange());
@@ -156,7 +165,11 @@ class Camera1Session implements CameraSession {
                 Camera1Enumerator.convertSizes(parameters.getSupportedPreviewSizes()), width, height);
         CameraEnumerationAndroid.reportCameraResolution(camera1ResolutionHistogram, previewSize);
 
-        return new CaptureFormat(previewSize.width, previewSize.height, fpsRange);
+        final CaptureFormat captureFormat =
+                new CaptureFormat(previewSize.width, previewSize.height, fpsRange);
+        capabilityCache.putSelectedFormat(CameraCapabilityCache.CAMERA1, id, width, height, framerate,
+                captureFormat, 0 /* fpsUnitFactor */);
+        return captureFormat;
     }
 
     private static Size findClosestPictureSize(
@@ -66,20 +66,30 @@ public class Camera2Enumerator implements CameraEnumerator {
 
     @Override
     public boolean isFrontFacing(String deviceName) {
-        CameraCharacteristics characteristics = getCameraCharacteristics(deviceName);
-
-        return characteristics != null
-                && characteristics.get(CameraCharacteristics.LENS_FACING)
-                == CameraMetadata.LENS_FACING_FRONT;
+        return getFacing(deviceName) == CameraMetadata.LENS_FACING_FRONT;
     }
 
     @Override
     public boolean isBackFacing(String deviceName) {
-        CameraCharacteristics characteristics = getCameraCharacteristics(deviceName);
+        return getFacing(deviceName) == CameraMetadata.LENS_FACING_BACK;
+    }
 
-        return characteristics != null
-                && characteristics.get(CameraCharacteristics.LENS_FACING)
-                == CameraMetadata.LENS_FACING_BACK;
+    /**
+     * Returns LENS_FACING of the camera, or -1 if it can't be queried.
+     */
+    private int getFacing(String deviceName) {
+        final CameraCapabilityCache cache = CameraCapabilityCache.getInstance();
+        int facing = cache.getFacing(CameraCapabilityCache.CAMERA2, deviceName);
+        if (facing >= 0) {
+            return facing;
+        }
+        CameraCharacteristics characteristics = getCameraCharacteristics(deviceName);
+        if (characteristics == null) {
+            return -1;
+        }
+        facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        cache.putFacing(CameraCapabilityCache.CAMERA2, deviceName, facing);
+        return facing;
     }
 
     @Override
@@ -180,6 +190,13 @@ public class Camera2Enumerator implements CameraEnumerator {
             if (cachedSupportedFormats.containsKey(cameraId)) {
                 return cachedSupportedFormats.get(cameraId);
             }
+            final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance();
+            final List<CaptureFormat> persistedFormats =
+                    capabilityCache.getSupportedFormats(CameraCapabilityCache.CAMERA2, cameraId);
+            if (persistedFormats != null) {
+                cachedSupportedFormats.put(cameraId, persistedFormats);
+                return persistedFormats;
+            }
 
             Log.d(TAG, "Get supported formats for camera index " + cameraId + ".");
             final long startTimeMs = SystemClock.elapsedRealtime();
@@ -223,6 +240,7 @@ public class Camera2Enumerator implements CameraEnumerator {
             }
 
             cachedSupportedFormats.put(cameraId, formatList);
+            capabilityCache.putSupportedFormats(CameraCapabilityCache.CAMERA2, cameraId, formatList);
             final long endTimeMs = SystemClock.elapsedRealtime();
             Log.d(TAG, "Get supported formats for camera index " + cameraId + " done."
                     + " Time spent: " + (endTimeMs - startTimeMs) + " ms.");
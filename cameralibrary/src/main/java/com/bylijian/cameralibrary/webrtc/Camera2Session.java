@@ -40,12 +40,12 @@ class Camera2Session implements CameraSession {
     private CaptureRequest.Builder captureRequestBuilder;
     private Size previewSize;
 
-//  private static final Histogram camera2StartTimeMsHistogram =
-//      Histogram.createCounts("WebRTC.Android.Camera2.StartTimeMs", 1, 10000, 50);
-//  private static final Histogram camera2StopTimeMsHistogram =
-//      Histogram.createCounts("WebRTC.Android.Camera2.StopTimeMs", 1, 10000, 50);
-//  private static final Histogram camera2ResolutionHistogram = Histogram.createEnumeration(
-//      "WebRTC.Android.Camera2.Resolution", CameraEnumerationAndroid.COMMON_RESOLUTIONS.size());
+    private static final Histogram camera2StartTimeMsHistogram =
+            Histogram.createCounts("WebRTC.Android.Camera2.StartTimeMs", 1, 10000, 50);
+    private static final Histogram camera2StopTimeMsHistogram =
+            Histogram.createCounts("WebRTC.Android.Camera2.StopTimeMs", 1, 10000, 50);
+    private static final Histogram camera2ResolutionHistogram = Histogram.createEnumeration(
+            "WebRTC.Android.Camera2.Resolution", CameraEnumerationAndroid.COMMON_RESOLUTIONS.size());
 
     private static enum SessionState {RUNNING, STOPPED}
 
@@ -205,7 +205,7 @@ class Camera2Session implements CameraSession {
                     firstFrameReported = true;
                     final int startTimeMs =
                             (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - constructionTimeNs);
-//          camera2StartTimeMsHistogram.addSample(startTimeMs);
+                    camera2StartTimeMsHistogram.addSample(startTimeMs);
                 }
 
                 // Undo the mirror that the OS "helps" us with.
@@ -330,6 +330,19 @@ class Camera2Session implements CameraSession {
     private void findCaptureFormat() {
         checkIsOnCameraThread();
 
+        final CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance();
+        final CaptureFormat cachedFormat = capabilityCache.getSelectedFormat(
+                CameraCapabilityCache.CAMERA2, cameraId, width, height, framerate);
+        final int cachedFpsUnitFactor =
+                capabilityCache.getFpsUnitFactor(CameraCapabilityCache.CAMERA2, cameraId);
+        if (cachedFormat != null && cachedFpsUnitFactor > 0) {
+            fpsUnitFactor = cachedFpsUnitFactor;
+            previewSize = new Size(cachedFormat.width, cachedFormat.height);
+            captureFormat = cachedFormat;
+            Log.d(TAG, "Using cached capture format: " + captureFormat);
+            return;
+        }
+
         Range<Integer>[] fpsRanges =
                 cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
         fpsUnitFactor = Camera2Enumerator.getFpsUnitFactor(fpsRanges);
@@ -348,9 +361,11 @@ class Camera2Session implements CameraSession {
                 CameraEnumerationAndroid.getClosestSupportedFramerateRange(framerateRanges, framerate);
 
         previewSize = CameraEnumerationAndroid.getClosestSupportedSize(sizes, width, height);
-//    CameraEnumerationAndroid.reportCameraResolution(camera2ResolutionHistogram, bestSize);
+        CameraEnumerationAndroid.reportCameraResolution(camera2ResolutionHistogram, previewSize);
 
         captureFormat = new CaptureFormat(previewSize.width, previewSize.height, bestFpsRange);
+        capabilityCache.putSelectedFormat(CameraCapabilityCache.CAMERA2, cameraId, width, height,
+                framerate, captureFormat, fpsUnitFactor);
         Log.d(TAG, "Using capture format: " + captureFormat);
     }
 
@@ -508,7 +523,7 @@ class Camera2Session implements CameraSession {
             state = SessionState.STOPPED;
             stopInternal();
             final int stopTimeMs = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStartTime);
-//      camera2StopTimeMsHistogram.addSample(stopTimeMs);
+            camera2StopTimeMsHistogram.addSample(stopTimeMs);
         }
     }
 
@@ -0,0 +1,437 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.bylijian.cameralibrary.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Camera capabilities persisted across launches, so a cold start neither opens every Camera1
+ * device nor walks the Camera2 stream configuration maps again, and the capture format picked for
+ * a requested size and frame rate is reused instead of being selected again. Entries are keyed by
+ * camera API and camera id; the whole file is dropped when the device fingerprint changes, e.g.
+ * after an OS update.
+ *
+ * <p>{@link #load} reads the file on a background thread. Lookups wait for it only while it is
+ * still running, and give up after {@link #LOAD_TIMEOUT_MS}. Updates are written back on the same
+ * thread. Without a call to {@link #load} the cache only lives in memory.
+ *
+ * <p>File format, big endian: magic, version, fingerprint (modified UTF-8), camera count, then per
+ * camera: api (byte), camera id (UTF), flags (byte), facing (byte), fps unit factor (int), supported formats and
+ * selected formats, each preceded by an unsigned short count. A format is width and height as
+ * unsigned shorts followed by min and max fps as ints; a selection is the requested width, height
+ * and fps as unsigned shorts followed by the format.
+ */
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+    static final int CAMERA1 = 1;
+    static final int CAMERA2 = 2;
+
+    static final long LOAD_TIMEOUT_MS = 1000;
+    private static final int MAGIC = 0x43434150; // "CCAP"
+    private static final int VERSION = 1;
+    // Requested formats remembered per camera. Apps use a handful, more means someone is sweeping.
+    private static final int MAX_SELECTIONS = 16;
+
+    private static final int FLAG_HAS_FORMATS = 1;
+
+    private static final CameraCapabilityCache instance = new CameraCapabilityCache();
+
+    private static class Camera {
+        final int api;
+        final String cameraId;
+        // LENS_FACING for Camera2, CameraInfo.facing for Camera1, -1 if unknown.
+        int facing = -1;
+        int fpsUnitFactor;
+        @Nullable
+        List<CaptureFormat> supportedFormats;
+        // Keyed by selectionKey(), oldest first.
+        final LinkedHashMap<Long, CaptureFormat> selections = new LinkedHashMap<>();
+
+        Camera(int api, String cameraId) {
+            this.api = api;
+            this.cameraId = cameraId;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Map<String, Camera> cameras = new HashMap<>(); /* guarded by lock */
+    @Nullable
+    private File file; /* guarded by lock */
+    private String fingerprint = ""; /* guarded by lock */
+    private boolean savePending; /* guarded by lock */
+    private boolean loadedFromFile; /* guarded by lock */
+    private volatile CountDownLatch loadLatch = new CountDownLatch(0);
+    @Nullable
+    private ExecutorService executor;
+
+    // Visible for testing, use getInstance().
+    CameraCapabilityCache() {
+    }
+
+    public static CameraCapabilityCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts reading |file| on a background thread. Call it early, e.g. in Activity.onCreate(),
+     * so that it is done by the time the camera opens. Does nothing if |file| is already loaded.
+     *
+     * @param fingerprint Build.FINGERPRINT; a file written with another fingerprint is ignored.
+     */
+    public void load(final File file, final String fingerprint) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        synchronized (lock) {
+            if (file.equals(this.file) && fingerprint.equals(this.fingerprint)) {
+                return;
+            }
+            this.file = file;
+            this.fingerprint = fingerprint;
+            loadLatch = latch;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readFile(file, fingerprint);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether entries were read from the file, i.e. this is a warm start.
+     */
+    public boolean isLoadedFromFile() {
+        awaitLoad();
+        synchronized (lock) {
+            return loadedFromFile;
+        }
+    }
+
+    @Nullable
+    List<CaptureFormat> getSupportedFormats(int api, String cameraId) {
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = cameras.get(key(api, cameraId));
+            return camera == null ? null : camera.supportedFormats;
+        }
+    }
+
+    void putSupportedFormats(int api, String cameraId, List<CaptureFormat> formats) {
+        awaitLoad();
+        synchronized (lock) {
+            getOrCreate(api, cameraId).supportedFormats =
+                    Collections.unmodifiableList(new ArrayList<>(formats));
+            scheduleSaveLocked();
+        }
+    }
+
+    /**
+     * Returns the facing constant of the camera API, or -1 if not cached.
+     */
+    int getFacing(int api, String cameraId) {
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = cameras.get(key(api, cameraId));
+            return camera == null ? -1 : camera.facing;
+        }
+    }
+
+    void putFacing(int api, String cameraId, int facing) {
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = getOrCreate(api, cameraId);
+            if (camera.facing != facing) {
+                camera.facing = facing;
+                scheduleSaveLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns 0 if not cached.
+     */
+    int getFpsUnitFactor(int api, String cameraId) {
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = cameras.get(key(api, cameraId));
+            return camera == null ? 0 : camera.fpsUnitFactor;
+        }
+    }
+
+    /**
+     * Returns the capture format previously selected for the requested size and frame rate.
+     */
+    @Nullable
+    CaptureFormat getSelectedFormat(int api, String cameraId, int width, int height, int framerate) {
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = cameras.get(key(api, cameraId));
+            return camera == null ? null : camera.selections.get(selectionKey(width, height, framerate));
+        }
+    }
+
+    /**
+     * @param fpsUnitFactor multiplier from the camera's fps unit to the one of FramerateRange, 0
+     *                      if it doesn't apply
+     */
+    void putSelectedFormat(int api, String cameraId, int width, int height, int framerate,
+                           CaptureFormat format, int fpsUnitFactor) {
+        if (width > 0xFFFF || height > 0xFFFF || framerate > 0xFFFF) {
+            return;
+        }
+        awaitLoad();
+        synchronized (lock) {
+            final Camera camera = getOrCreate(api, cameraId);
+            camera.fpsUnitFactor = fpsUnitFactor;
+            if (camera.selections.size() >= MAX_SELECTIONS) {
+                camera.selections.remove(camera.selections.keySet().iterator().next());
+            }
+            camera.selections.put(selectionKey(width, height, framerate), format);
+            scheduleSaveLocked();
+        }
+    }
+
+    /**
+     * Drops all entries, e.g. when a camera reports a format it can't deliver.
+     */
+    public void clear() {
+        awaitLoad();
+        synchronized (lock) {
+            cameras.clear();
+            loadedFromFile = false;
+            scheduleSaveLocked();
+        }
+    }
+
+    /**
+     * Blocks until pending writes are done. For tests.
+     */
+    void flush() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    private void awaitLoad() {
+        final CountDownLatch latch = loadLatch;
+        try {
+            if (!latch.await(LOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Loading timed out, continuing without the cache.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Camera getOrCreate(int api, String cameraId) {
+        final String key = key(api, cameraId);
+        Camera camera = cameras.get(key);
+        if (camera == null) {
+            camera = new Camera(api, cameraId);
+            cameras.put(key, camera);
+        }
+        return camera;
+    }
+
+    private void scheduleSaveLocked() {
+        if (file == null || savePending) {
+            return;
+        }
+        savePending = true;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final File target;
+                final byte[] data;
+                synchronized (lock) {
+                    savePending = false;
+                    target = file;
+                    data = encodeLocked();
+                }
+                if (target != null) {
+                    writeFile(target, data);
+                }
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "CameraCapabilityCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private void readFile(File file, String fingerprint) {
+        if (!file.exists()) {
+            return;
+        }
+        final long startTimeNs = System.nanoTime();
+        final Map<String, Camera> loaded = new HashMap<>();
+        try (DataInputStream in =
+                     new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            if (!fingerprint.equals(in.readUTF())) {
+                file.delete();
+                Log.d(TAG, "Device fingerprint changed, dropped the cache.");
+                return;
+            }
+            for (int count = in.readUnsignedShort(); count > 0; count--) {
+                final Camera camera = readCamera(in);
+                loaded.put(key(camera.api, camera.cameraId), camera);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            Log.w(TAG, "Failed to read " + file + ", dropped the cache.", e);
+            return;
+        }
+        synchronized (lock) {
+            // Entries added while the file was read are newer.
+            for (Map.Entry<String, Camera> entry : loaded.entrySet()) {
+                if (!cameras.containsKey(entry.getKey())) {
+                    cameras.put(entry.getKey(), entry.getValue());
+                }
+            }
+            loadedFromFile = !loaded.isEmpty();
+        }
+        Log.d(TAG, "Loaded " + loaded.size() + " cameras in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTimeNs) + " us.");
+    }
+
+    private static void writeFile(File file, byte[] data) {
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(data);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("rename to " + file + " failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            temp.delete();
+        }
+    }
+
+    private byte[] encodeLocked() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeShort(cameras.size());
+            for (Camera camera : cameras.values()) {
+                writeCamera(out, camera);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeCamera(DataOutputStream out, Camera camera) throws IOException {
+        out.writeByte(camera.api);
+        out.writeUTF(camera.cameraId);
+        out.writeByte(camera.supportedFormats != null ? FLAG_HAS_FORMATS : 0);
+        out.writeByte(camera.facing);
+        out.writeInt(camera.fpsUnitFactor);
+        final List<CaptureFormat> formats =
+                camera.supportedFormats != null ? camera.supportedFormats : new ArrayList<CaptureFormat>();
+        out.writeShort(formats.size());
+        for (CaptureFormat format : formats) {
+            writeFormat(out, format);
+        }
+        out.writeShort(camera.selections.size());
+        for (Map.Entry<Long, CaptureFormat> selection : camera.selections.entrySet()) {
+            final long key = selection.getKey();
+            out.writeShort((int) (key >>> 32));
+            out.writeShort((int) (key >>> 16));
+            out.writeShort((int) key);
+            writeFormat(out, selection.getValue());
+        }
+    }
+
+    private static Camera readCamera(DataInputStream in) throws IOException {
+        final Camera camera = new Camera(in.readUnsignedByte(), in.readUTF());
+        final int flags = in.readUnsignedByte();
+        camera.facing = in.readByte();
+        camera.fpsUnitFactor = in.readInt();
+        final int formatCount = in.readUnsignedShort();
+        final List<CaptureFormat> formats = new ArrayList<>(formatCount);
+        for (int i = 0; i < formatCount; i++) {
+            formats.add(readFormat(in));
+        }
+        if ((flags & FLAG_HAS_FORMATS) != 0) {
+            camera.supportedFormats = Collections.unmodifiableList(formats);
+        }
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            final long key =
+                    selectionKey(in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort());
+            camera.selections.put(key, readFormat(in));
+        }
+        return camera;
+    }
+
+    private static void writeFormat(DataOutputStream out, CaptureFormat format) throws IOException {
+        out.writeShort(format.width);
+        out.writeShort(format.height);
+        out.writeInt(format.framerate.min);
+        out.writeInt(format.framerate.max);
+    }
+
+    private static CaptureFormat readFormat(DataInputStream in) throws IOException {
+        final int width = in.readUnsignedShort();
+        final int height = in.readUnsignedShort();
+        return new CaptureFormat(width, height, in.readInt(), in.readInt());
+    }
+
+    private static String key(int api, String cameraId) {
+        return api + ":" + cameraId;
+    }
+
+    private static long selectionKey(int width, int height, int framerate) {
+        return ((long) width << 32) | ((long) height << 16) | framerate;
+    }
+}
@@ -18,7 +18,10 @@ import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.bylijian.medialibrary.trace.FrameTracer;
+
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("deprecation")
 abstract class CameraCapturer implements CameraVideoCapturer {
@@ -32,6 +35,12 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     private final static int MAX_OPEN_CAMERA_ATTEMPTS = 3;
     private final static int OPEN_CAMERA_DELAY_MS = 500;
     private final static int OPEN_CAMERA_TIMEOUT = 10000;
+    // Time from startCapture() to the first frame, split by whether CameraCapabilityCache was
+    // read from a previous launch.
+    private static final Histogram firstFrameWarmHistogram =
+            Histogram.createCounts("WebRTC.Android.Camera.FirstFrameMs.WarmCache", 1, 10000, 50);
+    private static final Histogram firstFrameColdHistogram =
+            Histogram.createCounts("WebRTC.Android.Camera.FirstFrameMs.ColdCache", 1, 10000, 50);
 
     private final CameraEnumerator cameraEnumerator;
     @Nullable
@@ -166,8 +175,10 @@ abstract class CameraCapturer implements CameraVideoCapturer {
                 if (!firstFrameObserved) {
                     eventsHandler.onFirstFrameAvailable();
                     firstFrameObserved = true;
+                    reportFirstFrameLatency();
                 }
                 cameraStatistics.addFrame();
+                FrameTracer.getInstance().mark(FrameTracer.STAGE_CAPTURED, frame.getTimestampNs());
                 capturerObserver.onFrameCaptured(frame);
             }
         }
@@ -205,6 +216,8 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     @Nullable
     private CameraStatistics cameraStatistics; /* guarded by stateLock */
     private boolean firstFrameObserved; /* guarded by stateLock */
+    // Set by startCapture(), cleared when the first frame is reported.
+    private long startCaptureTimeNs; /* guarded by stateLock */
 
     public CameraCapturer(String cameraName, @Nullable CameraEventsHandler eventsHandler,
                           CameraEnumerator cameraEnumerator) {
@@ -279,12 +292,27 @@ abstract class CameraCapturer implements CameraVideoCapturer {
             this.height = height;
             this.framerate = framerate;
 
+            startCaptureTimeNs = System.nanoTime();
             sessionOpening = true;
             openAttemptsRemaining = MAX_OPEN_CAMERA_ATTEMPTS;
             createSessionInternal(0);
         }
     }
 
+    private void reportFirstFrameLatency() {
+        if (startCaptureTimeNs == 0) {
+            // First frame after a camera switch.
+            return;
+        }
+        final int latencyMs =
+                (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startCaptureTimeNs);
+        startCaptureTimeNs = 0;
+        final boolean warm = CameraCapabilityCache.getInstance().isLoadedFromFile();
+        (warm ? firstFrameWarmHistogram : firstFrameColdHistogram).addSample(latencyMs);
+        Log.d(TAG, "First frame " + latencyMs + " ms after startCapture, "
+                + (warm ? "warm" : "cold") + " capability cache.");
+    }
+
     private void createSessionInternal(int delayMs) {
         uiThreadHandler.postDelayed(openCameraTimeoutRunnable, delayMs + OPEN_CAMERA_TIMEOUT);
         cameraThreadHandler.postDelayed(new Runnable() {
@@ -337,6 +365,10 @@ abstract class CameraCapturer implements CameraVideoCapturer {
     public void changeCaptureFormat(int width, int height, int framerate) {
         Log.d(TAG, "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
         synchronized (stateLock) {
+            if (width != this.width || height != this.height) {
+                // Pooled buffers of the old resolution will not be requested anymore.
+                FramePool.getDefault().trim();
+            }
             stopCapture();
             startCapture(width, height, framerate);
         }
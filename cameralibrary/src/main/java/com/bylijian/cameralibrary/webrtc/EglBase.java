@@ -89,6 +89,17 @@ public interface EglBase {
     EGL_RECORDABLE_ANDROID, 1,
     EGL10.EGL_NONE
   };
+  // For a context that has a pixel buffer surface but also draws to video encoder input surfaces,
+  // e.g. SurfaceTextureHelper with addOutputSurface().
+  public static final int[] CONFIG_RECORDABLE_PIXEL_BUFFER = {
+    EGL10.EGL_RED_SIZE, 8,
+    EGL10.EGL_GREEN_SIZE, 8,
+    EGL10.EGL_BLUE_SIZE, 8,
+    EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+    EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT | EGL10.EGL_WINDOW_BIT,
+    EGL_RECORDABLE_ANDROID, 1,
+    EGL10.EGL_NONE
+  };
   // clang-format on
 
   /**
@@ -182,6 +193,11 @@ public interface EglBase {
 
   Context getEglBaseContext();
 
+  // Create an EglBase that shares this display, config and EGLContext but holds its own
+  // EGLSurface, so one thread can render to several surfaces without switching contexts. Releasing
+  // the sibling only destroys its surface; the context stays owned by this instance.
+  EglBase createSurfaceSibling();
+
   boolean hasSurface();
 
   int surfaceWidth();
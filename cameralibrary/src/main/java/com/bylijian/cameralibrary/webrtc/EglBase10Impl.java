@@ -37,6 +37,8 @@ class EglBase10Impl implements EglBase10 {
     private EGLConfig eglConfig;
     private EGLDisplay eglDisplay;
     private EGLSurface eglSurface = EGL10.EGL_NO_SURFACE;
+    // False for surface siblings, which must not destroy the shared context on release.
+    private final boolean ownsContext;
 
     // EGL wrapper for an actual EGLContext.
     private static class Context implements EglBase10.Context {
@@ -67,6 +69,21 @@ class EglBase10Impl implements EglBase10 {
         eglDisplay = getEglDisplay();
         eglConfig = getEglConfig(eglDisplay, configAttributes);
         eglContext = createEglContext(sharedContext, eglDisplay, eglConfig);
+        ownsContext = true;
+    }
+
+    private EglBase10Impl(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig, EGLContext eglContext) {
+        this.egl = egl;
+        this.eglDisplay = eglDisplay;
+        this.eglConfig = eglConfig;
+        this.eglContext = eglContext;
+        ownsContext = false;
+    }
+
+    @Override
+    public EglBase createSurfaceSibling() {
+        checkIsNotReleased();
+        return new EglBase10Impl(egl, eglDisplay, eglConfig, eglContext);
     }
 
     @Override
@@ -234,6 +251,12 @@ class EglBase10Impl implements EglBase10 {
     public void release() {
         checkIsNotReleased();
         releaseSurface();
+        if (!ownsContext) {
+            eglContext = EGL10.EGL_NO_CONTEXT;
+            eglDisplay = EGL10.EGL_NO_DISPLAY;
+            eglConfig = null;
+            return;
+        }
         detachCurrent();
         egl.eglDestroyContext(eglDisplay, eglContext);
         egl.eglTerminate(eglDisplay);
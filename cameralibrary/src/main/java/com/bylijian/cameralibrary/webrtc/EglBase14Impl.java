@@ -37,6 +37,8 @@ class EglBase14Impl implements EglBase14 {
   @Nullable private EGLConfig eglConfig;
   private EGLDisplay eglDisplay;
   private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+  // False for surface siblings, which must not destroy the shared context on release.
+  private final boolean ownsContext;
 
   // EGL 1.4 is supported from API 17. But EGLExt that is used for setting presentation
   // time stamp on a surface is supported from 18 so we require 18.
@@ -74,6 +76,20 @@ class EglBase14Impl implements EglBase14 {
     eglDisplay = getEglDisplay();
     eglConfig = getEglConfig(eglDisplay, configAttributes);
     eglContext = createEglContext(sharedContext, eglDisplay, eglConfig);
+    ownsContext = true;
+  }
+
+  private EglBase14Impl(EGLDisplay eglDisplay, EGLConfig eglConfig, EGLContext eglContext) {
+    this.eglDisplay = eglDisplay;
+    this.eglConfig = eglConfig;
+    this.eglContext = eglContext;
+    ownsContext = false;
+  }
+
+  @Override
+  public EglBase createSurfaceSibling() {
+    checkIsNotReleased();
+    return new EglBase14Impl(eglDisplay, eglConfig, eglContext);
   }
 
   // Create EGLSurface from the Android Surface.
@@ -167,6 +183,12 @@ class EglBase14Impl implements EglBase14 {
   public void release() {
     checkIsNotReleased();
     releaseSurface();
+    if (!ownsContext) {
+      eglContext = EGL14.EGL_NO_CONTEXT;
+      eglDisplay = EGL14.EGL_NO_DISPLAY;
+      eglConfig = null;
+      return;
+    }
     detachCurrent();
     EGL14.eglDestroyContext(eglDisplay, eglContext);
     EGL14.eglReleaseThread();
@@ -18,11 +18,15 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Trace;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Surface;
 
-import java.nio.ByteBuffer;
+import com.bylijian.medialibrary.trace.FrameTracer;
+import com.bylijian.medialibrary.trace.StartupTimeline;
+
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -36,7 +40,15 @@ import java.util.concurrent.TimeUnit;
 public class EglRenderer implements VideoSink {
   private static final String TAG = "EglRenderer";
   private static final long LOG_INTERVAL_SEC = 4;
+  // Readbacks for frame listeners are delivered with the next frame, or after this long if no
+  // frame arrives.
+  private static final long READBACK_TIMEOUT_MS = 100;
 
+  /**
+   * Receives a frame as a Bitmap on the render thread. With OpenGL ES 3 the pixels are read back
+   * without stalling the render thread and the Bitmap arrives together with the next frame. The
+   * Bitmap can be given back with recycleBitmap().
+   */
   public interface FrameListener { void onFrame(Bitmap frame); }
 
   private static class FrameListenerAndParams {
@@ -54,6 +66,23 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  // An additional surface, e.g. the input surface of a video encoder, that frames are drawn to with
+  // the same render thread and EGLContext as the main surface.
+  private static class OutputSurface {
+    public final Surface surface;
+    public final EglBase eglBase;
+    public final boolean usePresentationTimeStamp;
+    public final FrameRateGate rateGate;
+
+    public OutputSurface(
+        Surface surface, EglBase eglBase, float fps, boolean usePresentationTimeStamp) {
+      this.surface = surface;
+      this.eglBase = eglBase;
+      this.rateGate = new FrameRateGate(fps);
+      this.usePresentationTimeStamp = usePresentationTimeStamp;
+    }
+  }
+
   private class EglSurfaceCreation implements Runnable {
     private Object surface;
 
@@ -78,6 +107,7 @@ public class EglRenderer implements VideoSink {
         eglBase.makeCurrent();
         // Necessary for YUV frames with odd width.
         GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        prewarmShaderOnRenderThread();
       }
     }
   }
@@ -128,11 +158,27 @@ public class EglRenderer implements VideoSink {
   private final VideoFrameDrawer frameDrawer;
   @Nullable private RendererCommon.GlDrawer drawer;
   private boolean usePresentationTimeStamp;
+  // Shader to compile as soon as the EGL surface exists, or null. Only accessed from the render
+  // thread.
+  @Nullable private GlGenericDrawer.ShaderType prewarmShaderType;
   private final Matrix drawMatrix = new Matrix();
-
-  // Pending frame to render. Serves as a queue with size 1. Synchronized on |frameLock|.
-  private final Object frameLock = new Object();
-  @Nullable private VideoFrame pendingFrame;
+  // Only accessed from the render thread.
+  private final ArrayList<OutputSurface> outputSurfaces = new ArrayList<>();
+  private final Matrix outputDrawMatrix = new Matrix();
+
+  // Frames waiting for the render thread. Only replaced while holding |handlerLock|, so frames are
+  // never offered to a queue after it has been cleared.
+  private volatile FrameQueue frameQueue = new LatestFrameQueue();
+  private final Runnable renderFrameRunnable = this ::renderFrameOnRenderThread;
+
+  // Variables for vsync scheduling, only accessed from the render thread. |vsyncPacer| is null when
+  // frames are drawn as soon as they arrive.
+  @Nullable private VsyncPacer vsyncPacer;
+  @Nullable private Choreographer choreographer;
+  private final Choreographer.FrameCallback vsyncCallback = this ::drawFrameOnVsync;
+  private boolean vsyncRequested;
+  // Latest frame waiting for the next vsync.
+  @Nullable private VideoFrame vsyncFrame;
 
   // These variables are synchronized on |layoutLock|.
   private final Object layoutLock = new Object();
@@ -146,8 +192,7 @@ public class EglRenderer implements VideoSink {
   private final Object statisticsLock = new Object();
   // Total number of video frames received in renderFrame() call.
   private int framesReceived;
-  // Number of video frames dropped by renderFrame() because previous frame has not been rendered
-  // yet.
+  // Number of video frames dropped by |frameQueue| because the render thread has not caught up.
   private int framesDropped;
   // Number of rendered video frames.
   private int framesRendered;
@@ -157,10 +202,18 @@ public class EglRenderer implements VideoSink {
   private long renderTimeNs;
   // Time in ns spent by the render thread in the swapBuffers() function.
   private long renderSwapBufferTimeNs;
+  // Number of frames drawn to output surfaces added with addOutputSurface().
+  private int outputFramesRendered;
+  // Number of frames replaced by a newer frame before the vsync they were waiting for.
+  private int framesReplacedBeforeVsync;
+  // Number of texture frames released on a vsync that VsyncPacer did not allow to draw on.
+  private int framesSkippedOnVsync;
 
   // Used for bitmap capturing.
   private final GlTextureFrameBuffer bitmapTextureFramebuffer =
       new GlTextureFrameBuffer(GLES20.GL_RGBA);
+  private final FrameReadback frameReadback = new FrameReadback();
+  private final Runnable deliverReadbacksRunnable = frameReadback ::deliverPending;
 
   private final Runnable logStatisticsRunnable = new Runnable() {
     @Override
@@ -253,6 +306,18 @@ public class EglRenderer implements VideoSink {
     init(sharedContext, configAttributes, drawer, /* usePresentationTimeStamp= */ false);
   }
 
+  /**
+   * Compiles the shader for OES texture frames as soon as the EGL surface is created, in parallel
+   * with the camera opening, instead of when the first frame is drawn. Only applies to drawers
+   * based on GlGenericDrawer, e.g. GlRectDrawer.
+   */
+  public void prewarmOesShader() {
+    postToRenderThread(() -> {
+      prewarmShaderType = GlGenericDrawer.ShaderType.OES;
+      prewarmShaderOnRenderThread();
+    });
+  }
+
   public void createEglSurface(Surface surface) {
     createEglSurfaceInternal(surface);
   }
@@ -290,7 +355,12 @@ public class EglRenderer implements VideoSink {
           drawer = null;
         }
         frameDrawer.release();
+        frameReadback.release();
         bitmapTextureFramebuffer.release();
+        for (OutputSurface output : outputSurfaces) {
+          output.eglBase.release();
+        }
+        outputSurfaces.clear();
         if (eglBase != null) {
           logD("eglBase detach and release.");
           eglBase.detachCurrent();
@@ -298,6 +368,7 @@ public class EglRenderer implements VideoSink {
           eglBase = null;
         }
         frameListeners.clear();
+        stopVsyncSchedulingOnRenderThread();
         eglCleanupBarrier.countDown();
       });
       final Looper renderLooper = renderThreadHandler.getLooper();
@@ -311,12 +382,7 @@ public class EglRenderer implements VideoSink {
     }
     // Make sure the EGL/GL cleanup posted above is executed.
     ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
-    synchronized (frameLock) {
-      if (pendingFrame != null) {
-        pendingFrame.release();
-        pendingFrame = null;
-      }
-    }
+    frameQueue.clear();
     logD("Releasing done.");
   }
 
@@ -329,6 +395,9 @@ public class EglRenderer implements VideoSink {
       framesReceived = 0;
       framesDropped = 0;
       framesRendered = 0;
+      outputFramesRendered = 0;
+      framesReplacedBeforeVsync = 0;
+      framesSkippedOnVsync = 0;
       renderTimeNs = 0;
       renderSwapBufferTimeNs = 0;
     }
@@ -411,6 +480,60 @@ public class EglRenderer implements VideoSink {
     setFpsReduction(0 /* fps */);
   }
 
+  /**
+   * Draws to the EGL surface on the display vsync instead of as soon as a frame arrives. Frames that
+   * arrive between two vsyncs are batched and only the latest one is drawn, and nothing is drawn
+   * when no new frame arrived. Fps reduction is applied in whole refresh periods, and rendering
+   * that regularly misses vsyncs lowers the draw rate further, see VsyncPacer. A texture frame that
+   * is not drawn on its vsync is released instead of kept for a later one, since the capturer can
+   * not deliver the next frame until then. Output surfaces are still drawn as soon as a frame
+   * arrives.
+   *
+   * @param refreshRate Refresh rate of the display that shows the surface.
+   */
+  public void enableVsyncScheduling(final float refreshRate) {
+    logD("enableVsyncScheduling: " + refreshRate);
+    postToRenderThread(() -> {
+      if (choreographer == null) {
+        choreographer = Choreographer.getInstance();
+      }
+      vsyncPacer = new VsyncPacer(refreshRate);
+    });
+  }
+
+  public void disableVsyncScheduling() {
+    logD("disableVsyncScheduling");
+    postToRenderThread(this ::stopVsyncSchedulingOnRenderThread);
+  }
+
+  private void stopVsyncSchedulingOnRenderThread() {
+    vsyncPacer = null;
+    if (vsyncRequested) {
+      choreographer.removeFrameCallback(vsyncCallback);
+      vsyncRequested = false;
+    }
+    if (vsyncFrame != null) {
+      vsyncFrame.release();
+      vsyncFrame = null;
+    }
+  }
+
+  private void requestVsyncOnRenderThread() {
+    if (!vsyncRequested) {
+      vsyncRequested = true;
+      choreographer.postFrameCallback(vsyncCallback);
+    }
+  }
+
+  /**
+   * Gives a Bitmap that was passed to a FrameListener back, so it can be reused for a later
+   * readback of the same size. The Bitmap must not be used afterwards. Optional, listeners that
+   * keep their Bitmaps don't need to call this.
+   */
+  public void recycleBitmap(Bitmap bitmap) {
+    frameReadback.recycleBitmap(bitmap);
+  }
+
   /**
    * Register a callback to be invoked when a new video frame has been received. This version uses
    * the drawer of the EglRenderer that was passed in init.
@@ -482,36 +605,122 @@ public class EglRenderer implements VideoSink {
             iter.remove();
           }
         }
+        frameReadback.cancel(listener);
+      });
+    }
+    ThreadUtils.awaitUninterruptibly(latch);
+  }
+
+  /**
+   * Draw every frame to |surface| as well, e.g. the input surface of a video encoder. The frame is
+   * drawn on the render thread with the EGLContext of this renderer, so a YUV frame is uploaded once
+   * for all surfaces and no second renderer or copy of the frame is needed. The EGL config passed
+   * to init() must be compatible with |surface|, e.g. EglBase.CONFIG_RECORDABLE for an encoder.
+   * Frames are cropped to the aspect ratio of |surface| and are not mirrored.
+   *
+   * @param fps Limit the framerate of this surface to this value, or use Float.POSITIVE_INFINITY to
+   *            draw every frame. Independent of setFpsReduction(). Applied to the frame timestamps
+   *            with some tolerance, see FrameRateGate, so a limit equal to the capture rate keeps
+   *            every frame.
+   * @param usePresentationTimeStamp If true, eglPresentationTimeANDROID will be set with the frame
+   *                                 timestamps.
+   */
+  public void addOutputSurface(
+      final Surface surface, final float fps, final boolean usePresentationTimeStamp) {
+    logD("addOutputSurface fps: " + fps);
+    postToRenderThread(() -> {
+      if (eglBase == null) {
+        logW("addOutputSurface - Already released");
+        return;
+      }
+      final EglBase outputEglBase = eglBase.createSurfaceSibling();
+      outputEglBase.createSurface(surface);
+      // Necessary for YUV frames with odd width, in case the main surface has not been created.
+      outputEglBase.makeCurrent();
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+      if (eglBase.hasSurface()) {
+        eglBase.makeCurrent();
+      }
+      outputSurfaces.add(
+          new OutputSurface(surface, outputEglBase, fps, usePresentationTimeStamp));
+    });
+  }
+
+  /**
+   * Stop drawing to a surface added with addOutputSurface() and release its EGLSurface. This
+   * function will block until the render thread no longer touches |surface|, so the owner of
+   * |surface| can release it when this function returns.
+   */
+  public void removeOutputSurface(final Surface surface) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    synchronized (handlerLock) {
+      if (renderThreadHandler == null) {
+        return;
+      }
+      if (Thread.currentThread() == renderThreadHandler.getLooper().getThread()) {
+        throw new RuntimeException("removeOutputSurface must not be called on the render thread.");
+      }
+      renderThreadHandler.postAtFrontOfQueue(() -> {
+        final Iterator<OutputSurface> iter = outputSurfaces.iterator();
+        while (iter.hasNext()) {
+          final OutputSurface output = iter.next();
+          if (output.surface == surface) {
+            // Make sure the EGLSurface is not current so that it is destroyed right away.
+            output.eglBase.detachCurrent();
+            output.eglBase.release();
+            iter.remove();
+          }
+        }
+        if (eglBase != null && eglBase.hasSurface()) {
+          eglBase.makeCurrent();
+        }
+        latch.countDown();
       });
     }
     ThreadUtils.awaitUninterruptibly(latch);
   }
 
+  /**
+   * Sets how frames wait for the render thread and which frames are dropped when it falls behind.
+   * The default is a LatestFrameQueue, which has the lowest latency. Use a FifoFrameQueue when the
+   * frames are recorded through an output surface. Frames still queued in the previous queue are
+   * dropped.
+   */
+  public void setFrameQueue(FrameQueue queue) {
+    final FrameQueue oldQueue;
+    synchronized (handlerLock) {
+      oldQueue = frameQueue;
+      frameQueue = queue;
+    }
+    final int droppedBefore = oldQueue.getDroppedFrames();
+    oldQueue.clear();
+    synchronized (statisticsLock) {
+      framesDropped += oldQueue.getDroppedFrames() - droppedBefore;
+    }
+    logD("setFrameQueue: " + queue);
+  }
+
   // VideoSink interface.
   @Override
   public void onFrame(VideoFrame frame) {
     synchronized (statisticsLock) {
       ++framesReceived;
     }
-    final boolean dropOldFrame;
+    final int droppedFrames;
     synchronized (handlerLock) {
       if (renderThreadHandler == null) {
         logD("Dropping frame - Not initialized or already released.");
         return;
       }
-      synchronized (frameLock) {
-        dropOldFrame = (pendingFrame != null);
-        if (dropOldFrame) {
-          pendingFrame.release();
-        }
-        pendingFrame = frame;
-        pendingFrame.retain();
-        renderThreadHandler.post(this ::renderFrameOnRenderThread);
-      }
+      final int droppedBefore = frameQueue.getDroppedFrames();
+      frame.retain();
+      frameQueue.offer(frame);
+      droppedFrames = frameQueue.getDroppedFrames() - droppedBefore;
+      renderThreadHandler.post(renderFrameRunnable);
     }
-    if (dropOldFrame) {
+    if (droppedFrames > 0) {
       synchronized (statisticsLock) {
-        ++framesDropped;
+        framesDropped += droppedFrames;
       }
     }
   }
@@ -550,6 +759,23 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  private void prewarmShaderOnRenderThread() {
+    if (prewarmShaderType == null || eglBase == null || !eglBase.hasSurface()) {
+      return;
+    }
+    final GlGenericDrawer.ShaderType shaderType = prewarmShaderType;
+    prewarmShaderType = null;
+    if (!(drawer instanceof GlGenericDrawer)) {
+      return;
+    }
+    final long startTimeNs = System.nanoTime();
+    StartupTimeline.getInstance().begin(StartupTimeline.PHASE_SHADER_COMPILE);
+    ((GlGenericDrawer) drawer).prewarm(shaderType);
+    StartupTimeline.getInstance().end(StartupTimeline.PHASE_SHADER_COMPILE);
+    logD("Prewarmed " + shaderType + " shader in "
+        + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTimeNs) + " us.");
+  }
+
   private void clearSurfaceOnRenderThread(float r, float g, float b, float a) {
     if (eglBase != null && eglBase.hasSurface()) {
       logD("clearSurface");
@@ -579,23 +805,63 @@ public class EglRenderer implements VideoSink {
   }
 
   /**
-   * Renders and releases |pendingFrame|.
+   * Renders the next due frame from |frameQueue|, if any, and schedules the next call for when the
+   * following frame is due.
    */
   private void renderFrameOnRenderThread() {
-    // Fetch and render |pendingFrame|.
-    final VideoFrame frame;
-    synchronized (frameLock) {
-      if (pendingFrame == null) {
-        return;
+    final FrameQueue queue = frameQueue;
+    final VideoFrame frame = queue.poll(System.nanoTime());
+    if (frame != null) {
+      renderFrameOnRenderThread(frame);
+    }
+    final long delayNs = queue.getNextFrameDelayNs(System.nanoTime());
+    if (delayNs < 0) {
+      return;
+    }
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        renderThreadHandler.removeCallbacks(renderFrameRunnable);
+        // Round up, waking up early would only schedule another call.
+        renderThreadHandler.postDelayed(renderFrameRunnable,
+            TimeUnit.NANOSECONDS.toMillis(delayNs + TimeUnit.MILLISECONDS.toNanos(1) - 1));
       }
-      frame = pendingFrame;
-      pendingFrame = null;
     }
-    if (eglBase == null || !eglBase.hasSurface()) {
+  }
+
+  /**
+   * Renders and releases |frame|.
+   */
+  private void renderFrameOnRenderThread(VideoFrame frame) {
+    final FrameTracer tracer = FrameTracer.getInstance();
+    tracer.mark(FrameTracer.STAGE_RENDER_DEQUEUE, frame.getTimestampNs());
+    if (eglBase == null || (!eglBase.hasSurface() && outputSurfaces.isEmpty())) {
       logD("Dropping frame - No surface");
       frame.release();
       return;
     }
+    if (!outputSurfaces.isEmpty()) {
+      Trace.beginSection("EglRenderer.renderOutputSurfaces");
+      renderOutputSurfacesOnRenderThread(frame);
+      Trace.endSection();
+      if (!eglBase.hasSurface()) {
+        notifyCallbacks(frame, false /* wasRendered */);
+        frame.release();
+        return;
+      }
+      eglBase.makeCurrent();
+    }
+    if (vsyncPacer != null) {
+      if (vsyncFrame != null) {
+        notifyCallbacks(vsyncFrame, false /* wasRendered */);
+        vsyncFrame.release();
+        synchronized (statisticsLock) {
+          ++framesReplacedBeforeVsync;
+        }
+      }
+      vsyncFrame = frame;
+      requestVsyncOnRenderThread();
+      return;
+    }
     // Check if fps reduction is active.
     final boolean shouldRenderFrame;
     synchronized (fpsReductionLock) {
@@ -618,7 +884,66 @@ public class EglRenderer implements VideoSink {
         }
       }
     }
+    drawFrameOnRenderThread(frame, shouldRenderFrame);
+  }
 
+  /**
+   * Draws the frame that waited for this vsync if VsyncPacer allows it. Otherwise a texture frame is
+   * released and other frames are kept for a later vsync.
+   */
+  private void drawFrameOnVsync(long vsyncTimeNs) {
+    vsyncRequested = false;
+    final VideoFrame frame = vsyncFrame;
+    if (frame == null || vsyncPacer == null) {
+      return;
+    }
+    if (eglBase == null || !eglBase.hasSurface()) {
+      logD("Dropping frame - No surface");
+      vsyncFrame = null;
+      frame.release();
+      return;
+    }
+    final long renderPeriodNs;
+    synchronized (fpsReductionLock) {
+      renderPeriodNs = minRenderPeriodNs;
+    }
+    // Rendering is paused if the period is Long.MAX_VALUE.
+    final boolean shouldRenderFrame = renderPeriodNs != Long.MAX_VALUE;
+    if (shouldRenderFrame && !vsyncPacer.shouldDraw(vsyncTimeNs, Math.max(0, renderPeriodNs))) {
+      if (frame.getBuffer() instanceof VideoFrame.TextureBuffer) {
+        // SurfaceTextureHelper delivers no new frame while this one is held, so keeping it until the
+        // next draw would lower the capture rate, and the encoder behind it, to the draw rate.
+        vsyncFrame = null;
+        notifyCallbacks(frame, false /* wasRendered */);
+        frame.release();
+        synchronized (statisticsLock) {
+          ++framesSkippedOnVsync;
+        }
+      } else {
+        requestVsyncOnRenderThread();
+      }
+      return;
+    }
+    vsyncFrame = null;
+    if (!outputSurfaces.isEmpty()) {
+      eglBase.makeCurrent();
+    }
+    final float maxFps = vsyncPacer.getMaxFps();
+    drawFrameOnRenderThread(frame, shouldRenderFrame);
+    if (shouldRenderFrame) {
+      vsyncPacer.onFrameDrawn(vsyncTimeNs, System.nanoTime());
+      if (vsyncPacer.getMaxFps() != maxFps) {
+        logD("Vsync pacing changed, drawing at most " + vsyncPacer.getMaxFps() + " fps");
+      }
+    }
+  }
+
+  /**
+   * Draws |frame| to the EGL surface if |shouldRenderFrame|, notifies the frame listeners and
+   * releases |frame|.
+   */
+  private void drawFrameOnRenderThread(VideoFrame frame, boolean shouldRenderFrame) {
+    final FrameTracer tracer = FrameTracer.getInstance();
     final long startTimeNs = System.nanoTime();
 
     final float frameAspectRatio = frame.getRotatedWidth() / (float) frame.getRotatedHeight();
@@ -645,19 +970,25 @@ public class EglRenderer implements VideoSink {
     drawMatrix.preTranslate(-0.5f, -0.5f);
 
     if (shouldRenderFrame) {
+      Trace.beginSection("EglRenderer.draw");
       GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */,
           eglBase.surfaceWidth(), eglBase.surfaceHeight());
+      Trace.endSection();
 
       final long swapBuffersStartTimeNs = System.nanoTime();
+      tracer.mark(FrameTracer.STAGE_DRAW, frame.getTimestampNs(), swapBuffersStartTimeNs);
+      Trace.beginSection("EglRenderer.swapBuffers");
       if (usePresentationTimeStamp) {
         eglBase.swapBuffers(frame.getTimestampNs());
       } else {
         eglBase.swapBuffers();
       }
+      Trace.endSection();
 
       final long currentTimeNs = System.nanoTime();
+      tracer.mark(FrameTracer.STAGE_SWAP, frame.getTimestampNs(), currentTimeNs);
       synchronized (statisticsLock) {
         ++framesRendered;
         renderTimeNs += (currentTimeNs - startTimeNs);
@@ -669,7 +1000,48 @@ public class EglRenderer implements VideoSink {
     frame.release();
   }
 
+  /**
+   * Draws |frame| to every output surface whose fps limit allows it. Leaves the EGLContext current
+   * on the last drawn output surface.
+   */
+  private void renderOutputSurfacesOnRenderThread(VideoFrame frame) {
+    final float frameAspectRatio = frame.getRotatedWidth() / (float) frame.getRotatedHeight();
+    for (OutputSurface output : outputSurfaces) {
+      if (!output.rateGate.shouldPass(frame.getTimestampNs())) {
+        continue;
+      }
+      final int width = output.eglBase.surfaceWidth();
+      final int height = output.eglBase.surfaceHeight();
+      final float drawnAspectRatio = width / (float) height;
+      outputDrawMatrix.reset();
+      outputDrawMatrix.preTranslate(0.5f, 0.5f);
+      if (frameAspectRatio > drawnAspectRatio) {
+        outputDrawMatrix.preScale(drawnAspectRatio / frameAspectRatio, 1f);
+      } else {
+        outputDrawMatrix.preScale(1f, frameAspectRatio / drawnAspectRatio);
+      }
+      outputDrawMatrix.preTranslate(-0.5f, -0.5f);
+
+      output.eglBase.makeCurrent();
+      GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+      frameDrawer.drawFrame(frame, drawer, outputDrawMatrix, 0 /* viewportX */, 0 /* viewportY */,
+          width, height);
+      // Pass the system time explicitly instead of letting the surface stamp it, so the timestamp
+      // the consumer sees is known and can be traced back to the frame.
+      final long presentationTimeNs =
+          output.usePresentationTimeStamp ? frame.getTimestampNs() : System.nanoTime();
+      output.eglBase.swapBuffers(presentationTimeNs);
+      FrameTracer.getInstance().mark(
+          FrameTracer.STAGE_OUTPUT_SWAP, frame.getTimestampNs(), presentationTimeNs);
+      synchronized (statisticsLock) {
+        ++outputFramesRendered;
+      }
+    }
+  }
+
   private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
+    frameReadback.deliverPending();
     if (frameListeners.isEmpty())
       return;
 
@@ -706,17 +1078,18 @@ public class EglRenderer implements VideoSink {
       frameDrawer.drawFrame(frame, listenerAndParams.drawer, drawMatrix, 0 /* viewportX */,
           0 /* viewportY */, scaledWidth, scaledHeight);
 
-      final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
       GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
-      GLES20.glReadPixels(
-          0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
+      frameReadback.readPixels(scaledWidth, scaledHeight, listenerAndParams.listener);
 
       GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
       GlUtil.checkNoGLES2Error("EglRenderer.notifyCallbacks");
 
-      final Bitmap bitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
-      bitmap.copyPixelsFromBuffer(bitmapBuffer);
-      listenerAndParams.listener.onFrame(bitmap);
+      synchronized (handlerLock) {
+        if (renderThreadHandler != null) {
+          renderThreadHandler.removeCallbacks(deliverReadbacksRunnable);
+          renderThreadHandler.postDelayed(deliverReadbacksRunnable, READBACK_TIMEOUT_MS);
+        }
+      }
     }
   }
 
@@ -735,8 +1108,11 @@ public class EglRenderer implements VideoSink {
       final float renderFps = framesRendered * TimeUnit.SECONDS.toNanos(1) / (float) elapsedTimeNs;
       logD("Duration: " + TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs) + " ms."
           + " Frames received: " + framesReceived + "."
-          + " Dropped: " + framesDropped + "."
+          + " Dropped: " + framesDropped + " by " + frameQueue + "."
           + " Rendered: " + framesRendered + "."
+          + " Output frames: " + outputFramesRendered + "."
+          + " Replaced before vsync: " + framesReplacedBeforeVsync + "."
+          + " Skipped on vsync: " + framesSkippedOnVsync + "."
           + " Render fps: " + fpsFormat.format(renderFps) + "."
           + " Average render time: " + averageTimeAsString(renderTimeNs, framesRendered) + "."
           + " Average swapBuffer time: "
@@ -0,0 +1,105 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.os.Trace;
+import android.view.Surface;
+
+import com.bylijian.medialibrary.trace.FrameTracer;
+
+/**
+ * Draws OES texture frames to a video encoder input surface on the thread that owns the texture,
+ * e.g. the SurfaceTextureHelper thread. Compared to an EglRenderer output surface there is no hop
+ * to a render thread and no VideoFrameDrawer: the texture is drawn with a single rectangle draw,
+ * rotated and center cropped to the surface, and swapped with an explicit presentation time. Frames
+ * of other buffer types are not written. Only used from the thread of the EGL context it was
+ * created from.
+ */
+class EncoderSurfaceWriter {
+  final Surface surface;
+  private final EglBase eglBase;
+  private final boolean usePresentationTimeStamp;
+  private final FrameRateGate rateGate;
+  private final GlRectDrawer drawer = new GlRectDrawer();
+  private final Matrix renderMatrix = new Matrix();
+  private int framesWritten;
+
+  /**
+   * Creates an EGL surface for |surface| that shares the context of |sharedEglBase|, which must
+   * have a config that supports recordable window surfaces, e.g.
+   * EglBase.CONFIG_RECORDABLE_PIXEL_BUFFER.
+   */
+  EncoderSurfaceWriter(
+      EglBase sharedEglBase, Surface surface, float fps, boolean usePresentationTimeStamp) {
+    this.surface = surface;
+    this.usePresentationTimeStamp = usePresentationTimeStamp;
+    this.rateGate = new FrameRateGate(fps);
+    eglBase = sharedEglBase.createSurfaceSibling();
+    eglBase.createSurface(surface);
+  }
+
+  /**
+   * Writes |frame| to the surface if it is an OES texture frame and due according to the fps, see
+   * FrameRateGate. Leaves the encoder surface current; the caller restores its own surface if it
+   * needs it. Returns true if the frame was written.
+   */
+  boolean writeFrame(VideoFrame frame) {
+    if (!isOesFrame(frame) || !rateGate.shouldPass(frame.getTimestampNs())) {
+      return false;
+    }
+    final VideoFrame.Buffer buffer = frame.getBuffer();
+    Trace.beginSection("EncoderSurfaceWriter.writeFrame");
+    try {
+      eglBase.makeCurrent();
+      final int width = eglBase.surfaceWidth();
+      final int height = eglBase.surfaceHeight();
+      final float frameAspectRatio = frame.getRotatedWidth() / (float) frame.getRotatedHeight();
+      final float drawnAspectRatio = width / (float) height;
+      renderMatrix.reset();
+      renderMatrix.preTranslate(0.5f, 0.5f);
+      renderMatrix.preRotate(frame.getRotation());
+      renderMatrix.preTranslate(-0.5f, -0.5f);
+      // Center crop in the rotated frame, same as for EglRenderer output surfaces.
+      renderMatrix.preTranslate(0.5f, 0.5f);
+      if (frameAspectRatio > drawnAspectRatio) {
+        renderMatrix.preScale(drawnAspectRatio / frameAspectRatio, 1f);
+      } else {
+        renderMatrix.preScale(1f, frameAspectRatio / drawnAspectRatio);
+      }
+      renderMatrix.preTranslate(-0.5f, -0.5f);
+
+      // The quad covers the whole surface, so there is no need to clear it first.
+      VideoFrameDrawer.drawTexture(drawer, (VideoFrame.TextureBuffer) buffer, renderMatrix,
+          frame.getRotatedWidth(), frame.getRotatedHeight(), 0 /* viewportX */, 0 /* viewportY */,
+          width, height);
+      final long presentationTimeNs =
+          usePresentationTimeStamp ? frame.getTimestampNs() : System.nanoTime();
+      eglBase.swapBuffers(presentationTimeNs);
+      FrameTracer.getInstance().mark(
+          FrameTracer.STAGE_OUTPUT_SWAP, frame.getTimestampNs(), presentationTimeNs);
+      ++framesWritten;
+      return true;
+    } finally {
+      Trace.endSection();
+    }
+  }
+
+  /** Returns true if |frame| can be written by an EncoderSurfaceWriter. */
+  static boolean isOesFrame(VideoFrame frame) {
+    final VideoFrame.Buffer buffer = frame.getBuffer();
+    return buffer instanceof VideoFrame.TextureBuffer
+        && ((VideoFrame.TextureBuffer) buffer).getType() == VideoFrame.TextureBuffer.Type.OES;
+  }
+
+  int getFramesWritten() {
+    return framesWritten;
+  }
+
+  /** Releases the GL resources and the EGL surface. The EGL context must be current. */
+  void release() {
+    drawer.release();
+    // Make sure the EGLSurface is not current so that it is destroyed right away.
+    eglBase.detachCurrent();
+    eglBase.release();
+  }
+}
@@ -0,0 +1,165 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded first-in first-out queue for when every frame matters, e.g. when the renderer feeds an
+ * encoder. A burst of frames is buffered instead of collapsed into the latest one. When the queue
+ * is full the oldest frame is dropped, so latency stays bounded. The queue is lock free; it is a
+ * bounded multi-producer multi-consumer array queue where every slot carries a sequence number
+ * that tells producers and consumers whose turn it is.
+ *
+ * <p>With pacing enabled, queued frames are handed out with the same spacing as their timestamps,
+ * so a burst that arrives at once is rendered at the capture cadence. When more than one frame is
+ * waiting, the spacing is halved so the queue drains.
+ */
+public class FifoFrameQueue implements FrameQueue {
+  // Gaps between frame timestamps longer than this are not paced, e.g. after a pause.
+  private static final long MAX_PACING_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(200);
+
+  private final int capacity;
+  private final boolean pacing;
+  private final AtomicReferenceArray<VideoFrame> frames;
+  // Slot i is free for the producer at position p when sequences[i] == p, and holds the frame for
+  // the consumer at position p when sequences[i] == p + 1.
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicInteger droppedFrames = new AtomicInteger();
+
+  // Only accessed by the thread that polls frames.
+  private long lastFrameTimestampNs;
+  private long lastPollTimeNs = -1;
+
+  /**
+   * @param capacity maximum number of queued frames.
+   * @param pacing if true, frames are spaced out according to their timestamps.
+   */
+  public FifoFrameQueue(int capacity, boolean pacing) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.pacing = pacing;
+    frames = new AtomicReferenceArray<>(capacity);
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  @Override
+  public void offer(VideoFrame frame) {
+    while (!tryEnqueue(frame)) {
+      final VideoFrame oldestFrame = tryDequeue();
+      if (oldestFrame != null) {
+        oldestFrame.release();
+        droppedFrames.incrementAndGet();
+      }
+    }
+  }
+
+  @Nullable
+  @Override
+  public VideoFrame poll(long currentTimeNs) {
+    if (getNextFrameDelayNs(currentTimeNs) != 0) {
+      return null;
+    }
+    final VideoFrame frame = tryDequeue();
+    if (frame != null) {
+      lastFrameTimestampNs = frame.getTimestampNs();
+      lastPollTimeNs = currentTimeNs;
+    }
+    return frame;
+  }
+
+  @Override
+  public long getNextFrameDelayNs(long currentTimeNs) {
+    final long position = head.get();
+    final int index = (int) (position % capacity);
+    if (sequences.get(index) != position + 1) {
+      return -1;
+    }
+    final VideoFrame nextFrame = frames.get(index);
+    if (!pacing || nextFrame == null || lastPollTimeNs < 0) {
+      return 0;
+    }
+    long intervalNs = nextFrame.getTimestampNs() - lastFrameTimestampNs;
+    if (intervalNs <= 0 || intervalNs > MAX_PACING_INTERVAL_NS) {
+      return 0;
+    }
+    if (size() > 1) {
+      intervalNs /= 2;
+    }
+    return Math.max(0, lastPollTimeNs + intervalNs - currentTimeNs);
+  }
+
+  @Override
+  public void clear() {
+    VideoFrame frame;
+    while ((frame = tryDequeue()) != null) {
+      frame.release();
+      droppedFrames.incrementAndGet();
+    }
+  }
+
+  @Override
+  public int getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  /** Number of queued frames. Only a hint while other threads use the queue. */
+  public int size() {
+    return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+  }
+
+  private boolean tryEnqueue(VideoFrame frame) {
+    long position = tail.get();
+    while (true) {
+      final int index = (int) (position % capacity);
+      final long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          frames.set(index, frame);
+          sequences.set(index, position + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        // The slot still holds the frame from the previous lap: full.
+        return false;
+      }
+      position = tail.get();
+    }
+  }
+
+  @Nullable
+  private VideoFrame tryDequeue() {
+    long position = head.get();
+    while (true) {
+      final int index = (int) (position % capacity);
+      final long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          final VideoFrame frame = frames.getAndSet(index, null);
+          sequences.set(index, position + capacity);
+          return frame;
+        }
+      } else if (difference < 0) {
+        // The producer hasn't filled the slot yet: empty.
+        return null;
+      }
+      position = head.get();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FifoFrameQueue(capacity=" + capacity + ", pacing=" + pacing + ")";
+  }
+}
@@ -0,0 +1,215 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Pool of direct ByteBuffers for frame data, replacing a JniCommon.nativeAllocateByteBuffer /
+ * nativeFreeByteBuffer pair per frame. Buffers are grouped in size classes keyed by (width,
+ * height, layout). A buffer is handed out wrapped in an {@link Entry}, which is meant to be used
+ * as the release callback of the buffer that wraps the memory, e.g.
+ * {@code JavaI420Buffer.wrap(..., entry)}, so the memory returns to the pool once the ref count
+ * reaches zero.
+ *
+ * <p>The number of bytes kept in free lists is bounded by a high-water mark; buffers released
+ * above it are dropped and counted as evictions. {@link #trim()} drops all free buffers and makes
+ * buffers that are still in use get dropped on release, which is used when the capture
+ * resolution changes. This class is thread safe.
+ */
+public class FramePool {
+  /** Memory layouts of pooled buffers. */
+  public enum Layout {
+    /** Tightly packed I420 as produced by JavaI420Buffer.allocate(). */
+    I420 {
+      @Override
+      int bufferSize(int width, int height) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        return width * height + 2 * chromaWidth * chromaHeight;
+      }
+    },
+    /**
+     * The YuvConverter readback layout: Y with a stride aligned to 8 pixels, followed by
+     * alternating rows of U and V using the same stride. The semi-planar readback, with rows of
+     * interleaved chroma instead, has the same size.
+     */
+    YUV_CONVERTER {
+      @Override
+      int bufferSize(int width, int height) {
+        final int stride = ((width + 7) / 8) * 8;
+        return stride * (height + (height + 1) / 2);
+      }
+    };
+
+    abstract int bufferSize(int width, int height);
+  }
+
+  /** Pooled buffer. Running it returns the buffer to the pool it was acquired from. */
+  public static final class Entry implements Runnable {
+    private final SizeClass sizeClass;
+    private final ByteBuffer buffer;
+    private boolean inUse;
+
+    private Entry(SizeClass sizeClass, ByteBuffer buffer) {
+      this.sizeClass = sizeClass;
+      this.buffer = buffer;
+    }
+
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public void run() {
+      sizeClass.pool.recycle(this);
+    }
+  }
+
+  private static final class SizeClass {
+    final FramePool pool;
+    final int width;
+    final int height;
+    final Layout layout;
+    final int bufferSize;
+    final ArrayDeque<Entry> freeEntries = new ArrayDeque<>();
+    // Set once the class is dropped from the pool. Entries of a retired class are not reused.
+    boolean retired;
+
+    SizeClass(FramePool pool, int width, int height, Layout layout) {
+      this.pool = pool;
+      this.width = width;
+      this.height = height;
+      this.layout = layout;
+      this.bufferSize = layout.bufferSize(width, height);
+    }
+  }
+
+  // Three 1080p I420 frames in flight plus some slack.
+  private static final int DEFAULT_MAX_RETAINED_BYTES = 12 * 1024 * 1024;
+  // Bounds the lookup cost when buffers are requested for many different sizes.
+  private static final int MAX_SIZE_CLASSES = 8;
+  private static final FramePool defaultPool = new FramePool(DEFAULT_MAX_RETAINED_BYTES);
+
+  /** Returns the pool shared by the buffer implementations in this package. */
+  public static FramePool getDefault() {
+    return defaultPool;
+  }
+
+  private final Object lock = new Object();
+  private final ArrayList<SizeClass> sizeClasses = new ArrayList<>(); /* guarded by lock */
+  private final int maxRetainedBytes;
+  private long retainedBytes; /* guarded by lock */
+  private long hitCount; /* guarded by lock */
+  private long missCount; /* guarded by lock */
+  private long evictionCount; /* guarded by lock */
+
+  /** @param maxRetainedBytes High-water mark for the bytes kept in free lists. */
+  public FramePool(int maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * Returns a buffer of at least the size |layout| needs for |width| x |height|, with position 0
+   * and limit at capacity. Run the entry once the buffer is no longer used.
+   */
+  public Entry acquire(int width, int height, Layout layout) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+    }
+    final Entry entry;
+    synchronized (lock) {
+      final SizeClass sizeClass = findOrCreateSizeClass(width, height, layout);
+      final Entry freeEntry = sizeClass.freeEntries.pollFirst();
+      if (freeEntry != null) {
+        ++hitCount;
+        retainedBytes -= sizeClass.bufferSize;
+        entry = freeEntry;
+      } else {
+        ++missCount;
+        // Allocation happens under the lock, which is fine since misses only happen while the
+        // pool warms up.
+        entry = new Entry(sizeClass, ByteBuffer.allocateDirect(sizeClass.bufferSize));
+      }
+      entry.inUse = true;
+    }
+    entry.buffer.clear();
+    return entry;
+  }
+
+  /**
+   * Drops all free buffers. Buffers that are in use while trimming are dropped when they are
+   * released instead of being returned to the free lists.
+   */
+  public void trim() {
+    synchronized (lock) {
+      for (SizeClass sizeClass : sizeClasses) {
+        retire(sizeClass);
+      }
+      sizeClasses.clear();
+    }
+  }
+
+  public long getHitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  public long getMissCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  public long getEvictionCount() {
+    synchronized (lock) {
+      return evictionCount;
+    }
+  }
+
+  /** Number of bytes currently held in free lists. */
+  public long getRetainedBytes() {
+    synchronized (lock) {
+      return retainedBytes;
+    }
+  }
+
+  private void recycle(Entry entry) {
+    synchronized (lock) {
+      if (!entry.inUse) {
+        throw new IllegalStateException("Frame buffer released twice");
+      }
+      entry.inUse = false;
+      final SizeClass sizeClass = entry.sizeClass;
+      if (sizeClass.retired || retainedBytes + sizeClass.bufferSize > maxRetainedBytes) {
+        ++evictionCount;
+        return;
+      }
+      retainedBytes += sizeClass.bufferSize;
+      sizeClass.freeEntries.addFirst(entry);
+    }
+  }
+
+  private SizeClass findOrCreateSizeClass(int width, int height, Layout layout) {
+    for (int i = 0; i < sizeClasses.size(); ++i) {
+      final SizeClass sizeClass = sizeClasses.get(i);
+      if (sizeClass.width == width && sizeClass.height == height && sizeClass.layout == layout) {
+        return sizeClass;
+      }
+    }
+    if (sizeClasses.size() >= MAX_SIZE_CLASSES) {
+      retire(sizeClasses.remove(0));
+    }
+    final SizeClass sizeClass = new SizeClass(this, width, height, layout);
+    sizeClasses.add(sizeClass);
+    return sizeClass;
+  }
+
+  private void retire(SizeClass sizeClass) {
+    sizeClass.retired = true;
+    evictionCount += sizeClass.freeEntries.size();
+    retainedBytes -= (long) sizeClass.freeEntries.size() * sizeClass.bufferSize;
+    sizeClass.freeEntries.clear();
+  }
+}
@@ -0,0 +1,35 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Holds frames between EglRenderer.onFrame() and the render thread, and decides which frames are
+ * dropped when the render thread falls behind. Implementations must be thread safe: frames are
+ * offered from the capture thread and polled from the render thread, and clear() may be called
+ * from any thread.
+ */
+public interface FrameQueue {
+  /**
+   * Takes over a reference to |frame|, which the caller has retained. Frames that are dropped,
+   * either |frame| or one already queued, are released and counted in getDroppedFrames().
+   */
+  void offer(VideoFrame frame);
+
+  /**
+   * Returns the next frame if it is due at |currentTimeNs|, or null. The caller owns the returned
+   * reference.
+   */
+  @Nullable VideoFrame poll(long currentTimeNs);
+
+  /**
+   * Returns how long to wait before the next frame is due, 0 if it is due now, or -1 if the queue
+   * is empty.
+   */
+  long getNextFrameDelayNs(long currentTimeNs);
+
+  /** Releases all queued frames. They are counted as dropped. */
+  void clear();
+
+  /** Total number of frames this queue has dropped. */
+  int getDroppedFrames();
+}
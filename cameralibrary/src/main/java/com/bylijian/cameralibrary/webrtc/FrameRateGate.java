@@ -0,0 +1,47 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits frames written to an encoder to a maximum frame rate. Frames are compared by their
+ * capture timestamps against a cadence of whole frame periods, and a frame that is up to a tenth of
+ * a period early still passes, so a source that runs at the limit keeps every frame despite
+ * timestamp jitter while a faster source is thinned evenly. A timestamp that goes backwards, e.g.
+ * after the camera restarted, starts a new cadence. Not thread safe.
+ */
+public class FrameRateGate {
+  private final long periodNs;
+  private final long toleranceNs;
+  private boolean hasFrame;
+  private long lastFrameTimeNs;
+  private long nextFrameTimeNs;
+
+  /** @param fps Maximum frame rate, or 0 or less to let every frame pass. */
+  public FrameRateGate(float fps) {
+    periodNs = (fps > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+    toleranceNs = periodNs / 10;
+  }
+
+  /** Returns true and accounts for the frame if the frame at |timestampNs| is due. */
+  public boolean shouldPass(long timestampNs) {
+    if (periodNs <= 0) {
+      return true;
+    }
+    if (hasFrame && timestampNs >= lastFrameTimeNs) {
+      if (timestampNs < nextFrameTimeNs - toleranceNs) {
+        return false;
+      }
+      nextFrameTimeNs += periodNs;
+      // After a gap of more than a period, continue from this frame instead of catching up.
+      if (nextFrameTimeNs <= timestampNs) {
+        nextFrameTimeNs = timestampNs + periodNs - toleranceNs;
+      }
+    } else {
+      hasFrame = true;
+      // The first frame may itself be late, leave room for the following ones to be early.
+      nextFrameTimeNs = timestampNs + periodNs - toleranceNs;
+    }
+    lastFrameTimeNs = timestampNs;
+    return true;
+  }
+}
@@ -0,0 +1,192 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Reads back the frames EglRenderer draws for its frame listeners. With OpenGL ES 3, pixels are
+ * read into one of two pixel buffer objects without waiting for the GPU, and the Bitmap is
+ * delivered on the next call to deliverPending(), typically one frame later. With OpenGL ES 2 the
+ * read is synchronous. Either way the read buffer is reused, and Bitmaps given back with
+ * recycleBitmap() are reused for later readbacks.
+ *
+ * <p>All methods except recycleBitmap() must be called on the render thread with the EGLContext
+ * current.
+ */
+class FrameReadback {
+  private static final String TAG = "FrameReadback";
+  private static final int PBO_COUNT = 2;
+  private static final int MAX_POOLED_BITMAPS = 2;
+
+  private static class PendingRead {
+    int pboId;
+    int capacity;
+    int width;
+    int height;
+    @Nullable EglRenderer.FrameListener listener;
+  }
+
+  // Null until the first readback, and empty with OpenGL ES 2.
+  @Nullable private PendingRead[] pendingReads;
+  // Index of the PBO that is used next. Reads are delivered in the same round-robin order.
+  private int nextRead;
+  // Buffer for synchronous reads.
+  @Nullable private ByteBuffer readBuffer;
+  // Synchronized on itself, since recycleBitmap() may be called from any thread.
+  private final ArrayList<Bitmap> bitmapPool = new ArrayList<>();
+
+  /**
+   * Reads |width| x |height| RGBA pixels from the bound framebuffer. |listener| is called with the
+   * Bitmap when the pixels are available, on this or a later call.
+   */
+  void readPixels(int width, int height, EglRenderer.FrameListener listener) {
+    if (pendingReads == null) {
+      pendingReads = createPendingReads();
+    }
+    if (pendingReads.length == 0) {
+      readPixelsSync(width, height, listener);
+      return;
+    }
+    final PendingRead read = pendingReads[nextRead];
+    // A read still waiting in this PBO was issued at least one call ago, so mapping rarely waits.
+    deliver(read);
+    nextRead = (nextRead + 1) % PBO_COUNT;
+
+    final int size = width * height * 4;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, read.pboId);
+    if (read.capacity < size) {
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+      read.capacity = size;
+    }
+    GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("FrameReadback.readPixels");
+    read.width = width;
+    read.height = height;
+    read.listener = listener;
+  }
+
+  /** Delivers the readbacks that were issued before, oldest first. */
+  void deliverPending() {
+    if (pendingReads == null) {
+      return;
+    }
+    for (int i = 0; i < pendingReads.length; i++) {
+      deliver(pendingReads[(nextRead + i) % pendingReads.length]);
+    }
+  }
+
+  /** Drops pending readbacks for |listener| without calling it. */
+  void cancel(EglRenderer.FrameListener listener) {
+    if (pendingReads == null) {
+      return;
+    }
+    for (PendingRead read : pendingReads) {
+      if (read.listener == listener) {
+        read.listener = null;
+      }
+    }
+  }
+
+  /**
+   * Gives a Bitmap that was passed to a frame listener back for reuse. The caller must not use the
+   * Bitmap afterwards.
+   */
+  void recycleBitmap(Bitmap bitmap) {
+    synchronized (bitmapPool) {
+      if (bitmapPool.size() < MAX_POOLED_BITMAPS && bitmap.isMutable() && !bitmap.isRecycled()
+          && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+        bitmapPool.add(bitmap);
+      }
+    }
+  }
+
+  /** Delivers pending readbacks and releases the GL resources. */
+  void release() {
+    deliverPending();
+    if (pendingReads != null && pendingReads.length > 0) {
+      final int[] pboIds = new int[pendingReads.length];
+      for (int i = 0; i < pendingReads.length; i++) {
+        pboIds[i] = pendingReads[i].pboId;
+      }
+      GLES30.glDeleteBuffers(pboIds.length, pboIds, 0);
+    }
+    pendingReads = null;
+    readBuffer = null;
+    synchronized (bitmapPool) {
+      bitmapPool.clear();
+    }
+  }
+
+  private static PendingRead[] createPendingReads() {
+    final String version = GLES20.glGetString(GLES20.GL_VERSION);
+    // Android drivers give an OpenGL ES 3 context when 2 is requested, if the device supports it.
+    if (version == null || !version.startsWith("OpenGL ES 3")) {
+      Log.d(TAG, "Pixel buffer objects not supported, reading back synchronously: " + version);
+      return new PendingRead[0];
+    }
+    final int[] pboIds = new int[PBO_COUNT];
+    GLES30.glGenBuffers(PBO_COUNT, pboIds, 0);
+    GlUtil.checkNoGLES2Error("FrameReadback.glGenBuffers");
+    final PendingRead[] reads = new PendingRead[PBO_COUNT];
+    for (int i = 0; i < PBO_COUNT; i++) {
+      reads[i] = new PendingRead();
+      reads[i].pboId = pboIds[i];
+    }
+    return reads;
+  }
+
+  private void readPixelsSync(int width, int height, EglRenderer.FrameListener listener) {
+    final int size = width * height * 4;
+    if (readBuffer == null || readBuffer.capacity() < size) {
+      readBuffer = ByteBuffer.allocateDirect(size);
+    }
+    readBuffer.clear();
+    GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readBuffer);
+    GlUtil.checkNoGLES2Error("FrameReadback.readPixelsSync");
+    readBuffer.limit(size);
+    final Bitmap bitmap = obtainBitmap(width, height);
+    bitmap.copyPixelsFromBuffer(readBuffer);
+    listener.onFrame(bitmap);
+  }
+
+  private void deliver(PendingRead read) {
+    final EglRenderer.FrameListener listener = read.listener;
+    if (listener == null) {
+      return;
+    }
+    read.listener = null;
+    final int size = read.width * read.height * 4;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, read.pboId);
+    final ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+    Bitmap bitmap = null;
+    if (pixels != null) {
+      bitmap = obtainBitmap(read.width, read.height);
+      bitmap.copyPixelsFromBuffer(pixels);
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("FrameReadback.deliver");
+    // Same as for an empty frame, the listener is called with null if the read failed.
+    listener.onFrame(bitmap);
+  }
+
+  private Bitmap obtainBitmap(int width, int height) {
+    synchronized (bitmapPool) {
+      for (int i = 0; i < bitmapPool.size(); i++) {
+        final Bitmap bitmap = bitmapPool.get(i);
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+          return bitmapPool.remove(i);
+        }
+      }
+    }
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+}
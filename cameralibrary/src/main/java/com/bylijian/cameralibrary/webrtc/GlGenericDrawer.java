@@ -210,38 +210,49 @@ class GlGenericDrawer implements RendererCommon.GlDrawer {
     }
   }
 
-  private void prepareShader(ShaderType shaderType, float[] texMatrix, int frameWidth,
-      int frameHeight, int viewportWidth, int viewportHeight) {
-    final GlShader shader;
+  /**
+   * Compiles and links the shader for |shaderType| ahead of the first frame, so that the first
+   * draw call doesn't pay for it. Must be called with the EGL context of the drawing thread
+   * current. Does nothing if the shader already exists.
+   */
+  void prewarm(ShaderType shaderType) {
+    getShader(shaderType);
+  }
+
+  private GlShader getShader(ShaderType shaderType) {
     if (shaderType.equals(currentShaderType)) {
       // Same shader type as before, reuse exising shader.
-      shader = currentShader;
+      return currentShader;
+    }
+    // Allocate new shader.
+    currentShaderType = shaderType;
+    if (currentShader != null) {
+      currentShader.release();
+    }
+    final GlShader shader = createShader(shaderType);
+    currentShader = shader;
+
+    shader.useProgram();
+    // Set input texture units.
+    if (shaderType == ShaderType.YUV) {
+      GLES20.glUniform1i(shader.getUniformLocation("y_tex"), 0);
+      GLES20.glUniform1i(shader.getUniformLocation("u_tex"), 1);
+      GLES20.glUniform1i(shader.getUniformLocation("v_tex"), 2);
     } else {
-      // Allocate new shader.
-      currentShaderType = shaderType;
-      if (currentShader != null) {
-        currentShader.release();
-      }
-      shader = createShader(shaderType);
-      currentShader = shader;
-
-      shader.useProgram();
-      // Set input texture units.
-      if (shaderType == ShaderType.YUV) {
-        GLES20.glUniform1i(shader.getUniformLocation("y_tex"), 0);
-        GLES20.glUniform1i(shader.getUniformLocation("u_tex"), 1);
-        GLES20.glUniform1i(shader.getUniformLocation("v_tex"), 2);
-      } else {
-        GLES20.glUniform1i(shader.getUniformLocation("tex"), 0);
-      }
-
-      GlUtil.checkNoGLES2Error("Create shader");
-      shaderCallbacks.onNewShader(shader);
-      texMatrixLocation = shader.getUniformLocation(TEXTURE_MATRIX_NAME);
-      inPosLocation = shader.getAttribLocation(INPUT_VERTEX_COORDINATE_NAME);
-      inTcLocation = shader.getAttribLocation(INPUT_TEXTURE_COORDINATE_NAME);
+      GLES20.glUniform1i(shader.getUniformLocation("tex"), 0);
     }
 
+    GlUtil.checkNoGLES2Error("Create shader");
+    shaderCallbacks.onNewShader(shader);
+    texMatrixLocation = shader.getUniformLocation(TEXTURE_MATRIX_NAME);
+    inPosLocation = shader.getAttribLocation(INPUT_VERTEX_COORDINATE_NAME);
+    inTcLocation = shader.getAttribLocation(INPUT_TEXTURE_COORDINATE_NAME);
+    return shader;
+  }
+
+  private void prepareShader(ShaderType shaderType, float[] texMatrix, int frameWidth,
+      int frameHeight, int viewportWidth, int viewportHeight) {
+    final GlShader shader = getShader(shaderType);
     shader.useProgram();
 
     // Upload the vertex coordinates.
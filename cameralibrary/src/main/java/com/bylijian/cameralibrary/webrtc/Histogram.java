@@ -10,35 +10,253 @@
 
 package com.bylijian.cameralibrary.webrtc;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
- * Class for holding the native pointer of a histogram. Since there is no way to destroy a
- * histogram, please don't create unnecessary instances of this object. This class is thread safe.
+ * A named histogram in a process wide registry. Since there is no way to destroy a histogram,
+ * please don't create unnecessary instances of this object. Creating a histogram with a name that
+ * already exists returns the existing instance. This class is thread safe and addSample() is lock
+ * free, so it is cheap enough to leave on in production.
  * <p>
  * Usage example:
  * private static final Histogram someMetricHistogram =
  * Histogram.createCounts("WebRTC.Video.SomeMetric", 1, 10000, 50);
  * someMetricHistogram.addSample(someVariable);
  */
-class Histogram {
-    private final long handle;
+public class Histogram {
+    // Counters are striped by thread to avoid contention on a single cache line. LongAdder would do
+    // the same but requires API 24.
+    private static final int STRIPES = 4;
+    // Distance in longs between the sum counters of two stripes, so they don't share a cache line.
+    private static final int SUM_PADDING = 8;
+
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
 
-    private Histogram(long handle) {
-        this.handle = handle;
+    private final String name;
+    // Bucket i holds samples in [ranges[i], ranges[i + 1]). The last bucket has no upper bound and
+    // bucket 0 holds everything below the minimum.
+    private final int[] ranges;
+    // Laid out as [stripe][bucket].
+    private final AtomicLongArray counts;
+    private final AtomicLongArray sums;
+
+    private Histogram(String name, int[] ranges) {
+        this.name = name;
+        this.ranges = ranges;
+        this.counts = new AtomicLongArray(STRIPES * ranges.length);
+        this.sums = new AtomicLongArray(STRIPES * SUM_PADDING);
     }
 
+    /**
+     * Creates a histogram with |bucketCount| buckets that are linear for small values and then grow
+     * exponentially up to |max|. Samples below |min| and at or above |max| go into an underflow and
+     * an overflow bucket.
+     */
     static public Histogram createCounts(String name, int min, int max, int bucketCount) {
-        return new Histogram(0);
+        if (min < 1 || max <= min || bucketCount < 3) {
+            throw new IllegalArgumentException(
+                    name + ": min=" + min + " max=" + max + " bucketCount=" + bucketCount);
+        }
+        return register(name, logLinearRanges(min, max, bucketCount));
     }
 
+    /**
+     * Creates a histogram with one bucket for each value in [0, max] and an overflow bucket.
+     */
     static public Histogram createEnumeration(String name, int max) {
-        return new Histogram(0);
+        if (max < 1) {
+            throw new IllegalArgumentException(name + ": max=" + max);
+        }
+        final int[] ranges = new int[max + 2];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = i;
+        }
+        return register(name, ranges);
+    }
+
+    private static Histogram register(String name, int[] ranges) {
+        final Histogram histogram = new Histogram(name, ranges);
+        final Histogram existing = histograms.putIfAbsent(name, histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    // Same bucket layout as Chromium's exponential histograms: each boundary is placed so that the
+    // remaining buckets split the remaining log range evenly, and at least one apart.
+    static int[] logLinearRanges(int min, int max, int bucketCount) {
+        final int[] ranges = new int[bucketCount];
+        ranges[0] = 0;
+        ranges[1] = min;
+        final double logMax = Math.log(max);
+        int current = min;
+        for (int i = 2; i < bucketCount; i++) {
+            final double logCurrent = Math.log(current);
+            final double logRatio = (logMax - logCurrent) / (bucketCount - i);
+            final int next = (int) Math.round(Math.exp(logCurrent + logRatio));
+            current = next > current ? next : current + 1;
+            ranges[i] = current;
+        }
+        return ranges;
+    }
+
+    public String getName() {
+        return name;
     }
 
     public void addSample(int sample) {
-//    nativeAddSample(handle, sample);
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * ranges.length + bucketIndex(sample));
+        sums.addAndGet(stripe * SUM_PADDING, sample);
+    }
+
+    int bucketIndex(int sample) {
+        // Largest i with ranges[i] <= sample.
+        int low = 0;
+        int high = ranges.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (ranges[mid] <= sample) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the current counts. Samples added concurrently may or may not be included.
+     */
+    public Snapshot getSnapshot() {
+        final long[] bucketCounts = new long[ranges.length];
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int i = 0; i < ranges.length; i++) {
+                bucketCounts[i] += counts.get(stripe * ranges.length + i);
+            }
+            sum += sums.get(stripe * SUM_PADDING);
+        }
+        return new Snapshot(name, ranges, bucketCounts, sum);
+    }
+
+    /**
+     * Returns snapshots of all histograms sorted by name.
+     */
+    public static List<Snapshot> getSnapshots() {
+        final List<Snapshot> snapshots = new ArrayList<>();
+        for (Histogram histogram : histograms.values()) {
+            snapshots.add(histogram.getSnapshot());
+        }
+        Collections.sort(snapshots, new Comparator<Snapshot>() {
+            @Override
+            public int compare(Snapshot a, Snapshot b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * Returns one line per histogram that has samples, e.g. for logging or a bug report.
+     */
+    public static String dump() {
+        final StringBuilder builder = new StringBuilder();
+        for (Snapshot snapshot : getSnapshots()) {
+            if (snapshot.getCount() > 0) {
+                builder.append(snapshot).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Immutable copy of the counts of a histogram.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final int[] ranges;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        Snapshot(String name, int[] ranges, long[] counts, long sum) {
+            this.name = name;
+            this.ranges = ranges;
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : sum / (double) count;
+        }
+
+        public int getBucketCount() {
+            return counts.length;
+        }
+
+        // Inclusive lower bound of bucket |index|.
+        public int getBucketMin(int index) {
+            return ranges[index];
+        }
+
+        public long getBucketSampleCount(int index) {
+            return counts[index];
+        }
+
+        /**
+         * Returns the value below which |percentile| percent of the samples fall, interpolated
+         * linearly inside the bucket. Values in the overflow bucket are reported as its lower bound.
+         */
+        public double getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final double rank = Math.max(1, Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                if (seen + counts[i] >= rank) {
+                    if (i == counts.length - 1) {
+                        return ranges[i];
+                    }
+                    // Samples are assumed to be spread evenly, the first one at the lower bound.
+                    final double fraction = (rank - seen - 1) / counts[i];
+                    return ranges[i] + fraction * (ranges[i + 1] - ranges[i]);
+                }
+                seen += counts[i];
+            }
+            return ranges[ranges.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f", name,
+                    count, getMean(), getPercentile(50), getPercentile(90), getPercentile(99));
+        }
     }
-//
-//  private static native long nativeCreateCounts(String name, int min, int max, int bucketCount);
-//  private static native long nativeCreateEnumeration(String name, int max);
-//  private static native void nativeAddSample(long handle, int sample);
 }
@@ -91,8 +91,8 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
         int uPos = yPos + width * height;
         int vPos = uPos + strideUV * chromaHeight;
 
-        ByteBuffer buffer =
-                JniCommon.nativeAllocateByteBuffer(width * height + 2 * strideUV * chromaHeight);
+        FramePool.Entry entry = FramePool.getDefault().acquire(width, height, FramePool.Layout.I420);
+        ByteBuffer buffer = entry.getBuffer();
 
         buffer.position(yPos);
         buffer.limit(uPos);
@@ -106,10 +106,8 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
         buffer.limit(vPos + strideUV * chromaHeight);
         ByteBuffer dataV = buffer.slice();
 
-        return new JavaI420Buffer(width, height, dataY, width, dataU, strideUV, dataV, strideUV,
-                () -> {
-                    JniCommon.nativeFreeByteBuffer(buffer);
-                });
+        // The pool entry is the release callback, which returns the memory to the pool.
+        return new JavaI420Buffer(width, height, dataY, width, dataU, strideUV, dataV, strideUV, entry);
     }
 
     @Override
@@ -195,16 +193,11 @@ public class JavaI420Buffer implements VideoFrame.I420Buffer {
         }
 
         JavaI420Buffer newBuffer = JavaI420Buffer.allocate(scaleWidth, scaleHeight);
-        nativeCropAndScaleI420(buffer.getDataY(), buffer.getStrideY(), buffer.getDataU(),
+        YuvScaler.cropAndScaleI420(buffer.getDataY(), buffer.getStrideY(), buffer.getDataU(),
                 buffer.getStrideU(), buffer.getDataV(), buffer.getStrideV(), cropX, cropY, cropWidth,
                 cropHeight, newBuffer.getDataY(), newBuffer.getStrideY(), newBuffer.getDataU(),
                 newBuffer.getStrideU(), newBuffer.getDataV(), newBuffer.getStrideV(), scaleWidth,
-                scaleHeight);
+                scaleHeight, YuvScaler.getDefaultFilterMode());
         return newBuffer;
     }
-
-    private static native void nativeCropAndScaleI420(ByteBuffer srcY, int srcStrideY,
-                                                      ByteBuffer srcU, int srcStrideU, ByteBuffer srcV, int srcStrideV, int cropX, int cropY,
-                                                      int cropWidth, int cropHeight, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
-                                                      int dstStrideU, ByteBuffer dstV, int dstStrideV, int scaleWidth, int scaleHeight);
 }
@@ -0,0 +1,263 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java implementation of {@link YuvKernels}, used when the libyuv based native library is not
+ * loaded. Rows are moved with bulk ByteBuffer transfers, and interleaving, mirroring and
+ * transposing work on 64-bit words, so none of the kernels allocate. The position and limit of
+ * the passed buffers are restored before returning. This class is stateless and thread safe.
+ */
+public class JavaYuvKernels implements YuvKernels {
+  @Override
+  public void copyPlane(
+      ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height) {
+    checkPlane(src, srcStride, width, height);
+    checkPlane(dst, dstStride, width, height);
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    final int srcPosition = src.position();
+    final int srcLimit = src.limit();
+    final int dstPosition = dst.position();
+    final int dstLimit = dst.limit();
+    dst.limit(dst.capacity());
+    try {
+      if (srcStride == width && dstStride == width) {
+        // Both planes are packed, so the whole plane can be moved in one transfer.
+        copyRow(src, 0, dst, 0, width * height);
+      } else {
+        for (int y = 0; y < height; ++y) {
+          copyRow(src, y * srcStride, dst, y * dstStride, width);
+        }
+      }
+    } finally {
+      restore(src, srcPosition, srcLimit);
+      restore(dst, dstPosition, dstLimit);
+    }
+  }
+
+  @Override
+  public void i420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
+      int dstStrideU, ByteBuffer dstV, int dstStrideV, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    copyPlane(srcY, srcStrideY, dstY, dstStrideY, width, height);
+    copyPlane(srcU, srcStrideU, dstU, dstStrideU, chromaWidth, chromaHeight);
+    copyPlane(srcV, srcStrideV, dstV, dstStrideV, chromaWidth, chromaHeight);
+  }
+
+  @Override
+  public void i420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV,
+      int dstStrideUV, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    checkPlane(srcU, srcStrideU, chromaWidth, chromaHeight);
+    checkPlane(srcV, srcStrideV, chromaWidth, chromaHeight);
+    checkPlane(dstUV, dstStrideUV, chromaWidth * 2, chromaHeight);
+    copyPlane(srcY, srcStrideY, dstY, dstStrideY, width, height);
+    // Absolute accessors are bounded by the limit, but the plane extends to the capacity.
+    final int limitU = srcU.limit();
+    final int limitV = srcV.limit();
+    final int limitUV = dstUV.limit();
+    srcU.limit(srcU.capacity());
+    srcV.limit(srcV.capacity());
+    dstUV.limit(dstUV.capacity());
+    try {
+      mergeUVPlane(
+          srcU, srcStrideU, srcV, srcStrideV, dstUV, dstStrideUV, chromaWidth, chromaHeight);
+    } finally {
+      srcU.limit(limitU);
+      srcV.limit(limitV);
+      dstUV.limit(limitUV);
+    }
+  }
+
+  @Override
+  public void i420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
+      int dstStrideU, ByteBuffer dstV, int dstStrideV, int srcWidth, int srcHeight,
+      int rotationMode) {
+    if (rotationMode == 0) {
+      i420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY, dstU,
+          dstStrideU, dstV, dstStrideV, srcWidth, srcHeight);
+      return;
+    }
+    final int chromaWidth = (srcWidth + 1) / 2;
+    final int chromaHeight = (srcHeight + 1) / 2;
+    rotatePlane(srcY, srcStrideY, dstY, dstStrideY, srcWidth, srcHeight, rotationMode);
+    rotatePlane(srcU, srcStrideU, dstU, dstStrideU, chromaWidth, chromaHeight, rotationMode);
+    rotatePlane(srcV, srcStrideV, dstV, dstStrideV, chromaWidth, chromaHeight, rotationMode);
+  }
+
+  private static void rotatePlane(ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride,
+      int width, int height, int rotationMode) {
+    checkPlane(src, srcStride, width, height);
+    final int srcPosition = src.position();
+    final int srcLimit = src.limit();
+    final int dstPosition = dst.position();
+    final int dstLimit = dst.limit();
+    // Absolute accessors are bounded by the limit, but the plane extends to the capacity.
+    src.limit(src.capacity());
+    dst.limit(dst.capacity());
+    try {
+      rotatePlaneChecked(src, srcStride, dst, dstStride, width, height, rotationMode);
+    } finally {
+      restore(src, srcPosition, srcLimit);
+      restore(dst, dstPosition, dstLimit);
+    }
+  }
+
+  private static void rotatePlaneChecked(ByteBuffer src, int srcStride, ByteBuffer dst,
+      int dstStride, int width, int height, int rotationMode) {
+    switch (rotationMode) {
+      case 90:
+        checkPlane(dst, dstStride, height, width);
+        transposePlane(src, srcStride, dst, dstStride, width, height, true /* clockwise */);
+        break;
+      case 180:
+        checkPlane(dst, dstStride, width, height);
+        rotatePlane180(src, srcStride, dst, dstStride, width, height);
+        break;
+      case 270:
+        checkPlane(dst, dstStride, height, width);
+        transposePlane(src, srcStride, dst, dstStride, width, height, false /* clockwise */);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported rotation: " + rotationMode);
+    }
+  }
+
+  /**
+   * Interleaves two planes of |width| x |height| into one plane of |width| * 2 x |height|. Four
+   * samples of each plane are read as one int and spread into a single long.
+   */
+  private static void mergeUVPlane(ByteBuffer srcU, int srcStrideU, ByteBuffer srcV,
+      int srcStrideV, ByteBuffer dstUV, int dstStrideUV, int width, int height) {
+    final boolean swapU = srcU.order() != ByteOrder.LITTLE_ENDIAN;
+    final boolean swapV = srcV.order() != ByteOrder.LITTLE_ENDIAN;
+    final boolean swapUV = dstUV.order() != ByteOrder.LITTLE_ENDIAN;
+    for (int y = 0; y < height; ++y) {
+      final int rowU = y * srcStrideU;
+      final int rowV = y * srcStrideV;
+      final int rowUV = y * dstStrideUV;
+      int x = 0;
+      for (; x + 4 <= width; x += 4) {
+        int u = srcU.getInt(rowU + x);
+        int v = srcV.getInt(rowV + x);
+        if (swapU) {
+          u = Integer.reverseBytes(u);
+        }
+        if (swapV) {
+          v = Integer.reverseBytes(v);
+        }
+        long uv = spreadBytes(u) | (spreadBytes(v) << 8);
+        if (swapUV) {
+          uv = Long.reverseBytes(uv);
+        }
+        dstUV.putLong(rowUV + 2 * x, uv);
+      }
+      for (; x < width; ++x) {
+        dstUV.put(rowUV + 2 * x, srcU.get(rowU + x));
+        dstUV.put(rowUV + 2 * x + 1, srcV.get(rowV + x));
+      }
+    }
+  }
+
+  /** Mirrors the plane both horizontally and vertically, reversing eight samples at a time. */
+  private static void rotatePlane180(
+      ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height) {
+    // When the byte orders differ, the word is already reversed by writing it back.
+    final boolean reverse = src.order() == dst.order();
+    for (int y = 0; y < height; ++y) {
+      final int srcRow = (height - 1 - y) * srcStride;
+      final int dstRow = y * dstStride;
+      int x = 0;
+      for (; x + 8 <= width; x += 8) {
+        long word = src.getLong(srcRow + width - 8 - x);
+        if (reverse) {
+          word = Long.reverseBytes(word);
+        }
+        dst.putLong(dstRow + x, word);
+      }
+      for (; x < width; ++x) {
+        dst.put(dstRow + x, src.get(srcRow + width - 1 - x));
+      }
+    }
+  }
+
+  /**
+   * Rotates the plane by 90 degrees clockwise or counterclockwise. Every destination row is a
+   * source column, gathered eight samples at a time so the writes stay sequential.
+   */
+  private static void transposePlane(ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride,
+      int width, int height, boolean clockwise) {
+    final boolean swap = dst.order() != ByteOrder.LITTLE_ENDIAN;
+    // The destination is |height| x |width|. Clockwise, destination row y is source column y read
+    // bottom-up. Counterclockwise, it is source column |width| - 1 - y read top-down.
+    final int srcStep = clockwise ? -srcStride : srcStride;
+    for (int y = 0; y < width; ++y) {
+      final int dstRow = y * dstStride;
+      int srcIndex = clockwise ? (height - 1) * srcStride + y : width - 1 - y;
+      int x = 0;
+      for (; x + 8 <= height; x += 8) {
+        long word = 0;
+        for (int i = 0; i < 8; ++i) {
+          word |= (src.get(srcIndex) & 0xFFL) << (8 * i);
+          srcIndex += srcStep;
+        }
+        if (swap) {
+          word = Long.reverseBytes(word);
+        }
+        dst.putLong(dstRow + x, word);
+      }
+      for (; x < height; ++x) {
+        dst.put(dstRow + x, src.get(srcIndex));
+        srcIndex += srcStep;
+      }
+    }
+  }
+
+  /** Moves the bytes at byte 0..3 of |value| to byte 0, 2, 4 and 6 of the result. */
+  private static long spreadBytes(int value) {
+    long word = value & 0xFFFFFFFFL;
+    word = (word | (word << 16)) & 0x0000FFFF0000FFFFL;
+    return (word | (word << 8)) & 0x00FF00FF00FF00FFL;
+  }
+
+  /** Relative bulk copy of |length| bytes. Expects the limit of |dst| to be its capacity. */
+  private static void copyRow(
+      ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+    // Setting the limit first keeps position <= limit no matter where the last row ended.
+    src.limit(srcOffset + length);
+    src.position(srcOffset);
+    dst.position(dstOffset);
+    dst.put(src);
+  }
+
+  private static void restore(ByteBuffer buffer, int position, int limit) {
+    buffer.limit(limit);
+    buffer.position(position);
+  }
+
+  private static void checkPlane(ByteBuffer data, int stride, int width, int height) {
+    if (!data.isDirect()) {
+      throw new IllegalArgumentException("Data buffers must be direct byte buffers.");
+    }
+    if (width > stride && height > 1) {
+      throw new IllegalArgumentException("Stride " + stride + " is smaller than width " + width);
+    }
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    // The last row does not necessarily need padding.
+    final int minCapacity = stride * (height - 1) + width;
+    if (data.capacity() < minCapacity) {
+      throw new IllegalArgumentException(
+          "Buffer must be at least " + minCapacity + " bytes, but was " + data.capacity());
+    }
+  }
+}
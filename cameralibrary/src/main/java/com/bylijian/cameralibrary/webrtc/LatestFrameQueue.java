@@ -0,0 +1,54 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue with size 1 that keeps only the latest frame. A new frame replaces and releases a frame
+ * that hasn't been rendered yet. This gives the lowest latency and is the default for preview.
+ */
+public class LatestFrameQueue implements FrameQueue {
+  private final AtomicReference<VideoFrame> pendingFrame = new AtomicReference<>();
+  private final AtomicInteger droppedFrames = new AtomicInteger();
+
+  @Override
+  public void offer(VideoFrame frame) {
+    final VideoFrame oldFrame = pendingFrame.getAndSet(frame);
+    if (oldFrame != null) {
+      oldFrame.release();
+      droppedFrames.incrementAndGet();
+    }
+  }
+
+  @Nullable
+  @Override
+  public VideoFrame poll(long currentTimeNs) {
+    return pendingFrame.getAndSet(null);
+  }
+
+  @Override
+  public long getNextFrameDelayNs(long currentTimeNs) {
+    return pendingFrame.get() != null ? 0 : -1;
+  }
+
+  @Override
+  public void clear() {
+    final VideoFrame frame = pendingFrame.getAndSet(null);
+    if (frame != null) {
+      frame.release();
+      droppedFrames.incrementAndGet();
+    }
+  }
+
+  @Override
+  public int getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  @Override
+  public String toString() {
+    return "LatestFrameQueue";
+  }
+}
@@ -14,21 +14,33 @@ import android.support.annotation.Nullable;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Semi-planar buffer: a Y plane of |sliceHeight| rows followed by a plane of interleaved chroma
+ * samples, both with the same stride. The chroma samples are ordered UV (NV12), or VU (NV21) if the
+ * buffer was created with |vFirst|.
+ */
 public class NV12Buffer implements VideoFrame.Buffer {
   private final int width;
   private final int height;
   private final int stride;
   private final int sliceHeight;
   private final ByteBuffer buffer;
+  private final boolean vFirst;
   private final RefCountDelegate refCountDelegate;
 
   public NV12Buffer(int width, int height, int stride, int sliceHeight, ByteBuffer buffer,
                     @Nullable Runnable releaseCallback) {
+    this(width, height, stride, sliceHeight, buffer, /* vFirst= */ false, releaseCallback);
+  }
+
+  public NV12Buffer(int width, int height, int stride, int sliceHeight, ByteBuffer buffer,
+                    boolean vFirst, @Nullable Runnable releaseCallback) {
     this.width = width;
     this.height = height;
     this.stride = stride;
     this.sliceHeight = sliceHeight;
     this.buffer = buffer;
+    this.vFirst = vFirst;
     this.refCountDelegate = new RefCountDelegate(releaseCallback);
   }
 
@@ -42,6 +54,25 @@ public class NV12Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  public int getStride() {
+    return stride;
+  }
+
+  /** Number of rows of the Y plane before the chroma plane starts. */
+  public int getSliceHeight() {
+    return sliceHeight;
+  }
+
+  /** Returns the Y plane followed by the chroma plane. Valid until the buffer is released. */
+  public ByteBuffer getBuffer() {
+    return buffer.slice();
+  }
+
+  /** Returns true if the chroma samples are ordered VU (NV21) instead of UV (NV12). */
+  public boolean isVFirst() {
+    return vFirst;
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     return (VideoFrame.I420Buffer) cropAndScale(0, 0, width, height, width, height);
@@ -61,14 +92,11 @@ public class NV12Buffer implements VideoFrame.Buffer {
   public VideoFrame.Buffer cropAndScale(
       int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
     JavaI420Buffer newBuffer = JavaI420Buffer.allocate(scaleWidth, scaleHeight);
-    nativeCropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight, buffer, width,
-        height, stride, sliceHeight, newBuffer.getDataY(), newBuffer.getStrideY(),
-        newBuffer.getDataU(), newBuffer.getStrideU(), newBuffer.getDataV(), newBuffer.getStrideV());
+    // The UV plane starts after |sliceHeight| rows of the Y plane.
+    YuvScaler.cropAndScaleSemiPlanar(buffer, stride, stride * sliceHeight /* srcChromaOffset */,
+        vFirst, cropX, cropY, cropWidth, cropHeight, newBuffer.getDataY(),
+        newBuffer.getStrideY(), newBuffer.getDataU(), newBuffer.getStrideU(), newBuffer.getDataV(),
+        newBuffer.getStrideV(), scaleWidth, scaleHeight, YuvScaler.getDefaultFilterMode());
     return newBuffer;
   }
-
-  private static native void nativeCropAndScale(int cropX, int cropY, int cropWidth, int cropHeight,
-      int scaleWidth, int scaleHeight, ByteBuffer src, int srcWidth, int srcHeight, int srcStride,
-      int srcSliceHeight, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
-      ByteBuffer dstV, int dstStrideV);
 }
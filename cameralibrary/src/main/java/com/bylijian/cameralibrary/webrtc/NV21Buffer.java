@@ -37,6 +37,14 @@ public class NV21Buffer implements VideoFrame.Buffer {
     return height;
   }
 
+  /**
+   * Returns the backing array: the Y plane followed by the interleaved VU plane, both with a stride
+   * of getWidth(). The array must not be modified.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
   @Override
   public VideoFrame.I420Buffer toI420() {
     // Cropping converts the frame to I420. Just crop and scale to the whole image.
@@ -58,13 +66,12 @@ public class NV21Buffer implements VideoFrame.Buffer {
   public VideoFrame.Buffer cropAndScale(
       int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
     JavaI420Buffer newBuffer = JavaI420Buffer.allocate(scaleWidth, scaleHeight);
-    nativeCropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight, data, width,
-        height, newBuffer.getDataY(), newBuffer.getStrideY(), newBuffer.getDataU(),
-        newBuffer.getStrideU(), newBuffer.getDataV(), newBuffer.getStrideV());
+    // The VU plane directly follows the Y plane and uses the same stride.
+    YuvScaler.cropAndScaleSemiPlanar(ByteBuffer.wrap(data), width /* srcStride */,
+        width * height /* srcChromaOffset */, true /* vFirst */, cropX, cropY, cropWidth,
+        cropHeight, newBuffer.getDataY(), newBuffer.getStrideY(), newBuffer.getDataU(),
+        newBuffer.getStrideU(), newBuffer.getDataV(), newBuffer.getStrideV(), scaleWidth,
+        scaleHeight, YuvScaler.getDefaultFilterMode());
     return newBuffer;
   }
-
-  private static native void nativeCropAndScale(int cropX, int cropY, int cropWidth, int cropHeight,
-      int scaleWidth, int scaleHeight, byte[] src, int srcWidth, int srcHeight, ByteBuffer dstY,
-      int dstStrideY, ByteBuffer dstU, int dstStrideU, ByteBuffer dstV, int dstStrideV);
 }
@@ -19,7 +19,10 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.view.Surface;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.concurrent.Callable;
 
 /**
@@ -27,7 +30,9 @@ import java.util.concurrent.Callable;
  * VideoFrames, render onto the SurfaceTexture. The frames will be delivered to the listener. Only
  * one texture frame can be in flight at once, so the frame must be released in order to receive a
  * new frame. Call stopListening() to stop receiveing new frames. Call dispose to release all
- * resources once the texture frame is released.
+ * resources once the texture frame is released. Consumers that need I420 should prefer
+ * TextureBufferImpl.toI420Async(), which lets the frame be released before the GPU has finished
+ * the conversion.
  */
 public class SurfaceTextureHelper {
   private static final String TAG = "SurfaceTextureHelper";
@@ -42,6 +47,17 @@ public class SurfaceTextureHelper {
    */
   public static SurfaceTextureHelper create(
       final String threadName, final EglBase.Context sharedContext, boolean alignTimestamps) {
+    return create(threadName, sharedContext, alignTimestamps, EglBase.CONFIG_PIXEL_BUFFER);
+  }
+
+  /**
+   * Same as above with the EGL config given by |configAttributes|. It must support pixel buffer
+   * surfaces. Use EglBase.CONFIG_RECORDABLE_PIXEL_BUFFER to be able to call addOutputSurface().
+   *
+   * @see #create(String, EglBase.Context, boolean)
+   */
+  public static SurfaceTextureHelper create(final String threadName,
+      final EglBase.Context sharedContext, boolean alignTimestamps, final int[] configAttributes) {
     final HandlerThread thread = new HandlerThread(threadName);
     thread.start();
     final Handler handler = new Handler(thread.getLooper());
@@ -55,7 +71,8 @@ public class SurfaceTextureHelper {
       @Override
       public SurfaceTextureHelper call() {
         try {
-          return new SurfaceTextureHelper(sharedContext, handler, alignTimestamps);
+          return new SurfaceTextureHelper(
+              sharedContext, handler, alignTimestamps, configAttributes);
         } catch (RuntimeException e) {
           Log.e(TAG, threadName + " create failure", e);
           return null;
@@ -80,6 +97,9 @@ public class SurfaceTextureHelper {
   private final int oesTextureId;
   private final YuvConverter yuvConverter = new YuvConverter();
   @Nullable private final TimestampAligner timestampAligner;
+  // Encoder surfaces frames are drawn to before they are delivered. Only accessed from the
+  // |handler| thread.
+  private final ArrayList<EncoderSurfaceWriter> outputWriters = new ArrayList<>();
 
   // These variables are only accessed from the |handler| thread.
   @Nullable private VideoSink listener;
@@ -108,15 +128,15 @@ public class SurfaceTextureHelper {
     }
   };
 
-  private SurfaceTextureHelper(
-      EglBase.Context sharedContext, Handler handler, boolean alignTimestamps) {
+  private SurfaceTextureHelper(EglBase.Context sharedContext, Handler handler,
+      boolean alignTimestamps, int[] configAttributes) {
     if (handler.getLooper().getThread() != Thread.currentThread()) {
       throw new IllegalStateException("SurfaceTextureHelper must be created on the handler thread");
     }
     this.handler = handler;
     this.timestampAligner = alignTimestamps ? new TimestampAligner() : null;
 
-    eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+    eglBase = EglBase.create(sharedContext, configAttributes);
     try {
       // Both these statements have been observed to fail on rare occasions, see BUG=webrtc:5682.
       eglBase.createDummyPbufferSurface();
@@ -212,6 +232,52 @@ public class SurfaceTextureHelper {
     return handler;
   }
 
+  /**
+   * Draws the texture frames to |surface| on the thread of this helper, before they are delivered
+   * to the listener, at most |fps| frames per second if |fps| is positive. Unlike an EglRenderer
+   * output surface this needs no render thread, so it suits a video encoder input surface. The
+   * helper must have been created with a config that supports recordable window surfaces, e.g.
+   * EglBase.CONFIG_RECORDABLE_PIXEL_BUFFER, otherwise this throws.
+   *
+   * @param usePresentationTimeStamp if true, the frame timestamp is passed to the encoder,
+   *     otherwise the time of drawing.
+   */
+  public void addOutputSurface(
+      final Surface surface, final float fps, final boolean usePresentationTimeStamp) {
+    Log.d(TAG, "addOutputSurface fps: " + fps);
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      if (isQuitting) {
+        throw new IllegalStateException("SurfaceTextureHelper is disposed");
+      }
+      try {
+        outputWriters.add(
+            new EncoderSurfaceWriter(eglBase, surface, fps, usePresentationTimeStamp));
+      } finally {
+        eglBase.makeCurrent();
+      }
+    });
+  }
+
+  /**
+   * Stops drawing to a surface added with addOutputSurface() and releases its EGLSurface. When this
+   * returns, the owner of |surface| can release it.
+   */
+  public void removeOutputSurface(final Surface surface) {
+    Log.d(TAG, "removeOutputSurface");
+    ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      final Iterator<EncoderSurfaceWriter> iter = outputWriters.iterator();
+      while (iter.hasNext()) {
+        final EncoderSurfaceWriter writer = iter.next();
+        if (writer.surface == surface) {
+          Log.d(TAG, "Frames written to output surface: " + writer.getFramesWritten());
+          writer.release();
+          iter.remove();
+          eglBase.makeCurrent();
+        }
+      }
+    });
+  }
+
   /**
    * This function is called when the texture frame is released. Only one texture frame can be in
    * flight at once, so this function must be called before a new frame is delivered.
@@ -256,6 +322,11 @@ public class SurfaceTextureHelper {
     return textureBuffer.toI420();
   }
 
+  /** Returns the latency and throughput of the I420 conversions of this helper's frames. */
+  public YuvConverter.Stats getYuvConverterStats() {
+    return yuvConverter.getStats();
+  }
+
   private void updateTexImage() {
     // SurfaceTexture.updateTexImage apparently can compete and deadlock with eglSwapBuffers,
     // as observed on Nexus 5. Therefore, synchronize it with the EGL functions.
@@ -291,6 +362,12 @@ public class SurfaceTextureHelper {
             RendererCommon.convertMatrixToAndroidGraphicsMatrix(transformMatrix), handler,
             yuvConverter, this ::returnTextureFrame);
     final VideoFrame frame = new VideoFrame(buffer, frameRotation, timestampNs);
+    if (!outputWriters.isEmpty()) {
+      for (EncoderSurfaceWriter writer : outputWriters) {
+        writer.writeFrame(frame);
+      }
+      eglBase.makeCurrent();
+    }
     ((VideoSink) listener).onFrame(frame);
     frame.release();
   }
@@ -303,6 +380,11 @@ public class SurfaceTextureHelper {
       throw new IllegalStateException("Unexpected release.");
     }
     yuvConverter.release();
+    for (EncoderSurfaceWriter writer : outputWriters) {
+      writer.release();
+      eglBase.makeCurrent();
+    }
+    outputWriters.clear();
     GLES20.glDeleteTextures(1, new int[] {oesTextureId}, 0);
     surfaceTexture.release();
     eglBase.release();
@@ -12,15 +12,19 @@ package com.bylijian.cameralibrary.webrtc;
 
 import android.content.Context;
 import android.content.res.Resources.NotFoundException;
+import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Display;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 
 /**
  * Display the video stream on a SurfaceView.
@@ -138,6 +142,13 @@ public class SurfaceViewRenderer extends SurfaceView implements SurfaceHolder.Ca
         eglRenderer.removeFrameListener(listener);
     }
 
+    /**
+     * @see EglRenderer#recycleBitmap(Bitmap)
+     */
+    public void recycleBitmap(Bitmap bitmap) {
+        eglRenderer.recycleBitmap(bitmap);
+    }
+
     /**
      * Enables fixed size for the surface. This provides better performance but might be buggy on some
      * devices. By default this is turned off.
@@ -189,6 +200,59 @@ public class SurfaceViewRenderer extends SurfaceView implements SurfaceHolder.Ca
         eglRenderer.pauseVideo();
     }
 
+    /**
+     * Draw on the vsync of the display that shows this view instead of as soon as a frame arrives.
+     *
+     * @see EglRenderer#enableVsyncScheduling(float)
+     */
+    public void enableVsyncScheduling() {
+        Display display = getDisplay();
+        if (display == null) {
+            // Not attached yet.
+            display = ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay();
+        }
+        eglRenderer.enableVsyncScheduling(display.getRefreshRate());
+    }
+
+    public void disableVsyncScheduling() {
+        eglRenderer.disableVsyncScheduling();
+    }
+
+    /**
+     * Compile the shader for texture frames when the surface is created instead of on the first frame.
+     *
+     * @see EglRenderer#prewarmOesShader()
+     */
+    public void prewarmOesShader() {
+        eglRenderer.prewarmOesShader();
+    }
+
+    /**
+     * Draw every frame to |surface| as well, sharing the render thread and EGLContext of this view.
+     * The renderer must be initialized with a config that is compatible with |surface|, e.g.
+     * EglBase.CONFIG_RECORDABLE for a video encoder input surface.
+     *
+     * @see EglRenderer#addOutputSurface(Surface, float, boolean)
+     */
+    public void addOutputSurface(Surface surface, float fps, boolean usePresentationTimeStamp) {
+        eglRenderer.addOutputSurface(surface, fps, usePresentationTimeStamp);
+    }
+
+    /**
+     * Block until the render thread no longer draws to |surface|.
+     */
+    public void removeOutputSurface(Surface surface) {
+        eglRenderer.removeOutputSurface(surface);
+    }
+
+    /**
+     * @see EglRenderer#setFrameQueue(FrameQueue)
+     */
+    public void setFrameQueue(FrameQueue queue) {
+        eglRenderer.setFrameQueue(queue);
+    }
+
     // VideoSink interface.
     @Override
     public void onFrame(VideoFrame frame) {
@@ -94,6 +94,42 @@ public class TextureBufferImpl implements VideoFrame.TextureBuffer {
         toI420Handler, () -> yuvConverter.convert(this));
   }
 
+  /**
+   * Converts to I420 without blocking the caller or the toI420Handler thread on the GPU. The buffer
+   * is kept alive until the conversion has been submitted, and |callback| is called on the
+   * toI420Handler thread when the I420 buffer is ready.
+   *
+   * @see YuvConverter#convertAsync(VideoFrame.TextureBuffer, YuvConverter.I420Callback)
+   */
+  public void toI420Async(YuvConverter.I420Callback callback) {
+    runOnToI420Thread(() -> yuvConverter.convertAsync(this, callback));
+  }
+
+  /**
+   * Like toI420Async(), but converts to NV12, or NV21 if |vFirst| is true, without going through
+   * I420.
+   *
+   * @see YuvConverter#convertToSemiPlanarAsync(VideoFrame.TextureBuffer, boolean,
+   *     YuvConverter.SemiPlanarCallback)
+   */
+  public void toSemiPlanarAsync(boolean vFirst, YuvConverter.SemiPlanarCallback callback) {
+    runOnToI420Thread(() -> yuvConverter.convertToSemiPlanarAsync(this, vFirst, callback));
+  }
+
+  /** Runs |submitRunnable| on the toI420Handler thread, keeping this buffer alive until then. */
+  private void runOnToI420Thread(Runnable submitRunnable) {
+    retain();
+    final Runnable convertRunnable = () -> {
+      submitRunnable.run();
+      release();
+    };
+    if (toI420Handler.getLooper().getThread() == Thread.currentThread()) {
+      convertRunnable.run();
+    } else {
+      toI420Handler.post(convertRunnable);
+    }
+  }
+
   @Override
   public void retain() {
     refCountDelegate.retain();
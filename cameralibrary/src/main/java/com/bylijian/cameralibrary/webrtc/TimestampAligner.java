@@ -10,24 +10,68 @@
 
 package com.bylijian.cameralibrary.webrtc;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * The TimestampAligner class helps translating camera timestamps into the same timescale as is
  * used by rtc::TimeNanos(). Some cameras have built in timestamping which is more accurate than
  * reading the system clock, but using a different epoch and unknown clock drift. Frame timestamps
  * in webrtc should use rtc::TimeNanos (system monotonic time), and this class provides a filter
  * which lets us use the rtc::TimeNanos timescale, and at the same time take advantage of higher
- * accuracy of the camera clock. This class is a wrapper on top of rtc::TimestampAligner.
+ * accuracy of the camera clock. This is a Java port of rtc::TimestampAligner, so it works without
+ * the native library. It does not allocate per frame and must be used from a single thread.
  */
 public class TimestampAligner {
+  /** Source of system monotonic time, replaceable in tests. */
+  interface Clock { long nanoTime(); }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  // If the difference between the camera and system clock offset and the current estimate exceeds
+  // this, the camera clock is assumed to have jumped and the estimate starts over.
+  private static final long RESET_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(300);
+  // The offset is a running average over at most this many frames, so slow drift is followed.
+  private static final int WINDOW_SIZE = 100;
+  // Translated timestamps are at least this far apart.
+  private static final long MIN_FRAME_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+  // Weight of a new sample in the jitter estimate, as in RFC 3550.
+  private static final int JITTER_WEIGHT_SHIFT = 4;
+
   /**
    * Wrapper around rtc::TimeNanos(). This is normally same as System.nanoTime(), but call this
    * function to be safe.
    */
   public static long getRtcTimeNanos() {
-    return nativeRtcTimeNanos();
+    return System.nanoTime();
+  }
+
+  private final Clock clock;
+  private boolean disposed;
+
+  // Estimated system time minus camera time.
+  private long offsetNs;
+  // Number of frames in the running average, at most WINDOW_SIZE.
+  private int framesSeen;
+  // Translated timestamps that would be in the future are pulled back to the system time and the
+  // difference is subtracted from later timestamps, so the output stays smooth.
+  private long clipBiasNs;
+  private long prevTranslatedTimeNs = Long.MIN_VALUE;
+  // Mean deviation of the measured offset from the estimate.
+  private long jitterNs;
+  private int resetCount;
+
+  public TimestampAligner() {
+    this(SYSTEM_CLOCK);
   }
 
-  private volatile long nativeTimestampAligner = nativeCreateTimestampAligner();
+  TimestampAligner(Clock clock) {
+    this.clock = clock;
+  }
 
   /**
    * Translates camera timestamps to the same timescale as is used by rtc::TimeNanos().
@@ -35,25 +79,63 @@ public class TimestampAligner {
    * the translated timestamp.
    */
   public long translateTimestamp(long cameraTimeNs) {
-    checkNativeAlignerExists();
-    return nativeTranslateTimestamp(nativeTimestampAligner, cameraTimeNs);
+    checkNotDisposed();
+    final long systemTimeNs = clock.nanoTime();
+    return clipTimestamp(cameraTimeNs + updateOffset(cameraTimeNs, systemTimeNs), systemTimeNs);
+  }
+
+  /** Current estimate of the jitter between camera timestamps and their arrival time. */
+  public long getJitterNs() {
+    return jitterNs;
   }
 
-  /** Dispose native timestamp aligner. */
+  /** Number of times the camera clock was detected to jump and the estimate was reset. */
+  public int getResetCount() {
+    return resetCount;
+  }
+
+  /** Dispose timestamp aligner. */
   public void dispose() {
-    checkNativeAlignerExists();
-    nativeReleaseTimestampAligner(nativeTimestampAligner);
-    nativeTimestampAligner = 0;
+    checkNotDisposed();
+    disposed = true;
   }
 
-  private void checkNativeAlignerExists() {
-    if (nativeTimestampAligner == 0) {
-      throw new IllegalStateException("TimestampAligner has been disposed.");
+  private long updateOffset(long cameraTimeNs, long systemTimeNs) {
+    final long diffNs = systemTimeNs - cameraTimeNs - offsetNs;
+    if (framesSeen > 0 && Math.abs(diffNs) > RESET_THRESHOLD_NS) {
+      framesSeen = 0;
+      clipBiasNs = 0;
+      jitterNs = 0;
+      resetCount++;
     }
+    if (framesSeen < WINDOW_SIZE) {
+      framesSeen++;
+    }
+    offsetNs += diffNs / framesSeen;
+    if (framesSeen > 1) {
+      jitterNs += (Math.abs(diffNs) - jitterNs) >> JITTER_WEIGHT_SHIFT;
+    }
+    return offsetNs;
   }
 
-  private static native long nativeRtcTimeNanos();
-  private static native long nativeCreateTimestampAligner();
-  private static native void nativeReleaseTimestampAligner(long timestampAligner);
-  private static native long nativeTranslateTimestamp(long timestampAligner, long cameraTimeNs);
+  private long clipTimestamp(long filteredTimeNs, long systemTimeNs) {
+    long timeNs = filteredTimeNs - clipBiasNs;
+    if (timeNs > systemTimeNs) {
+      // A timestamp in the future. Use the system time instead and remember the bias.
+      clipBiasNs += timeNs - systemTimeNs;
+      timeNs = systemTimeNs;
+    } else if (prevTranslatedTimeNs != Long.MIN_VALUE
+        && timeNs < prevTranslatedTimeNs + MIN_FRAME_INTERVAL_NS) {
+      // Keep timestamps increasing, but never in the future.
+      timeNs = Math.min(prevTranslatedTimeNs + MIN_FRAME_INTERVAL_NS, systemTimeNs);
+    }
+    prevTranslatedTimeNs = timeNs;
+    return timeNs;
+  }
+
+  private void checkNotDisposed() {
+    if (disposed) {
+      throw new IllegalStateException("TimestampAligner has been disposed.");
+    }
+  }
 }
@@ -0,0 +1,85 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides on which vsyncs EglRenderer draws when it is driven by Choreographer. The fps reduction
+ * is applied as a cadence of whole refresh periods, e.g. 25 fps on a 60 Hz display alternates
+ * between two and three periods, instead of comparing against the system clock, which jitters
+ * around the vsync and makes the cadence irregular. Draws that finish after the following vsync
+ * are counted as missed, and when too many miss, the pacer only draws on every second, third or
+ * fourth vsync until rendering keeps up again. Only used from the render thread.
+ */
+class VsyncPacer {
+  // Missed vsyncs are evaluated in windows of this many draws.
+  static final int WINDOW_DRAWS = 30;
+  // If more than this share of the draws in a window missed their vsync, draw less often.
+  static final float MISSED_RATIO_HIGH = 0.2f;
+  // Number of windows without a missed vsync before drawing more often again.
+  static final int RECOVERY_WINDOWS = 4;
+  static final int MAX_DIVISOR = 4;
+
+  private final long refreshPeriodNs;
+  // Draw at most on every |divisor|th vsync.
+  private int divisor = 1;
+  private long nextDrawTimeNs = -1;
+  private int windowDraws;
+  private int windowMisses;
+  private int cleanWindows;
+
+  VsyncPacer(float refreshRate) {
+    if (refreshRate <= 0) {
+      throw new IllegalArgumentException("Invalid refresh rate: " + refreshRate);
+    }
+    refreshPeriodNs = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+  }
+
+  /**
+   * Returns true if a frame should be drawn for the vsync at |vsyncTimeNs|. |minDrawPeriodNs| is
+   * the period set with setFpsReduction(), or 0 if fps reduction is disabled.
+   */
+  boolean shouldDraw(long vsyncTimeNs, long minDrawPeriodNs) {
+    final long drawPeriodNs = Math.max(minDrawPeriodNs, divisor * refreshPeriodNs);
+    // A vsync less than half a refresh period before the target is on time.
+    if (nextDrawTimeNs >= 0 && vsyncTimeNs < nextDrawTimeNs - refreshPeriodNs / 2) {
+      return false;
+    }
+    if (nextDrawTimeNs < 0 || vsyncTimeNs - nextDrawTimeNs >= drawPeriodNs) {
+      // First frame, or no frame arrived for a while. Don't try to catch up.
+      nextDrawTimeNs = vsyncTimeNs + drawPeriodNs;
+    } else {
+      nextDrawTimeNs += drawPeriodNs;
+    }
+    return true;
+  }
+
+  /**
+   * Called when the draw for the vsync at |vsyncTimeNs| returned from swapBuffers() at
+   * |swapDoneTimeNs|.
+   */
+  void onFrameDrawn(long vsyncTimeNs, long swapDoneTimeNs) {
+    ++windowDraws;
+    if (swapDoneTimeNs - vsyncTimeNs > refreshPeriodNs) {
+      ++windowMisses;
+    }
+    if (windowDraws < WINDOW_DRAWS) {
+      return;
+    }
+    if (windowMisses > WINDOW_DRAWS * MISSED_RATIO_HIGH) {
+      divisor = Math.min(MAX_DIVISOR, divisor + 1);
+      cleanWindows = 0;
+    } else if (windowMisses > 0) {
+      cleanWindows = 0;
+    } else if (divisor > 1 && ++cleanWindows >= RECOVERY_WINDOWS) {
+      --divisor;
+      cleanWindows = 0;
+    }
+    windowDraws = 0;
+    windowMisses = 0;
+  }
+
+  /** Highest frame rate the pacer currently draws at, not counting fps reduction. */
+  float getMaxFps() {
+    return TimeUnit.SECONDS.toNanos(1) / (float) (divisor * refreshPeriodNs);
+  }
+}
@@ -12,14 +12,22 @@ package com.bylijian.cameralibrary.webrtc;
 
 import android.graphics.Matrix;
 import android.opengl.GLES20;
-
-
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for converting OES textures to a YUV ByteBuffer. It can be constructed on any thread, but
- * should only be operated from a single thread with an active EGL context.
+ * should only be operated from a single thread with an active EGL context. The output memory comes
+ * from FramePool. convert() waits for the GPU; convertAsync() pipelines several conversions
+ * through pixel buffer objects and fences when OpenGL ES 3 is available. convertToSemiPlanar() and
+ * convertToSemiPlanarAsync() produce NV12 or NV21 directly.
  */
 public class YuvConverter {
   private static final String FRAGMENT_SHADER =
@@ -46,6 +54,25 @@ public class YuvConverter {
       + "      sample(tc + 1.5 * xUnit).rgb);\n"
       + "}\n";
 
+  private static final String SEMI_PLANAR_FRAGMENT_SHADER =
+      // Difference in texture coordinate corresponding to one
+      // chroma sample in the x direction.
+      "uniform vec2 xUnit;\n"
+      // Color conversion coefficients for the first and the second
+      // chroma component, including constant term
+      + "uniform vec4 coeffs;\n"
+      + "uniform vec4 coeffs2;\n"
+      + "\n"
+      + "void main() {\n"
+      // Each output pixel holds two interleaved chroma pairs.
+      + "  vec3 left = sample(tc - 0.5 * xUnit).rgb;\n"
+      + "  vec3 right = sample(tc + 0.5 * xUnit).rgb;\n"
+      + "  gl_FragColor.r = coeffs.a + dot(coeffs.rgb, left);\n"
+      + "  gl_FragColor.g = coeffs2.a + dot(coeffs2.rgb, left);\n"
+      + "  gl_FragColor.b = coeffs.a + dot(coeffs.rgb, right);\n"
+      + "  gl_FragColor.a = coeffs2.a + dot(coeffs2.rgb, right);\n"
+      + "}\n";
+
   private static class ShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
     // Y'UV444 to RGB888, see https://en.wikipedia.org/wiki/YUV#Y%E2%80%B2UV444_to_RGB888_conversion
     // We use the ITU-R BT.601 coefficients for Y, U and V.
@@ -103,12 +130,136 @@ public class YuvConverter {
     }
   }
 
+  /** Callbacks for drawing the interleaved chroma plane of NV12 or NV21. */
+  private static class SemiPlanarShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
+    private int xUnitLoc;
+    private int coeffsLoc;
+    private int coeffs2Loc;
+
+    private float[] coeffs = ShaderCallbacks.uCoeffs;
+    private float[] coeffs2 = ShaderCallbacks.vCoeffs;
+
+    public void setChromaOrder(boolean vFirst) {
+      coeffs = vFirst ? ShaderCallbacks.vCoeffs : ShaderCallbacks.uCoeffs;
+      coeffs2 = vFirst ? ShaderCallbacks.uCoeffs : ShaderCallbacks.vCoeffs;
+    }
+
+    @Override
+    public void onNewShader(GlShader shader) {
+      xUnitLoc = shader.getUniformLocation("xUnit");
+      coeffsLoc = shader.getUniformLocation("coeffs");
+      coeffs2Loc = shader.getUniformLocation("coeffs2");
+    }
+
+    @Override
+    public void onPrepareShader(GlShader shader, float[] texMatrix, int frameWidth, int frameHeight,
+        int viewportWidth, int viewportHeight) {
+      GLES20.glUniform4fv(coeffsLoc, /* count= */ 1, coeffs, /* offset= */ 0);
+      GLES20.glUniform4fv(coeffs2Loc, /* count= */ 1, coeffs2, /* offset= */ 0);
+      // One chroma sample covers two pixels.
+      GLES20.glUniform2f(
+          xUnitLoc, 2.0f * texMatrix[0] / frameWidth, 2.0f * texMatrix[1] / frameWidth);
+    }
+  }
+
+  /** Receives the buffers converted by convertAsync(). */
+  public interface I420Callback {
+    /**
+     * Called on the converter thread with the converted buffer, or with null if the readback
+     * failed. The callee takes ownership of the buffer and must release it.
+     */
+    void onI420Buffer(@Nullable VideoFrame.I420Buffer buffer);
+  }
+
+  /** Receives the buffers converted by convertToSemiPlanarAsync(). */
+  public interface SemiPlanarCallback {
+    /**
+     * Called on the converter thread with the converted buffer, or with null if the readback
+     * failed. The callee takes ownership of the buffer and must release it.
+     */
+    void onSemiPlanarBuffer(@Nullable NV12Buffer buffer);
+  }
+
+  /** Conversion latency and throughput since the converter was created or stats were reset. */
+  public static class Stats {
+    /** Number of converted frames. */
+    public final int frames;
+    /** Number of asynchronous conversions that had to wait because all slots were in flight. */
+    public final int stalls;
+    public final long averageLatencyNs;
+    public final long maxLatencyNs;
+    /** Converted frames per second, from the first submitted to the last finished conversion. */
+    public final float framesPerSecond;
+
+    Stats(int frames, int stalls, long averageLatencyNs, long maxLatencyNs, float framesPerSecond) {
+      this.frames = frames;
+      this.stalls = stalls;
+      this.averageLatencyNs = averageLatencyNs;
+      this.maxLatencyNs = maxLatencyNs;
+      this.framesPerSecond = framesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "Frames: %d. Fps: %.1f. Latency avg: %.2f ms, max: %.2f ms. Stalls: %d.", frames,
+          framesPerSecond, averageLatencyNs / 1e6, maxLatencyNs / 1e6, stalls);
+    }
+  }
+
+  private static class PendingConversion {
+    int pboId;
+    int capacity;
+    // Fence signaled when the readback is done, or 0 if the slot is free.
+    long fence;
+    int width;
+    int height;
+    long submitTimeNs;
+    boolean semiPlanar;
+    boolean vFirst;
+    // Exactly one of the callbacks is set while the conversion is in flight.
+    @Nullable I420Callback callback;
+    @Nullable SemiPlanarCallback semiPlanarCallback;
+  }
+
+  private static final String TAG = "YuvConverter";
+  /** Number of conversions convertAsync() keeps in flight by default. */
+  public static final int DEFAULT_MAX_IN_FLIGHT_CONVERSIONS = 3;
+  // Interval for checking in-flight conversions when no new conversion is submitted.
+  private static final long POLL_INTERVAL_MS = 2;
+  // Upper bound for waiting on a conversion when all slots are in flight or when releasing.
+  private static final long MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final Histogram latencyUsHistogram =
+      Histogram.createCounts("WebRTC.Android.YuvConverter.LatencyUs", 1, 100000, 50);
+
   private final ThreadUtils.ThreadChecker threadChecker = new ThreadUtils.ThreadChecker();
   private final GlTextureFrameBuffer i420TextureFrameBuffer =
       new GlTextureFrameBuffer(GLES20.GL_RGBA);
   private final ShaderCallbacks shaderCallbacks = new ShaderCallbacks();
   private final GlGenericDrawer drawer = new GlGenericDrawer(FRAGMENT_SHADER, shaderCallbacks);
+  private final SemiPlanarShaderCallbacks semiPlanarShaderCallbacks =
+      new SemiPlanarShaderCallbacks();
+  private final GlGenericDrawer semiPlanarDrawer =
+      new GlGenericDrawer(SEMI_PLANAR_FRAGMENT_SHADER, semiPlanarShaderCallbacks);
   private final VideoFrameDrawer videoFrameDrawer;
+  private final int maxInFlightConversions;
+  private final Runnable pollConversionsRunnable = this ::pollConversions;
+
+  // Null until the first convertAsync(), and empty with OpenGL ES 2. Conversions are submitted and
+  // delivered in round-robin order, starting at |oldestConversion|.
+  @Nullable private PendingConversion[] pendingConversions;
+  private int oldestConversion;
+  private int inFlightConversions;
+  // Handler of the converter thread, used for polling in-flight conversions.
+  @Nullable private Handler handler;
+
+  private final Object statsLock = new Object();
+  private int statsFrames; /* guarded by statsLock */
+  private int statsStalls; /* guarded by statsLock */
+  private long statsTotalLatencyNs; /* guarded by statsLock */
+  private long statsMaxLatencyNs; /* guarded by statsLock */
+  private long statsStartTimeNs; /* guarded by statsLock */
+  private long statsEndTimeNs; /* guarded by statsLock */
 
   /**
    * This class should be constructed on a thread that has an active EGL context.
@@ -118,17 +269,237 @@ public class YuvConverter {
   }
 
   public YuvConverter(VideoFrameDrawer videoFrameDrawer) {
+    this(videoFrameDrawer, DEFAULT_MAX_IN_FLIGHT_CONVERSIONS);
+  }
+
+  /**
+   * @param maxInFlightConversions number of conversions convertAsync() keeps in flight before it
+   *     waits for the oldest one.
+   */
+  public YuvConverter(VideoFrameDrawer videoFrameDrawer, int maxInFlightConversions) {
+    if (maxInFlightConversions < 1) {
+      throw new IllegalArgumentException(
+          "Invalid number of in-flight conversions: " + maxInFlightConversions);
+    }
     this.videoFrameDrawer = videoFrameDrawer;
+    this.maxInFlightConversions = maxInFlightConversions;
     threadChecker.detachThread();
   }
 
-  /** Converts the texture buffer to I420. */
+  /** Converts the texture buffer to I420. Blocks until the GPU is done. */
   public VideoFrame.I420Buffer convert(VideoFrame.TextureBuffer inputTextureBuffer) {
     threadChecker.checkIsOnValidThread();
+    final long submitTimeNs = System.nanoTime();
+
+    VideoFrame.TextureBuffer preparedBuffer = (VideoFrame.TextureBuffer) videoFrameDrawer.prepareBufferForViewportSize(
+        inputTextureBuffer, inputTextureBuffer.getWidth(), inputTextureBuffer.getHeight());
+    final int frameWidth = preparedBuffer.getWidth();
+    final int frameHeight = preparedBuffer.getHeight();
+    final FramePool.Entry poolEntry =
+        FramePool.getDefault().acquire(frameWidth, frameHeight, FramePool.Layout.YUV_CONVERTER);
+
+    drawYuv(preparedBuffer, /* semiPlanar= */ false, /* vFirst= */ false);
+    GLES20.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
+        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, poolEntry.getBuffer());
+
+    GlUtil.checkNoGLES2Error("YuvConverter.convert");
+
+    // Restore normal framebuffer.
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    preparedBuffer.release();
+
+    recordConversion(submitTimeNs, System.nanoTime());
+    return wrapI420Buffer(poolEntry, frameWidth, frameHeight);
+  }
+
+  /**
+   * Converts the texture buffer to a semi-planar buffer, NV12 or NV21 if |vFirst| is true. The
+   * chroma samples are interleaved by the shader, so there is no CPU pass after the readback.
+   * Blocks until the GPU is done.
+   */
+  public NV12Buffer convertToSemiPlanar(
+      VideoFrame.TextureBuffer inputTextureBuffer, boolean vFirst) {
+    threadChecker.checkIsOnValidThread();
+    final long submitTimeNs = System.nanoTime();
 
     VideoFrame.TextureBuffer preparedBuffer = (VideoFrame.TextureBuffer) videoFrameDrawer.prepareBufferForViewportSize(
         inputTextureBuffer, inputTextureBuffer.getWidth(), inputTextureBuffer.getHeight());
+    final int frameWidth = preparedBuffer.getWidth();
+    final int frameHeight = preparedBuffer.getHeight();
+    // Same size as the I420 layout: the chroma rows have the same stride and there are as many.
+    final FramePool.Entry poolEntry =
+        FramePool.getDefault().acquire(frameWidth, frameHeight, FramePool.Layout.YUV_CONVERTER);
+
+    drawYuv(preparedBuffer, /* semiPlanar= */ true, vFirst);
+    GLES20.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
+        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, poolEntry.getBuffer());
+
+    GlUtil.checkNoGLES2Error("YuvConverter.convertToSemiPlanar");
+
+    // Restore normal framebuffer.
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    preparedBuffer.release();
 
+    recordConversion(submitTimeNs, System.nanoTime());
+    return wrapSemiPlanarBuffer(poolEntry, frameWidth, frameHeight, vFirst);
+  }
+
+  /**
+   * Converts the texture buffer to I420 without waiting for the GPU. The planes are read into a
+   * pixel buffer object and |callback| is called once a fence shows the readback is done, so the
+   * texture can be reused as soon as this returns. Up to the number of in-flight conversions given
+   * to the constructor are pending at once; when all are, this waits for the oldest one.
+   * Conversions finish in submission order, either when this is called again or from a task
+   * posted to the converter thread, which therefore must be a Looper thread. Falls back to
+   * convert() with OpenGL ES 2.
+   */
+  public void convertAsync(VideoFrame.TextureBuffer inputTextureBuffer, I420Callback callback) {
+    threadChecker.checkIsOnValidThread();
+    if (!preparePendingConversions()) {
+      callback.onI420Buffer(convert(inputTextureBuffer));
+      return;
+    }
+    final PendingConversion conversion =
+        submitConversion(inputTextureBuffer, /* semiPlanar= */ false, /* vFirst= */ false);
+    conversion.callback = callback;
+  }
+
+  /**
+   * Like convertAsync(), but converts to a semi-planar buffer as convertToSemiPlanar() does. Both
+   * kinds of conversions share the in-flight slots and finish in submission order.
+   */
+  public void convertToSemiPlanarAsync(
+      VideoFrame.TextureBuffer inputTextureBuffer, boolean vFirst, SemiPlanarCallback callback) {
+    threadChecker.checkIsOnValidThread();
+    if (!preparePendingConversions()) {
+      callback.onSemiPlanarBuffer(convertToSemiPlanar(inputTextureBuffer, vFirst));
+      return;
+    }
+    final PendingConversion conversion =
+        submitConversion(inputTextureBuffer, /* semiPlanar= */ true, vFirst);
+    conversion.semiPlanarCallback = callback;
+  }
+
+  /** Returns false if pixel buffer objects are not supported and conversions must be synchronous. */
+  private boolean preparePendingConversions() {
+    if (pendingConversions == null) {
+      pendingConversions = createPendingConversions(maxInFlightConversions);
+      if (pendingConversions.length > 0) {
+        final Looper looper = Looper.myLooper();
+        if (looper == null) {
+          throw new IllegalStateException("convertAsync() must be called on a Looper thread");
+        }
+        handler = new Handler(looper);
+      }
+    }
+    return pendingConversions.length > 0;
+  }
+
+  /**
+   * Draws |inputTextureBuffer| and starts reading it back into a free slot, which is returned for
+   * the caller to set the callback on.
+   */
+  private PendingConversion submitConversion(
+      VideoFrame.TextureBuffer inputTextureBuffer, boolean semiPlanar, boolean vFirst) {
+    deliverCompletedConversions();
+    if (inFlightConversions == pendingConversions.length) {
+      synchronized (statsLock) {
+        ++statsStalls;
+      }
+      waitForConversion(pendingConversions[oldestConversion], MAX_WAIT_NS);
+      deliverOldestConversion();
+    }
+    final long submitTimeNs = System.nanoTime();
+
+    VideoFrame.TextureBuffer preparedBuffer = (VideoFrame.TextureBuffer) videoFrameDrawer.prepareBufferForViewportSize(
+        inputTextureBuffer, inputTextureBuffer.getWidth(), inputTextureBuffer.getHeight());
+    final PendingConversion conversion =
+        pendingConversions[(oldestConversion + inFlightConversions) % pendingConversions.length];
+    drawYuv(preparedBuffer, semiPlanar, vFirst);
+
+    final int size = i420TextureFrameBuffer.getWidth() * i420TextureFrameBuffer.getHeight() * 4;
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, conversion.pboId);
+    if (conversion.capacity < size) {
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+      conversion.capacity = size;
+    }
+    GLES30.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
+        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    conversion.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    // Restore normal framebuffer.
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    // Polling the fence doesn't flush, so make sure the GPU starts on the commands.
+    GLES20.glFlush();
+    GlUtil.checkNoGLES2Error("YuvConverter.convertAsync");
+
+    conversion.width = preparedBuffer.getWidth();
+    conversion.height = preparedBuffer.getHeight();
+    preparedBuffer.release();
+    conversion.submitTimeNs = submitTimeNs;
+    conversion.semiPlanar = semiPlanar;
+    conversion.vFirst = vFirst;
+    ++inFlightConversions;
+    handler.removeCallbacks(pollConversionsRunnable);
+    handler.postDelayed(pollConversionsRunnable, POLL_INTERVAL_MS);
+    return conversion;
+  }
+
+  /** Returns the conversion metrics. May be called on any thread. */
+  public Stats getStats() {
+    synchronized (statsLock) {
+      final long durationNs = statsEndTimeNs - statsStartTimeNs;
+      return new Stats(statsFrames, statsStalls,
+          statsFrames > 0 ? statsTotalLatencyNs / statsFrames : 0, statsMaxLatencyNs,
+          durationNs > 0 ? statsFrames * (float) TimeUnit.SECONDS.toNanos(1) / durationNs : 0);
+    }
+  }
+
+  /** Resets the conversion metrics. May be called on any thread. */
+  public void resetStats() {
+    synchronized (statsLock) {
+      statsFrames = 0;
+      statsStalls = 0;
+      statsTotalLatencyNs = 0;
+      statsMaxLatencyNs = 0;
+      statsStartTimeNs = 0;
+      statsEndTimeNs = 0;
+    }
+  }
+
+  /** Finishes in-flight conversions, calling their callbacks, and releases the GL resources. */
+  public void release() {
+    threadChecker.checkIsOnValidThread();
+    if (pendingConversions != null) {
+      while (inFlightConversions > 0) {
+        waitForConversion(pendingConversions[oldestConversion], MAX_WAIT_NS);
+        deliverOldestConversion();
+      }
+      if (pendingConversions.length > 0) {
+        final int[] pboIds = new int[pendingConversions.length];
+        for (int i = 0; i < pendingConversions.length; i++) {
+          pboIds[i] = pendingConversions[i].pboId;
+        }
+        GLES30.glDeleteBuffers(pboIds.length, pboIds, 0);
+        handler.removeCallbacks(pollConversionsRunnable);
+      }
+      pendingConversions = null;
+      handler = null;
+    }
+    drawer.release();
+    semiPlanarDrawer.release();
+    i420TextureFrameBuffer.release();
+    videoFrameDrawer.release();
+    // Allow this class to be reused.
+    threadChecker.detachThread();
+  }
+
+  /**
+   * Draws Y, U and V into |i420TextureFrameBuffer| and leaves it bound. With |semiPlanar|, the
+   * chroma rows hold interleaved samples instead, starting with V if |vFirst| is true.
+   */
+  private void drawYuv(
+      VideoFrame.TextureBuffer preparedBuffer, boolean semiPlanar, boolean vFirst) {
     // We draw into a buffer laid out like
     //
     //    +---------+
@@ -157,13 +528,16 @@ public class YuvConverter {
     // Since the V data needs to start on a boundary of such a
     // larger pixel, it is not sufficient that |stride| is even, it
     // has to be a multiple of 8 pixels.
+    //
+    // The semi-planar layout draws a single chroma plane of the full
+    // stride below Y instead, each large pixel holding two pairs of
+    // interleaved chroma samples.
     final int frameWidth = preparedBuffer.getWidth();
     final int frameHeight = preparedBuffer.getHeight();
     final int stride = ((frameWidth + 7) / 8) * 8;
     final int uvHeight = (frameHeight + 1) / 2;
     // Total height of the combined memory layout.
     final int totalHeight = frameHeight + uvHeight;
-    final ByteBuffer i420ByteBuffer = JniCommon.nativeAllocateByteBuffer(stride * totalHeight);
     // Viewport width is divided by four since we are squeezing in four color bytes in each RGBA
     // pixel.
     final int viewportWidth = stride / 4;
@@ -186,6 +560,15 @@ public class YuvConverter {
         /* viewportX= */ 0, /* viewportY= */ 0, viewportWidth,
         /* viewportHeight= */ frameHeight);
 
+    if (semiPlanar) {
+      // Draw interleaved UV or VU.
+      semiPlanarShaderCallbacks.setChromaOrder(vFirst);
+      VideoFrameDrawer.drawTexture(semiPlanarDrawer, preparedBuffer, renderMatrix, frameWidth,
+          frameHeight, /* viewportX= */ 0, /* viewportY= */ frameHeight, viewportWidth,
+          /* viewportHeight= */ uvHeight);
+      return;
+    }
+
     // Draw U.
     shaderCallbacks.setPlaneU();
     VideoFrameDrawer.drawTexture(drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight,
@@ -197,14 +580,14 @@ public class YuvConverter {
     VideoFrameDrawer.drawTexture(drawer, preparedBuffer, renderMatrix, frameWidth, frameHeight,
         /* viewportX= */ viewportWidth / 2, /* viewportY= */ frameHeight, viewportWidth / 2,
         /* viewportHeight= */ uvHeight);
+  }
 
-    GLES20.glReadPixels(0, 0, i420TextureFrameBuffer.getWidth(), i420TextureFrameBuffer.getHeight(),
-        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, i420ByteBuffer);
-
-    GlUtil.checkNoGLES2Error("YuvConverter.convert");
-
-    // Restore normal framebuffer.
-    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+  /** Wraps a buffer in the I420 layout drawn by drawYuv() as an I420 buffer. */
+  private static VideoFrame.I420Buffer wrapI420Buffer(
+      FramePool.Entry poolEntry, int frameWidth, int frameHeight) {
+    final ByteBuffer i420ByteBuffer = poolEntry.getBuffer();
+    final int stride = ((frameWidth + 7) / 8) * 8;
+    final int uvHeight = (frameHeight + 1) / 2;
 
     // Prepare Y, U, and V ByteBuffer slices.
     final int yPos = 0;
@@ -226,18 +609,123 @@ public class YuvConverter {
     i420ByteBuffer.limit(vPos + uvSize);
     final ByteBuffer dataV = i420ByteBuffer.slice();
 
-    preparedBuffer.release();
+    return JavaI420Buffer.wrap(
+        frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride, poolEntry);
+  }
 
-    return JavaI420Buffer.wrap(frameWidth, frameHeight, dataY, stride, dataU, stride, dataV, stride,
-        () -> { JniCommon.nativeFreeByteBuffer(i420ByteBuffer); });
+  /**
+   * Copies the mapped readback into |buffer| and rewinds it, since the wrappers slice the buffer
+   * from its position.
+   */
+  static void copyReadback(ByteBuffer pixels, ByteBuffer buffer) {
+    buffer.put(pixels);
+    buffer.rewind();
   }
 
-  public void release() {
-    threadChecker.checkIsOnValidThread();
-    drawer.release();
-    i420TextureFrameBuffer.release();
-    videoFrameDrawer.release();
-    // Allow this class to be reused.
-    threadChecker.detachThread();
+  /** Wraps a buffer in the semi-planar layout drawn by drawYuv() as an NV12 buffer. */
+  static NV12Buffer wrapSemiPlanarBuffer(
+      FramePool.Entry poolEntry, int frameWidth, int frameHeight, boolean vFirst) {
+    final int stride = ((frameWidth + 7) / 8) * 8;
+    return new NV12Buffer(frameWidth, frameHeight, stride, /* sliceHeight= */ frameHeight,
+        poolEntry.getBuffer(), vFirst, poolEntry);
+  }
+
+  private static PendingConversion[] createPendingConversions(int count) {
+    final String version = GLES20.glGetString(GLES20.GL_VERSION);
+    // Android drivers give an OpenGL ES 3 context when 2 is requested, if the device supports it.
+    if (version == null || !version.startsWith("OpenGL ES 3")) {
+      Log.d(TAG, "Pixel buffer objects not supported, converting synchronously: " + version);
+      return new PendingConversion[0];
+    }
+    final int[] pboIds = new int[count];
+    GLES30.glGenBuffers(count, pboIds, 0);
+    GlUtil.checkNoGLES2Error("YuvConverter.glGenBuffers");
+    final PendingConversion[] conversions = new PendingConversion[count];
+    for (int i = 0; i < count; i++) {
+      conversions[i] = new PendingConversion();
+      conversions[i].pboId = pboIds[i];
+    }
+    return conversions;
+  }
+
+  private void pollConversions() {
+    if (pendingConversions == null) {
+      return;
+    }
+    deliverCompletedConversions();
+    if (inFlightConversions > 0) {
+      handler.postDelayed(pollConversionsRunnable, POLL_INTERVAL_MS);
+    }
+  }
+
+  private void deliverCompletedConversions() {
+    while (inFlightConversions > 0
+        && waitForConversion(pendingConversions[oldestConversion], /* timeoutNs= */ 0)) {
+      deliverOldestConversion();
+    }
+  }
+
+  /** Returns true if the readback of |conversion| finished within |timeoutNs|. */
+  private static boolean waitForConversion(PendingConversion conversion, long timeoutNs) {
+    final int status = GLES30.glClientWaitSync(conversion.fence,
+        timeoutNs > 0 ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0, timeoutNs);
+    // If waiting failed, mapping the buffer waits instead.
+    return status != GLES30.GL_TIMEOUT_EXPIRED;
+  }
+
+  private void deliverOldestConversion() {
+    final PendingConversion conversion = pendingConversions[oldestConversion];
+    oldestConversion = (oldestConversion + 1) % pendingConversions.length;
+    --inFlightConversions;
+    GLES30.glDeleteSync(conversion.fence);
+    conversion.fence = 0;
+    final I420Callback callback = conversion.callback;
+    final SemiPlanarCallback semiPlanarCallback = conversion.semiPlanarCallback;
+    conversion.callback = null;
+    conversion.semiPlanarCallback = null;
+
+    final FramePool.Entry poolEntry = FramePool.getDefault().acquire(
+        conversion.width, conversion.height, FramePool.Layout.YUV_CONVERTER);
+    final ByteBuffer i420ByteBuffer = poolEntry.getBuffer();
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, conversion.pboId);
+    final ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(
+        GLES30.GL_PIXEL_PACK_BUFFER, 0, i420ByteBuffer.capacity(), GLES30.GL_MAP_READ_BIT);
+    boolean mapped = false;
+    if (pixels != null) {
+      copyReadback(pixels, i420ByteBuffer);
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      mapped = true;
+    } else {
+      Log.e(TAG, "Failed to map pixel buffer");
+      poolEntry.run();
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GlUtil.checkNoGLES2Error("YuvConverter.deliverOldestConversion");
+
+    if (mapped) {
+      recordConversion(conversion.submitTimeNs, System.nanoTime());
+    }
+    if (conversion.semiPlanar) {
+      semiPlanarCallback.onSemiPlanarBuffer(mapped
+          ? wrapSemiPlanarBuffer(poolEntry, conversion.width, conversion.height, conversion.vFirst)
+          : null);
+    } else {
+      callback.onI420Buffer(
+          mapped ? wrapI420Buffer(poolEntry, conversion.width, conversion.height) : null);
+    }
+  }
+
+  private void recordConversion(long submitTimeNs, long doneTimeNs) {
+    final long latencyNs = doneTimeNs - submitTimeNs;
+    latencyUsHistogram.addSample((int) TimeUnit.NANOSECONDS.toMicros(latencyNs));
+    synchronized (statsLock) {
+      if (statsFrames == 0) {
+        statsStartTimeNs = submitTimeNs;
+      }
+      ++statsFrames;
+      statsTotalLatencyNs += latencyNs;
+      statsMaxLatencyNs = Math.max(statsMaxLatencyNs, latencyNs);
+      statsEndTimeNs = doneTimeNs;
+    }
   }
 }
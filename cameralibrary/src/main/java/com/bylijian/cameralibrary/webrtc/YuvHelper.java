@@ -10,10 +10,92 @@
 
 package com.bylijian.cameralibrary.webrtc;
 
+import android.support.annotation.Nullable;
+
 import java.nio.ByteBuffer;
 
-/** Wraps libyuv methods to Java. All passed byte buffers must be direct byte buffers. */
+/**
+ * Wraps libyuv methods to Java. All passed byte buffers must be direct byte buffers. The work is
+ * done by a {@link YuvKernels} backend: the native libyuv wrappers when the native library is
+ * loaded, and {@link JavaYuvKernels} otherwise.
+ */
 public class YuvHelper {
+  private static final Object kernelsLock = new Object();
+  @Nullable private static volatile YuvKernels kernels;
+
+  /**
+   * Overrides the backend used by all helper methods. Passing null restores the automatic choice
+   * between the native and the Java backend.
+   */
+  public static void setKernels(@Nullable YuvKernels newKernels) {
+    synchronized (kernelsLock) {
+      kernels = newKernels;
+    }
+  }
+
+  /** Returns the current backend, probing for the native library on first use. */
+  public static YuvKernels getKernels() {
+    YuvKernels current = kernels;
+    if (current == null) {
+      synchronized (kernelsLock) {
+        current = kernels;
+        if (current == null) {
+          current = isNativeLibraryLoaded() ? new NativeKernels() : new JavaYuvKernels();
+          kernels = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Calls into the native copy once with an empty plane. This links the native method if the
+   * library has been loaded by anyone, and fails with UnsatisfiedLinkError otherwise.
+   */
+  private static boolean isNativeLibraryLoaded() {
+    try {
+      final ByteBuffer probe = ByteBuffer.allocateDirect(1);
+      nativeCopyPlane(probe, 1, probe, 1, 0 /* width */, 0 /* height */);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
+  /** Backend calling into libyuv through JNI. */
+  private static class NativeKernels implements YuvKernels {
+    @Override
+    public void copyPlane(
+        ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height) {
+      nativeCopyPlane(src, srcStride, dst, dstStride, width, height);
+    }
+
+    @Override
+    public void i420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+        ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
+        int dstStrideU, ByteBuffer dstV, int dstStrideV, int width, int height) {
+      nativeI420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY, dstU,
+          dstStrideU, dstV, dstStrideV, width, height);
+    }
+
+    @Override
+    public void i420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+        ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV,
+        int dstStrideUV, int width, int height) {
+      nativeI420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY,
+          dstUV, dstStrideUV, width, height);
+    }
+
+    @Override
+    public void i420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+        ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
+        int dstStrideU, ByteBuffer dstV, int dstStrideV, int srcWidth, int srcHeight,
+        int rotationMode) {
+      nativeI420Rotate(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY,
+          dstU, dstStrideU, dstV, dstStrideV, srcWidth, srcHeight, rotationMode);
+    }
+  }
+
   /** Helper method for copying I420 to tightly packed destination buffer. */
   public static void I420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
       ByteBuffer srcV, int srcStrideV, ByteBuffer dst, int width, int height) {
@@ -37,7 +119,7 @@ public class YuvHelper {
     dst.position(startV);
     final ByteBuffer dstV = dst.slice();
 
-    nativeI420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, width, dstU,
+    getKernels().i420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, width, dstU,
         chromaWidth, dstV, chromaWidth, width, height);
   }
 
@@ -61,8 +143,8 @@ public class YuvHelper {
     dst.position(startUV);
     final ByteBuffer dstUV = dst.slice();
 
-    nativeI420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, width, dstUV,
-        chromaWidth * 2, width, height);
+    getKernels().i420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, width,
+        dstUV, chromaWidth * 2, width, height);
   }
 
   /** Helper method for rotating I420 to tightly packed destination buffer. */
@@ -92,36 +174,36 @@ public class YuvHelper {
     dst.position(startV);
     final ByteBuffer dstV = dst.slice();
 
-    nativeI420Rotate(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstWidth, dstU,
-        dstChromaWidth, dstV, dstChromaWidth, srcWidth, srcHeight, rotationMode);
+    getKernels().i420Rotate(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstWidth,
+        dstU, dstChromaWidth, dstV, dstChromaWidth, srcWidth, srcHeight, rotationMode);
   }
 
   /** Helper method for copying a single colour plane. */
   public static void copyPlane(
       ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height) {
-    nativeCopyPlane(src, srcStride, dst, dstStride, width, height);
+    getKernels().copyPlane(src, srcStride, dst, dstStride, width, height);
   }
 
   public static void I420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
       ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
       int dstStrideU, ByteBuffer dstV, int dstStrideV, int width, int height) {
-    nativeI420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY, dstU,
-        dstStrideU, dstV, dstStrideV, width, height);
+    getKernels().i420Copy(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY,
+        dstU, dstStrideU, dstV, dstStrideV, width, height);
   }
 
   public static void I420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
       ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV,
       int dstStrideUV, int width, int height) {
-    nativeI420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY, dstUV,
-        dstStrideUV, width, height);
+    getKernels().i420ToNV12(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY,
+        dstUV, dstStrideUV, width, height);
   }
 
   public static void I420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
       ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
       int dstStrideU, ByteBuffer dstV, int dstStrideV, int srcWidth, int srcHeight,
       int rotationMode) {
-    nativeI420Rotate(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY, dstU,
-        dstStrideU, dstV, dstStrideV, srcWidth, srcHeight, rotationMode);
+    getKernels().i420Rotate(srcY, srcStrideY, srcU, srcStrideU, srcV, srcStrideV, dstY, dstStrideY,
+        dstU, dstStrideU, dstV, dstStrideV, srcWidth, srcHeight, rotationMode);
   }
 
   private static native void nativeCopyPlane(
@@ -0,0 +1,27 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Backend for the plane operations exposed by {@link YuvHelper}. All passed byte buffers must be
+ * direct byte buffers, and the position of the passed buffers is ignored, i.e. plane data always
+ * starts at index 0. Chroma planes are (width + 1) / 2 x (height + 1) / 2.
+ */
+public interface YuvKernels {
+  void copyPlane(
+      ByteBuffer src, int srcStride, ByteBuffer dst, int dstStride, int width, int height);
+
+  void i420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU, ByteBuffer srcV,
+      int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+      ByteBuffer dstV, int dstStrideV, int width, int height);
+
+  void i420ToNV12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstUV,
+      int dstStrideUV, int width, int height);
+
+  /** |rotationMode| is the clockwise rotation in degrees, one of 0, 90, 180 or 270. */
+  void i420Rotate(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU,
+      int dstStrideU, ByteBuffer dstV, int dstStrideV, int srcWidth, int srcHeight,
+      int rotationMode);
+}
@@ -0,0 +1,311 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Java crop and scale engine for I420, NV12 and NV21 data, replacing the libyuv based
+ * nativeCropAndScale functions. Each output plane is produced from per-axis index and weight
+ * tables using fixed-point arithmetic. The tables only depend on the source and destination
+ * length of an axis and the filter mode, and are cached, so scaling a stream of frames with a
+ * steady geometry does not allocate. All methods are thread safe.
+ */
+public class YuvScaler {
+  public enum FilterMode {
+    /** Picks the source sample closest to the center of each destination sample. */
+    NEAREST,
+    /** Interpolates the four closest source samples with 8-bit weights. */
+    BILINEAR,
+    /**
+     * Averages all source samples covered by a destination sample. Falls back to bilinear
+     * filtering when neither axis is downscaled.
+     */
+    BOX
+  }
+
+  // Enough for the luma and chroma axes of a couple of geometries in flight.
+  private static final int TABLE_CACHE_SIZE = 16;
+  private static final AxisTable[] tableCache = new AxisTable[TABLE_CACHE_SIZE];
+  private static int nextCacheSlot;
+
+  // Box filtering matches the native implementation, which uses libyuv::kFilterBox.
+  private static volatile FilterMode defaultFilterMode = FilterMode.BOX;
+
+  /** Sets the filter used by the cropAndScale() implementations of the buffer classes. */
+  public static void setDefaultFilterMode(FilterMode filterMode) {
+    if (filterMode == null) {
+      throw new IllegalArgumentException("filterMode not allowed to be null");
+    }
+    defaultFilterMode = filterMode;
+  }
+
+  public static FilterMode getDefaultFilterMode() {
+    return defaultFilterMode;
+  }
+
+  /**
+   * Crops an I420 image and scales the cropped region into the destination I420 planes. All
+   * planes start at index 0 of the passed buffers.
+   */
+  public static void cropAndScaleI420(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU,
+      int srcStrideU, ByteBuffer srcV, int srcStrideV, int cropX, int cropY, int cropWidth,
+      int cropHeight, ByteBuffer dstY, int dstStrideY, ByteBuffer dstU, int dstStrideU,
+      ByteBuffer dstV, int dstStrideV, int scaleWidth, int scaleHeight, FilterMode filterMode) {
+    final int cropChromaX = cropX / 2;
+    final int cropChromaY = cropY / 2;
+    final int cropChromaWidth = (cropWidth + 1) / 2;
+    final int cropChromaHeight = (cropHeight + 1) / 2;
+    final int scaleChromaWidth = (scaleWidth + 1) / 2;
+    final int scaleChromaHeight = (scaleHeight + 1) / 2;
+
+    scalePlane(srcY, cropX + cropY * srcStrideY, 1 /* srcPixelStride */, srcStrideY, cropWidth,
+        cropHeight, dstY, dstStrideY, scaleWidth, scaleHeight, filterMode);
+    scalePlane(srcU, cropChromaX + cropChromaY * srcStrideU, 1 /* srcPixelStride */, srcStrideU,
+        cropChromaWidth, cropChromaHeight, dstU, dstStrideU, scaleChromaWidth, scaleChromaHeight,
+        filterMode);
+    scalePlane(srcV, cropChromaX + cropChromaY * srcStrideV, 1 /* srcPixelStride */, srcStrideV,
+        cropChromaWidth, cropChromaHeight, dstV, dstStrideV, scaleChromaWidth, scaleChromaHeight,
+        filterMode);
+  }
+
+  /**
+   * Crops a semi-planar image and scales the cropped region into the destination I420 planes.
+   * The Y plane starts at index 0 of |src| and the interleaved chroma plane at |srcChromaOffset|.
+   * Both planes use |srcStride|. |vFirst| is true for NV21 (VU pairs) and false for NV12 (UV
+   * pairs).
+   */
+  public static void cropAndScaleSemiPlanar(ByteBuffer src, int srcStride, int srcChromaOffset,
+      boolean vFirst, int cropX, int cropY, int cropWidth, int cropHeight, ByteBuffer dstY,
+      int dstStrideY, ByteBuffer dstU, int dstStrideU, ByteBuffer dstV, int dstStrideV,
+      int scaleWidth, int scaleHeight, FilterMode filterMode) {
+    final int cropChromaWidth = (cropWidth + 1) / 2;
+    final int cropChromaHeight = (cropHeight + 1) / 2;
+    final int scaleChromaWidth = (scaleWidth + 1) / 2;
+    final int scaleChromaHeight = (scaleHeight + 1) / 2;
+    // Offset of the first cropped chroma pair. Every pair covers two pixels horizontally.
+    final int chromaOffset = srcChromaOffset + (cropX / 2) * 2 + (cropY / 2) * srcStride;
+    final int uOffset = chromaOffset + (vFirst ? 1 : 0);
+    final int vOffset = chromaOffset + (vFirst ? 0 : 1);
+
+    scalePlane(src, cropX + cropY * srcStride, 1 /* srcPixelStride */, srcStride, cropWidth,
+        cropHeight, dstY, dstStrideY, scaleWidth, scaleHeight, filterMode);
+    scalePlane(src, uOffset, 2 /* srcPixelStride */, srcStride, cropChromaWidth, cropChromaHeight,
+        dstU, dstStrideU, scaleChromaWidth, scaleChromaHeight, filterMode);
+    scalePlane(src, vOffset, 2 /* srcPixelStride */, srcStride, cropChromaWidth, cropChromaHeight,
+        dstV, dstStrideV, scaleChromaWidth, scaleChromaHeight, filterMode);
+  }
+
+  /**
+   * Scales a single plane. Sample (x, y) of the source is read from index |srcOffset| + y *
+   * |srcStride| + x * |srcPixelStride|, which allows reading one component out of an interleaved
+   * plane. The destination plane starts at index 0 of |dst|. Positions and limits of the buffers
+   * are ignored and left untouched.
+   */
+  public static void scalePlane(ByteBuffer src, int srcOffset, int srcPixelStride, int srcStride,
+      int srcWidth, int srcHeight, ByteBuffer dst, int dstStride, int dstWidth, int dstHeight,
+      FilterMode filterMode) {
+    if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+      throw new IllegalArgumentException("Invalid scale from " + srcWidth + "x" + srcHeight
+          + " to " + dstWidth + "x" + dstHeight);
+    }
+    final int srcEnd = srcOffset + (srcHeight - 1) * srcStride + (srcWidth - 1) * srcPixelStride;
+    if (srcOffset < 0 || srcEnd >= src.capacity()) {
+      throw new IllegalArgumentException("Source plane exceeds buffer capacity " + src.capacity());
+    }
+    if (dstStride < dstWidth || (dstHeight - 1) * dstStride + dstWidth > dst.capacity()) {
+      throw new IllegalArgumentException(
+          "Destination plane exceeds buffer capacity " + dst.capacity());
+    }
+
+    if (filterMode == FilterMode.BOX && dstWidth >= srcWidth && dstHeight >= srcHeight) {
+      filterMode = FilterMode.BILINEAR;
+    }
+    final boolean unscaled = dstWidth == srcWidth && dstHeight == srcHeight;
+
+    // Absolute accessors are bounded by the limit, but the planes extend to the capacity.
+    final int srcLimit = src.limit();
+    final int dstLimit = dst.limit();
+    final int srcPosition = src.position();
+    final int dstPosition = dst.position();
+    src.limit(src.capacity());
+    dst.limit(dst.capacity());
+    try {
+      if (unscaled && srcPixelStride == 1) {
+        // Every filter reduces to a copy, so move whole rows.
+        for (int y = 0; y < srcHeight; ++y) {
+          src.limit(srcOffset + y * srcStride + srcWidth);
+          src.position(srcOffset + y * srcStride);
+          dst.position(y * dstStride);
+          dst.put(src);
+        }
+        return;
+      }
+      if (unscaled) {
+        // Every filter reduces to a copy, which the nearest filter does without arithmetic.
+        filterMode = FilterMode.NEAREST;
+      }
+      final AxisTable xTable = getAxisTable(srcWidth, dstWidth, filterMode);
+      final AxisTable yTable = getAxisTable(srcHeight, dstHeight, filterMode);
+      switch (filterMode) {
+        case NEAREST:
+          scaleNearest(src, srcOffset, srcPixelStride, srcStride, dst, dstStride, xTable, yTable);
+          break;
+        case BILINEAR:
+          scaleBilinear(src, srcOffset, srcPixelStride, srcStride, dst, dstStride, xTable, yTable);
+          break;
+        case BOX:
+          scaleBox(src, srcOffset, srcPixelStride, srcStride, dst, dstStride, xTable, yTable);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown filter mode: " + filterMode);
+      }
+    } finally {
+      src.limit(srcLimit);
+      src.position(srcPosition);
+      dst.limit(dstLimit);
+      dst.position(dstPosition);
+    }
+  }
+
+  private static void scaleNearest(ByteBuffer src, int srcOffset, int srcPixelStride,
+      int srcStride, ByteBuffer dst, int dstStride, AxisTable xTable, AxisTable yTable) {
+    final int[] xIndex = xTable.index;
+    final int[] yIndex = yTable.index;
+    final int dstWidth = xTable.dstLength;
+    final int dstHeight = yTable.dstLength;
+    for (int dy = 0; dy < dstHeight; ++dy) {
+      final int srcRow = srcOffset + yIndex[dy] * srcStride;
+      final int dstRow = dy * dstStride;
+      for (int dx = 0; dx < dstWidth; ++dx) {
+        dst.put(dstRow + dx, src.get(srcRow + xIndex[dx] * srcPixelStride));
+      }
+    }
+  }
+
+  private static void scaleBilinear(ByteBuffer src, int srcOffset, int srcPixelStride,
+      int srcStride, ByteBuffer dst, int dstStride, AxisTable xTable, AxisTable yTable) {
+    final int[] xIndex = xTable.index;
+    final int[] xNext = xTable.next;
+    final int[] xWeight = xTable.weight;
+    final int dstWidth = xTable.dstLength;
+    final int dstHeight = yTable.dstLength;
+    for (int dy = 0; dy < dstHeight; ++dy) {
+      final int srcRow0 = srcOffset + yTable.index[dy] * srcStride;
+      final int srcRow1 = srcOffset + yTable.next[dy] * srcStride;
+      final int fy = yTable.weight[dy];
+      final int dstRow = dy * dstStride;
+      for (int dx = 0; dx < dstWidth; ++dx) {
+        final int x0 = xIndex[dx] * srcPixelStride;
+        final int x1 = xNext[dx] * srcPixelStride;
+        final int fx = xWeight[dx];
+        final int top = (src.get(srcRow0 + x0) & 0xFF) * (256 - fx)
+            + (src.get(srcRow0 + x1) & 0xFF) * fx;
+        final int bottom = (src.get(srcRow1 + x0) & 0xFF) * (256 - fx)
+            + (src.get(srcRow1 + x1) & 0xFF) * fx;
+        dst.put(dstRow + dx, (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16));
+      }
+    }
+  }
+
+  private static void scaleBox(ByteBuffer src, int srcOffset, int srcPixelStride, int srcStride,
+      ByteBuffer dst, int dstStride, AxisTable xTable, AxisTable yTable) {
+    final int[] xIndex = xTable.index;
+    final int[] xCount = xTable.next;
+    final int[] xReciprocal = xTable.weight;
+    final int dstWidth = xTable.dstLength;
+    final int dstHeight = yTable.dstLength;
+    for (int dy = 0; dy < dstHeight; ++dy) {
+      final int srcRow = srcOffset + yTable.index[dy] * srcStride;
+      final int rows = yTable.next[dy];
+      final long yReciprocal = yTable.weight[dy];
+      final int dstRow = dy * dstStride;
+      for (int dx = 0; dx < dstWidth; ++dx) {
+        final int columns = xCount[dx];
+        int sum = 0;
+        int rowStart = srcRow + xIndex[dx] * srcPixelStride;
+        for (int y = 0; y < rows; ++y) {
+          int index = rowStart;
+          for (int x = 0; x < columns; ++x) {
+            sum += src.get(index) & 0xFF;
+            index += srcPixelStride;
+          }
+          rowStart += srcStride;
+        }
+        // Both reciprocals are 16-bit fixed point, so the product has 32 fractional bits.
+        final long average = ((long) sum * xReciprocal[dx] * yReciprocal + (1L << 31)) >> 32;
+        dst.put(dstRow + dx, (byte) Math.min(average, 255));
+      }
+    }
+  }
+
+  private static synchronized AxisTable getAxisTable(
+      int srcLength, int dstLength, FilterMode filterMode) {
+    for (AxisTable table : tableCache) {
+      if (table != null && table.srcLength == srcLength && table.dstLength == dstLength
+          && table.filterMode == filterMode) {
+        return table;
+      }
+    }
+    final AxisTable table = new AxisTable(srcLength, dstLength, filterMode);
+    tableCache[nextCacheSlot] = table;
+    nextCacheSlot = (nextCacheSlot + 1) % TABLE_CACHE_SIZE;
+    return table;
+  }
+
+  /**
+   * Precomputed sampling positions for one axis. The meaning of |next| and |weight| depends on
+   * the filter: for bilinear they hold the second sample and its 8-bit weight, for box the number
+   * of averaged samples and the 16-bit fixed-point reciprocal of that number.
+   */
+  private static final class AxisTable {
+    final int srcLength;
+    final int dstLength;
+    final FilterMode filterMode;
+    final int[] index;
+    final int[] next;
+    final int[] weight;
+
+    AxisTable(int srcLength, int dstLength, FilterMode filterMode) {
+      this.srcLength = srcLength;
+      this.dstLength = dstLength;
+      this.filterMode = filterMode;
+      this.index = new int[dstLength];
+      this.next = new int[dstLength];
+      this.weight = new int[dstLength];
+      for (int d = 0; d < dstLength; ++d) {
+        switch (filterMode) {
+          case NEAREST:
+            // Source sample containing the center of destination sample d.
+            index[d] = (int) ((2L * d + 1) * srcLength / (2L * dstLength));
+            break;
+          case BILINEAR: {
+            // Center of destination sample d in source coordinates, 16.16 fixed point.
+            long position = ((2L * d + 1) * srcLength << 16) / (2L * dstLength) - (1 << 15);
+            position = Math.max(0, position);
+            final int first = (int) (position >> 16);
+            if (first >= srcLength - 1) {
+              index[d] = srcLength - 1;
+              next[d] = srcLength - 1;
+              weight[d] = 0;
+            } else {
+              index[d] = first;
+              next[d] = first + 1;
+              weight[d] = (int) ((position >> 8) & 0xFF);
+            }
+            break;
+          }
+          case BOX: {
+            final int start = (int) ((long) d * srcLength / dstLength);
+            final int end = (int) ((long) (d + 1) * srcLength / dstLength);
+            final int count = Math.max(1, end - start);
+            index[d] = start;
+            next[d] = count;
+            weight[d] = ((1 << 16) + count / 2) / count;
+            break;
+          }
+          default:
+            throw new IllegalArgumentException("Unknown filter mode: " + filterMode);
+        }
+      }
+    }
+  }
+}
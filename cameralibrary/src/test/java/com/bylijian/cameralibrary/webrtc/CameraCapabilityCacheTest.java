@@ -0,0 +1,129 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import com.bylijian.cameralibrary.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CameraCapabilityCacheTest {
+    private static final String FINGERPRINT = "vendor/device/device:9/PQ1A/1:user/release-keys";
+    private static final List<CaptureFormat> FORMATS = Arrays.asList(
+            new CaptureFormat(1920, 1080, 0, 30000),
+            new CaptureFormat(1280, 720, 0, 60000),
+            new CaptureFormat(640, 480, 15000, 30000));
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("camera_capabilities", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTripsThroughFile() throws Exception {
+        final CameraCapabilityCache cache = load(FINGERPRINT);
+        assertFalse(cache.isLoadedFromFile());
+        cache.putSupportedFormats(CameraCapabilityCache.CAMERA2, "0", FORMATS);
+        cache.putFacing(CameraCapabilityCache.CAMERA2, "0", 1);
+        cache.putSelectedFormat(
+                CameraCapabilityCache.CAMERA2, "1", 1280, 720, 30, FORMATS.get(1), 1000);
+        cache.putSelectedFormat(CameraCapabilityCache.CAMERA1, "1", 1920, 1080, 25, FORMATS.get(0), 0);
+        cache.flush();
+        assertTrue(file.exists());
+
+        final CameraCapabilityCache loaded = load(FINGERPRINT);
+        assertTrue(loaded.isLoadedFromFile());
+        assertEquals(FORMATS, loaded.getSupportedFormats(CameraCapabilityCache.CAMERA2, "0"));
+        assertEquals(1, loaded.getFacing(CameraCapabilityCache.CAMERA2, "0"));
+        assertEquals(-1, loaded.getFacing(CameraCapabilityCache.CAMERA2, "1"));
+        // Selecting a format doesn't mean the supported formats are known.
+        assertNull(loaded.getSupportedFormats(CameraCapabilityCache.CAMERA2, "1"));
+        assertEquals(FORMATS.get(1), loaded.getSelectedFormat(
+                CameraCapabilityCache.CAMERA2, "1", 1280, 720, 30));
+        assertEquals(1000, loaded.getFpsUnitFactor(CameraCapabilityCache.CAMERA2, "1"));
+        assertEquals(FORMATS.get(0), loaded.getSelectedFormat(
+                CameraCapabilityCache.CAMERA1, "1", 1920, 1080, 25));
+        // Keyed by API, camera id and the whole request.
+        assertNull(loaded.getSelectedFormat(CameraCapabilityCache.CAMERA1, "1", 1280, 720, 30));
+        assertNull(loaded.getSelectedFormat(CameraCapabilityCache.CAMERA2, "1", 1280, 720, 25));
+        assertNull(loaded.getSelectedFormat(CameraCapabilityCache.CAMERA2, "0", 1280, 720, 30));
+    }
+
+    @Test
+    public void fingerprintChangeDropsFile() throws Exception {
+        final CameraCapabilityCache cache = load(FINGERPRINT);
+        cache.putSupportedFormats(CameraCapabilityCache.CAMERA1, "0", FORMATS);
+        cache.flush();
+
+        final CameraCapabilityCache updated = load(FINGERPRINT + ".1");
+        assertFalse(updated.isLoadedFromFile());
+        assertNull(updated.getSupportedFormats(CameraCapabilityCache.CAMERA1, "0"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws Exception {
+        final CameraCapabilityCache cache = load(FINGERPRINT);
+        cache.putSupportedFormats(CameraCapabilityCache.CAMERA1, "0", FORMATS);
+        cache.flush();
+        // Cut off in the middle of the formats.
+        final byte[] data = Files.readAllBytes(file.toPath());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, data.length - 5);
+        }
+
+        final CameraCapabilityCache loaded = load(FINGERPRINT);
+        assertFalse(loaded.isLoadedFromFile());
+        assertNull(loaded.getSupportedFormats(CameraCapabilityCache.CAMERA1, "0"));
+    }
+
+    @Test
+    public void selectionsAreBounded() throws Exception {
+        final CameraCapabilityCache cache = load(FINGERPRINT);
+        for (int i = 0; i < 100; i++) {
+            cache.putSelectedFormat(
+                    CameraCapabilityCache.CAMERA1, "0", 100 + i, 100, 30, FORMATS.get(2), 0);
+        }
+        cache.flush();
+
+        final CameraCapabilityCache loaded = load(FINGERPRINT);
+        // The oldest requests are evicted first.
+        assertNull(loaded.getSelectedFormat(CameraCapabilityCache.CAMERA1, "0", 100, 100, 30));
+        assertEquals(FORMATS.get(2),
+                loaded.getSelectedFormat(CameraCapabilityCache.CAMERA1, "0", 199, 100, 30));
+        assertTrue(file.length() < 1024);
+    }
+
+    @Test
+    public void worksWithoutFile() {
+        final CameraCapabilityCache cache = new CameraCapabilityCache();
+        cache.putSupportedFormats(CameraCapabilityCache.CAMERA1, "0", FORMATS);
+        assertEquals(FORMATS, cache.getSupportedFormats(CameraCapabilityCache.CAMERA1, "0"));
+        assertFalse(cache.isLoadedFromFile());
+    }
+
+    private CameraCapabilityCache load(String fingerprint) {
+        final CameraCapabilityCache cache = new CameraCapabilityCache();
+        cache.load(file, fingerprint);
+        return cache;
+    }
+}
@@ -0,0 +1,97 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FramePoolTest {
+    private static final int I420_640x480_SIZE = 640 * 480 * 3 / 2;
+
+    @Test
+    public void releasedBufferIsReused() {
+        final FramePool pool = new FramePool(10 * I420_640x480_SIZE);
+        final FramePool.Entry first = pool.acquire(640, 480, FramePool.Layout.I420);
+        assertEquals(I420_640x480_SIZE, first.getBuffer().capacity());
+        first.getBuffer().position(100);
+        first.run();
+
+        final FramePool.Entry second = pool.acquire(640, 480, FramePool.Layout.I420);
+
+        assertSame(first, second);
+        assertEquals(0, second.getBuffer().position());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void sizeClassesAreKeyedByLayout() {
+        final FramePool pool = new FramePool(10 * I420_640x480_SIZE);
+        final FramePool.Entry i420 = pool.acquire(636, 480, FramePool.Layout.I420);
+        i420.run();
+
+        final FramePool.Entry converter = pool.acquire(636, 480, FramePool.Layout.YUV_CONVERTER);
+
+        assertNotSame(i420, converter);
+        // The converter layout aligns the stride to 8 pixels.
+        assertEquals(640 * 720, converter.getBuffer().capacity());
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void releaseAboveHighWaterMarkIsEvicted() {
+        final FramePool pool = new FramePool(2 * I420_640x480_SIZE);
+        final FramePool.Entry[] entries = new FramePool.Entry[3];
+        for (int i = 0; i < entries.length; ++i) {
+            entries[i] = pool.acquire(640, 480, FramePool.Layout.I420);
+        }
+        for (FramePool.Entry entry : entries) {
+            entry.run();
+        }
+
+        assertEquals(2L * I420_640x480_SIZE, pool.getRetainedBytes());
+        assertEquals(1, pool.getEvictionCount());
+    }
+
+    @Test
+    public void trimDropsFreeAndOutstandingBuffers() {
+        final FramePool pool = new FramePool(10 * I420_640x480_SIZE);
+        final FramePool.Entry free = pool.acquire(640, 480, FramePool.Layout.I420);
+        final FramePool.Entry outstanding = pool.acquire(640, 480, FramePool.Layout.I420);
+        free.run();
+
+        pool.trim();
+        outstanding.run();
+
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(2, pool.getEvictionCount());
+        assertNotSame(free, pool.acquire(640, 480, FramePool.Layout.I420));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrows() {
+        final FramePool pool = new FramePool(10 * I420_640x480_SIZE);
+        final FramePool.Entry entry = pool.acquire(640, 480, FramePool.Layout.I420);
+        entry.run();
+        entry.run();
+    }
+
+    @Test
+    public void javaI420BufferReturnsMemoryOnLastRelease() {
+        final FramePool pool = FramePool.getDefault();
+        pool.trim();
+        final long hits = pool.getHitCount();
+        final JavaI420Buffer buffer = JavaI420Buffer.allocate(320, 240);
+        buffer.retain();
+        buffer.release();
+        assertEquals(0, pool.getRetainedBytes());
+
+        buffer.release();
+
+        assertEquals(320 * 240 * 3 / 2, pool.getRetainedBytes());
+        JavaI420Buffer.allocate(320, 240).release();
+        assertEquals(hits + 1, pool.getHitCount());
+    }
+}
@@ -0,0 +1,175 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrameQueueTest {
+    private static final long FRAME_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(33);
+
+    private static class FakeBuffer implements VideoFrame.Buffer {
+        final AtomicInteger refCount = new AtomicInteger(1);
+
+        @Override
+        public int getWidth() {
+            return 2;
+        }
+
+        @Override
+        public int getHeight() {
+            return 2;
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void retain() {
+            refCount.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            refCount.decrementAndGet();
+        }
+
+        @Override
+        public VideoFrame.Buffer cropAndScale(
+                int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final List<FakeBuffer> buffers = new ArrayList<>();
+
+    private VideoFrame createFrame(long timestampNs) {
+        final FakeBuffer buffer = new FakeBuffer();
+        buffers.add(buffer);
+        return new VideoFrame(buffer, 0, timestampNs);
+    }
+
+    private void assertAllReleased() {
+        for (FakeBuffer buffer : buffers) {
+            assertEquals(0, buffer.refCount.get());
+        }
+    }
+
+    @Test
+    public void latestQueueKeepsOnlyNewestFrame() {
+        final LatestFrameQueue queue = new LatestFrameQueue();
+        for (int i = 0; i < 3; i++) {
+            queue.offer(createFrame(i));
+        }
+
+        assertEquals(0, queue.getNextFrameDelayNs(0));
+        final VideoFrame frame = queue.poll(0);
+        assertEquals(2, frame.getTimestampNs());
+        frame.release();
+        assertNull(queue.poll(0));
+        assertEquals(-1, queue.getNextFrameDelayNs(0));
+        assertEquals(2, queue.getDroppedFrames());
+        assertAllReleased();
+    }
+
+    @Test
+    public void fifoQueueKeepsBurstInOrder() {
+        final FifoFrameQueue queue = new FifoFrameQueue(4, false);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(createFrame(i));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            final VideoFrame frame = queue.poll(0);
+            assertEquals(i, frame.getTimestampNs());
+            frame.release();
+        }
+        assertNull(queue.poll(0));
+        assertEquals(0, queue.getDroppedFrames());
+        assertAllReleased();
+    }
+
+    @Test
+    public void fullFifoQueueDropsOldestFrame() {
+        final FifoFrameQueue queue = new FifoFrameQueue(3, false);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(createFrame(i));
+        }
+
+        assertEquals(2, queue.getDroppedFrames());
+        final VideoFrame frame = queue.poll(0);
+        assertEquals(2, frame.getTimestampNs());
+        frame.release();
+        queue.clear();
+        assertEquals(4, queue.getDroppedFrames());
+        assertAllReleased();
+    }
+
+    @Test
+    public void pacedFifoQueueSpacesOutBurst() {
+        final FifoFrameQueue queue = new FifoFrameQueue(4, true);
+        queue.offer(createFrame(0));
+        queue.offer(createFrame(FRAME_INTERVAL_NS));
+        long nowNs = TimeUnit.SECONDS.toNanos(10);
+
+        queue.poll(nowNs).release();
+        // The second frame arrived in the same burst but is due one frame interval later.
+        assertEquals(FRAME_INTERVAL_NS, queue.getNextFrameDelayNs(nowNs));
+        assertNull(queue.poll(nowNs + FRAME_INTERVAL_NS / 2));
+        nowNs += FRAME_INTERVAL_NS;
+        queue.poll(nowNs).release();
+
+        // With a backlog the spacing is halved so the queue catches up.
+        queue.offer(createFrame(2 * FRAME_INTERVAL_NS));
+        queue.offer(createFrame(3 * FRAME_INTERVAL_NS));
+        assertEquals(FRAME_INTERVAL_NS / 2, queue.getNextFrameDelayNs(nowNs));
+
+        // A long gap, e.g. after a pause, is not paced.
+        queue.clear();
+        queue.offer(createFrame(TimeUnit.SECONDS.toNanos(5)));
+        assertEquals(0, queue.getNextFrameDelayNs(nowNs));
+        queue.clear();
+        assertAllReleased();
+    }
+
+    @Test
+    public void concurrentProducersAndConsumerLoseNoFrames() throws InterruptedException {
+        final FifoFrameQueue queue = new FifoFrameQueue(8, false);
+        final int producers = 3;
+        final int framesPerProducer = 20000;
+        final FakeBuffer buffer = new FakeBuffer();
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < framesPerProducer; i++) {
+                        buffer.retain();
+                        queue.offer(new VideoFrame(buffer, 0, i));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        int polled = 0;
+        while (done.getCount() > 0 || queue.getNextFrameDelayNs(0) >= 0) {
+            final VideoFrame frame = queue.poll(0);
+            if (frame != null) {
+                frame.release();
+                polled++;
+            }
+        }
+
+        // Every frame is either rendered or counted as dropped, and every reference is returned.
+        assertEquals(producers * framesPerProducer, polled + queue.getDroppedFrames());
+        assertEquals(1, buffer.refCount.get());
+    }
+}
@@ -0,0 +1,63 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRateGateTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Returns the number of frames out of |frames| at |sourceFps| that pass. */
+    private static int run(FrameRateGate gate, int frames, float sourceFps, long jitterNs) {
+        final Random random = new Random(3);
+        int passed = 0;
+        for (int i = 0; i < frames; i++) {
+            final long jitter = jitterNs > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterNs) : 0;
+            if (gate.shouldPass((long) (i * SECOND_NS / sourceFps) + jitter)) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    @Test
+    public void keepsEveryFrameAtTheLimitDespiteJitter() {
+        // Up to a tenth of a 25 fps period early or late.
+        assertEquals(250, run(new FrameRateGate(25), 250, 25, TimeUnit.MILLISECONDS.toNanos(4)));
+    }
+
+    @Test
+    public void thinsFasterSourceEvenly() {
+        assertEquals(150, run(new FrameRateGate(15), 300, 30, 0));
+        assertEquals(200, run(new FrameRateGate(20), 300, 30, 0));
+    }
+
+    @Test
+    public void passesEverythingWithoutLimit() {
+        assertEquals(300, run(new FrameRateGate(0), 300, 120, 0));
+    }
+
+    @Test
+    public void gapDoesNotCauseBurst() {
+        final FrameRateGate gate = new FrameRateGate(15);
+        final long periodNs = SECOND_NS / 30;
+        assertTrue(gate.shouldPass(0));
+        // One second without frames, then 30 fps again.
+        assertTrue(gate.shouldPass(SECOND_NS));
+        assertFalse(gate.shouldPass(SECOND_NS + periodNs));
+        assertTrue(gate.shouldPass(SECOND_NS + 2 * periodNs));
+    }
+
+    @Test
+    public void restartsWhenTimestampsGoBackwards() {
+        final FrameRateGate gate = new FrameRateGate(30);
+        assertTrue(gate.shouldPass(10 * SECOND_NS));
+        assertTrue(gate.shouldPass(SECOND_NS));
+        assertFalse(gate.shouldPass(SECOND_NS + 1));
+    }
+}
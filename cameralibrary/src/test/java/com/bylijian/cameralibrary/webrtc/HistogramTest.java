@@ -0,0 +1,123 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void countsBucketsStartLinearAndGrowExponentially() {
+        final int[] ranges = Histogram.logLinearRanges(1, 10000, 50);
+
+        assertEquals(50, ranges.length);
+        assertEquals(0, ranges[0]);
+        assertEquals(1, ranges[1]);
+        assertEquals(2, ranges[2]);
+        assertEquals(10000, ranges[49]);
+        for (int i = 1; i < ranges.length; i++) {
+            assertTrue(ranges[i] > ranges[i - 1]);
+        }
+        // The upper buckets are much wider than the lower ones.
+        assertTrue(ranges[49] - ranges[48] > 100 * (ranges[3] - ranges[2]));
+    }
+
+    @Test
+    public void samplesGoToTheirBuckets() {
+        final Histogram histogram = Histogram.createCounts("HistogramTest.Buckets", 10, 1000, 20);
+
+        histogram.addSample(-5);
+        histogram.addSample(9);
+        histogram.addSample(10);
+        histogram.addSample(1000);
+        histogram.addSample(Integer.MAX_VALUE);
+
+        final Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(5, snapshot.getCount());
+        assertEquals(2, snapshot.getBucketSampleCount(0));
+        assertEquals(1, snapshot.getBucketSampleCount(1));
+        assertEquals(2, snapshot.getBucketSampleCount(snapshot.getBucketCount() - 1));
+        assertEquals(1000, snapshot.getBucketMin(snapshot.getBucketCount() - 1));
+    }
+
+    @Test
+    public void enumerationHasOneBucketPerValue() {
+        final Histogram histogram = Histogram.createEnumeration("HistogramTest.Enumeration", 3);
+        for (int value = 0; value <= 4; value++) {
+            for (int i = 0; i <= value; i++) {
+                histogram.addSample(value);
+            }
+        }
+
+        final Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(5, snapshot.getBucketCount());
+        for (int value = 0; value <= 4; value++) {
+            assertEquals(value + 1, snapshot.getBucketSampleCount(value));
+        }
+        assertEquals(0 + 2 + 6 + 12 + 20, snapshot.getSum());
+    }
+
+    @Test
+    public void percentilesAreInterpolatedWithinBuckets() {
+        final Histogram histogram = Histogram.createEnumeration("HistogramTest.Percentiles", 200);
+        for (int i = 1; i <= 100; i++) {
+            histogram.addSample(i);
+        }
+
+        final Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(50.5, snapshot.getMean(), 1e-9);
+        assertEquals(50, snapshot.getPercentile(50), 1e-9);
+        assertEquals(99, snapshot.getPercentile(99), 1e-9);
+        assertEquals(1, snapshot.getPercentile(0), 1e-9);
+
+        // Four samples in [10, 30) are spread over the bucket.
+        final Histogram wide = Histogram.createCounts("HistogramTest.Wide", 10, 30, 3);
+        for (int i = 0; i < 4; i++) {
+            wide.addSample(15);
+        }
+        assertEquals(10, wide.getSnapshot().getPercentile(25), 1e-9);
+        assertEquals(25, wide.getSnapshot().getPercentile(100), 1e-9);
+    }
+
+    @Test
+    public void sameNameReturnsSameHistogram() {
+        final Histogram first = Histogram.createCounts("HistogramTest.Shared", 1, 100, 10);
+        final Histogram second = Histogram.createCounts("HistogramTest.Shared", 1, 100, 10);
+        first.addSample(5);
+
+        assertSame(first, second);
+        assertTrue(Histogram.dump().contains("HistogramTest.Shared count=1 "));
+    }
+
+    @Test
+    public void concurrentSamplesAreNotLost() throws InterruptedException {
+        final Histogram histogram = Histogram.createCounts("HistogramTest.Concurrent", 1, 10000, 50);
+        final int threads = 8;
+        final int samplesPerThread = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < samplesPerThread; i++) {
+                        histogram.addSample(i % 20000);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        final Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(threads * samplesPerThread, snapshot.getCount());
+        long expectedSum = 0;
+        for (int i = 0; i < samplesPerThread; i++) {
+            expectedSum += i % 20000;
+        }
+        assertEquals(threads * expectedSum, snapshot.getSum());
+    }
+}
@@ -0,0 +1,271 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link JavaYuvKernels} byte for byte against naive per-pixel reference implementations.
+ */
+public class JavaYuvKernelsTest {
+    private static final int[][] SIZES = {
+            {1, 1}, {2, 2}, {3, 5}, {7, 3}, {8, 8}, {16, 9}, {17, 13}, {33, 31}, {64, 48}, {127, 65},
+    };
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    private final JavaYuvKernels kernels = new JavaYuvKernels();
+    private final Random random = new Random(42);
+
+    @Test
+    public void copyPlane_matchesReference() {
+        for (int[] size : SIZES) {
+            for (int padding : new int[]{0, 3, 16}) {
+                final int width = size[0];
+                final int height = size[1];
+                final ByteBuffer src = randomPlane(width + padding, height);
+                final ByteBuffer dst = filledPlane(width + 5, height);
+                final ByteBuffer expected = copy(dst);
+
+                kernels.copyPlane(src, width + padding, dst, width + 5, width, height);
+                referenceCopyPlane(src, width + padding, expected, width + 5, width, height);
+
+                assertBuffersEqual(expected, dst);
+            }
+        }
+    }
+
+    @Test
+    public void copyPlane_packed() {
+        final ByteBuffer src = randomPlane(64, 48);
+        final ByteBuffer dst = filledPlane(64, 48);
+        kernels.copyPlane(src, 64, dst, 64, 64, 48);
+        assertBuffersEqual(src, dst);
+    }
+
+    @Test
+    public void copyPlane_restoresPositionAndLimit() {
+        final ByteBuffer src = randomPlane(20, 10);
+        final ByteBuffer dst = filledPlane(20, 10);
+        src.position(3);
+        src.limit(50);
+        dst.position(7);
+        dst.limit(9);
+
+        kernels.copyPlane(src, 20, dst, 20, 17, 10);
+
+        assertEquals(3, src.position());
+        assertEquals(50, src.limit());
+        assertEquals(7, dst.position());
+        assertEquals(9, dst.limit());
+    }
+
+    @Test
+    public void i420Copy_matchesReference() {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final ByteBuffer srcY = randomPlane(width + 8, height);
+            final ByteBuffer srcU = randomPlane(chromaWidth + 4, chromaHeight);
+            final ByteBuffer srcV = randomPlane(chromaWidth + 4, chromaHeight);
+            final ByteBuffer dstY = filledPlane(width, height);
+            final ByteBuffer dstU = filledPlane(chromaWidth, chromaHeight);
+            final ByteBuffer dstV = filledPlane(chromaWidth, chromaHeight);
+            final ByteBuffer expectedY = copy(dstY);
+            final ByteBuffer expectedU = copy(dstU);
+            final ByteBuffer expectedV = copy(dstV);
+
+            kernels.i420Copy(srcY, width + 8, srcU, chromaWidth + 4, srcV, chromaWidth + 4, dstY,
+                    width, dstU, chromaWidth, dstV, chromaWidth, width, height);
+            referenceCopyPlane(srcY, width + 8, expectedY, width, width, height);
+            referenceCopyPlane(srcU, chromaWidth + 4, expectedU, chromaWidth, chromaWidth, chromaHeight);
+            referenceCopyPlane(srcV, chromaWidth + 4, expectedV, chromaWidth, chromaWidth, chromaHeight);
+
+            assertBuffersEqual(expectedY, dstY);
+            assertBuffersEqual(expectedU, dstU);
+            assertBuffersEqual(expectedV, dstV);
+        }
+    }
+
+    @Test
+    public void i420ToNV12_matchesReference() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int[] size : SIZES) {
+                final int width = size[0];
+                final int height = size[1];
+                final int chromaWidth = (width + 1) / 2;
+                final int chromaHeight = (height + 1) / 2;
+                final ByteBuffer srcY = randomPlane(width + 2, height);
+                final ByteBuffer srcU = randomPlane(chromaWidth + 1, chromaHeight);
+                final ByteBuffer srcV = randomPlane(chromaWidth + 3, chromaHeight).order(order);
+                final ByteBuffer dstY = filledPlane(width, height);
+                final ByteBuffer dstUV = filledPlane(chromaWidth * 2 + 2, chromaHeight).order(order);
+                final ByteBuffer expectedY = copy(dstY);
+                final ByteBuffer expectedUV = copy(dstUV);
+
+                kernels.i420ToNV12(srcY, width + 2, srcU, chromaWidth + 1, srcV, chromaWidth + 3,
+                        dstY, width, dstUV, chromaWidth * 2 + 2, width, height);
+                referenceCopyPlane(srcY, width + 2, expectedY, width, width, height);
+                for (int y = 0; y < chromaHeight; ++y) {
+                    for (int x = 0; x < chromaWidth; ++x) {
+                        final int uvIndex = y * (chromaWidth * 2 + 2) + 2 * x;
+                        expectedUV.put(uvIndex, srcU.get(y * (chromaWidth + 1) + x));
+                        expectedUV.put(uvIndex + 1, srcV.get(y * (chromaWidth + 3) + x));
+                    }
+                }
+
+                assertBuffersEqual(expectedY, dstY);
+                assertBuffersEqual(expectedUV, dstUV);
+            }
+        }
+    }
+
+    @Test
+    public void i420Rotate_matchesReference() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int rotation : ROTATIONS) {
+                for (int[] size : SIZES) {
+                    checkRotation(size[0], size[1], rotation, order);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void i420Rotate_rejectsUnsupportedRotation() {
+        final ByteBuffer plane = randomPlane(4, 4);
+        kernels.i420Rotate(plane, 4, plane, 2, plane, 2, filledPlane(4, 4), 4, filledPlane(2, 2), 2,
+                filledPlane(2, 2), 2, 4, 4, 45);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyPlane_rejectsSmallDestination() {
+        kernels.copyPlane(randomPlane(16, 16), 16, filledPlane(16, 15), 16, 16, 16);
+    }
+
+    @Test
+    public void yuvHelper_fallsBackToJavaKernels() {
+        YuvHelper.setKernels(null);
+        assertEquals(JavaYuvKernels.class, YuvHelper.getKernels().getClass());
+    }
+
+    private void checkRotation(int width, int height, int rotation, ByteOrder order) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final boolean transposed = rotation % 180 != 0;
+        final int dstWidth = transposed ? height : width;
+        final int dstHeight = transposed ? width : height;
+        final int dstChromaWidth = transposed ? chromaHeight : chromaWidth;
+        final int dstChromaHeight = transposed ? chromaWidth : chromaHeight;
+
+        final ByteBuffer srcY = randomPlane(width + 3, height);
+        final ByteBuffer srcU = randomPlane(chromaWidth + 1, chromaHeight);
+        final ByteBuffer srcV = randomPlane(chromaWidth, chromaHeight);
+        final ByteBuffer dstY = filledPlane(dstWidth + 4, dstHeight).order(order);
+        final ByteBuffer dstU = filledPlane(dstChromaWidth, dstChromaHeight).order(order);
+        final ByteBuffer dstV = filledPlane(dstChromaWidth + 2, dstChromaHeight);
+        final ByteBuffer expectedY = copy(dstY);
+        final ByteBuffer expectedU = copy(dstU);
+        final ByteBuffer expectedV = copy(dstV);
+
+        kernels.i420Rotate(srcY, width + 3, srcU, chromaWidth + 1, srcV, chromaWidth, dstY,
+                dstWidth + 4, dstU, dstChromaWidth, dstV, dstChromaWidth + 2, width, height, rotation);
+        referenceRotatePlane(srcY, width + 3, expectedY, dstWidth + 4, width, height, rotation);
+        referenceRotatePlane(srcU, chromaWidth + 1, expectedU, dstChromaWidth, chromaWidth,
+                chromaHeight, rotation);
+        referenceRotatePlane(srcV, chromaWidth, expectedV, dstChromaWidth + 2, chromaWidth,
+                chromaHeight, rotation);
+
+        final String message = width + "x" + height + " rotation=" + rotation + " " + order;
+        assertBuffersEqual(message, expectedY, dstY);
+        assertBuffersEqual(message, expectedU, dstU);
+        assertBuffersEqual(message, expectedV, dstV);
+    }
+
+    private static void referenceCopyPlane(ByteBuffer src, int srcStride, ByteBuffer dst,
+                                           int dstStride, int width, int height) {
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                dst.put(y * dstStride + x, src.get(y * srcStride + x));
+            }
+        }
+    }
+
+    private static void referenceRotatePlane(ByteBuffer src, int srcStride, ByteBuffer dst,
+                                             int dstStride, int width, int height, int rotation) {
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                final byte value = src.get(y * srcStride + x);
+                final int dstX;
+                final int dstY;
+                switch (rotation) {
+                    case 0:
+                        dstX = x;
+                        dstY = y;
+                        break;
+                    case 90:
+                        dstX = height - 1 - y;
+                        dstY = x;
+                        break;
+                    case 180:
+                        dstX = width - 1 - x;
+                        dstY = height - 1 - y;
+                        break;
+                    default:
+                        dstX = y;
+                        dstY = width - 1 - x;
+                        break;
+                }
+                dst.put(dstY * dstStride + dstX, value);
+            }
+        }
+    }
+
+    private ByteBuffer randomPlane(int stride, int height) {
+        final byte[] data = new byte[stride * height];
+        random.nextBytes(data);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Padding bytes keep this value, so writes outside the plane are detected. */
+    private static ByteBuffer filledPlane(int stride, int height) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(stride * height);
+        for (int i = 0; i < buffer.capacity(); ++i) {
+            buffer.put(i, (byte) 0x5A);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocateDirect(buffer.capacity()).order(buffer.order());
+        for (int i = 0; i < buffer.capacity(); ++i) {
+            copy.put(i, buffer.get(i));
+        }
+        return copy;
+    }
+
+    private static void assertBuffersEqual(ByteBuffer expected, ByteBuffer actual) {
+        assertBuffersEqual("", expected, actual);
+    }
+
+    private static void assertBuffersEqual(String message, ByteBuffer expected, ByteBuffer actual) {
+        assertArrayEquals(message, toArray(expected), toArray(actual));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] data = new byte[buffer.capacity()];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = buffer.get(i);
+        }
+        return data;
+    }
+}
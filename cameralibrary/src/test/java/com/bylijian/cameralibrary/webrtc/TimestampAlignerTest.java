@@ -0,0 +1,129 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampAlignerTest {
+    private static final long FRAME_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1) / 30;
+    private static final long MAX_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long WARM_UP_FRAMES = 200;
+
+    private static class FakeClock implements TimestampAligner.Clock {
+        long nowNs;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+    }
+
+    /**
+     * Simulated camera whose clock has a different epoch and optionally drifts from the system
+     * clock. Frames arrive with a random delay after capture.
+     */
+    private static class Camera {
+        final FakeClock clock = new FakeClock();
+        final TimestampAligner aligner = new TimestampAligner(clock);
+        final Random random = new Random(42);
+        final double driftPpm;
+        long cameraEpochNs = TimeUnit.SECONDS.toNanos(12345);
+        long captureTimeNs = TimeUnit.SECONDS.toNanos(100);
+        long previousTranslatedNs = Long.MIN_VALUE;
+        long maxErrorAfterWarmUpNs;
+        long maxIntervalErrorAfterWarmUpNs;
+        int frames;
+
+        Camera(double driftPpm) {
+            this.driftPpm = driftPpm;
+        }
+
+        long cameraTimeNs() {
+            return cameraEpochNs + (long) (captureTimeNs * (1 + driftPpm / 1e6));
+        }
+
+        void run(int count) {
+            for (int i = 0; i < count; i++) {
+                captureTimeNs += FRAME_INTERVAL_NS;
+                clock.nowNs = captureTimeNs + (long) (random.nextDouble() * MAX_DELAY_NS);
+                final long translatedNs = aligner.translateTimestamp(cameraTimeNs());
+
+                assertTrue("timestamp in the future", translatedNs <= clock.nowNs);
+                assertTrue("timestamp not increasing", translatedNs > previousTranslatedNs);
+                if (++frames > WARM_UP_FRAMES) {
+                    maxErrorAfterWarmUpNs =
+                            Math.max(maxErrorAfterWarmUpNs, Math.abs(translatedNs - captureTimeNs));
+                    maxIntervalErrorAfterWarmUpNs = Math.max(maxIntervalErrorAfterWarmUpNs,
+                            Math.abs(translatedNs - previousTranslatedNs - FRAME_INTERVAL_NS));
+                }
+                previousTranslatedNs = translatedNs;
+            }
+        }
+    }
+
+    @Test
+    public void jitterIsFilteredOut() {
+        final Camera camera = new Camera(0);
+        camera.run(1000);
+
+        // Arrival times jitter by 10 ms, the translated frame intervals almost don't.
+        assertTrue(camera.maxIntervalErrorAfterWarmUpNs < TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(camera.maxErrorAfterWarmUpNs <= MAX_DELAY_NS);
+        final long jitterNs = camera.aligner.getJitterNs();
+        assertTrue("jitter " + jitterNs, jitterNs > MAX_DELAY_NS / 8 && jitterNs < MAX_DELAY_NS);
+        assertEquals(0, camera.aligner.getResetCount());
+    }
+
+    @Test
+    public void clockDriftIsFollowed() {
+        // The camera clock is 0.05% slow, 150 ms over 5 minutes, much more than the jitter.
+        final Camera camera = new Camera(-500);
+        camera.run(30 * 300);
+
+        assertTrue("error " + camera.maxErrorAfterWarmUpNs, camera.maxErrorAfterWarmUpNs <= MAX_DELAY_NS);
+        assertTrue(camera.maxIntervalErrorAfterWarmUpNs < TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(0, camera.aligner.getResetCount());
+    }
+
+    @Test
+    public void clockJumpResetsEstimate() {
+        final Camera camera = new Camera(0);
+        camera.run(300);
+
+        // The camera clock jumps 2 seconds forward, e.g. when the camera restarts.
+        camera.cameraEpochNs += TimeUnit.SECONDS.toNanos(2);
+        camera.frames = 0;
+        camera.maxErrorAfterWarmUpNs = 0;
+        camera.run(300);
+
+        assertEquals(1, camera.aligner.getResetCount());
+        assertTrue("error " + camera.maxErrorAfterWarmUpNs, camera.maxErrorAfterWarmUpNs <= MAX_DELAY_NS);
+
+        // Same for a jump backwards.
+        camera.cameraEpochNs -= TimeUnit.SECONDS.toNanos(5);
+        camera.run(300);
+        assertEquals(2, camera.aligner.getResetCount());
+    }
+
+    @Test
+    public void sameInputGivesSameOutput() {
+        final Camera first = new Camera(100);
+        final Camera second = new Camera(100);
+        for (int i = 0; i < 500; i++) {
+            first.run(1);
+            second.run(1);
+            assertEquals(first.previousTranslatedNs, second.previousTranslatedNs);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void translateAfterDisposeThrows() {
+        final TimestampAligner aligner = new TimestampAligner(new FakeClock());
+        aligner.dispose();
+        aligner.translateTimestamp(0);
+    }
+}
@@ -0,0 +1,101 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VsyncPacerTest {
+    private static final long VSYNC_60HZ_NS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    /** Returns the indices of the vsyncs that were drawn. */
+    private static List<Integer> run(VsyncPacer pacer, int vsyncs, float fps, long jitterNs) {
+        final Random random = new Random(7);
+        final long minDrawPeriodNs = fps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+        final List<Integer> drawn = new ArrayList<>();
+        for (int i = 0; i < vsyncs; i++) {
+            final long jitter = jitterNs > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterNs) : 0;
+            if (pacer.shouldDraw(i * VSYNC_60HZ_NS + jitter, minDrawPeriodNs)) {
+                drawn.add(i);
+            }
+        }
+        return drawn;
+    }
+
+    @Test
+    public void drawsEveryVsyncWithoutFpsReduction() {
+        assertEquals(120, run(new VsyncPacer(60), 120, 0, 0).size());
+    }
+
+    @Test
+    public void fpsReductionUsesWholeVsyncPeriods() {
+        // 25 fps on 60 Hz alternates between two and three vsyncs.
+        final List<Integer> drawn = run(new VsyncPacer(60), 600, 25, 0);
+
+        assertEquals(250, drawn.size(), 1);
+        for (int i = 1; i < drawn.size(); i++) {
+            final int interval = drawn.get(i) - drawn.get(i - 1);
+            assertTrue("interval " + interval, interval == 2 || interval == 3);
+        }
+    }
+
+    @Test
+    public void vsyncJitterDoesNotBreakCadence() {
+        // Half rate with up to 2 ms jitter on every vsync still draws exactly every second vsync.
+        final List<Integer> drawn = run(new VsyncPacer(60), 600, 30, TimeUnit.MILLISECONDS.toNanos(2));
+
+        assertEquals(300, drawn.size());
+        for (int i = 1; i < drawn.size(); i++) {
+            assertEquals(2, drawn.get(i) - drawn.get(i - 1));
+        }
+    }
+
+    @Test
+    public void missedVsyncsLowerDrawRateUntilRenderingKeepsUp() {
+        final VsyncPacer pacer = new VsyncPacer(60);
+        long vsyncNs = 0;
+        // Every draw takes longer than a refresh period.
+        for (int i = 0; i < VsyncPacer.WINDOW_DRAWS; i++) {
+            pacer.onFrameDrawn(vsyncNs, vsyncNs + VSYNC_60HZ_NS * 3 / 2);
+            vsyncNs += VSYNC_60HZ_NS;
+        }
+        assertEquals(30f, pacer.getMaxFps(), 0.1f);
+
+        int drawn = 0;
+        for (int i = 0; i < 60; i++) {
+            if (pacer.shouldDraw(vsyncNs, 0)) {
+                drawn++;
+            }
+            vsyncNs += VSYNC_60HZ_NS;
+        }
+        assertEquals(30, drawn);
+
+        // Fast draws again.
+        for (int i = 0; i < VsyncPacer.WINDOW_DRAWS * VsyncPacer.RECOVERY_WINDOWS; i++) {
+            pacer.onFrameDrawn(vsyncNs, vsyncNs + VSYNC_60HZ_NS / 4);
+            vsyncNs += VSYNC_60HZ_NS;
+        }
+        assertEquals(60f, pacer.getMaxFps(), 0.1f);
+    }
+
+    @Test
+    public void doesNotCatchUpAfterPause() {
+        final VsyncPacer pacer = new VsyncPacer(60);
+        final long periodNs = TimeUnit.SECONDS.toNanos(1) / 20;
+        assertTrue(pacer.shouldDraw(0, periodNs));
+
+        // No frame for a second, then a frame on every vsync.
+        long vsyncNs = TimeUnit.SECONDS.toNanos(1);
+        assertTrue(pacer.shouldDraw(vsyncNs, periodNs));
+        for (int i = 1; i < 3; i++) {
+            assertFalse(pacer.shouldDraw(vsyncNs + i * VSYNC_60HZ_NS, periodNs));
+        }
+        assertTrue(pacer.shouldDraw(vsyncNs + 3 * VSYNC_60HZ_NS, periodNs));
+    }
+}
@@ -0,0 +1,41 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+    @Test
+    public void asyncSemiPlanarReadbackIsReadableThroughGetBuffer() {
+        // 6x4 frame: stride aligned to 8, 4 rows of Y and 2 rows of interleaved chroma.
+        final int width = 6;
+        final int height = 4;
+        final int stride = 8;
+        final int size = stride * (height + height / 2);
+        final FramePool.Entry entry =
+                new FramePool(1 << 20).acquire(width, height, FramePool.Layout.YUV_CONVERTER);
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            pixels.put(i, (byte) i);
+        }
+
+        // What deliverOldestConversion() does with the mapped pixel buffer.
+        YuvConverter.copyReadback(pixels, entry.getBuffer());
+        final NV12Buffer buffer =
+                YuvConverter.wrapSemiPlanarBuffer(entry, width, height, /* vFirst= */ false);
+
+        final ByteBuffer data = buffer.getBuffer();
+        assertEquals(size, data.remaining());
+        for (int i = 0; i < size; i++) {
+            assertEquals((byte) i, data.get(i));
+        }
+        // The chroma plane starts after sliceHeight rows of Y, as CameraRecorder reads it.
+        final int chromaOffset = buffer.getStride() * buffer.getSliceHeight();
+        assertEquals(stride * height, chromaOffset);
+        assertEquals((byte) chromaOffset, data.get(chromaOffset));
+        assertEquals((byte) (chromaOffset + 1), data.get(chromaOffset + 1));
+        buffer.release();
+    }
+}
@@ -0,0 +1,79 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Throughput benchmark for {@link YuvScaler}, laid out like a JMH benchmark: a fixed setup, a
+ * number of warmup iterations that are thrown away, then timed measurement iterations. It is not
+ * a unit test and has to be run explicitly, e.g. from the IDE, since timing on a shared build
+ * machine is meaningless.
+ */
+public class YuvScalerBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final long ITERATION_TIME_NS = 500_000_000L;
+
+    private static final int SRC_WIDTH = 1920;
+    private static final int SRC_HEIGHT = 1080;
+    private static final int[][] TARGETS = {{1280, 720}, {640, 360}};
+
+    public static void main(String[] args) {
+        final ByteBuffer nv21 = randomBuffer(SRC_WIDTH * SRC_HEIGHT * 3 / 2);
+        for (int[] target : TARGETS) {
+            for (YuvScaler.FilterMode mode : YuvScaler.FilterMode.values()) {
+                run(nv21, target[0], target[1], mode);
+            }
+        }
+    }
+
+    private static void run(ByteBuffer nv21, int dstWidth, int dstHeight,
+                            YuvScaler.FilterMode mode) {
+        final int chromaWidth = (dstWidth + 1) / 2;
+        final int chromaHeight = (dstHeight + 1) / 2;
+        final ByteBuffer dstY = ByteBuffer.allocateDirect(dstWidth * dstHeight);
+        final ByteBuffer dstU = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        final ByteBuffer dstV = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            iteration(nv21, dstY, dstU, dstV, dstWidth, dstHeight, mode);
+        }
+        double best = 0;
+        double total = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; ++i) {
+            final double framesPerSecond = iteration(nv21, dstY, dstU, dstV, dstWidth, dstHeight, mode);
+            best = Math.max(best, framesPerSecond);
+            total += framesPerSecond;
+        }
+        System.out.println(String.format(Locale.US, "%dx%d -> %dx%d %-8s avg %8.1f fps, best %8.1f fps",
+                SRC_WIDTH, SRC_HEIGHT, dstWidth, dstHeight, mode, total / MEASUREMENT_ITERATIONS, best));
+    }
+
+    /** Scales frames for ITERATION_TIME_NS and returns the achieved frame rate. */
+    private static double iteration(ByteBuffer nv21, ByteBuffer dstY, ByteBuffer dstU,
+                                    ByteBuffer dstV, int dstWidth, int dstHeight,
+                                    YuvScaler.FilterMode mode) {
+        final int chromaWidth = (dstWidth + 1) / 2;
+        final long start = System.nanoTime();
+        long elapsed;
+        int frames = 0;
+        do {
+            YuvScaler.cropAndScaleSemiPlanar(nv21, SRC_WIDTH, SRC_WIDTH * SRC_HEIGHT, true, 0, 0,
+                    SRC_WIDTH, SRC_HEIGHT, dstY, dstWidth, dstU, chromaWidth, dstV, chromaWidth,
+                    dstWidth, dstHeight, mode);
+            ++frames;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_TIME_NS);
+        return frames * 1e9 / elapsed;
+    }
+
+    private static ByteBuffer randomBuffer(int size) {
+        final byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,200 @@
+package com.bylijian.cameralibrary.webrtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvScalerTest {
+    private static final int[][] GEOMETRIES = {
+            // srcWidth, srcHeight, dstWidth, dstHeight
+            {64, 48, 64, 48}, {64, 48, 32, 24}, {64, 48, 21, 17}, {30, 20, 45, 33}, {17, 9, 5, 4},
+            {48, 64, 64, 16}, {3, 3, 1, 1},
+    };
+
+    private final Random random = new Random(7);
+
+    @Test
+    public void nearest_picksCenterSample() {
+        for (int[] geometry : GEOMETRIES) {
+            final ByteBuffer src = randomPlane(geometry[0], geometry[1]);
+            final ByteBuffer dst = ByteBuffer.allocateDirect(geometry[2] * geometry[3]);
+            YuvScaler.scalePlane(src, 0, 1, geometry[0], geometry[0], geometry[1], dst, geometry[2],
+                    geometry[2], geometry[3], YuvScaler.FilterMode.NEAREST);
+            for (int y = 0; y < geometry[3]; ++y) {
+                for (int x = 0; x < geometry[2]; ++x) {
+                    final int srcX = (2 * x + 1) * geometry[0] / (2 * geometry[2]);
+                    final int srcY = (2 * y + 1) * geometry[1] / (2 * geometry[3]);
+                    assertEquals(src.get(srcY * geometry[0] + srcX), dst.get(y * geometry[2] + x));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bilinear_matchesFloatingPointReference() {
+        for (int[] geometry : GEOMETRIES) {
+            final ByteBuffer src = randomPlane(geometry[0], geometry[1]);
+            final ByteBuffer dst = ByteBuffer.allocateDirect(geometry[2] * geometry[3]);
+            YuvScaler.scalePlane(src, 0, 1, geometry[0], geometry[0], geometry[1], dst, geometry[2],
+                    geometry[2], geometry[3], YuvScaler.FilterMode.BILINEAR);
+            for (int y = 0; y < geometry[3]; ++y) {
+                for (int x = 0; x < geometry[2]; ++x) {
+                    final double expected = referenceBilinear(src, geometry[0], geometry[1],
+                            (x + 0.5) * geometry[0] / geometry[2] - 0.5,
+                            (y + 0.5) * geometry[1] / geometry[3] - 0.5);
+                    assertEquals(expected, dst.get(y * geometry[2] + x) & 0xFF, 2.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void box_matchesAverageOfCoveredSamples() {
+        final int srcWidth = 30;
+        final int srcHeight = 21;
+        final int dstWidth = 10;
+        final int dstHeight = 7;
+        final ByteBuffer src = randomPlane(srcWidth, srcHeight);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(dstWidth * dstHeight);
+        YuvScaler.scalePlane(src, 0, 1, srcWidth, srcWidth, srcHeight, dst, dstWidth, dstWidth,
+                dstHeight, YuvScaler.FilterMode.BOX);
+        for (int y = 0; y < dstHeight; ++y) {
+            for (int x = 0; x < dstWidth; ++x) {
+                int sum = 0;
+                for (int i = 0; i < 3; ++i) {
+                    for (int j = 0; j < 3; ++j) {
+                        sum += src.get((3 * y + i) * srcWidth + 3 * x + j) & 0xFF;
+                    }
+                }
+                assertEquals(Math.round(sum / 9.0), dst.get(y * dstWidth + x) & 0xFF, 1.0);
+            }
+        }
+    }
+
+    @Test
+    public void box_keepsFlatPlaneFlat() {
+        final ByteBuffer src = ByteBuffer.allocateDirect(1920 * 1080);
+        for (int i = 0; i < src.capacity(); ++i) {
+            src.put(i, (byte) 235);
+        }
+        final ByteBuffer dst = ByteBuffer.allocateDirect(640 * 360);
+        YuvScaler.scalePlane(src, 0, 1, 1920, 1920, 1080, dst, 640, 640, 360,
+                YuvScaler.FilterMode.BOX);
+        for (int i = 0; i < dst.capacity(); ++i) {
+            assertEquals(235, dst.get(i) & 0xFF);
+        }
+    }
+
+    @Test
+    public void unscaled_copiesCroppedRegion() {
+        for (YuvScaler.FilterMode mode : YuvScaler.FilterMode.values()) {
+            final ByteBuffer src = randomPlane(40, 30);
+            final ByteBuffer dst = ByteBuffer.allocateDirect(16 * 10);
+            src.position(5);
+            YuvScaler.scalePlane(src, 3 + 4 * 40, 1, 40, 16, 10, dst, 16, 16, 10, mode);
+            assertEquals(5, src.position());
+            for (int y = 0; y < 10; ++y) {
+                for (int x = 0; x < 16; ++x) {
+                    assertEquals(src.get((y + 4) * 40 + x + 3), dst.get(y * 16 + x));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void semiPlanar_splitsAndCropsChroma() {
+        final int width = 8;
+        final int height = 6;
+        final ByteBuffer nv21 = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        for (int i = 0; i < width * height; ++i) {
+            nv21.put(i, (byte) i);
+        }
+        // Store V = 100 + pair index, U = 200 + pair index.
+        for (int i = 0; i < width * height / 4; ++i) {
+            nv21.put(width * height + 2 * i, (byte) (100 + i));
+            nv21.put(width * height + 2 * i + 1, (byte) (200 + i));
+        }
+        final ByteBuffer dstY = ByteBuffer.allocateDirect(4 * 4);
+        final ByteBuffer dstU = ByteBuffer.allocateDirect(2 * 2);
+        final ByteBuffer dstV = ByteBuffer.allocateDirect(2 * 2);
+
+        YuvScaler.cropAndScaleSemiPlanar(nv21, width, width * height, true /* vFirst */, 2, 2, 4, 4,
+                dstY, 4, dstU, 2, dstV, 2, 4, 4, YuvScaler.FilterMode.BILINEAR);
+
+        for (int y = 0; y < 4; ++y) {
+            for (int x = 0; x < 4; ++x) {
+                assertEquals((y + 2) * width + x + 2, dstY.get(y * 4 + x) & 0xFF);
+            }
+        }
+        for (int y = 0; y < 2; ++y) {
+            for (int x = 0; x < 2; ++x) {
+                final int pair = (y + 1) * (width / 2) + x + 1;
+                assertEquals(200 + pair, dstU.get(y * 2 + x) & 0xFF);
+                assertEquals(100 + pair, dstV.get(y * 2 + x) & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void interleavedSource_readsOnlyItsComponent() {
+        final ByteBuffer src = ByteBuffer.allocateDirect(2 * 32 * 16);
+        for (int i = 0; i < src.capacity(); ++i) {
+            src.put(i, (byte) (i % 2 == 0 ? 16 : 240));
+        }
+        for (YuvScaler.FilterMode mode : YuvScaler.FilterMode.values()) {
+            final ByteBuffer dst = ByteBuffer.allocateDirect(12 * 7);
+            YuvScaler.scalePlane(src, 1, 2, 64, 32, 16, dst, 12, 12, 7, mode);
+            for (int i = 0; i < dst.capacity(); ++i) {
+                assertEquals(240, dst.get(i) & 0xFF);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scalePlane_rejectsSourceOutsideBuffer() {
+        YuvScaler.scalePlane(randomPlane(16, 16), 16, 1, 16, 16, 16,
+                ByteBuffer.allocateDirect(64), 8, 8, 8, YuvScaler.FilterMode.BOX);
+    }
+
+    @Test
+    public void defaultFilterMode_canBeChanged() {
+        final YuvScaler.FilterMode original = YuvScaler.getDefaultFilterMode();
+        try {
+            YuvScaler.setDefaultFilterMode(YuvScaler.FilterMode.NEAREST);
+            assertEquals(YuvScaler.FilterMode.NEAREST, YuvScaler.getDefaultFilterMode());
+        } finally {
+            YuvScaler.setDefaultFilterMode(original);
+        }
+        assertTrue(YuvScaler.getDefaultFilterMode() == original);
+    }
+
+    private static double referenceBilinear(ByteBuffer src, int width, int height, double x,
+                                            double y) {
+        x = Math.min(Math.max(x, 0), width - 1);
+        y = Math.min(Math.max(y, 0), height - 1);
+        final int x0 = (int) x;
+        final int y0 = (int) y;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final double fx = x - x0;
+        final double fy = y - y0;
+        final double top = (src.get(y0 * width + x0) & 0xFF) * (1 - fx)
+                + (src.get(y0 * width + x1) & 0xFF) * fx;
+        final double bottom = (src.get(y1 * width + x0) & 0xFF) * (1 - fx)
+                + (src.get(y1 * width + x1) & 0xFF) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    private ByteBuffer randomPlane(int width, int height) {
+        final byte[] data = new byte[width * height];
+        random.nextBytes(data);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+}
@@ -1,12 +1,16 @@
 package com.bylijian.medialibrary.record;
 
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
@@ -16,19 +20,57 @@ import android.view.Surface;
 import com.bylijian.medialibrary.record.audio.AndroidAudioSource;
 import com.bylijian.medialibrary.record.audio.AudioConfig;
 import com.bylijian.medialibrary.record.audio.AudioSource;
-import com.bylijian.medialibrary.record.audio.AudioSourceObserver;
+import com.bylijian.medialibrary.record.audio.AudioTimestamper;
 import com.bylijian.medialibrary.record.audio.AudioUtil;
+import com.bylijian.medialibrary.record.audio.PcmRingBuffer;
+import com.bylijian.medialibrary.record.mux.AndroidMuxer;
+import com.bylijian.medialibrary.record.mux.FragmentedMp4Muxer;
+import com.bylijian.medialibrary.record.mux.MuxStage;
+import com.bylijian.medialibrary.record.mux.PreRollBuffer;
+import com.bylijian.medialibrary.record.mux.SampleMuxer;
+import com.bylijian.medialibrary.record.mux.SegmentMuxer;
+import com.bylijian.medialibrary.record.video.AdaptiveBitrateController;
+import com.bylijian.medialibrary.record.video.EncoderCapabilities;
+import com.bylijian.medialibrary.record.video.EncoderCapabilityProbe;
+import com.bylijian.medialibrary.record.video.EncoderProfile;
+import com.bylijian.medialibrary.record.video.YuvPlaneCopier;
+import com.bylijian.medialibrary.trace.FrameTracer;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Mp4Recorder implements AudioSourceObserver {
+public class Mp4Recorder {
     private static final String TAG = "Mp4Recorder";
+    /**
+     * 每个槽位10ms，缓存大约1秒的音频，编码器卡顿超过这个时间就丢弃最旧的数据
+     */
+    private static final int PCM_RING_SLOT_COUNT = 100;
+    /**
+     * 封装队列最多缓存的编码数据，6Mbps的视频大约2秒
+     */
+    private static final int MUX_QUEUE_MAX_BYTES = 1536 * 1024;
+    /**
+     * 自适应码率的统计周期
+     */
+    private static final long BITRATE_CHECK_INTERVAL_MS = 1000;
+    /**
+     * 预录缓存中的轨道编号，开始录制时换成muxStage的轨道id
+     */
+    private static final int PRE_ROLL_VIDEO = 0;
+    private static final int PRE_ROLL_AUDIO = 1;
+
+    /**
+     * {@link #prepareAudioSource()}提前创建的AudioRecord，下一次开始录制时取走
+     */
+    private static AndroidAudioSource preparedAudioSource;
 
     private AudioSource audioSource;
-    private LinkedBlockingDeque<ByteBuffer> audioDatas;
+    private PcmRingBuffer pcmRingBuffer;
+    private AudioTimestamper audioTimestamper;
 
     private Surface inputSurface;
     private MediaCodec videoEncoder;
@@ -36,24 +78,104 @@ public class Mp4Recorder implements AudioSourceObserver {
     private MediaCodec.Callback videoEncoderCallback;
     private MediaCodec.Callback audioEncoderCallback;
 
-    private MediaMuxer muxer;
+    /**
+     * ByteBuffer输入模式，帧由{@link #queueVideoFrame}送入，不使用inputSurface
+     */
+    private volatile boolean byteBufferInput;
+    private int inputColorFormat;
+    private int inputStride;
+    private int inputSliceHeight;
+    /**
+     * 编码器回调线程放入，送帧的线程取出
+     */
+    private final ConcurrentLinkedQueue<Integer> freeVideoInputBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger droppedInputFrames = new AtomicInteger();
+    /**
+     * 送帧的线程从取出输入buffer到queueInputBuffer都持有这个锁，释放视频编码器时也持有，
+     * 保证stopRecord()不会在拷贝过程中停止和释放编码器
+     */
+    private final Object videoInputLock = new Object();
+
+    /**
+     * 编码器回调线程和调用stopRecord的线程都会访问
+     */
+    private volatile MuxStage<MediaFormat> muxStage;
     private HandlerThread muxThread;
     private Handler muxHandler;
     private int videoTrackIndex = -1;
     private int audioTrackIndex = -1;
-    private boolean muxerStarted;
+    /**
+     * 编码器输出的格式，预录时编码器比muxStage先启动，开始录制时再添加轨道
+     */
+    private final Object trackLock = new Object();
+    private MediaFormat videoOutputFormat;
+    private MediaFormat audioOutputFormat;
+    /**
+     * 预录时不为null，编码器工作但是还没有muxStage，编码帧先放进这里
+     */
+    private volatile PreRollBuffer preRollBuffer;
 
-    private boolean recordStarted = false;
+    private volatile boolean recordStarted = false;
+    /**
+     * 大于0时使用fragmented MP4，按这个时长写出片段
+     */
+    private int fragmentDurationMs;
+    /**
+     * 分段录制时不为null，停止录制以后仍然保留，用来获取分段文件
+     */
+    private volatile SegmentMuxer<MediaFormat> segmentMuxer;
+
+    private EncoderProfile videoProfile;
+    private int minAdaptiveBitrate;
+    private int minAdaptiveFrameRate;
+    private AdaptiveBitrateController.Listener adaptiveBitrateListener;
+    /**
+     * 只在muxHandler线程访问
+     */
+    private AdaptiveBitrateController bitrateController;
+    private long lastWrittenBytes;
+    private long lastBitrateCheckMs;
+    private final Object latencyLock = new Object();
+    /**
+     * 一个统计周期内编码器输出的最大延迟
+     */
+    private long maxEncoderLatencyUs;
 
     public Mp4Recorder() {
         initEncoderCallback();
     }
 
+    /**
+     * 使用fragmented MP4代替MediaMuxer，录制过程中进程被杀也只丢失最后一个片段
+     * 需要在prepareVideoEncoder()之前调用，fragmented MP4不支持B帧，编码器会关闭B帧
+     *
+     * @param fragmentDurationMs 片段时长，0表示使用MediaMuxer
+     */
+    public void setFragmentDuration(int fragmentDurationMs) {
+        this.fragmentDurationMs = fragmentDurationMs;
+    }
+
+    /**
+     * 根据编码延迟和存储写入速度动态调整码率，码率降到minBitrate仍然跟不上时通过listener建议降低采集帧率
+     * 需要在startRecord()之前调用，CQ模式下不生效
+     *
+     * @param minBitrate 0表示关闭
+     * @param listener   在封装线程回调，码率已经设置给编码器，可以为null
+     */
+    public void setAdaptiveBitrate(int minBitrate, int minFrameRate, AdaptiveBitrateController.Listener listener) {
+        this.minAdaptiveBitrate = minBitrate;
+        this.minAdaptiveFrameRate = minFrameRate;
+        this.adaptiveBitrateListener = listener;
+    }
+
     private void initEncoderCallback() {
         videoEncoderCallback = new MediaCodec.Callback() {
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
                 Log.d(TAG, "video MediaCodec Input Buffer Avail thead=" + Thread.currentThread().getName());
+                if (byteBufferInput) {
+                    freeVideoInputBuffers.offer(index);
+                }
             }
 
             @Override
@@ -66,13 +188,22 @@ public class Mp4Recorder implements AudioSourceObserver {
                 if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     info.size = 0;
                 }
+                MuxStage<MediaFormat> stage = muxStage;
                 if (info.size != 0) {
-                    if (muxerStarted && muxer != null) {
-                        encodedData.position(info.offset);
-                        encodedData.limit(info.offset + info.size);
-                        muxer.writeSampleData(videoTrackIndex, encodedData, info);
+                    FrameTracer.getInstance().mark(FrameTracer.STAGE_ENCODER_OUTPUT, info.presentationTimeUs * 1000);
+                    //输入surface的时间戳来自System.nanoTime()，差值就是编码延迟
+                    long latencyUs = System.nanoTime() / 1000 - info.presentationTimeUs;
+                    synchronized (latencyLock) {
+                        maxEncoderLatencyUs = Math.max(maxEncoderLatencyUs, latencyUs);
                     }
                 }
+                if (info.size != 0) {
+                    encodedData.position(info.offset);
+                    encodedData.limit(info.offset + info.size);
+                    Trace.beginSection("Mp4Recorder.writeVideoSample");
+                    writeEncodedSample(stage, true, encodedData, info);
+                    Trace.endSection();
+                }
                 videoEncoder.releaseOutputBuffer(index, false);
             }
 
@@ -84,40 +215,42 @@ public class Mp4Recorder implements AudioSourceObserver {
             @Override
             public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
                 Log.d(TAG, "MediaCodec Output Format changed");
-                if (videoTrackIndex >= 0) {
-                    throw new RuntimeException("format changed twice");
-                }
-                videoTrackIndex = muxer.addTrack(videoEncoder.getOutputFormat());
-                if (!muxerStarted && videoTrackIndex >= 0 && audioTrackIndex >= 0 && muxer != null) {
-                    Log.d(TAG, "start muxer");
-                    muxer.start();
-                    muxerStarted = true;
+                synchronized (trackLock) {
+                    if (videoOutputFormat != null) {
+                        throw new RuntimeException("format changed twice");
+                    }
+                    videoOutputFormat = videoEncoder.getOutputFormat();
+                    MuxStage<MediaFormat> stage = muxStage;
+                    if (stage != null) {
+                        //两个轨道都添加以后muxStage会启动封装器
+                        videoTrackIndex = stage.addTrack(videoOutputFormat, true);
+                    }
                 }
             }
         };
         audioEncoderCallback = new MediaCodec.Callback() {
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                long presentationTimeUs = System.nanoTime() / 1000;
                 Log.v(TAG, "audioEncoder onInputBufferAvailable() index=" + index + " thread=" + Thread.currentThread().getName());
                 if (!recordStarted) {
                     audioEncoder.queueInputBuffer(index, 0, 0,
-                            presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            audioTimestamper.getNextPresentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     Log.d(TAG, "audioEncoder BUFFER_FLAG_END_OF_STREAM");
                     return;
                 }
-                if (audioDatas != null && audioDatas.size() > 0) {
+                int size = 0;
+                if (pcmRingBuffer != null) {
                     ByteBuffer inputBuffer = codec.getInputBuffer(index);
-                    ByteBuffer pop = audioDatas.poll();
                     inputBuffer.clear();
-                    inputBuffer.limit(pop.capacity());
-                    inputBuffer.put(pop);
-
-                    //Log.d(TAG, "audioEncoder presentationTime=" + presentationTimeUs);
-                    codec.queueInputBuffer(index, 0, pop.capacity(), presentationTimeUs, 0);
-                } else {
-                    codec.queueInputBuffer(index, 0, 0, presentationTimeUs, 0);
+                    size = pcmRingBuffer.read(inputBuffer);
                 }
+                //时间戳由采样点个数推算，不受回调调度时间的影响
+                long presentationTimeUs = size > 0
+                        ? audioTimestamper.getPresentationTimeUs(pcmRingBuffer.getLastReadPosition(), size,
+                        pcmRingBuffer.getWritePosition())
+                        : audioTimestamper.getNextPresentationTimeUs();
+                //Log.d(TAG, "audioEncoder presentationTime=" + presentationTimeUs);
+                codec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
 
             }
 
@@ -131,14 +264,12 @@ public class Mp4Recorder implements AudioSourceObserver {
                 if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     info.size = 0;
                 }
+                MuxStage<MediaFormat> stage = muxStage;
                 if (info.size != 0) {
-                    if (muxerStarted && muxer != null) {
-                        encodedData.position(info.offset);
-                        encodedData.limit(info.offset + info.size);
-                        info.presentationTimeUs = System.nanoTime() / 1000;
-                        muxer.writeSampleData(audioTrackIndex, encodedData, info);
-                        //Log.d(TAG, " muxer.writeSampleData() presentationTimeUs=" + info.presentationTimeUs + "size=" + info.size);
-                    }
+                    encodedData.position(info.offset);
+                    encodedData.limit(info.offset + info.size);
+                    writeEncodedSample(stage, false, encodedData, info);
+                    //Log.d(TAG, " muxStage.writeSample() presentationTimeUs=" + info.presentationTimeUs + "size=" + info.size);
                 }
                 audioEncoder.releaseOutputBuffer(index, false);
             }
@@ -151,37 +282,83 @@ public class Mp4Recorder implements AudioSourceObserver {
             @Override
             public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
                 //Log.d(TAG, "audioEncoder onOutputFormatChanged()");
-                audioTrackIndex = muxer.addTrack(audioEncoder.getOutputFormat());
-                if (!muxerStarted && videoTrackIndex >= 0 && audioTrackIndex >= 0 && muxer != null) {
-                    Log.d(TAG, "start muxer");
-                    muxer.start();
-                    muxerStarted = true;
+                synchronized (trackLock) {
+                    audioOutputFormat = audioEncoder.getOutputFormat();
+                    MuxStage<MediaFormat> stage = muxStage;
+                    if (stage != null) {
+                        audioTrackIndex = stage.addTrack(audioOutputFormat, false);
+                    }
                 }
             }
         };
     }
 
+    /**
+     * 在编码器的回调线程调用。预录缓存里还有帧时先把缓存写进muxStage，保证同一个轨道的时间戳递增
+     */
+    private void writeEncodedSample(MuxStage<MediaFormat> stage, boolean video, ByteBuffer data,
+                                    MediaCodec.BufferInfo info) {
+        PreRollBuffer buffer = preRollBuffer;
+        if (buffer != null) {
+            if (stage == null) {
+                buffer.write(video ? PRE_ROLL_VIDEO : PRE_ROLL_AUDIO, video, data, info.presentationTimeUs, info.flags);
+                return;
+            }
+            drainPreRoll(buffer, stage);
+        }
+        int trackIndex = video ? videoTrackIndex : audioTrackIndex;
+        if (stage != null && trackIndex >= 0) {
+            stage.writeSample(trackIndex, data, info.presentationTimeUs, info.flags);
+        }
+    }
+
+    private void drainPreRoll(PreRollBuffer buffer, final MuxStage<MediaFormat> stage) {
+        if (buffer.getSampleCount() == 0) {
+            return;
+        }
+        Trace.beginSection("Mp4Recorder.drainPreRoll");
+        int drained = buffer.drainTo(new PreRollBuffer.Consumer() {
+            @Override
+            public void onSample(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+                int trackIndex = track == PRE_ROLL_VIDEO ? videoTrackIndex : audioTrackIndex;
+                if (trackIndex >= 0) {
+                    stage.writeSample(trackIndex, data, presentationTimeUs, flags);
+                }
+            }
+        });
+        Trace.endSection();
+        Log.d(TAG, "pre-roll drained " + drained + " samples");
+    }
+
+    /**
+     * 使用默认的编码参数：AVC、25fps、1秒一个关键帧
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public Surface prepareVideoEncoder(int width, int height, int bitrate) {
+        return prepareVideoEncoder(new EncoderProfile(width, height).setBitrate(bitrate));
+    }
+
+    /**
+     * 按编码器能力调整profile以后创建编码器，编码器能力只在第一次使用时查询
+     *
+     * @return 编码器的输入surface
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Surface prepareVideoEncoder(EncoderProfile requested) {
         if (videoEncoder != null) {
             Log.e(TAG, "prepareVideoEncoder()");
         }
-        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
-        int frameRate = 25; // 25 fps
-
-        // Set some required properties. The media codec may fail if these aren't defined.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate); // 6Mbps
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, frameRate);
-        format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000 / frameRate);
-        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // 1 seconds between I-frames
+        EncoderProfile profile = resolveVideoProfile(requested);
+        videoProfile = profile;
+        EncoderCapabilities capabilities = EncoderCapabilityProbe.get(profile.getMime());
+        Log.d(TAG, "prepareVideoEncoder() " + profile);
+        MediaFormat format = createVideoFormat(profile, EncoderCapabilities.COLOR_FORMAT_SURFACE);
 
         // Create a MediaCodec encoder and configure it. Get a Surface we can use for recording into.
         try {
-            videoEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            videoEncoder = capabilities != null
+                    ? MediaCodec.createByCodecName(capabilities.getCodecName())
+                    : MediaCodec.createEncoderByType(profile.getMime());
             videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             inputSurface = videoEncoder.createInputSurface();
 
@@ -198,6 +375,215 @@ public class Mp4Recorder implements AudioSourceObserver {
         return inputSurface;
     }
 
+    /**
+     * 创建CPU直接拷贝YUV输入的编码器，颜色格式按编码器能力选择，GPU较弱的设备上比surface输入更省
+     * 创建成功后用{@link #queueVideoFrame}送帧
+     *
+     * @return 编码器不支持YUV420输入或者创建失败时返回false
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public boolean prepareByteBufferVideoEncoder(EncoderProfile requested) {
+        if (videoEncoder != null) {
+            Log.e(TAG, "prepareByteBufferVideoEncoder()");
+        }
+        EncoderProfile profile = resolveVideoProfile(requested);
+        EncoderCapabilities capabilities = EncoderCapabilityProbe.get(profile.getMime());
+        int colorFormat = capabilities != null ? capabilities.selectByteBufferColorFormat() : -1;
+        if (colorFormat < 0) {
+            Log.w(TAG, "no yuv420 input format: " + capabilities);
+            return false;
+        }
+        videoProfile = profile;
+        Log.d(TAG, "prepareByteBufferVideoEncoder() " + profile + " colorFormat=" + colorFormat);
+        MediaFormat format = createVideoFormat(profile, colorFormat);
+        try {
+            videoEncoder = MediaCodec.createByCodecName(capabilities.getCodecName());
+            videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            MediaFormat inputFormat = videoEncoder.getInputFormat();
+            //MediaFormat.KEY_STRIDE和KEY_SLICE_HEIGHT，API 23才有常量，没有给出时按紧凑排列
+            inputStride = inputFormat.containsKey("stride") ? inputFormat.getInteger("stride") : 0;
+            inputSliceHeight = inputFormat.containsKey("slice-height") ? inputFormat.getInteger("slice-height") : 0;
+            inputStride = Math.max(inputStride, profile.getWidth());
+            inputSliceHeight = Math.max(inputSliceHeight, profile.getHeight());
+            inputColorFormat = colorFormat;
+            freeVideoInputBuffers.clear();
+            droppedInputFrames.set(0);
+            byteBufferInput = true;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || muxHandler == null) {
+                videoEncoder.setCallback(videoEncoderCallback);
+            } else {
+                videoEncoder.setCallback(videoEncoderCallback, muxHandler);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "prepareByteBufferVideoEncoder()", e);
+            releaseEncoders();
+            return false;
+        }
+        Log.d(TAG, "input stride=" + inputStride + " sliceHeight=" + inputSliceHeight);
+        return true;
+    }
+
+    /**
+     * @return ByteBuffer输入的编码器要求NV12时返回true，送帧方可以直接准备NV12，省掉一次格式转换
+     */
+    public boolean isSemiPlanarInput() {
+        return byteBufferInput && inputColorFormat == EncoderCapabilities.COLOR_FORMAT_YUV420_SEMI_PLANAR;
+    }
+
+    /**
+     * 把一帧YUV420拷贝到编码器的输入buffer，返回之前拷贝完成，调用方可以马上释放帧
+     * 色度像素跨度为1是I420，为2是NV12/NV21，NV21传入时交换dataU和dataV即可
+     * 可以和{@link #stopRecord()}在不同的线程同时调用，编码器在拷贝完成并送入以后才会释放
+     *
+     * @param width       旋转前的宽，旋转以后要和编码器的宽高一致
+     * @param rotation    顺时针旋转的角度，0、90、180或270
+     * @param timestampNs 采集帧的时间戳，只用于FrameTracer关联，送入编码器的时间戳和surface输入一样取System.nanoTime()
+     * @return 没有空闲的输入buffer或者还没开始录制时丢弃这一帧，返回false
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public boolean queueVideoFrame(int width, int height, ByteBuffer dataY, int strideY,
+                                   ByteBuffer dataU, ByteBuffer dataV, int strideUV, int pixelStrideUV,
+                                   int rotation, long timestampNs) {
+        MediaCodec encoder = videoEncoder;
+        if (!byteBufferInput || !recordStarted || encoder == null) {
+            return false;
+        }
+        boolean transposed = rotation % 180 != 0;
+        int encodeWidth = transposed ? height : width;
+        int encodeHeight = transposed ? width : height;
+        if (encodeWidth != videoProfile.getWidth() || encodeHeight != videoProfile.getHeight()) {
+            throw new IllegalArgumentException("frame " + width + "x" + height + " rotation " + rotation
+                    + " doesn't match encoder " + videoProfile.getWidth() + "x" + videoProfile.getHeight());
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        synchronized (videoInputLock) {
+            if (!byteBufferInput || videoEncoder != encoder) {
+                return false;
+            }
+            Integer index = freeVideoInputBuffers.poll();
+            if (index == null) {
+                droppedInputFrames.incrementAndGet();
+                return false;
+            }
+            Trace.beginSection("Mp4Recorder.queueVideoFrame");
+            try {
+                int size;
+                if (inputColorFormat == EncoderCapabilities.COLOR_FORMAT_YUV420_FLEXIBLE) {
+                    Image image = encoder.getInputImage(index);
+                    if (image == null) {
+                        throw new IllegalStateException("no input image at index " + index);
+                    }
+                    Image.Plane[] planes = image.getPlanes();
+                    YuvPlaneCopier.copyPlane(dataY, 0, strideY, 1, planes[0].getBuffer(), 0,
+                            planes[0].getRowStride(), planes[0].getPixelStride(), width, height, rotation);
+                    YuvPlaneCopier.copyPlane(dataU, 0, strideUV, pixelStrideUV, planes[1].getBuffer(), 0,
+                            planes[1].getRowStride(), planes[1].getPixelStride(), chromaWidth, chromaHeight,
+                            rotation);
+                    YuvPlaneCopier.copyPlane(dataV, 0, strideUV, pixelStrideUV, planes[2].getBuffer(), 0,
+                            planes[2].getRowStride(), planes[2].getPixelStride(), chromaWidth, chromaHeight,
+                            rotation);
+                    size = encodeWidth * encodeHeight * 3 / 2;
+                } else {
+                    ByteBuffer inputBuffer = encoder.getInputBuffer(index);
+                    if (inputBuffer == null) {
+                        throw new IllegalStateException("no input buffer at index " + index);
+                    }
+                    int chromaOffset = inputStride * inputSliceHeight;
+                    int chromaRows = (inputSliceHeight + 1) / 2;
+                    YuvPlaneCopier.copyPlane(dataY, 0, strideY, 1, inputBuffer, 0, inputStride, 1,
+                            width, height, rotation);
+                    if (inputColorFormat == EncoderCapabilities.COLOR_FORMAT_YUV420_SEMI_PLANAR) {
+                        //NV12，U和V交错，共用Y的行跨度
+                        YuvPlaneCopier.copyPlane(dataU, 0, strideUV, pixelStrideUV, inputBuffer, chromaOffset,
+                                inputStride, 2, chromaWidth, chromaHeight, rotation);
+                        YuvPlaneCopier.copyPlane(dataV, 0, strideUV, pixelStrideUV, inputBuffer, chromaOffset + 1,
+                                inputStride, 2, chromaWidth, chromaHeight, rotation);
+                        size = chromaOffset + inputStride * chromaRows;
+                    } else {
+                        //I420，U和V平面的行跨度是Y的一半
+                        int chromaStride = (inputStride + 1) / 2;
+                        YuvPlaneCopier.copyPlane(dataU, 0, strideUV, pixelStrideUV, inputBuffer, chromaOffset,
+                                chromaStride, 1, chromaWidth, chromaHeight, rotation);
+                        YuvPlaneCopier.copyPlane(dataV, 0, strideUV, pixelStrideUV, inputBuffer,
+                                chromaOffset + chromaStride * chromaRows, chromaStride, 1, chromaWidth, chromaHeight,
+                                rotation);
+                        size = chromaOffset + 2 * chromaStride * chromaRows;
+                    }
+                    size = Math.min(size, inputBuffer.capacity());
+                }
+                long presentationTimeNs = System.nanoTime();
+                encoder.queueInputBuffer(index, 0, size, presentationTimeNs / 1000, 0);
+                //和surface输入一样记录送入编码器的时间，按时间戳和编码输出关联
+                FrameTracer.getInstance().mark(FrameTracer.STAGE_OUTPUT_SWAP, timestampNs, presentationTimeNs);
+                return true;
+            } catch (IllegalStateException e) {
+                //编码器出错
+                Log.w(TAG, "queueVideoFrame()", e);
+                return false;
+            } finally {
+                Trace.endSection();
+            }
+        }
+    }
+
+    /**
+     * MuxStage按显示时间交错，fragmented MP4没有composition offset，分段和裁剪按显示时间切分，
+     * 都要求编码器按显示顺序输出。只有直接写MediaMuxer的录制保留profile的B帧设置
+     */
+    private EncoderProfile resolveVideoProfile(EncoderProfile requested) {
+        EncoderProfile profile = EncoderCapabilityProbe.resolve(requested);
+        if (profile.getMaxBFrames() > 0 && fragmentDurationMs > 0) {
+            Log.w(TAG, "fragmented mp4 doesn't support B-frames");
+            profile = profile.copy().setMaxBFrames(0);
+        }
+        return profile;
+    }
+
+    private static MediaFormat createVideoFormat(EncoderProfile profile, int colorFormat) {
+        MediaFormat format = MediaFormat.createVideoFormat(profile.getMime(), profile.getWidth(), profile.getHeight());
+        int frameRate = profile.getFrameRate();
+
+        // Set some required properties. The media codec may fail if these aren't defined.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, profile.getBitrate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, frameRate);
+        if (colorFormat == EncoderCapabilities.COLOR_FORMAT_SURFACE) {
+            //只对surface输入有效
+            format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000 / frameRate);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, profile.getKeyFrameInterval());
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Math.max(1, Math.round(profile.getKeyFrameInterval())));
+        }
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, profile.getBitrateMode());
+        if (profile.getBitrateMode() == EncoderProfile.BITRATE_MODE_CQ && profile.getQuality() >= 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            format.setInteger(MediaFormat.KEY_QUALITY, profile.getQuality());
+        }
+        if (profile.getProfile() != EncoderProfile.DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile.getProfile());
+            if (profile.getLevel() != EncoderProfile.DEFAULT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                format.setInteger(MediaFormat.KEY_LEVEL, profile.getLevel());
+            }
+        }
+        if (profile.getMaxBFrames() > 0) {
+            //MediaFormat.KEY_MAX_B_FRAMES，API 29才有常量，旧的编码器会忽略
+            format.setInteger("max-bframes", profile.getMaxBFrames());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            if (profile.getOperatingRate() > 0) {
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, profile.getOperatingRate());
+            }
+            if (profile.getPriority() >= 0) {
+                format.setInteger(MediaFormat.KEY_PRIORITY, profile.getPriority());
+            }
+        }
+        return format;
+    }
+
     private void prepareAudioEncoder() {
         try {
             audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
@@ -228,27 +614,296 @@ public class Mp4Recorder implements AudioSourceObserver {
             file.getParentFile().mkdirs();
         }
         try {
-            audioDatas = new LinkedBlockingDeque<>();
-            muxThread = new HandlerThread("Android-mp4-mux");
-            muxThread.start();
-            muxHandler = new Handler(muxThread.getLooper());
-
-            recordStarted = true;
-            muxer = new MediaMuxer(file.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            prepareAudioEncoder();
-            audioSource = new AndroidAudioSource();
-            audioSource.init(this);
-            audioSource.start();
-            videoEncoder.start();
-            audioEncoder.start();
+            segmentMuxer = null;
+            startRecord(createFileMuxer(file));
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * 分段录制，编码器和音频采集启动以后一直工作，只有{@link #startSegment}和{@link #endSegment}之间的帧写进分段文件
+     * 开始一个分段不需要重新创建编码器，只需要等一个关键帧。{@link #stopRecord()}之后用{@link #getSegmentFiles()}获取分段
+     * 分段按显示时间切分，编码器不能有B帧
+     */
+    public void startSegmentedRecord() {
+        if (videoProfile != null && videoProfile.getMaxBFrames() > 0) {
+            throw new IllegalStateException("segmented record doesn't support B-frames: " + videoProfile);
+        }
+        segmentMuxer = new SegmentMuxer<>(new SegmentMuxer.MuxerFactory<MediaFormat>() {
+            @Override
+            public SampleMuxer<MediaFormat> create(File file) throws IOException {
+                return createFileMuxer(file);
+            }
+
+            @Override
+            public boolean isVideo(MediaFormat format) {
+                return format.getString(MediaFormat.KEY_MIME).startsWith("video/");
+            }
+        });
+        startRecord(segmentMuxer);
+    }
+
+    /**
+     * 开始一个新的分段，从下一个视频关键帧开始写，同时请求编码器马上输出关键帧
+     */
+    public void startSegment(File file) {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        if (muxer == null || !recordStarted) {
+            throw new IllegalStateException("startSegmentedRecord() must be called first");
+        }
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        muxer.startSegment(file, System.nanoTime() / 1000);
+        requestKeyFrame();
+    }
+
+    /**
+     * 结束当前的分段，编码器继续工作
+     */
+    public void endSegment() {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        if (muxer != null) {
+            muxer.endSegment(System.nanoTime() / 1000);
+        }
+    }
+
+    /**
+     * 删除最后一个分段和它的文件
+     *
+     * @return 没有分段时返回false
+     */
+    public boolean deleteLastSegment() {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        return muxer != null && muxer.deleteLastSegment(System.nanoTime() / 1000);
+    }
 
+    public boolean isRecordingSegment() {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        return muxer != null && muxer.isRecordingSegment();
     }
 
+    /**
+     * 已经写完的分段文件，{@link #stopRecord()}之后包括所有分段
+     */
+    public List<File> getSegmentFiles() {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        if (muxer == null) {
+            throw new IllegalStateException("not a segmented record");
+        }
+        return muxer.getFinishedSegments();
+    }
+
+    /**
+     * 所有分段的总时长
+     */
+    public long getSegmentDurationUs() {
+        SegmentMuxer<MediaFormat> muxer = segmentMuxer;
+        return muxer == null ? 0 : muxer.getDurationUs();
+    }
+
+    private void requestKeyFrame() {
+        MediaCodec encoder = videoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "requestKeyFrame()", e);
+        }
+    }
+
+    private SampleMuxer<MediaFormat> createFileMuxer(File file) throws IOException {
+        if (fragmentDurationMs > 0) {
+            if (videoProfile == null || FragmentedMp4Muxer.isSupported(videoProfile.getMime())) {
+                return new FragmentedMp4Muxer(file, fragmentDurationMs);
+            }
+            //fragmented MP4只能写AVC
+            Log.w(TAG, "fragmented mp4 doesn't support " + videoProfile.getMime() + ", use MediaMuxer");
+        }
+        return new AndroidMuxer(file.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    /**
+     * 预录：编码器和音频采集马上启动，编码帧只保留最近durationMs的内容，按GOP整组淘汰
+     * 之后调用{@link #startRecord(File)}不需要等编码器启动和关键帧，缓存的帧先写进文件
+     * 需要先调用prepareVideoEncoder()，{@link #stopRecord()}同时结束预录
+     *
+     * @param maxBytes 缓存编码帧的内存上限
+     * @param bitrate  预录期间的码率，开始录制时恢复profile的码率，0表示不修改
+     */
+    public void startPreRoll(int durationMs, int maxBytes, int bitrate) {
+        if (recordStarted || videoEncoder == null) {
+            throw new IllegalStateException("recordStarted=" + recordStarted + " videoEncoder=" + videoEncoder);
+        }
+        segmentMuxer = null;
+        preRollBuffer = new PreRollBuffer(maxBytes, durationMs * 1000L);
+        startEncoders();
+        if (bitrate > 0) {
+            setVideoBitrate(bitrate);
+        }
+    }
+
+    public boolean isPreRolling() {
+        return preRollBuffer != null && muxStage == null;
+    }
+
+    private void startRecord(SampleMuxer<MediaFormat> sampleMuxer) {
+        MuxStage<MediaFormat> stage = new MuxStage<>(sampleMuxer, 2, MUX_QUEUE_MAX_BYTES, MuxStage.OverflowPolicy.BLOCK);
+        if (preRollBuffer != null) {
+            //编码器已经在工作，这里只添加轨道，缓存的帧由编码器的回调线程在下一帧之前写入，不阻塞调用线程
+            synchronized (trackLock) {
+                if (videoOutputFormat != null) {
+                    videoTrackIndex = stage.addTrack(videoOutputFormat, true);
+                }
+                if (audioOutputFormat != null) {
+                    audioTrackIndex = stage.addTrack(audioOutputFormat, false);
+                }
+                muxStage = stage;
+            }
+            if (videoProfile != null) {
+                setVideoBitrate(videoProfile.getBitrate());
+            }
+        } else {
+            muxStage = stage;
+            startEncoders();
+        }
+        startBitrateControl();
+    }
+
+    private void startEncoders() {
+        pcmRingBuffer = new PcmRingBuffer(PCM_RING_SLOT_COUNT,
+                AudioUtil.getPCMBufferSize(AudioConfig.SAMPLE_RATE, AudioConfig.FRAME_COUNT),
+                PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        audioTimestamper = new AudioTimestamper(AudioConfig.SAMPLE_RATE,
+                AudioConfig.CHANNEL_COUNT * 2 /* PCM_16BIT */, AudioTimestamper.SYSTEM_CLOCK);
+        muxThread = new HandlerThread("Android-mp4-mux");
+        muxThread.start();
+        muxHandler = new Handler(muxThread.getLooper());
+
+        recordStarted = true;
+        prepareAudioEncoder();
+        audioSource = takePreparedAudioSource();
+        if (audioSource == null) {
+            audioSource = new AndroidAudioSource();
+        }
+        audioSource.init(pcmRingBuffer);
+        audioSource.start();
+        videoEncoder.start();
+        audioEncoder.start();
+    }
+
+    /**
+     * 提前创建AudioRecord，构造要几十毫秒，可以在启动时放到后台线程和打开摄像头同时进行
+     * 下一次开始录制时直接使用，不再录制时调用{@link #releasePreparedAudioSource()}
+     */
+    public static void prepareAudioSource() {
+        AndroidAudioSource source = new AndroidAudioSource();
+        AndroidAudioSource old;
+        synchronized (Mp4Recorder.class) {
+            old = preparedAudioSource;
+            preparedAudioSource = source;
+        }
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    public static void releasePreparedAudioSource() {
+        AndroidAudioSource source = takePreparedAudioSource();
+        if (source != null) {
+            source.release();
+        }
+    }
+
+    private static synchronized AndroidAudioSource takePreparedAudioSource() {
+        AndroidAudioSource source = preparedAudioSource;
+        preparedAudioSource = null;
+        return source;
+    }
+
+    private void setVideoBitrate(int bitrate) {
+        MediaCodec encoder = videoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            //和stopRecord()同时发生时编码器可能已经释放
+            Log.w(TAG, "setParameters()", e);
+        }
+    }
+
+    private void startBitrateControl() {
+        if (minAdaptiveBitrate <= 0 || videoProfile == null
+                || videoProfile.getBitrateMode() == EncoderProfile.BITRATE_MODE_CQ) {
+            return;
+        }
+        int bitrate = videoProfile.getBitrate();
+        int frameRate = videoProfile.getFrameRate();
+        bitrateController = new AdaptiveBitrateController(Math.min(minAdaptiveBitrate, bitrate), bitrate,
+                Math.max(1, Math.min(minAdaptiveFrameRate, frameRate)), frameRate,
+                new AdaptiveBitrateController.Listener() {
+                    @Override
+                    public void onBitrateChanged(int bitrate) {
+                        Log.d(TAG, "adaptive bitrate=" + bitrate);
+                        setVideoBitrate(bitrate);
+                        if (adaptiveBitrateListener != null) {
+                            adaptiveBitrateListener.onBitrateChanged(bitrate);
+                        }
+                    }
+
+                    @Override
+                    public void onFrameRateChanged(int frameRate) {
+                        Log.d(TAG, "adaptive frameRate=" + frameRate);
+                        if (adaptiveBitrateListener != null) {
+                            adaptiveBitrateListener.onFrameRateChanged(frameRate);
+                        }
+                    }
+                });
+        synchronized (latencyLock) {
+            maxEncoderLatencyUs = 0;
+        }
+        lastWrittenBytes = 0;
+        lastBitrateCheckMs = SystemClock.elapsedRealtime();
+        muxHandler.postDelayed(bitrateCheck, BITRATE_CHECK_INTERVAL_MS);
+    }
+
+    private final Runnable bitrateCheck = new Runnable() {
+        @Override
+        public void run() {
+            MuxStage<MediaFormat> stage = muxStage;
+            if (stage == null || bitrateController == null || muxHandler == null) {
+                return;
+            }
+            long nowMs = SystemClock.elapsedRealtime();
+            long writtenBytes = stage.getWrittenBytes();
+            long bytesPerSec = (writtenBytes - lastWrittenBytes) * 1000 / Math.max(1, nowMs - lastBitrateCheckMs);
+            long latencyUs;
+            synchronized (latencyLock) {
+                latencyUs = maxEncoderLatencyUs;
+                maxEncoderLatencyUs = 0;
+            }
+            bitrateController.onStats(nowMs, latencyUs,
+                    stage.getQueuedBytes() / (float) stage.getMaxQueuedBytes(), bytesPerSec);
+            lastWrittenBytes = writtenBytes;
+            lastBitrateCheckMs = nowMs;
+            muxHandler.postDelayed(this, BITRATE_CHECK_INTERVAL_MS);
+        }
+    };
+
     public void stopRecord() {
         recordStarted = false;
+        if (muxHandler != null) {
+            muxHandler.removeCallbacks(bitrateCheck);
+        }
         releaseMuxer();
         releaseEncoders();
         releaseAudioSource();
@@ -257,6 +912,12 @@ public class Mp4Recorder implements AudioSourceObserver {
     }
 
     private void releaseAudioSource() {
+        if (pcmRingBuffer != null) {
+            Log.d(TAG, "pcm overrun=" + pcmRingBuffer.getOverrunCount()
+                    + " underrun=" + pcmRingBuffer.getUnderrunCount());
+            //唤醒可能阻塞的采集线程
+            pcmRingBuffer.close();
+        }
         if (audioSource != null) {
             audioSource.stop();
             audioSource.release();
@@ -265,17 +926,25 @@ public class Mp4Recorder implements AudioSourceObserver {
     }
 
     private void releaseMuxer() {
-        if (muxer != null) {
-            muxerStarted = false;
-            if (muxerStarted) {
-                muxer.stop();
-                muxer.release();
+        if (muxStage != null) {
+            MuxStage<MediaFormat> stage = muxStage;
+            muxStage = null;
+            //写完队列里剩余的数据再停止封装器
+            try {
+                stage.stop();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "releaseMuxer()", e);
             }
-            muxer = null;
-            Log.d(TAG, "release muxer");
+            Log.d(TAG, "release muxer written=" + stage.getWrittenCount() + " dropped=" + stage.getDroppedCount());
         }
         videoTrackIndex = -1;
         audioTrackIndex = -1;
+        PreRollBuffer buffer = preRollBuffer;
+        if (buffer != null) {
+            preRollBuffer = null;
+            Log.d(TAG, "pre-roll dropped=" + buffer.getDroppedCount());
+            buffer.clear();
+        }
     }
 
     private void closeThread() {
@@ -288,11 +957,18 @@ public class Mp4Recorder implements AudioSourceObserver {
     }
 
     private void releaseEncoders() {
-        if (videoEncoder != null) {
-            videoEncoder.stop();
-            videoEncoder.release();
-            videoEncoder = null;
-            Log.d(TAG, "release videoEncoder");
+        synchronized (videoInputLock) {
+            if (byteBufferInput) {
+                byteBufferInput = false;
+                freeVideoInputBuffers.clear();
+                Log.d(TAG, "dropped input frames=" + droppedInputFrames.get());
+            }
+            if (videoEncoder != null) {
+                videoEncoder.stop();
+                videoEncoder.release();
+                videoEncoder = null;
+                Log.d(TAG, "release videoEncoder");
+            }
         }
         if (audioEncoder != null) {
             audioEncoder.stop();
@@ -304,14 +980,9 @@ public class Mp4Recorder implements AudioSourceObserver {
             inputSurface = null;
             Log.d(TAG, "release inputSurface");
         }
-    }
-
-
-    @Override
-    public void onAudio(ByteBuffer byteBuffer) {
-        if (byteBuffer != null && audioDatas != null) {
-            Log.d(TAG, "onAudio()");
-            audioDatas.offer(byteBuffer);
+        synchronized (trackLock) {
+            videoOutputFormat = null;
+            audioOutputFormat = null;
         }
     }
 
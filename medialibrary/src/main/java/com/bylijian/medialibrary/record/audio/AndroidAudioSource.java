@@ -16,7 +16,7 @@ public class AndroidAudioSource implements AudioSource, AudioRecord.OnRecordPosi
     private HandlerThread thread;
     private Handler handler;
     private AudioRecord audioRecord;
-    private AudioSourceObserver audioSourceObserver;
+    private PcmRingBuffer ringBuffer;
     private final int pcmBufferSize;
 
     public AndroidAudioSource() {
@@ -26,8 +26,8 @@ public class AndroidAudioSource implements AudioSource, AudioRecord.OnRecordPosi
     }
 
     @Override
-    public void init(AudioSourceObserver observer) {
-        audioSourceObserver = observer;
+    public void init(PcmRingBuffer ringBuffer) {
+        this.ringBuffer = ringBuffer;
     }
 
     @Override
@@ -66,13 +66,18 @@ public class AndroidAudioSource implements AudioSource, AudioRecord.OnRecordPosi
 
     @Override
     public void onPeriodicNotification(AudioRecord recorder) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(AudioUtil.getPCMBufferSize(AudioConfig.SAMPLE_RATE, AudioConfig.FRAME_COUNT));
-        int readSize = audioRecord.read(byteBuffer, byteBuffer.capacity());
+        if (ringBuffer == null) {
+            return;
+        }
+        //直接读进环形缓冲区的槽位，不再每10ms分配一次内存
+        ByteBuffer slot = ringBuffer.beginWrite();
+        if (slot == null) {
+            return;
+        }
+        int readSize = audioRecord.read(slot, Math.min(pcmBufferSize, slot.capacity()));
         Log.v(TAG, "onPeriodicNotification()" + audioRecord + "readSize=" + readSize);
-        if (readSize >= 0) {
-            if (audioSourceObserver != null) {
-                audioSourceObserver.onAudio(byteBuffer);
-            }
+        if (readSize > 0) {
+            ringBuffer.commitWrite(readSize);
         }
     }
 }
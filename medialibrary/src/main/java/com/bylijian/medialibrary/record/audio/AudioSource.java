@@ -2,7 +2,10 @@ package com.bylijian.medialibrary.record.audio;
 
 public interface AudioSource {
 
-    void init(AudioSourceObserver observer);
+    /**
+     * @param ringBuffer 采集到的原始pcm音频数据写入这个缓冲区，由编码器消费
+     */
+    void init(PcmRingBuffer ringBuffer);
 
     void start();
 
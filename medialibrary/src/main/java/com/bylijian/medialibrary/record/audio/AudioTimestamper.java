@@ -0,0 +1,91 @@
+package com.bylijian.medialibrary.record.audio;
+
+/**
+ * 根据采样点个数计算音频的presentationTimeUs
+ * 在编码器回调里取System.nanoTime()会把回调的调度抖动带进时间戳，CPU紧张的时候音画会越来越不同步
+ * 这里只在第一次拿到数据的时候对齐一次视频使用的时钟，之后的时间戳都由采集开始以来的采样点个数换算，
+ * 相邻两帧的间隔严格等于采样时长，{@link PcmRingBuffer}丢弃的数据也计算在内，不会把后面的时间往前压缩
+ * 只在编码器的输入回调线程中使用
+ */
+public class AudioTimestamper {
+
+    /**
+     * 时钟，单位微秒，需要和视频帧的时间戳在同一个时间域
+     */
+    public interface Clock {
+        long nowUs();
+    }
+
+    /**
+     * SurfaceTexture的时间戳和System.nanoTime()都是CLOCK_MONOTONIC
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nowUs() {
+            return System.nanoTime() / 1000;
+        }
+    };
+
+    private final int sampleRate;
+    private final int bytesPerFrame;
+    private final Clock clock;
+
+    /**
+     * 字节位置0对应的时间，小于0表示还没有对齐
+     */
+    private long anchorUs = -1;
+    /**
+     * 已经送进编码器的数据结束的位置
+     */
+    private long nextPosition;
+
+    /**
+     * @param sampleRate    采样率
+     * @param bytesPerFrame 一个采样帧的字节数，即声道数*每个采样点的字节数
+     */
+    public AudioTimestamper(int sampleRate, int bytesPerFrame, Clock clock) {
+        if (sampleRate <= 0 || bytesPerFrame <= 0) {
+            throw new IllegalArgumentException("sampleRate=" + sampleRate + " bytesPerFrame=" + bytesPerFrame);
+        }
+        this.sampleRate = sampleRate;
+        this.bytesPerFrame = bytesPerFrame;
+        this.clock = clock;
+    }
+
+    /**
+     * 计算一段采集数据的时间戳
+     * 第一次调用时把采集流的末尾(writePosition)对齐到当前时间，认为最新的数据刚刚采集到
+     *
+     * @param position      这段数据在采集流中的字节位置
+     * @param length        这段数据的字节数
+     * @param writePosition 当前已经采集的总字节数
+     */
+    public long getPresentationTimeUs(long position, int length, long writePosition) {
+        if (anchorUs < 0) {
+            anchorUs = Math.max(0, clock.nowUs() - bytesToUs(writePosition));
+        }
+        nextPosition = position + length;
+        return anchorUs + bytesToUs(position);
+    }
+
+    /**
+     * 没有数据时(空的输入Buffer或者结束标记)使用的时间戳，紧接着上一段数据
+     */
+    public long getNextPresentationTimeUs() {
+        if (anchorUs < 0) {
+            return clock.nowUs();
+        }
+        return anchorUs + bytesToUs(nextPosition);
+    }
+
+    public boolean isAnchored() {
+        return anchorUs >= 0;
+    }
+
+    /**
+     * 每次都从总字节数换算，不会累积取整误差
+     */
+    private long bytesToUs(long bytes) {
+        return bytes / bytesPerFrame * 1000000L / sampleRate;
+    }
+}
@@ -0,0 +1,249 @@
+package com.bylijian.medialibrary.record.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者的无锁PCM环形缓冲区
+ * 所有槽位在构造时一次性分配，生产者(AudioSource)直接把AudioRecord的数据读进槽位，
+ * 消费者(AAC编码器的输入回调)把槽位数据拷贝进编码器的输入Buffer，采集过程中不再分配内存
+ * 缓冲区满的时候按照{@link OverrunPolicy}处理，同时统计溢出和欠载次数
+ *
+ * @see AudioSource
+ */
+public class PcmRingBuffer {
+
+    /**
+     * 缓冲区写满时生产者的处理策略
+     */
+    public enum OverrunPolicy {
+        /**
+         * 丢弃最旧的一个槽位，生产者永远不会阻塞
+         */
+        DROP_OLDEST,
+        /**
+         * 阻塞生产者直到消费者腾出槽位或者缓冲区被关闭
+         */
+        BLOCK
+    }
+
+    private static final long BLOCK_PARK_NANOS = 200_000L;
+
+    private final OverrunPolicy overrunPolicy;
+    private final int slotCount;
+    private final int slotSize;
+    /**
+     * 生产者使用的槽位
+     */
+    private final ByteBuffer[] writeSlots;
+    /**
+     * 同一块内存的另一个视图，只给消费者使用，避免两个线程修改同一个position/limit
+     */
+    private final ByteBuffer[] readSlots;
+    private final int[] lengths;
+    /**
+     * 每个槽位第一个字节在采集流中的字节位置，被丢弃的槽位也计算在内，用来推算时间戳
+     */
+    private final long[] positions;
+
+    /**
+     * 下一个要写入的序号，只由生产者修改
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * 下一个要读取的序号，由消费者推进，DROP_OLDEST时生产者也会通过CAS推进
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 已经提交的总字节数，只由生产者修改
+     */
+    private volatile long writePosition;
+    /**
+     * 最近一次读取的槽位在采集流中的字节位置，只由消费者访问
+     */
+    private long lastReadPosition;
+
+    private volatile boolean closed;
+    private volatile long overrunCount;
+    private volatile long underrunCount;
+
+    /**
+     * @param slotCount     槽位个数
+     * @param slotSize      每个槽位的字节数，一般是一次AudioRecord.read()的长度
+     * @param overrunPolicy 缓冲区满时的处理策略
+     */
+    public PcmRingBuffer(int slotCount, int slotSize, OverrunPolicy overrunPolicy) {
+        if (slotCount <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("slotCount=" + slotCount + " slotSize=" + slotSize);
+        }
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.overrunPolicy = overrunPolicy;
+        writeSlots = new ByteBuffer[slotCount];
+        readSlots = new ByteBuffer[slotCount];
+        lengths = new int[slotCount];
+        positions = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            writeSlots[i] = ByteBuffer.allocateDirect(slotSize);
+            readSlots[i] = writeSlots[i].duplicate();
+        }
+    }
+
+    /**
+     * 生产者获取下一个可写的槽位，写满数据后调用{@link #commitWrite(int)}
+     * 如果不调用commitWrite，这次写入就被放弃
+     *
+     * @return position为0、limit为槽位大小的槽位，缓冲区已经关闭时返回null
+     */
+    public ByteBuffer beginWrite() {
+        final long h = head.get();
+        if (h - tail.get() >= slotCount) {
+            if (overrunPolicy == OverrunPolicy.DROP_OLDEST) {
+                if (dropOldest(h)) {
+                    overrunCount++;
+                }
+            } else {
+                overrunCount++;
+                while (h - tail.get() >= slotCount && !closed) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+            }
+        }
+        if (closed) {
+            return null;
+        }
+        final ByteBuffer slot = writeSlots[(int) (h % slotCount)];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * 发布{@link #beginWrite()}返回的槽位
+     *
+     * @param length 写入的字节数
+     */
+    public void commitWrite(int length) {
+        if (length < 0 || length > slotSize) {
+            throw new IllegalArgumentException("length=" + length + " slotSize=" + slotSize);
+        }
+        final long h = head.get();
+        final int index = (int) (h % slotCount);
+        lengths[index] = length;
+        positions[index] = writePosition;
+        writePosition += length;
+        head.set(h + 1);
+    }
+
+    /**
+     * 拷贝写入的便捷方法
+     *
+     * @return 缓冲区已经关闭时返回false
+     */
+    public boolean write(ByteBuffer src) {
+        final ByteBuffer slot = beginWrite();
+        if (slot == null) {
+            return false;
+        }
+        final int length = Math.min(src.remaining(), slotSize);
+        final int oldLimit = src.limit();
+        src.limit(src.position() + length);
+        slot.put(src);
+        src.limit(oldLimit);
+        commitWrite(length);
+        return true;
+    }
+
+    /**
+     * 消费者读取最旧的一个槽位，从dst的position开始写入，dst的position会前移
+     * 超过dst剩余空间的部分会被丢弃
+     *
+     * @return 读取的字节数，缓冲区为空时返回0并且记一次欠载
+     */
+    public int read(ByteBuffer dst) {
+        final int start = dst.position();
+        while (true) {
+            final long t = tail.get();
+            if (t == head.get()) {
+                underrunCount++;
+                return 0;
+            }
+            final int index = (int) (t % slotCount);
+            final int length = Math.min(lengths[index], dst.remaining());
+            final long position = positions[index];
+            final ByteBuffer slot = readSlots[index];
+            slot.limit(length);
+            slot.position(0);
+            dst.put(slot);
+            // 拷贝期间生产者可能丢弃并重写了这个槽位，CAS失败说明数据无效，重新读取
+            if (tail.compareAndSet(t, t + 1)) {
+                lastReadPosition = position;
+                return length;
+            }
+            dst.position(start);
+        }
+    }
+
+    /**
+     * 可读的槽位个数
+     */
+    public int available() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * 采集开始以来提交的总字节数，包括被丢弃的部分
+     */
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * 最近一次{@link #read(ByteBuffer)}读到的数据在采集流中的字节位置，只能在消费者线程调用
+     */
+    public long getLastReadPosition() {
+        return lastReadPosition;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * DROP_OLDEST时是丢弃的槽位数，BLOCK时是生产者被阻塞的次数
+     */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * 关闭缓冲区，唤醒阻塞的生产者，之后的写入都会失败
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return false表示消费者已经先一步腾出了槽位，不需要丢弃
+     */
+    private boolean dropOldest(long h) {
+        while (true) {
+            final long t = tail.get();
+            if (h - t < slotCount) {
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.bylijian.medialibrary.record.mux;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于MediaMuxer的实现
+ */
+public class AndroidMuxer implements SampleMuxer<MediaFormat> {
+    private final MediaMuxer muxer;
+    /**
+     * 只在写入线程使用，复用同一个BufferInfo
+     */
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param format MediaMuxer.OutputFormat.*
+     */
+    public AndroidMuxer(String path, int format) throws IOException {
+        muxer = new MediaMuxer(path, format);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        bufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+        muxer.writeSampleData(trackIndex, data, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
@@ -0,0 +1,68 @@
+package com.bylijian.medialibrary.record.mux;
+
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MediaExtractor读取，MediaMuxer写普通MP4
+ */
+public class AndroidRemuxFactory implements Mp4Remuxer.Factory<MediaFormat> {
+
+    @Override
+    public SampleSource<MediaFormat> openSource(File file) throws IOException {
+        return new AndroidSampleSource(file);
+    }
+
+    @Override
+    public SampleMuxer<MediaFormat> createMuxer(File output) throws IOException {
+        return new AndroidMuxer(output.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public boolean isVideo(MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    @Override
+    public boolean isCompatible(MediaFormat format, MediaFormat other) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime == null || !mime.equals(other.getString(MediaFormat.KEY_MIME))) {
+            return false;
+        }
+        if (isVideo(format)) {
+            return sameInteger(format, other, MediaFormat.KEY_WIDTH)
+                    && sameInteger(format, other, MediaFormat.KEY_HEIGHT)
+                    && sameCsd(format, other, "csd-0")
+                    && sameCsd(format, other, "csd-1");
+        }
+        return sameInteger(format, other, MediaFormat.KEY_SAMPLE_RATE)
+                && sameInteger(format, other, MediaFormat.KEY_CHANNEL_COUNT)
+                && sameCsd(format, other, "csd-0");
+    }
+
+    private static boolean sameInteger(MediaFormat format, MediaFormat other, String key) {
+        if (!format.containsKey(key) || !other.containsKey(key)) {
+            return format.containsKey(key) == other.containsKey(key);
+        }
+        return format.getInteger(key) == other.getInteger(key);
+    }
+
+    private static boolean sameCsd(MediaFormat format, MediaFormat other, String key) {
+        final ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+        final ByteBuffer otherCsd = other.containsKey(key) ? other.getByteBuffer(key) : null;
+        if (csd == null || otherCsd == null) {
+            return csd == otherCsd;
+        }
+        // equals比较position到limit之间的内容
+        final ByteBuffer a = csd.duplicate();
+        final ByteBuffer b = otherCsd.duplicate();
+        a.position(0);
+        b.position(0);
+        return a.equals(b);
+    }
+}
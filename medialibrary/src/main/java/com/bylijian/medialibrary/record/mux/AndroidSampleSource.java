@@ -0,0 +1,75 @@
+package com.bylijian.medialibrary.record.mux;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于MediaExtractor的实现
+ */
+public class AndroidSampleSource implements SampleSource<MediaFormat> {
+    private final MediaExtractor extractor = new MediaExtractor();
+
+    public AndroidSampleSource(File file) throws IOException {
+        try {
+            extractor.setDataSource(file.getCanonicalPath());
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return extractor.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int track) {
+        return extractor.getTrackFormat(track);
+    }
+
+    @Override
+    public void selectTrack(int track) {
+        extractor.selectTrack(track);
+    }
+
+    @Override
+    public void seekToPreviousSync(long timeUs) {
+        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        // MediaExtractor会修改position和limit
+        return extractor.readSampleData(buffer.duplicate(), offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return extractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return extractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        return extractor.advance();
+    }
+
+    @Override
+    public void release() {
+        extractor.release();
+    }
+}
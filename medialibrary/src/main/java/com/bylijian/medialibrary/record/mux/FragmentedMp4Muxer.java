@@ -0,0 +1,69 @@
+package com.bylijian.medialibrary.record.mux;
+
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 把MediaFormat转换成{@link TrackFormat}，交给{@link FragmentedMp4Writer}写文件
+ * 只支持AVC和AAC，HEVC等其他格式需要用MediaMuxer
+ */
+public class FragmentedMp4Muxer implements SampleMuxer<MediaFormat> {
+    private final FragmentedMp4Writer writer;
+
+    /**
+     * @return 能否写这种格式的轨道
+     */
+    public static boolean isSupported(String mime) {
+        return TrackFormat.MIME_AVC.equals(mime) || TrackFormat.MIME_AAC.equals(mime);
+    }
+
+    public FragmentedMp4Muxer(File file, int fragmentDurationMs) throws FileNotFoundException {
+        writer = new FragmentedMp4Writer(new FileOutputStream(file).getChannel(), fragmentDurationMs);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (TrackFormat.MIME_AVC.equals(mime)) {
+            return writer.addTrack(TrackFormat.createAvc(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), getCsd(format, "csd-0"), getCsd(format, "csd-1")));
+        }
+        if (!TrackFormat.MIME_AAC.equals(mime)) {
+            throw new IllegalArgumentException("unsupported mime " + mime);
+        }
+        return writer.addTrack(TrackFormat.createAac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), getCsd(format, "csd-0")));
+    }
+
+    @Override
+    public void start() {
+        writer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        writer.writeSampleData(trackIndex, data, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void stop() {
+        writer.stop();
+    }
+
+    @Override
+    public void release() {
+        writer.release();
+    }
+
+    private static byte[] getCsd(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key).duplicate();
+        csd.clear();
+        byte[] bytes = new byte[csd.remaining()];
+        csd.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,636 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 纯Java实现的fragmented MP4(CMAF风格)写入器，可以替代MediaMuxer
+ * MediaMuxer在stop()时才写moov，进程被杀整个文件就不能播放了；这里start()时先写ftyp和不含样本表的moov，
+ * 之后每隔一段时间把缓存的编码帧作为一个moof+mdat片段直接写进FileChannel，
+ * 已经写出的片段在进程崩溃后仍然可以播放，内存占用也只和片段时长有关，不随录制时长增长
+ * 支持AVC(Annex B或者长度前缀格式)和AAC，所有方法需要在同一个线程调用
+ * trun里没有composition time offset，解码时间就是显示时间，所以视频不能有B帧，编码器需要关闭B帧
+ */
+public class FragmentedMp4Writer implements SampleMuxer<TrackFormat> {
+    /**
+     * 和MediaCodec.BUFFER_FLAG_KEY_FRAME相同
+     */
+    private static final int FLAG_KEY_FRAME = 1;
+    /**
+     * 和MediaCodec.BUFFER_FLAG_CODEC_CONFIG相同
+     */
+    private static final int FLAG_CODEC_CONFIG = 2;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    /**
+     * 最后一帧没有下一帧可以计算时长时使用
+     */
+    private static final int DEFAULT_VIDEO_FRAME_RATE = 30;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final class Track {
+        final TrackFormat format;
+        final int trackId;
+        final int timescale;
+        final int defaultDuration;
+        /**
+         * 当前片段的样本数据，视频已经转换成4字节长度前缀的格式
+         */
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        long[] times = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        int lastDuration;
+        /**
+         * 上一个样本的显示时间，用来发现乱序的视频帧
+         */
+        long lastPresentationTimeUs = Long.MIN_VALUE;
+
+        Track(TrackFormat format, int trackId) {
+            this.format = format;
+            this.trackId = trackId;
+            timescale = format.isVideo() ? VIDEO_TIMESCALE : format.getSampleRate();
+            defaultDuration = format.isVideo() ? VIDEO_TIMESCALE / DEFAULT_VIDEO_FRAME_RATE : AAC_FRAME_SAMPLES;
+            lastDuration = defaultDuration;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>();
+    private ByteBuffer boxBuffer = ByteBuffer.allocate(4096);
+    private int sequenceNumber;
+    private long startUs = -1;
+    private long fragmentStartUs;
+    private boolean started;
+    private boolean stopped;
+
+    /**
+     * @param channel            从文件开头写，close()由{@link #release()}负责
+     * @param fragmentDurationMs 片段时长，也是崩溃时最多丢失的时长
+     */
+    public FragmentedMp4Writer(FileChannel channel, int fragmentDurationMs) {
+        if (fragmentDurationMs <= 0) {
+            throw new IllegalArgumentException("fragmentDurationMs=" + fragmentDurationMs);
+        }
+        this.channel = channel;
+        this.fragmentDurationUs = fragmentDurationMs * 1000L;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("addTrack() after start()");
+        }
+        if (!TrackFormat.MIME_AVC.equals(format.getMime()) && !TrackFormat.MIME_AAC.equals(format.getMime())) {
+            throw new IllegalArgumentException("unsupported mime " + format.getMime());
+        }
+        tracks.add(new Track(format, tracks.size() + 1));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (started || tracks.isEmpty()) {
+            throw new IllegalStateException("started=" + started + " tracks=" + tracks.size());
+        }
+        started = true;
+        int csdBytes = 0;
+        for (Track track : tracks) {
+            csdBytes += track.format.getCsd0().length
+                    + (track.format.getCsd1() == null ? 0 : track.format.getCsd1().length);
+        }
+        final ByteBuffer buffer = prepareBoxBuffer(4096 + csdBytes);
+        writeFtyp(buffer);
+        writeMoov(buffer);
+        buffer.flip();
+        writeFully(buffer);
+    }
+
+    /**
+     * @throws IllegalArgumentException 视频帧的显示时间比上一帧早，也就是编码器输出了B帧
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        if (!started || stopped) {
+            throw new IllegalStateException("writeSampleData() started=" + started + " stopped=" + stopped);
+        }
+        if ((flags & FLAG_CODEC_CONFIG) != 0) {
+            // 参数集已经写在moov的avcC/esds里
+            return;
+        }
+        final Track track = tracks.get(trackIndex);
+        if (track.format.isVideo() && presentationTimeUs < track.lastPresentationTimeUs) {
+            throw new IllegalArgumentException("reordered video sample " + presentationTimeUs
+                    + " after " + track.lastPresentationTimeUs + ", B-frames are not supported");
+        }
+        track.lastPresentationTimeUs = presentationTimeUs;
+        if (startUs < 0) {
+            startUs = presentationTimeUs;
+            fragmentStartUs = presentationTimeUs;
+        }
+        if (presentationTimeUs - fragmentStartUs >= fragmentDurationUs) {
+            flushFragment(false);
+            fragmentStartUs = presentationTimeUs;
+        }
+        long time = Math.max(0, presentationTimeUs - startUs) * track.timescale / 1000000L;
+        if (track.count > 0) {
+            time = Math.max(time, track.times[track.count - 1]);
+        }
+        final int start = track.data.position();
+        if (track.format.isVideo() && startsWithStartCode(data) && !isLengthPrefixed(data)) {
+            appendAnnexB(track, data);
+        } else {
+            ensureDataCapacity(track, data.remaining());
+            track.data.put(data.duplicate());
+        }
+        appendSample(track, time, track.data.position() - start, flags);
+    }
+
+    /**
+     * 写出剩余的样本，文件在这之后就是完整的
+     */
+    @Override
+    public void stop() {
+        if (!started || stopped) {
+            return;
+        }
+        flushFragment(true);
+        stopped = true;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("force fragmented mp4 failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("close fragmented mp4 failed", e);
+        }
+    }
+
+    /**
+     * 已经写出的片段个数
+     */
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @param last 是否是最后一个片段。不是的话每个轨道保留最后一个样本，等下一个样本到了才知道它的时长
+     */
+    private void flushFragment(boolean last) {
+        final int[] flushCounts = new int[tracks.size()];
+        int sampleCount = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            final Track track = tracks.get(i);
+            flushCounts[i] = last ? track.count : Math.max(0, track.count - 1);
+            sampleCount += flushCounts[i];
+        }
+        if (sampleCount == 0) {
+            return;
+        }
+        sequenceNumber++;
+        final ByteBuffer buffer = prepareBoxBuffer(256 + sampleCount * 12);
+        final int moof = startBox(buffer, "moof");
+        final int mfhd = startFullBox(buffer, "mfhd", 0, 0);
+        buffer.putInt(sequenceNumber);
+        endBox(buffer, mfhd);
+        final int[] dataOffsetPositions = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            final int count = flushCounts[i];
+            if (count == 0) {
+                continue;
+            }
+            final Track track = tracks.get(i);
+            final int traf = startBox(buffer, "traf");
+            final int tfhd = startFullBox(buffer, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            buffer.putInt(track.trackId);
+            endBox(buffer, tfhd);
+            final int tfdt = startFullBox(buffer, "tfdt", 1, 0);
+            buffer.putLong(track.times[0]);
+            endBox(buffer, tfdt);
+            final int trun = startFullBox(buffer, "trun", 0,
+                    TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+            buffer.putInt(count);
+            dataOffsetPositions[i] = buffer.position();
+            buffer.putInt(0);
+            for (int s = 0; s < count; s++) {
+                final int duration;
+                if (s + 1 < track.count) {
+                    duration = (int) (track.times[s + 1] - track.times[s]);
+                    track.lastDuration = duration;
+                } else {
+                    duration = track.lastDuration;
+                }
+                buffer.putInt(duration);
+                buffer.putInt(track.sizes[s]);
+                buffer.putInt(!track.format.isVideo() || (track.flags[s] & FLAG_KEY_FRAME) != 0
+                        ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(buffer, trun);
+            endBox(buffer, traf);
+        }
+        endBox(buffer, moof);
+        // 数据偏移相对moof开始的位置，mdat头8字节
+        long dataOffset = buffer.position() - moof + 8;
+        long mdatSize = 8;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (flushCounts[i] == 0) {
+                continue;
+            }
+            buffer.putInt(dataOffsetPositions[i], (int) dataOffset);
+            final int bytes = flushedBytes(tracks.get(i), flushCounts[i]);
+            dataOffset += bytes;
+            mdatSize += bytes;
+        }
+        buffer.putInt((int) mdatSize);
+        buffer.put(ASCII.encode("mdat"));
+        buffer.flip();
+        writeFully(buffer);
+        for (int i = 0; i < tracks.size(); i++) {
+            if (flushCounts[i] == 0) {
+                continue;
+            }
+            final Track track = tracks.get(i);
+            final ByteBuffer data = track.data.duplicate();
+            data.flip();
+            data.limit(flushedBytes(track, flushCounts[i]));
+            writeFully(data);
+            removeFlushedSamples(track, flushCounts[i]);
+        }
+    }
+
+    private static int flushedBytes(Track track, int count) {
+        int bytes = 0;
+        for (int s = 0; s < count; s++) {
+            bytes += track.sizes[s];
+        }
+        return bytes;
+    }
+
+    /**
+     * 把没有写出的样本移动到缓存开头
+     */
+    private static void removeFlushedSamples(Track track, int count) {
+        final int bytes = flushedBytes(track, count);
+        track.data.flip();
+        track.data.position(bytes);
+        track.data.compact();
+        final int remaining = track.count - count;
+        System.arraycopy(track.times, count, track.times, 0, remaining);
+        System.arraycopy(track.sizes, count, track.sizes, 0, remaining);
+        System.arraycopy(track.flags, count, track.flags, 0, remaining);
+        track.count = remaining;
+    }
+
+    private static void appendSample(Track track, long time, int size, int flags) {
+        if (track.count == track.times.length) {
+            final int length = track.count * 2;
+            track.times = Arrays.copyOf(track.times, length);
+            track.sizes = Arrays.copyOf(track.sizes, length);
+            track.flags = Arrays.copyOf(track.flags, length);
+        }
+        track.times[track.count] = time;
+        track.sizes[track.count] = size;
+        track.flags[track.count] = flags;
+        track.count++;
+    }
+
+    private static void ensureDataCapacity(Track track, int bytes) {
+        if (track.data.remaining() < bytes) {
+            final ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(track.data.capacity() * 2, track.data.position() + bytes));
+            track.data.flip();
+            bigger.put(track.data);
+            track.data = bigger;
+        }
+    }
+
+    /**
+     * 把Annex B格式(起始码分隔)的NAL转换成4字节长度前缀的格式写进轨道缓存
+     */
+    private static void appendAnnexB(Track track, ByteBuffer src) {
+        // 最坏情况每个3字节起始码换成4字节长度
+        ensureDataCapacity(track, src.remaining() * 4 / 3 + 4);
+        final int end = src.limit();
+        int nalStart = skipStartCode(src, src.position());
+        while (nalStart < end) {
+            int next = findStartCode(src, nalStart, end);
+            int nalEnd = next;
+            // 4字节起始码的第一个0以及trailing_zero_8bits不属于NAL
+            while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                track.data.putInt(nalEnd - nalStart);
+                for (int i = nalStart; i < nalEnd; i++) {
+                    track.data.put(src.get(i));
+                }
+            }
+            nalStart = next < end ? skipStartCode(src, next) : end;
+        }
+    }
+
+    private static boolean startsWithStartCode(ByteBuffer src) {
+        final int p = src.position();
+        if (src.remaining() >= 3 && src.get(p) == 0 && src.get(p + 1) == 0) {
+            return src.get(p + 2) == 1 || (src.remaining() >= 4 && src.get(p + 2) == 0 && src.get(p + 3) == 1);
+        }
+        return false;
+    }
+
+    /**
+     * 长度为256到511的NAL的4字节长度前缀也是00 00 01开头，按长度前缀能正好走到结尾的认为已经是长度前缀格式
+     */
+    private static boolean isLengthPrefixed(ByteBuffer src) {
+        int p = src.position();
+        while (src.limit() - p >= 4) {
+            final long length = src.getInt(p) & 0xFFFFFFFFL;
+            if (length == 0 || length > src.limit() - p - 4) {
+                return false;
+            }
+            p += 4 + (int) length;
+        }
+        return p == src.limit();
+    }
+
+    /**
+     * @return from之后第一个00 00 01的位置，没有找到返回end
+     */
+    private static int findStartCode(ByteBuffer src, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (src.get(i) == 0 && src.get(i + 1) == 0 && src.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipStartCode(ByteBuffer src, int position) {
+        while (position < src.limit() && src.get(position) == 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static byte[] stripStartCode(byte[] nal) {
+        if (nal.length >= 3 && nal[0] == 0 && nal[1] == 0) {
+            final int skip = nal[2] == 1 ? 3 : (nal.length >= 4 && nal[2] == 0 && nal[3] == 1 ? 4 : 0);
+            return Arrays.copyOfRange(nal, skip, nal.length);
+        }
+        return nal;
+    }
+
+    private void writeFtyp(ByteBuffer buffer) {
+        final int ftyp = startBox(buffer, "ftyp");
+        buffer.put(ASCII.encode("iso5"));
+        buffer.putInt(512);
+        buffer.put(ASCII.encode("iso5"));
+        buffer.put(ASCII.encode("iso6"));
+        buffer.put(ASCII.encode("avc1"));
+        buffer.put(ASCII.encode("mp41"));
+        endBox(buffer, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer buffer) {
+        final int moov = startBox(buffer, "moov");
+        final int mvhd = startFullBox(buffer, "mvhd", 0, 0);
+        buffer.putInt(0); // creation_time
+        buffer.putInt(0); // modification_time
+        buffer.putInt(MOVIE_TIMESCALE);
+        buffer.putInt(0); // duration，由片段决定
+        buffer.putInt(0x00010000); // rate 1.0
+        buffer.putShort((short) 0x0100); // volume 1.0
+        buffer.put(new byte[10]);
+        putMatrix(buffer);
+        buffer.put(new byte[24]);
+        buffer.putInt(tracks.size() + 1); // next_track_ID
+        endBox(buffer, mvhd);
+        for (Track track : tracks) {
+            writeTrak(buffer, track);
+        }
+        final int mvex = startBox(buffer, "mvex");
+        for (Track track : tracks) {
+            final int trex = startFullBox(buffer, "trex", 0, 0);
+            buffer.putInt(track.trackId);
+            buffer.putInt(1); // default_sample_description_index
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            endBox(buffer, trex);
+        }
+        endBox(buffer, mvex);
+        endBox(buffer, moov);
+    }
+
+    private void writeTrak(ByteBuffer buffer, Track track) {
+        final boolean video = track.format.isVideo();
+        final int trak = startBox(buffer, "trak");
+        final int tkhd = startFullBox(buffer, "tkhd", 0, 0x000003); // enabled | in_movie
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(track.trackId);
+        buffer.putInt(0);
+        buffer.putInt(0); // duration
+        buffer.put(new byte[8]);
+        buffer.putShort((short) 0); // layer
+        buffer.putShort((short) 0); // alternate_group
+        buffer.putShort((short) (video ? 0 : 0x0100));
+        buffer.putShort((short) 0);
+        putMatrix(buffer);
+        buffer.putInt(video ? track.format.getWidth() << 16 : 0);
+        buffer.putInt(video ? track.format.getHeight() << 16 : 0);
+        endBox(buffer, tkhd);
+
+        final int mdia = startBox(buffer, "mdia");
+        final int mdhd = startFullBox(buffer, "mdhd", 0, 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(track.timescale);
+        buffer.putInt(0);
+        buffer.putShort((short) 0x55C4); // und
+        buffer.putShort((short) 0);
+        endBox(buffer, mdhd);
+        final int hdlr = startFullBox(buffer, "hdlr", 0, 0);
+        buffer.putInt(0);
+        buffer.put(ASCII.encode(video ? "vide" : "soun"));
+        buffer.put(new byte[12]);
+        buffer.put(ASCII.encode(video ? "VideoHandler" : "SoundHandler"));
+        buffer.put((byte) 0);
+        endBox(buffer, hdlr);
+
+        final int minf = startBox(buffer, "minf");
+        if (video) {
+            final int vmhd = startFullBox(buffer, "vmhd", 0, 1);
+            buffer.put(new byte[8]);
+            endBox(buffer, vmhd);
+        } else {
+            final int smhd = startFullBox(buffer, "smhd", 0, 0);
+            buffer.putInt(0);
+            endBox(buffer, smhd);
+        }
+        final int dinf = startBox(buffer, "dinf");
+        final int dref = startFullBox(buffer, "dref", 0, 0);
+        buffer.putInt(1);
+        endBox(buffer, startFullBox(buffer, "url ", 0, 1)); // 数据在同一个文件
+        endBox(buffer, dref);
+        endBox(buffer, dinf);
+
+        final int stbl = startBox(buffer, "stbl");
+        final int stsd = startFullBox(buffer, "stsd", 0, 0);
+        buffer.putInt(1);
+        if (video) {
+            writeAvc1(buffer, track.format);
+        } else {
+            writeMp4a(buffer, track.format);
+        }
+        endBox(buffer, stsd);
+        // 样本表都是空的，样本信息在每个片段的trun里
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            final int box = startFullBox(buffer, type, 0, 0);
+            buffer.putInt(0);
+            endBox(buffer, box);
+        }
+        final int stsz = startFullBox(buffer, "stsz", 0, 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        endBox(buffer, stsz);
+        endBox(buffer, stbl);
+        endBox(buffer, minf);
+        endBox(buffer, mdia);
+        endBox(buffer, trak);
+    }
+
+    private void writeAvc1(ByteBuffer buffer, TrackFormat format) {
+        final byte[] sps = stripStartCode(format.getCsd0());
+        final byte[] pps = stripStartCode(format.getCsd1());
+        final int avc1 = startBox(buffer, "avc1");
+        buffer.put(new byte[6]);
+        buffer.putShort((short) 1); // data_reference_index
+        buffer.put(new byte[16]);
+        buffer.putShort((short) format.getWidth());
+        buffer.putShort((short) format.getHeight());
+        buffer.putInt(0x00480000); // 72 dpi
+        buffer.putInt(0x00480000);
+        buffer.putInt(0);
+        buffer.putShort((short) 1); // frame_count
+        buffer.put(new byte[32]); // compressorname
+        buffer.putShort((short) 0x0018); // depth
+        buffer.putShort((short) -1);
+        final int avcC = startBox(buffer, "avcC");
+        buffer.put((byte) 1); // configurationVersion
+        buffer.put(sps[1]); // AVCProfileIndication
+        buffer.put(sps[2]); // profile_compatibility
+        buffer.put(sps[3]); // AVCLevelIndication
+        buffer.put((byte) 0xFF); // lengthSizeMinusOne = 3
+        buffer.put((byte) 0xE1); // 1个SPS
+        buffer.putShort((short) sps.length);
+        buffer.put(sps);
+        buffer.put((byte) 1); // 1个PPS
+        buffer.putShort((short) pps.length);
+        buffer.put(pps);
+        endBox(buffer, avcC);
+        endBox(buffer, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer buffer, TrackFormat format) {
+        final byte[] asc = format.getCsd0();
+        final int mp4a = startBox(buffer, "mp4a");
+        buffer.put(new byte[6]);
+        buffer.putShort((short) 1); // data_reference_index
+        buffer.put(new byte[8]);
+        buffer.putShort((short) format.getChannelCount());
+        buffer.putShort((short) 16); // samplesize
+        buffer.putInt(0);
+        buffer.putInt(format.getSampleRate() << 16);
+        final int esds = startFullBox(buffer, "esds", 0, 0);
+        // ES_Descriptor
+        buffer.put((byte) 0x03);
+        buffer.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        buffer.putShort((short) 0); // ES_ID
+        buffer.put((byte) 0);
+        // DecoderConfigDescriptor
+        buffer.put((byte) 0x04);
+        buffer.put((byte) (13 + 2 + asc.length));
+        buffer.put((byte) 0x40); // Audio ISO/IEC 14496-3
+        buffer.put((byte) 0x15); // AudioStream
+        buffer.put(new byte[3]); // bufferSizeDB
+        buffer.putInt(0); // maxBitrate
+        buffer.putInt(0); // avgBitrate
+        // DecoderSpecificInfo
+        buffer.put((byte) 0x05);
+        buffer.put((byte) asc.length);
+        buffer.put(asc);
+        // SLConfigDescriptor
+        buffer.put((byte) 0x06);
+        buffer.put((byte) 1);
+        buffer.put((byte) 0x02);
+        endBox(buffer, esds);
+        endBox(buffer, mp4a);
+    }
+
+    private static void putMatrix(ByteBuffer buffer) {
+        final int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            buffer.putInt(value);
+        }
+    }
+
+    private ByteBuffer prepareBoxBuffer(int capacity) {
+        if (boxBuffer.capacity() < capacity) {
+            boxBuffer = ByteBuffer.allocate(capacity);
+        }
+        boxBuffer.clear();
+        return boxBuffer;
+    }
+
+    private static int startBox(ByteBuffer buffer, String type) {
+        final int position = buffer.position();
+        buffer.putInt(0);
+        buffer.put(ASCII.encode(type));
+        return position;
+    }
+
+    private static int startFullBox(ByteBuffer buffer, String type, int version, int flags) {
+        final int position = startBox(buffer, type);
+        buffer.putInt((version << 24) | flags);
+        return position;
+    }
+
+    private static void endBox(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    private void writeFully(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("write fragmented mp4 failed", e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link Mp4SampleSource}读取，{@link FragmentedMp4Writer}写fragmented MP4，不依赖android.media
+ */
+public class FragmentedRemuxFactory implements Mp4Remuxer.Factory<TrackFormat> {
+    private final int fragmentDurationMs;
+
+    public FragmentedRemuxFactory(int fragmentDurationMs) {
+        this.fragmentDurationMs = fragmentDurationMs;
+    }
+
+    @Override
+    public SampleSource<TrackFormat> openSource(File file) throws IOException {
+        return new Mp4SampleSource(file);
+    }
+
+    @Override
+    public SampleMuxer<TrackFormat> createMuxer(File output) throws IOException {
+        return new FragmentedMp4Writer(new FileOutputStream(output).getChannel(), fragmentDurationMs);
+    }
+
+    @Override
+    public boolean isVideo(TrackFormat format) {
+        return format.isVideo();
+    }
+
+    @Override
+    public boolean isCompatible(TrackFormat format, TrackFormat other) {
+        return format.isCompatible(other);
+    }
+}
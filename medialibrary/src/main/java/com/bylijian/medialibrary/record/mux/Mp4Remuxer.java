@@ -0,0 +1,286 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不重新编码的拼接和裁剪，帧数据原样从{@link SampleSource}拷贝到{@link SampleMuxer}
+ * 每个片段的第一帧接在上一个片段的最后一帧之后，裁剪的开始位置向前对齐到关键帧，
+ * 结束位置是解码顺序中第一个显示时间不早于结束时间的帧
+ * 读取在调用线程，写入在{@link MuxStage}的线程，帧数据经过复用的direct buffer，耗时取决于磁盘读写速度
+ * 不要在主线程调用
+ *
+ * @param <F> 轨道格式
+ */
+public class Mp4Remuxer<F> {
+    private static final int DEFAULT_BUFFER_SIZE = 512 * 1024;
+    /**
+     * 读取缓存最多扩大到这个大小
+     */
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    /**
+     * 没有办法从帧间隔推算时长时使用
+     */
+    private static final long DEFAULT_FRAME_DURATION_US = 1000000 / 30;
+
+    /**
+     * 打开输入、创建输出和比较轨道格式，Android上用{@link AndroidRemuxFactory}
+     */
+    public interface Factory<F> {
+        SampleSource<F> openSource(File file) throws IOException;
+
+        SampleMuxer<F> createMuxer(File output) throws IOException;
+
+        boolean isVideo(F format);
+
+        /**
+         * @return 两个轨道的编码参数相同，帧数据可以直接拼在一起
+         */
+        boolean isCompatible(F format, F other);
+    }
+
+    /**
+     * 输入文件中的一段，时间相对于文件的第一帧
+     */
+    public static final class Clip {
+        final File file;
+        final long startUs;
+        final long endUs;
+
+        public Clip(File file) {
+            this(file, 0, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param startUs 开始时间，实际从这之前最近的关键帧开始
+         * @param endUs   结束时间，不包括这个时间的帧
+         */
+        public Clip(File file, long startUs, long endUs) {
+            if (startUs < 0 || endUs <= startUs) {
+                throw new IllegalArgumentException("startUs=" + startUs + " endUs=" + endUs);
+            }
+            this.file = file;
+            this.startUs = startUs;
+            this.endUs = endUs;
+        }
+    }
+
+    private final Factory<F> factory;
+    private ByteBuffer buffer;
+    private long copiedBytes;
+
+    public Mp4Remuxer(Factory<F> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * 按顺序拼接，所有文件的轨道格式要和第一个文件兼容
+     *
+     * @return 输出文件的时长
+     */
+    public long concat(List<File> inputs, File output) throws IOException {
+        final List<Clip> clips = new ArrayList<>(inputs.size());
+        for (File input : inputs) {
+            clips.add(new Clip(input));
+        }
+        return remux(clips, output);
+    }
+
+    /**
+     * @return 输出文件的时长
+     */
+    public long trim(File input, File output, long startUs, long endUs) throws IOException {
+        return remux(Collections.singletonList(new Clip(input, startUs, endUs)), output);
+    }
+
+    /**
+     * 输出的轨道和第一个片段相同，失败时删除输出文件
+     *
+     * @return 输出文件的时长
+     * @throws IllegalArgumentException 片段的轨道格式不兼容
+     */
+    public long remux(List<Clip> clips, File output) throws IOException {
+        if (clips.isEmpty()) {
+            throw new IllegalArgumentException("no input");
+        }
+        final List<F> formats = new ArrayList<>();
+        final SampleSource<F> first = factory.openSource(clips.get(0).file);
+        try {
+            for (int i = 0; i < first.getTrackCount(); i++) {
+                formats.add(first.getTrackFormat(i));
+            }
+        } finally {
+            first.release();
+        }
+        if (formats.isEmpty()) {
+            throw new IOException(clips.get(0).file + " has no track");
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+        }
+        final MuxStage<F> stage = new MuxStage<>(factory.createMuxer(output), formats.size(),
+                MAX_QUEUED_BYTES, MuxStage.OverflowPolicy.BLOCK);
+        boolean success = false;
+        try {
+            final int[] stageTracks = new int[formats.size()];
+            for (int i = 0; i < formats.size(); i++) {
+                stageTracks[i] = stage.addTrack(formats.get(i), factory.isVideo(formats.get(i)));
+            }
+            long offsetUs = 0;
+            for (Clip clip : clips) {
+                offsetUs = copyClip(clip, formats, stage, stageTracks, offsetUs);
+            }
+            success = true;
+            return offsetUs;
+        } finally {
+            try {
+                stage.stop();
+            } finally {
+                if (!success) {
+                    output.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * 累计拷贝的字节数
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * @return 下一个片段第一帧的时间戳
+     */
+    private long copyClip(Clip clip, List<F> formats, MuxStage<F> stage, int[] stageTracks, long offsetUs)
+            throws IOException {
+        final SampleSource<F> source = factory.openSource(clip.file);
+        try {
+            final int trackCount = source.getTrackCount();
+            final int[] outputTracks = mapTracks(clip.file, source, formats);
+            boolean hasVideo = false;
+            for (int i = 0; i < trackCount; i++) {
+                if (outputTracks[i] >= 0) {
+                    source.selectTrack(i);
+                    hasVideo |= factory.isVideo(formats.get(outputTracks[i]));
+                }
+            }
+            final long firstUs = source.getSampleTime();
+            if (firstUs < 0) {
+                return offsetUs;
+            }
+            if (clip.startUs > 0) {
+                source.seekToPreviousSync(firstUs + clip.startUs);
+            }
+            final long endUs = clip.endUs == Long.MAX_VALUE ? Long.MAX_VALUE : firstUs + clip.endUs;
+
+            long clipStartUs = -1;
+            long nextOffsetUs = offsetUs;
+            final long[] lastUs = new long[trackCount];
+            Arrays.fill(lastUs, -1);
+            final long[] durationUs = new long[trackCount];
+            final boolean[] ended = new boolean[trackCount];
+            int endedCount = 0;
+            int selectedCount = 0;
+            for (int track : outputTracks) {
+                selectedCount += track >= 0 ? 1 : 0;
+            }
+            do {
+                final int track = source.getSampleTrackIndex();
+                if (track < 0) {
+                    break;
+                }
+                final long sampleUs = source.getSampleTime();
+                final int flags = source.getSampleFlags() & SampleSource.FLAG_KEY_FRAME;
+                final boolean video = factory.isVideo(formats.get(outputTracks[track]));
+                // 按解码顺序在第一个超出endUs的帧截止，之后显示时间更早的B帧参考了被丢掉的帧，不能解码
+                if (ended[track] || sampleUs >= endUs) {
+                    if (!ended[track]) {
+                        ended[track] = true;
+                        if (++endedCount == selectedCount) {
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                if (clipStartUs < 0) {
+                    // 从视频关键帧开始，之前的音频一起丢掉，保证开头能解码
+                    if (hasVideo && (!video || flags == 0)) {
+                        continue;
+                    }
+                    clipStartUs = sampleUs;
+                }
+                if (sampleUs < clipStartUs) {
+                    continue;
+                }
+                final int size = readSample(source);
+                if (size < 0) {
+                    break;
+                }
+                final long timeUs = offsetUs + sampleUs - clipStartUs;
+                if (lastUs[track] >= 0 && timeUs > lastUs[track]) {
+                    durationUs[track] = timeUs - lastUs[track];
+                }
+                lastUs[track] = timeUs;
+                nextOffsetUs = Math.max(nextOffsetUs,
+                        timeUs + (durationUs[track] > 0 ? durationUs[track] : DEFAULT_FRAME_DURATION_US));
+                stage.writeSample(stageTracks[outputTracks[track]], buffer, timeUs, flags);
+                copiedBytes += size;
+            } while (source.advance());
+            return nextOffsetUs;
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * 每个输出轨道对应一个格式兼容的输入轨道，多出来的输入轨道不读取
+     *
+     * @return 每个输入轨道对应的输出轨道，-1表示不读取
+     * @throws IllegalArgumentException 有输出轨道找不到兼容的输入轨道
+     */
+    private int[] mapTracks(File file, SampleSource<F> source, List<F> formats) {
+        final int[] outputTracks = new int[source.getTrackCount()];
+        Arrays.fill(outputTracks, -1);
+        for (int j = 0; j < formats.size(); j++) {
+            int match = -1;
+            for (int i = 0; i < outputTracks.length && match < 0; i++) {
+                if (outputTracks[i] < 0 && factory.isCompatible(formats.get(j), source.getTrackFormat(i))) {
+                    match = i;
+                }
+            }
+            if (match < 0) {
+                throw new IllegalArgumentException(file + " has no track compatible with " + formats.get(j));
+            }
+            outputTracks[match] = j;
+        }
+        return outputTracks;
+    }
+
+    /**
+     * 读到{@link #buffer}的开头，position和limit设置为帧数据
+     */
+    private int readSample(SampleSource<F> source) {
+        while (true) {
+            try {
+                final int size = source.readSampleData(buffer, 0);
+                buffer.clear();
+                buffer.limit(Math.max(size, 0));
+                return size;
+            } catch (IllegalArgumentException e) {
+                // MediaExtractor在API 28以前不能提前知道帧大小，缓存不够时扩大再读
+                if (buffer.capacity() >= MAX_SAMPLE_SIZE) {
+                    throw e;
+                }
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            }
+        }
+    }
+}
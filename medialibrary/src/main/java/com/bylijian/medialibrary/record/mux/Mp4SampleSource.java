@@ -0,0 +1,655 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 纯Java实现的MP4解析器，支持普通MP4(stbl样本表)和fragmented MP4(moof片段)里的AVC和AAC轨道，其他轨道忽略
+ * 构造时把样本表全部读进内存，帧数据在{@link #readSampleData}时直接从文件读到调用方的buffer
+ * 视频帧保持文件中4字节长度前缀的格式，{@link FragmentedMp4Writer}可以直接写；不依赖android.media，可以在JVM上测试
+ */
+public class Mp4SampleSource implements SampleSource<TrackFormat> {
+    private static final int MOOV = fourcc("moov");
+    private static final int MOOF = fourcc("moof");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int AVC1 = fourcc("avc1");
+    private static final int AVCC = fourcc("avcC");
+    private static final int MP4A = fourcc("mp4a");
+    private static final int ESDS = fourcc("esds");
+    private static final int STTS = fourcc("stts");
+    private static final int CTTS = fourcc("ctts");
+    private static final int STSS = fourcc("stss");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STSC = fourcc("stsc");
+    private static final int STCO = fourcc("stco");
+    private static final int CO64 = fourcc("co64");
+    private static final int MVEX = fourcc("mvex");
+    private static final int TREX = fourcc("trex");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+
+    private static final int TFHD_BASE_DATA_OFFSET = 0x000001;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_DURATION = 0x000008;
+    private static final int TFHD_DEFAULT_SIZE = 0x000010;
+    private static final int TFHD_DEFAULT_FLAGS = 0x000020;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x000004;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_SAMPLE_COMPOSITION_TIME_OFFSET = 0x000800;
+    private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+    private static final class Track {
+        final int trackId;
+        final int timescale;
+        final TrackFormat format;
+        long[] offsets = new long[64];
+        int[] sizes = new int[64];
+        long[] timesUs = new long[64];
+        boolean[] sync = new boolean[64];
+        int count;
+        int cursor;
+        boolean selected;
+        int defaultDuration;
+        int defaultSize;
+        int defaultFlags;
+        /**
+         * 片段中下一个样本的解码时间，单位是timescale
+         */
+        long nextDecodeTime;
+
+        Track(int trackId, int timescale, TrackFormat format) {
+            this.trackId = trackId;
+            this.timescale = timescale;
+            this.format = format;
+        }
+
+        void addSample(long offset, int size, long time, boolean isSync) {
+            if (count == offsets.length) {
+                final int length = count * 2;
+                offsets = Arrays.copyOf(offsets, length);
+                sizes = Arrays.copyOf(sizes, length);
+                timesUs = Arrays.copyOf(timesUs, length);
+                sync = Arrays.copyOf(sync, length);
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            timesUs[count] = time * 1000000L / timescale;
+            // 音频帧都可以单独解码
+            sync[count] = isSync || !format.isVideo();
+            count++;
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<Track> tracks = new ArrayList<>();
+
+    public Mp4SampleSource(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        try {
+            parse();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int track) {
+        return tracks.get(track).format;
+    }
+
+    @Override
+    public void selectTrack(int track) {
+        tracks.get(track).selected = true;
+    }
+
+    @Override
+    public void seekToPreviousSync(long timeUs) {
+        Track reference = null;
+        for (Track track : tracks) {
+            if (track.selected && (reference == null || (track.format.isVideo() && !reference.format.isVideo()))) {
+                reference = track;
+            }
+        }
+        if (reference == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < reference.count && reference.timesUs[i] <= timeUs; i++) {
+            if (reference.sync[i]) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            // 第一个关键帧比timeUs还晚
+            index = 0;
+            while (index < reference.count && !reference.sync[index]) {
+                index++;
+            }
+        }
+        reference.cursor = index;
+        final long syncUs = index < reference.count ? reference.timesUs[index] : Long.MAX_VALUE;
+        for (Track track : tracks) {
+            if (track != reference) {
+                track.cursor = 0;
+                while (track.cursor < track.count && track.timesUs[track.cursor] < syncUs) {
+                    track.cursor++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        final Track track = currentTrack();
+        if (track == null) {
+            return -1;
+        }
+        final int size = track.sizes[track.cursor];
+        if (offset + size > buffer.capacity()) {
+            // 和MediaExtractor一样
+            throw new IllegalArgumentException("buffer too small: " + buffer.capacity() + " < " + (offset + size));
+        }
+        final ByteBuffer target = buffer.duplicate();
+        target.clear();
+        target.position(offset);
+        target.limit(offset + size);
+        try {
+            readFully(target, track.offsets[track.cursor]);
+        } catch (IOException e) {
+            throw new RuntimeException("read sample failed", e);
+        }
+        return size;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return tracks.indexOf(currentTrack());
+    }
+
+    @Override
+    public long getSampleTime() {
+        final Track track = currentTrack();
+        return track == null ? -1 : track.timesUs[track.cursor];
+    }
+
+    @Override
+    public int getSampleFlags() {
+        final Track track = currentTrack();
+        return track != null && track.sync[track.cursor] ? FLAG_KEY_FRAME : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        final Track track = currentTrack();
+        if (track == null) {
+            return false;
+        }
+        track.cursor++;
+        return currentTrack() != null;
+    }
+
+    @Override
+    public void release() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("close mp4 failed", e);
+        }
+    }
+
+    /**
+     * 选中的轨道里时间戳最小的帧所在的轨道
+     */
+    private Track currentTrack() {
+        Track earliest = null;
+        for (Track track : tracks) {
+            if (track.selected && track.cursor < track.count && (earliest == null
+                    || track.timesUs[track.cursor] < earliest.timesUs[earliest.cursor])) {
+                earliest = track;
+            }
+        }
+        return earliest;
+    }
+
+    private void parse() throws IOException {
+        final long fileSize = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit(8);
+            readFully(header, position);
+            header.flip();
+            long size = header.getInt() & 0xFFFFFFFFL;
+            final int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                header.clear();
+                header.limit(8);
+                readFully(header, position + 8);
+                header.flip();
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                // 录制中断时最后一个box可能不完整，前面的片段仍然可以读
+                break;
+            }
+            if (type == MOOV) {
+                parseMoov(readBox(position + headerSize, size - headerSize));
+            } else if (type == MOOF) {
+                parseMoof(readBox(position + headerSize, size - headerSize), position);
+            }
+            position += size;
+        }
+        if (tracks.isEmpty()) {
+            throw new IOException("no AVC or AAC track");
+        }
+    }
+
+    private ByteBuffer readBox(long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("box too large: " + size);
+        }
+        final ByteBuffer box = ByteBuffer.allocate((int) size);
+        readFully(box, position);
+        box.flip();
+        return box;
+    }
+
+    private void parseMoov(ByteBuffer moov) throws IOException {
+        for (ByteBuffer trak : findBoxes(moov, TRAK)) {
+            final Track track = parseTrak(trak);
+            if (track != null) {
+                tracks.add(track);
+            }
+        }
+        final ByteBuffer mvex = findBox(moov, MVEX);
+        if (mvex != null) {
+            for (ByteBuffer trex : findBoxes(mvex, TREX)) {
+                trex.position(4);
+                final Track track = findTrack(trex.getInt());
+                if (track != null) {
+                    trex.getInt(); // default_sample_description_index
+                    track.defaultDuration = trex.getInt();
+                    track.defaultSize = trex.getInt();
+                    track.defaultFlags = trex.getInt();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 不支持的轨道返回null
+     */
+    private static Track parseTrak(ByteBuffer trak) throws IOException {
+        final ByteBuffer tkhd = requireBox(trak, TKHD);
+        final int tkhdVersion = tkhd.get(0);
+        tkhd.position(tkhdVersion == 1 ? 20 : 12);
+        final int trackId = tkhd.getInt();
+
+        final ByteBuffer mdia = requireBox(trak, MDIA);
+        final ByteBuffer mdhd = requireBox(mdia, MDHD);
+        mdhd.position(mdhd.get(0) == 1 ? 20 : 12);
+        final int timescale = mdhd.getInt();
+        final ByteBuffer stbl = requireBox(requireBox(mdia, MINF), STBL);
+        final ByteBuffer stsd = requireBox(stbl, STSD);
+        stsd.position(8);
+        final ByteBuffer entries = stsd.slice();
+        final TrackFormat format;
+        final ByteBuffer avc1 = findBox(entries, AVC1);
+        final ByteBuffer mp4a = findBox(entries, MP4A);
+        if (avc1 != null) {
+            format = parseAvc1(avc1);
+        } else if (mp4a != null) {
+            format = parseMp4a(mp4a, timescale);
+        } else {
+            return null;
+        }
+        if (timescale <= 0) {
+            throw new IOException("invalid timescale " + timescale);
+        }
+        final Track track = new Track(trackId, timescale, format);
+        parseSampleTable(stbl, track);
+        return track;
+    }
+
+    private static TrackFormat parseAvc1(ByteBuffer avc1) throws IOException {
+        final int width = avc1.getShort(24) & 0xFFFF;
+        final int height = avc1.getShort(26) & 0xFFFF;
+        // 78字节的VisualSampleEntry之后是子box
+        avc1.position(78);
+        final ByteBuffer avcC = requireBox(avc1.slice(), AVCC);
+        final int lengthSize = (avcC.get(4) & 0x3) + 1;
+        if (lengthSize != 4) {
+            throw new IOException("unsupported NAL length size " + lengthSize);
+        }
+        avcC.position(5);
+        final int spsCount = avcC.get() & 0x1F;
+        byte[] sps = null;
+        for (int i = 0; i < spsCount; i++) {
+            final byte[] nal = new byte[avcC.getShort() & 0xFFFF];
+            avcC.get(nal);
+            if (sps == null) {
+                sps = nal;
+            }
+        }
+        final int ppsCount = avcC.get() & 0xFF;
+        byte[] pps = null;
+        for (int i = 0; i < ppsCount; i++) {
+            final byte[] nal = new byte[avcC.getShort() & 0xFFFF];
+            avcC.get(nal);
+            if (pps == null) {
+                pps = nal;
+            }
+        }
+        if (sps == null || pps == null) {
+            throw new IOException("avcC without SPS or PPS");
+        }
+        return TrackFormat.createAvc(width, height, sps, pps);
+    }
+
+    private static TrackFormat parseMp4a(ByteBuffer mp4a, int timescale) throws IOException {
+        final int channelCount = mp4a.getShort(16) & 0xFFFF;
+        int sampleRate = mp4a.getInt(24) >>> 16;
+        if (sampleRate == 0) {
+            sampleRate = timescale;
+        }
+        // 28字节的AudioSampleEntry之后是子box
+        mp4a.position(28);
+        final ByteBuffer esds = requireBox(mp4a.slice(), ESDS);
+        esds.position(4);
+        while (esds.remaining() >= 2) {
+            final int tag = esds.get() & 0xFF;
+            final int length = readDescriptorLength(esds);
+            if (tag == 0x03) {
+                // ES_Descriptor
+                esds.getShort();
+                final int flags = esds.get() & 0xFF;
+                if ((flags & 0x80) != 0) {
+                    esds.getShort();
+                }
+                if ((flags & 0x40) != 0) {
+                    esds.position(esds.position() + (esds.get() & 0xFF));
+                }
+                if ((flags & 0x20) != 0) {
+                    esds.getShort();
+                }
+            } else if (tag == 0x04) {
+                // DecoderConfigDescriptor，后面紧跟着DecoderSpecificInfo
+                esds.position(esds.position() + 13);
+            } else if (tag == 0x05) {
+                final byte[] audioSpecificConfig = new byte[length];
+                esds.get(audioSpecificConfig);
+                return TrackFormat.createAac(sampleRate, channelCount, audioSpecificConfig);
+            } else {
+                esds.position(esds.position() + length);
+            }
+        }
+        throw new IOException("esds without AudioSpecificConfig");
+    }
+
+    private static int readDescriptorLength(ByteBuffer buffer) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            final int b = buffer.get() & 0xFF;
+            length = (length << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 普通MP4的样本表，fragmented MP4的样本表是空的
+     */
+    private static void parseSampleTable(ByteBuffer stbl, Track track) throws IOException {
+        final ByteBuffer stsz = findBox(stbl, STSZ);
+        if (stsz == null) {
+            return;
+        }
+        stsz.position(4);
+        final int fixedSize = stsz.getInt();
+        final int sampleCount = stsz.getInt();
+        if (sampleCount == 0) {
+            return;
+        }
+        final int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : stsz.getInt();
+        }
+
+        final long[] decodeTimes = new long[sampleCount];
+        final ByteBuffer stts = requireBox(stbl, STTS);
+        stts.position(4);
+        long time = 0;
+        int sample = 0;
+        for (int entries = stts.getInt(); entries > 0 && sample < sampleCount; entries--) {
+            final int count = stts.getInt();
+            final int delta = stts.getInt();
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                decodeTimes[sample++] = time;
+                time += delta;
+            }
+        }
+
+        final ByteBuffer ctts = findBox(stbl, CTTS);
+        if (ctts != null) {
+            ctts.position(4);
+            sample = 0;
+            for (int entries = ctts.getInt(); entries > 0 && sample < sampleCount; entries--) {
+                final int count = ctts.getInt();
+                final int offset = ctts.getInt();
+                for (int i = 0; i < count && sample < sampleCount; i++) {
+                    decodeTimes[sample++] += offset;
+                }
+            }
+        }
+
+        boolean[] sync = null;
+        final ByteBuffer stss = findBox(stbl, STSS);
+        if (stss != null) {
+            sync = new boolean[sampleCount];
+            stss.position(4);
+            for (int entries = stss.getInt(); entries > 0; entries--) {
+                final int number = stss.getInt();
+                if (number >= 1 && number <= sampleCount) {
+                    sync[number - 1] = true;
+                }
+            }
+        }
+
+        final long[] chunkOffsets;
+        final ByteBuffer stco = findBox(stbl, STCO);
+        final ByteBuffer co64 = stco == null ? requireBox(stbl, CO64) : null;
+        final ByteBuffer chunks = stco != null ? stco : co64;
+        chunks.position(4);
+        chunkOffsets = new long[chunks.getInt()];
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            chunkOffsets[i] = stco != null ? chunks.getInt() & 0xFFFFFFFFL : chunks.getLong();
+        }
+
+        final ByteBuffer stsc = requireBox(stbl, STSC);
+        stsc.position(4);
+        final int stscEntries = stsc.getInt();
+        final int[] firstChunks = new int[stscEntries];
+        final int[] samplesPerChunk = new int[stscEntries];
+        for (int i = 0; i < stscEntries; i++) {
+            firstChunks[i] = stsc.getInt();
+            samplesPerChunk[i] = stsc.getInt();
+            stsc.getInt(); // sample_description_index
+        }
+        sample = 0;
+        int entry = 0;
+        for (int chunk = 0; chunk < chunkOffsets.length && sample < sampleCount; chunk++) {
+            while (entry + 1 < stscEntries && firstChunks[entry + 1] <= chunk + 1) {
+                entry++;
+            }
+            long offset = chunkOffsets[chunk];
+            for (int i = 0; i < samplesPerChunk[entry] && sample < sampleCount; i++) {
+                track.addSample(offset, sizes[sample], decodeTimes[sample], sync == null || sync[sample]);
+                offset += sizes[sample];
+                sample++;
+            }
+        }
+    }
+
+    private void parseMoof(ByteBuffer moof, long moofOffset) {
+        long previousDataEnd = moofOffset;
+        boolean firstTraf = true;
+        for (ByteBuffer traf : findBoxes(moof, TRAF)) {
+            final ByteBuffer tfhd = findBox(traf, TFHD);
+            if (tfhd == null) {
+                continue;
+            }
+            final int tfhdFlags = tfhd.getInt() & 0xFFFFFF;
+            final Track track = findTrack(tfhd.getInt());
+            if (track == null) {
+                continue;
+            }
+            long baseOffset = (tfhdFlags & TFHD_DEFAULT_BASE_IS_MOOF) != 0 || firstTraf ? moofOffset : previousDataEnd;
+            if ((tfhdFlags & TFHD_BASE_DATA_OFFSET) != 0) {
+                baseOffset = tfhd.getLong();
+            }
+            if ((tfhdFlags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+                tfhd.getInt();
+            }
+            final int defaultDuration = (tfhdFlags & TFHD_DEFAULT_DURATION) != 0 ? tfhd.getInt() : track.defaultDuration;
+            final int defaultSize = (tfhdFlags & TFHD_DEFAULT_SIZE) != 0 ? tfhd.getInt() : track.defaultSize;
+            final int defaultFlags = (tfhdFlags & TFHD_DEFAULT_FLAGS) != 0 ? tfhd.getInt() : track.defaultFlags;
+            firstTraf = false;
+
+            final ByteBuffer tfdt = findBox(traf, TFDT);
+            if (tfdt != null) {
+                track.nextDecodeTime = tfdt.get(0) == 1 ? tfdt.getLong(4) : tfdt.getInt(4) & 0xFFFFFFFFL;
+            }
+            long dataOffset = baseOffset;
+            for (ByteBuffer trun : findBoxes(traf, TRUN)) {
+                final int trunFlags = trun.getInt() & 0xFFFFFF;
+                final int sampleCount = trun.getInt();
+                if ((trunFlags & TRUN_DATA_OFFSET) != 0) {
+                    dataOffset = baseOffset + trun.getInt();
+                }
+                final int firstSampleFlags = (trunFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0 ? trun.getInt() : defaultFlags;
+                for (int i = 0; i < sampleCount; i++) {
+                    final int duration = (trunFlags & TRUN_SAMPLE_DURATION) != 0 ? trun.getInt() : defaultDuration;
+                    final int size = (trunFlags & TRUN_SAMPLE_SIZE) != 0 ? trun.getInt() : defaultSize;
+                    int flags = (trunFlags & TRUN_SAMPLE_FLAGS) != 0 ? trun.getInt() : defaultFlags;
+                    if (i == 0 && (trunFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0) {
+                        flags = firstSampleFlags;
+                    }
+                    final int compositionOffset = (trunFlags & TRUN_SAMPLE_COMPOSITION_TIME_OFFSET) != 0
+                            ? trun.getInt() : 0;
+                    track.addSample(dataOffset, size, track.nextDecodeTime + compositionOffset,
+                            (flags & SAMPLE_IS_NON_SYNC) == 0);
+                    track.nextDecodeTime += duration;
+                    dataOffset += size;
+                }
+            }
+            previousDataEnd = dataOffset;
+        }
+    }
+
+    private Track findTrack(int trackId) {
+        for (Track track : tracks) {
+            if (track.trackId == trackId) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static ByteBuffer requireBox(ByteBuffer parent, int type) throws IOException {
+        final ByteBuffer box = findBox(parent, type);
+        if (box == null) {
+            throw new IOException("missing box " + fourccToString(type));
+        }
+        return box;
+    }
+
+    /**
+     * @return parent中第一个type类型的子box的内容，position为0，没有时返回null
+     */
+    private static ByteBuffer findBox(ByteBuffer parent, int type) {
+        final List<ByteBuffer> boxes = findBoxes(parent, type);
+        return boxes.isEmpty() ? null : boxes.get(0);
+    }
+
+    /**
+     * parent的position到limit之间是子box
+     */
+    private static List<ByteBuffer> findBoxes(ByteBuffer parent, int type) {
+        final List<ByteBuffer> boxes = new ArrayList<>();
+        final ByteBuffer buffer = parent.duplicate();
+        while (buffer.remaining() >= 8) {
+            final int start = buffer.position();
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            final int boxType = buffer.getInt();
+            int headerSize = 8;
+            if (size == 1 && buffer.remaining() >= 8) {
+                size = buffer.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = buffer.limit() - start;
+            }
+            if (size < headerSize || start + size > buffer.limit()) {
+                break;
+            }
+            if (boxType == type) {
+                final ByteBuffer content = buffer.duplicate();
+                content.limit((int) (start + size));
+                content.position(start + headerSize);
+                boxes.add(content.slice());
+            }
+            buffer.position((int) (start + size));
+        }
+        return boxes;
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static String fourccToString(int type) {
+        return new String(new char[]{(char) (type >>> 24), (char) ((type >> 16) & 0xFF),
+                (char) ((type >> 8) & 0xFF), (char) (type & 0xFF)});
+    }
+}
@@ -0,0 +1,370 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 封装阶段，位于编码器和{@link SampleMuxer}之间
+ * 1.编码器回调只把编码帧拷贝进有界队列，真正的写文件在单独的写入线程进行，存储慢不会直接卡住编码器回调
+ * 2.所有轨道都添加以后才启动封装器，在这之前到达的编码帧(包括第一个视频关键帧)会缓存起来，不再丢弃
+ * 3.写入线程每次取所有轨道队头中时间戳最小的一帧，按时间交错写入。编码器没有开启B帧，时间戳就是解码时间戳
+ * 4.队列满的时候按照{@link OverflowPolicy}处理
+ * 队列中的帧对象和内存都会复用，稳定运行时不再分配
+ *
+ * @param <F> 轨道格式
+ */
+public class MuxStage<F> {
+
+    /**
+     * 和MediaCodec.BUFFER_FLAG_KEY_FRAME相同
+     */
+    public static final int FLAG_KEY_FRAME = 1;
+    /**
+     * 和MediaCodec.BUFFER_FLAG_END_OF_STREAM相同
+     */
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    /**
+     * 队列满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /**
+         * 阻塞写入方，让压力传回编码器
+         */
+        BLOCK,
+        /**
+         * 丢弃新到达的帧，依赖前面帧的轨道(视频)丢到下一个关键帧为止
+         */
+        DROP
+    }
+
+    private static final class Sample {
+        ByteBuffer data;
+        int track;
+        long presentationTimeUs;
+        int flags;
+        int size;
+    }
+
+    private static final class Track {
+        int muxerIndex = -1;
+        /**
+         * 视频帧依赖前面的帧，丢了一帧以后要等到关键帧才能继续写
+         */
+        final boolean hasDependentFrames;
+        final ArrayDeque<Sample> samples = new ArrayDeque<>();
+        boolean dropUntilKeyFrame;
+        boolean ended;
+
+        Track(boolean hasDependentFrames) {
+            this.hasDependentFrames = hasDependentFrames;
+        }
+    }
+
+    private final SampleMuxer<F> muxer;
+    private final int trackCount;
+    private final int maxQueuedBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread writeThread;
+
+    private final Object lock = new Object();
+    private final Track[] tracks;
+    private final ArrayDeque<Sample> freeSamples = new ArrayDeque<>();
+    private int addedTracks;
+    private long queuedBytes;
+    /**
+     * 因为队列满而阻塞的写入方个数
+     */
+    private int blockedWriters;
+    private boolean started;
+    private boolean stopped;
+    private long writtenCount;
+    private long writtenBytes;
+    private long droppedCount;
+    private RuntimeException writeError;
+
+    /**
+     * @param trackCount     轨道个数，全部添加以后才启动封装器
+     * @param maxQueuedBytes 队列中最多缓存的字节数
+     */
+    public MuxStage(SampleMuxer<F> muxer, int trackCount, int maxQueuedBytes, OverflowPolicy overflowPolicy) {
+        if (trackCount <= 0 || maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("trackCount=" + trackCount + " maxQueuedBytes=" + maxQueuedBytes);
+        }
+        this.muxer = muxer;
+        this.trackCount = trackCount;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overflowPolicy = overflowPolicy;
+        tracks = new Track[trackCount];
+        writeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "Android-mp4-writer");
+        writeThread.start();
+    }
+
+    /**
+     * 添加轨道，最后一个轨道添加以后启动封装器
+     *
+     * @param hasDependentFrames 视频轨道传true，丢帧时会丢到下一个关键帧
+     * @return 轨道id，用于{@link #writeSample}
+     */
+    public int addTrack(F format, boolean hasDependentFrames) {
+        synchronized (lock) {
+            if (addedTracks >= trackCount) {
+                throw new IllegalStateException("too many tracks, trackCount=" + trackCount);
+            }
+            final Track track = new Track(hasDependentFrames);
+            track.muxerIndex = muxer.addTrack(format);
+            final int id = addedTracks++;
+            tracks[id] = track;
+            if (addedTracks == trackCount && !stopped) {
+                muxer.start();
+                started = true;
+                lock.notifyAll();
+            }
+            return id;
+        }
+    }
+
+    /**
+     * 把一个编码帧拷贝进队列，data的position不会改变
+     *
+     * @param data               position到limit之间是编码帧
+     * @param presentationTimeUs 时间戳
+     * @param flags              MediaCodec.BUFFER_FLAG_*
+     * @return 写入队列返回true，被丢弃或者已经停止返回false
+     */
+    public boolean writeSample(int trackId, ByteBuffer data, long presentationTimeUs, int flags) {
+        final int size = data.remaining();
+        synchronized (lock) {
+            final Track track = tracks[trackId];
+            if (stopped || track.ended) {
+                return false;
+            }
+            if ((flags & FLAG_END_OF_STREAM) != 0) {
+                track.ended = true;
+                lock.notifyAll();
+                if (size == 0) {
+                    return true;
+                }
+            }
+            if (track.dropUntilKeyFrame) {
+                if ((flags & FLAG_KEY_FRAME) == 0) {
+                    droppedCount++;
+                    return false;
+                }
+                track.dropUntilKeyFrame = false;
+            }
+            while (isFullLocked(size)) {
+                // 封装器启动之前，缺少的轨道格式可能要由当前线程回调，阻塞会死锁，只能丢弃
+                if (overflowPolicy == OverflowPolicy.DROP || !started) {
+                    droppedCount++;
+                    track.dropUntilKeyFrame = track.hasDependentFrames;
+                    return false;
+                }
+                blockedWriters++;
+                lock.notifyAll();
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    blockedWriters--;
+                }
+                if (stopped) {
+                    return false;
+                }
+            }
+            final Sample sample = obtainSampleLocked(size);
+            final int oldPosition = data.position();
+            sample.data.clear();
+            sample.data.put(data);
+            sample.data.flip();
+            data.position(oldPosition);
+            sample.track = trackId;
+            sample.presentationTimeUs = presentationTimeUs;
+            sample.flags = flags;
+            sample.size = size;
+            track.samples.addLast(sample);
+            queuedBytes += size;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * 写完队列中剩余的帧，然后停止并释放封装器
+     * 如果封装器一直没有启动(缺少轨道)，队列中的帧会被丢弃
+     *
+     * @throws RuntimeException 写入过程中封装器抛出的异常
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (writeThread.isAlive()) {
+            try {
+                writeThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            if (started) {
+                muxer.stop();
+            }
+        } finally {
+            muxer.release();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock) {
+            if (writeError != null) {
+                throw writeError;
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        synchronized (lock) {
+            return started;
+        }
+    }
+
+    public long getWrittenCount() {
+        synchronized (lock) {
+            return writtenCount;
+        }
+    }
+
+    /**
+     * 已经交给封装器的字节数，用来估算存储的写入速度
+     */
+    public long getWrittenBytes() {
+        synchronized (lock) {
+            return writtenBytes;
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    public long getQueuedBytes() {
+        synchronized (lock) {
+            return queuedBytes;
+        }
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    private boolean isFullLocked(int size) {
+        // 一个比上限还大的帧在队列空的时候也要能放进去
+        return queuedBytes > 0 && queuedBytes + size > maxQueuedBytes;
+    }
+
+    private Sample obtainSampleLocked(int size) {
+        Sample sample = freeSamples.pollFirst();
+        if (sample == null) {
+            sample = new Sample();
+        }
+        if (sample.data == null || sample.data.capacity() < size) {
+            sample.data = ByteBuffer.allocateDirect(size);
+        }
+        return sample;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final Sample sample;
+            synchronized (lock) {
+                Sample next;
+                while ((next = pollNextLocked()) == null) {
+                    if (stopped) {
+                        discardQueuedLocked();
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // 只能通过stop()结束
+                    }
+                }
+                sample = next;
+            }
+            // 写文件在锁外进行，写入期间编码器回调仍然可以入队
+            try {
+                if (writeError == null) {
+                    muxer.writeSampleData(tracks[sample.track].muxerIndex, sample.data,
+                            sample.presentationTimeUs, sample.flags);
+                }
+            } catch (RuntimeException e) {
+                synchronized (lock) {
+                    writeError = e;
+                }
+            }
+            synchronized (lock) {
+                if (writeError == null) {
+                    writtenCount++;
+                    writtenBytes += sample.size;
+                } else {
+                    droppedCount++;
+                }
+                queuedBytes -= sample.size;
+                freeSamples.addFirst(sample);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 取出下一个要写的帧
+     * 正常情况下要等每个没有结束的轨道都有帧可比较，才能保证按时间交错；
+     * 队列超过一半、有写入方被阻塞或者正在停止时不再等待，避免一个轨道长时间没有数据把另一个轨道卡住
+     */
+    private Sample pollNextLocked() {
+        if (!started) {
+            return null;
+        }
+        final boolean mustDrain = stopped || blockedWriters > 0 || queuedBytes * 2 > maxQueuedBytes;
+        Track earliest = null;
+        for (Track track : tracks) {
+            final Sample head = track.samples.peekFirst();
+            if (head == null) {
+                if (!track.ended && !mustDrain) {
+                    return null;
+                }
+                continue;
+            }
+            if (earliest == null
+                    || head.presentationTimeUs < earliest.samples.peekFirst().presentationTimeUs) {
+                earliest = track;
+            }
+        }
+        return earliest == null ? null : earliest.samples.pollFirst();
+    }
+
+    private void discardQueuedLocked() {
+        for (int i = 0; i < addedTracks; i++) {
+            final Track track = tracks[i];
+            droppedCount += track.samples.size();
+            track.samples.clear();
+        }
+        queuedBytes = 0;
+        lock.notifyAll();
+    }
+}
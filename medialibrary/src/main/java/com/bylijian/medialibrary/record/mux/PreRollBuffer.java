@@ -0,0 +1,260 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 开始录制之前一直缓存最近一段时间的编码帧，开始录制时先把缓存写进封装器，录到按下按钮之前的画面
+ * 帧数据放在构造时分配的一块direct buffer里循环使用，内存不会超过maxBytes
+ * 总是从视频关键帧开始，空间不够或者超过缓存时长时整个GOP一起淘汰，同时淘汰这个GOP期间的音频
+ * 所有方法线程安全
+ */
+public class PreRollBuffer {
+
+    public interface Consumer {
+        /**
+         * @param data position到limit之间是帧数据，只在回调期间有效
+         */
+        void onSample(int track, ByteBuffer data, long presentationTimeUs, int flags);
+    }
+
+    private final ByteBuffer arena;
+    private final long durationUs;
+
+    /**
+     * 按写入顺序排列的帧，head是最旧的
+     */
+    private int[] tracks = new int[256];
+    private boolean[] videos = new boolean[256];
+    private int[] offsets = new int[256];
+    private int[] sizes = new int[256];
+    private long[] times = new long[256];
+    private int[] flagsArray = new int[256];
+    private int head;
+    private int count;
+    /**
+     * 下一帧在arena中的写入位置
+     */
+    private int tail;
+    private int bytes;
+    /**
+     * 淘汰了当前正在写的GOP，要等下一个关键帧
+     */
+    private boolean waitingForKeyFrame = true;
+    private long droppedCount;
+
+    /**
+     * @param maxBytes   缓存帧数据的内存大小
+     * @param durationUs 至少保留的时长，实际保留的时长在durationUs到durationUs加一个GOP之间
+     */
+    public PreRollBuffer(int maxBytes, long durationUs) {
+        if (maxBytes <= 0 || durationUs <= 0) {
+            throw new IllegalArgumentException("maxBytes=" + maxBytes + " durationUs=" + durationUs);
+        }
+        arena = ByteBuffer.allocateDirect(maxBytes);
+        this.durationUs = durationUs;
+    }
+
+    /**
+     * 拷贝一帧到缓存，data的position不会改变
+     *
+     * @param video 视频帧，视频的关键帧是GOP的边界
+     * @param flags 和{@link MuxStage#FLAG_KEY_FRAME}相同的含义
+     * @return 被丢弃时返回false：还没有等到关键帧，或者一帧比整个缓存还大
+     */
+    public synchronized boolean write(int track, boolean video, ByteBuffer data, long presentationTimeUs,
+                                      int flags) {
+        final int size = data.remaining();
+        final boolean keyFrame = video && (flags & MuxStage.FLAG_KEY_FRAME) != 0;
+        if (keyFrame) {
+            waitingForKeyFrame = false;
+        }
+        if (size == 0 || waitingForKeyFrame) {
+            droppedCount++;
+            return false;
+        }
+        if (keyFrame) {
+            // 新的GOP开始，超过时长的旧GOP可以淘汰了
+            int next;
+            while ((next = nextKeyFrame()) >= 0 && presentationTimeUs - times[index(next)] >= durationUs) {
+                evictGop();
+            }
+        }
+        int offset;
+        while ((offset = findSpace(size)) < 0) {
+            if (count == 0) {
+                // 一帧比整个缓存还大，这个GOP已经不完整了
+                droppedCount++;
+                waitingForKeyFrame = true;
+                return false;
+            }
+            evictGop();
+            if (count == 0 && !keyFrame) {
+                // 当前GOP被整个淘汰，后面的帧没有关键帧无法解码
+                droppedCount++;
+                waitingForKeyFrame = true;
+                return false;
+            }
+        }
+        if (count == tracks.length) {
+            grow();
+        }
+        final ByteBuffer target = arena.duplicate();
+        target.clear();
+        target.position(offset);
+        target.put(data.duplicate());
+        final int i = index(count);
+        tracks[i] = track;
+        videos[i] = video;
+        offsets[i] = offset;
+        sizes[i] = size;
+        times[i] = presentationTimeUs;
+        flagsArray[i] = flags;
+        count++;
+        tail = offset + size;
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * 按写入顺序把缓存的帧交给consumer，然后清空。比第一个关键帧还早的音频不输出
+     *
+     * @return 输出的帧数
+     */
+    public synchronized int drainTo(Consumer consumer) {
+        int drained = 0;
+        final long startUs = count > 0 ? times[head] : 0;
+        final ByteBuffer data = arena.duplicate();
+        for (int n = 0; n < count; n++) {
+            final int i = index(n);
+            if (times[i] < startUs) {
+                continue;
+            }
+            data.clear();
+            data.position(offsets[i]);
+            data.limit(offsets[i] + sizes[i]);
+            consumer.onSample(tracks[i], data, times[i], flagsArray[i]);
+            drained++;
+        }
+        clear();
+        return drained;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        tail = 0;
+        bytes = 0;
+        waitingForKeyFrame = true;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * 缓存的帧数据字节数
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 第一个关键帧到最新一帧的时长
+     */
+    public synchronized long getBufferedDurationUs() {
+        long lastUs = 0;
+        for (int n = 0; n < count; n++) {
+            lastUs = Math.max(lastUs, times[index(n)]);
+        }
+        return count > 0 ? lastUs - times[head] : 0;
+    }
+
+    /**
+     * 没有写进缓存的帧数，不包括淘汰的帧
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public int getCapacity() {
+        return arena.capacity();
+    }
+
+    /**
+     * @return 可以放下size字节的位置，放不下返回-1
+     */
+    private int findSpace(int size) {
+        if (count == 0) {
+            return size <= arena.capacity() ? 0 : -1;
+        }
+        final int oldest = offsets[head];
+        if (tail > oldest) {
+            // 没有绕回，先用后面的空间，不够再从头开始
+            if (size <= arena.capacity() - tail) {
+                return tail;
+            }
+            return size <= oldest ? 0 : -1;
+        }
+        return size <= oldest - tail ? tail : -1;
+    }
+
+    /**
+     * 淘汰最旧的GOP，也就是第二个视频关键帧之前的所有帧
+     */
+    private void evictGop() {
+        final int next = nextKeyFrame();
+        final int evicted = next >= 0 ? next : count;
+        for (int n = 0; n < evicted; n++) {
+            bytes -= sizes[index(n)];
+        }
+        head = index(evicted);
+        count -= evicted;
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        }
+    }
+
+    /**
+     * @return head之后第一个视频关键帧的序号，没有返回-1
+     */
+    private int nextKeyFrame() {
+        for (int n = 1; n < count; n++) {
+            final int i = index(n);
+            if (videos[i] && (flagsArray[i] & MuxStage.FLAG_KEY_FRAME) != 0) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    private int index(int n) {
+        return (head + n) % tracks.length;
+    }
+
+    private void grow() {
+        final int length = tracks.length * 2;
+        final int[] newTracks = new int[length];
+        final boolean[] newVideos = new boolean[length];
+        final int[] newOffsets = new int[length];
+        final int[] newSizes = new int[length];
+        final long[] newTimes = new long[length];
+        final int[] newFlags = new int[length];
+        for (int n = 0; n < count; n++) {
+            final int i = index(n);
+            newTracks[n] = tracks[i];
+            newVideos[n] = videos[i];
+            newOffsets[n] = offsets[i];
+            newSizes[n] = sizes[i];
+            newTimes[n] = times[i];
+            newFlags[n] = flagsArray[i];
+        }
+        tracks = newTracks;
+        videos = newVideos;
+        offsets = newOffsets;
+        sizes = newSizes;
+        times = newTimes;
+        flagsArray = newFlags;
+        head = 0;
+    }
+}
@@ -0,0 +1,30 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 封装器的抽象，方法和MediaMuxer一一对应
+ * 把格式类型抽成泛型参数，这样{@link MuxStage}不依赖android.media，可以直接在JVM上测试
+ *
+ * @param <F> 轨道格式，Android上是MediaFormat
+ */
+public interface SampleMuxer<F> {
+
+    /**
+     * @return 轨道序号
+     */
+    int addTrack(F format);
+
+    void start();
+
+    /**
+     * @param data               position到limit之间是一个完整的编码帧
+     * @param presentationTimeUs 时间戳
+     * @param flags              MediaCodec.BUFFER_FLAG_*
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags);
+
+    void stop();
+
+    void release();
+}
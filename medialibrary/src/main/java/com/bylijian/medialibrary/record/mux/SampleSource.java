@@ -0,0 +1,52 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码帧的来源，方法和MediaExtractor一一对应，和{@link SampleMuxer}一样把格式类型抽成泛型参数
+ * 只有选中的轨道会被读取，按时间戳顺序交错返回
+ *
+ * @param <F> 轨道格式，Android上是MediaFormat
+ */
+public interface SampleSource<F> {
+    /**
+     * 和MediaExtractor.SAMPLE_FLAG_SYNC、MediaCodec.BUFFER_FLAG_KEY_FRAME相同
+     */
+    int FLAG_KEY_FRAME = 1;
+
+    int getTrackCount();
+
+    F getTrackFormat(int track);
+
+    void selectTrack(int track);
+
+    /**
+     * 移动到timeUs之前(包括timeUs)最近的视频关键帧，其他轨道移动到这个关键帧附近
+     */
+    void seekToPreviousSync(long timeUs);
+
+    /**
+     * 把当前帧读到buffer的offset处，不改变buffer的position和limit
+     *
+     * @return 帧的大小，没有更多的帧时返回-1
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    int getSampleTrackIndex();
+
+    long getSampleTime();
+
+    /**
+     * @return {@link #FLAG_KEY_FRAME}或者0
+     */
+    int getSampleFlags();
+
+    /**
+     * 移动到下一帧
+     *
+     * @return 没有更多的帧时返回false
+     */
+    boolean advance();
+
+    void release();
+}
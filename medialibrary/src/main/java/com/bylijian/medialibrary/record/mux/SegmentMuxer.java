@@ -0,0 +1,310 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段录制的封装器，放在整个录制过程共用的{@link MuxStage}后面，编码器在分段之间不停止
+ * 1.{@link #startSegment}之后，第一个时间戳不早于调用时间的视频关键帧开始一个新的分段文件，之前的帧丢弃
+ * 2.{@link #endSegment}之后，时间戳不早于调用时间的帧不再写入，视频帧到达时结束这个分段
+ * 3.{@link #deleteLastSegment}只删除最后一个分段，不影响其他文件
+ * 分段文件的时间戳保持编码器的原始时间戳，拼接时再重新计算
+ * 控制方法可以在任意线程调用，写入方法只在封装线程调用，分段文件的创建和结束都在封装线程进行
+ *
+ * @param <F> 轨道格式
+ */
+public class SegmentMuxer<F> implements SampleMuxer<F> {
+    /**
+     * 和MediaCodec.BUFFER_FLAG_KEY_FRAME相同
+     */
+    private static final int FLAG_KEY_FRAME = 1;
+
+    public interface MuxerFactory<F> {
+        /**
+         * 在封装线程调用，为一个分段创建封装器
+         */
+        SampleMuxer<F> create(File file) throws IOException;
+
+        /**
+         * 分段从这个轨道的关键帧开始
+         */
+        boolean isVideo(F format);
+    }
+
+    private static final class Segment<F> {
+        final File file;
+        /**
+         * 第一个关键帧的时间戳不能早于这个时间
+         */
+        final long startAfterUs;
+        long endUs = Long.MAX_VALUE;
+        SampleMuxer<F> muxer;
+        long firstUs = -1;
+        long lastUs = -1;
+        boolean deleted;
+        boolean finished;
+
+        Segment(File file, long startAfterUs) {
+            this.file = file;
+            this.startAfterUs = startAfterUs;
+        }
+    }
+
+    private final MuxerFactory<F> factory;
+    private final List<F> formats = new ArrayList<>();
+    private int videoTrack = -1;
+
+    private final Object lock = new Object();
+    /**
+     * 没有删除的分段，按开始顺序排列
+     */
+    private final ArrayList<Segment<F>> segments = new ArrayList<>();
+    /**
+     * 还没有结束的分段，队头是正在写或者等待关键帧的分段
+     */
+    private final ArrayDeque<Segment<F>> openSegments = new ArrayDeque<>();
+    private long lastEndUs = Long.MIN_VALUE;
+    private long droppedCount;
+
+    public SegmentMuxer(MuxerFactory<F> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public int addTrack(F format) {
+        formats.add(format);
+        if (videoTrack < 0 && factory.isVideo(format)) {
+            videoTrack = formats.size() - 1;
+        }
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (videoTrack < 0) {
+            throw new IllegalStateException("segments need a video track");
+        }
+    }
+
+    /**
+     * 开始一个新的分段，上一个分段还没有结束时先结束它
+     *
+     * @param nowUs 和编码器时间戳同一个时钟的当前时间
+     */
+    public void startSegment(File file, long nowUs) {
+        synchronized (lock) {
+            endSegmentLocked(nowUs);
+            final Segment<F> segment = new Segment<>(file, Math.max(nowUs, lastEndUs));
+            segments.add(segment);
+            openSegments.addLast(segment);
+        }
+    }
+
+    /**
+     * 结束当前的分段，没有正在录制的分段时不做任何事
+     */
+    public void endSegment(long nowUs) {
+        synchronized (lock) {
+            endSegmentLocked(nowUs);
+        }
+    }
+
+    /**
+     * 删除最后一个分段，正在录制的话同时结束它。分段文件还没有写完时由封装线程写完以后删除
+     *
+     * @return 没有分段时返回false
+     */
+    public boolean deleteLastSegment(long nowUs) {
+        final Segment<F> segment;
+        synchronized (lock) {
+            if (segments.isEmpty()) {
+                return false;
+            }
+            endSegmentLocked(nowUs);
+            segment = segments.remove(segments.size() - 1);
+            segment.deleted = true;
+            if (!segment.finished) {
+                return true;
+            }
+        }
+        deleteFile(segment);
+        return true;
+    }
+
+    public boolean isRecordingSegment() {
+        synchronized (lock) {
+            final Segment<F> last = openSegments.peekLast();
+            return last != null && last.endUs == Long.MAX_VALUE;
+        }
+    }
+
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * 已经写完的分段文件，按录制顺序排列，不包括空的分段
+     */
+    public List<File> getFinishedSegments() {
+        synchronized (lock) {
+            final List<File> files = new ArrayList<>(segments.size());
+            for (Segment<F> segment : segments) {
+                if (segment.finished && segment.muxer != null) {
+                    files.add(segment.file);
+                }
+            }
+            return files;
+        }
+    }
+
+    /**
+     * 所有分段的总时长，正在录制的分段算到最后一帧为止
+     */
+    public long getDurationUs() {
+        synchronized (lock) {
+            long durationUs = 0;
+            for (Segment<F> segment : segments) {
+                if (segment.firstUs >= 0) {
+                    durationUs += segment.lastUs - segment.firstUs;
+                }
+            }
+            return durationUs;
+        }
+    }
+
+    /**
+     * 不属于任何分段而丢弃的帧数，包括分段之间的帧
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        final boolean video = trackIndex == videoTrack;
+        while (true) {
+            final Segment<F> segment;
+            final boolean finish;
+            final boolean create;
+            synchronized (lock) {
+                segment = openSegments.peekFirst();
+                if (segment == null) {
+                    droppedCount++;
+                    return;
+                }
+                // 只由视频帧结束分段，在这之前时间戳更早的音频帧都已经按时间交错写入
+                finish = video && presentationTimeUs >= segment.endUs;
+                create = !finish && segment.muxer == null && !segment.deleted && video
+                        && (flags & FLAG_KEY_FRAME) != 0 && presentationTimeUs >= segment.startAfterUs;
+                if (!finish && !create && (segment.muxer == null || presentationTimeUs >= segment.endUs
+                        || presentationTimeUs < segment.firstUs)) {
+                    droppedCount++;
+                    return;
+                }
+            }
+            if (finish) {
+                finishSegment(segment);
+                // 下一个分段可能从这一帧开始
+                continue;
+            }
+            if (create) {
+                segment.muxer = createMuxer(segment.file);
+                synchronized (lock) {
+                    segment.firstUs = presentationTimeUs;
+                }
+            }
+            segment.muxer.writeSampleData(trackIndex, data, presentationTimeUs, flags);
+            synchronized (lock) {
+                segment.lastUs = Math.max(segment.lastUs, presentationTimeUs);
+            }
+            return;
+        }
+    }
+
+    /**
+     * 结束所有没有结束的分段
+     */
+    @Override
+    public void stop() {
+        while (true) {
+            final Segment<F> segment;
+            synchronized (lock) {
+                segment = openSegments.peekFirst();
+                if (segment == null) {
+                    return;
+                }
+                segment.endUs = Math.min(segment.endUs, segment.lastUs + 1);
+            }
+            finishSegment(segment);
+        }
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private void endSegmentLocked(long nowUs) {
+        final Segment<F> last = openSegments.peekLast();
+        if (last != null && last.endUs == Long.MAX_VALUE) {
+            last.endUs = Math.max(nowUs, last.startAfterUs);
+            lastEndUs = last.endUs;
+        }
+    }
+
+    private SampleMuxer<F> createMuxer(File file) {
+        final SampleMuxer<F> muxer;
+        try {
+            muxer = factory.create(file);
+        } catch (IOException e) {
+            throw new RuntimeException("create segment " + file + " failed", e);
+        }
+        for (F format : formats) {
+            muxer.addTrack(format);
+        }
+        muxer.start();
+        return muxer;
+    }
+
+    /**
+     * 在封装线程结束队头的分段
+     */
+    private void finishSegment(Segment<F> segment) {
+        try {
+            if (segment.muxer != null) {
+                try {
+                    segment.muxer.stop();
+                } finally {
+                    segment.muxer.release();
+                }
+            }
+        } finally {
+            final boolean deleted;
+            synchronized (lock) {
+                openSegments.pollFirst();
+                segment.finished = true;
+                if (segment.muxer == null) {
+                    // 结束之前没有等到关键帧，不产生文件
+                    segments.remove(segment);
+                }
+                deleted = segment.deleted;
+            }
+            if (deleted) {
+                deleteFile(segment);
+            }
+        }
+    }
+
+    private static void deleteFile(Segment<?> segment) {
+        if (segment.muxer != null && segment.file.exists() && !segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+}
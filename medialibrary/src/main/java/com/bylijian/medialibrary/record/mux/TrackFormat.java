@@ -0,0 +1,107 @@
+package com.bylijian.medialibrary.record.mux;
+
+import java.util.Arrays;
+
+/**
+ * 不依赖MediaFormat的轨道格式，只包含写文件需要的字段
+ * csd的含义和MediaFormat中的csd-0/csd-1相同
+ */
+public class TrackFormat {
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    private final String mime;
+    private final int width;
+    private final int height;
+    private final int sampleRate;
+    private final int channelCount;
+    private final byte[] csd0;
+    private final byte[] csd1;
+
+    private TrackFormat(String mime, int width, int height, int sampleRate, int channelCount,
+                        byte[] csd0, byte[] csd1) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.csd0 = csd0;
+        this.csd1 = csd1;
+    }
+
+    /**
+     * @param sps 可以带起始码
+     * @param pps 可以带起始码
+     */
+    public static TrackFormat createAvc(int width, int height, byte[] sps, byte[] pps) {
+        return new TrackFormat(MIME_AVC, width, height, 0, 0, sps, pps);
+    }
+
+    /**
+     * @param audioSpecificConfig AudioSpecificConfig，AAC编码器输出的csd-0
+     */
+    public static TrackFormat createAac(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        return new TrackFormat(MIME_AAC, 0, 0, sampleRate, channelCount, audioSpecificConfig, null);
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public boolean isVideo() {
+        return MIME_AVC.equals(mime);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public byte[] getCsd0() {
+        return csd0;
+    }
+
+    public byte[] getCsd1() {
+        return csd1;
+    }
+
+    /**
+     * 编码参数相同，帧数据可以直接拼接。csd有没有起始码都可以
+     */
+    public boolean isCompatible(TrackFormat other) {
+        return mime.equals(other.mime) && width == other.width && height == other.height
+                && sampleRate == other.sampleRate && channelCount == other.channelCount
+                && sameCsd(csd0, other.csd0) && sameCsd(csd1, other.csd1);
+    }
+
+    private static boolean sameCsd(byte[] csd, byte[] other) {
+        if (csd == null || other == null) {
+            return csd == other;
+        }
+        final int start = startCodeLength(csd);
+        final int otherStart = startCodeLength(other);
+        return Arrays.equals(Arrays.copyOfRange(csd, start, csd.length),
+                Arrays.copyOfRange(other, otherStart, other.length));
+    }
+
+    private static int startCodeLength(byte[] csd) {
+        if (csd.length >= 4 && csd[0] == 0 && csd[1] == 0 && csd[2] == 0 && csd[3] == 1) {
+            return 4;
+        }
+        if (csd.length >= 3 && csd[0] == 0 && csd[1] == 0 && csd[2] == 1) {
+            return 3;
+        }
+        return 0;
+    }
+}
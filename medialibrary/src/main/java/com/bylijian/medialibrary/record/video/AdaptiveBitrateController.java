@@ -0,0 +1,160 @@
+package com.bylijian.medialibrary.record.video;
+
+/**
+ * 根据编码延迟、封装队列水位和存储写入速度调整码率，码率降到最低仍然跟不上时再降低帧率
+ * 只包含策略，不依赖MediaCodec，由调用方定期调用{@link #onStats}并在回调里设置编码器
+ * 不是线程安全的，需要在同一个线程调用
+ */
+public class AdaptiveBitrateController {
+    /**
+     * 封装队列超过这个比例认为存储跟不上
+     */
+    static final float QUEUE_HIGH = 0.5f;
+    static final float QUEUE_LOW = 0.1f;
+    /**
+     * 编码器输出延迟超过这个值认为编码器跟不上，比如过热降频
+     */
+    static final long LATENCY_HIGH_US = 300000;
+    static final long LATENCY_LOW_US = 100000;
+    /**
+     * 两次降低码率之间至少间隔，等编码器和队列对上一次调整做出反应
+     */
+    static final long DECREASE_INTERVAL_MS = 1000;
+    /**
+     * 持续正常这么久以后才开始恢复
+     */
+    static final long INCREASE_HOLD_MS = 5000;
+    static final long INCREASE_INTERVAL_MS = 2000;
+    /**
+     * 码率已经最低，又连续拥塞这么多次以后降低帧率
+     */
+    static final int FRAME_RATE_DECREASE_COUNT = 2;
+
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final float INCREASE_FACTOR = 1.1f;
+    /**
+     * 受存储限制时按实际写入速度的这个比例设置码率，给队列留出排空的余量
+     */
+    private static final float THROUGHPUT_HEADROOM = 0.85f;
+
+    public interface Listener {
+        void onBitrateChanged(int bitrate);
+
+        void onFrameRateChanged(int frameRate);
+    }
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int minFrameRate;
+    private final int maxFrameRate;
+    private final Listener listener;
+
+    private int bitrate;
+    private int frameRate;
+    /**
+     * -1表示还没有调整过
+     */
+    private long lastDecreaseMs = -1;
+    private long lastIncreaseMs = -1;
+    /**
+     * 开始连续正常的时间，-1表示当前不正常
+     */
+    private long clearSinceMs = -1;
+    private int congestedAtMinBitrate;
+
+    /**
+     * 初始码率和帧率为最大值
+     */
+    public AdaptiveBitrateController(int minBitrate, int maxBitrate, int minFrameRate, int maxFrameRate,
+                                     Listener listener) {
+        if (minBitrate <= 0 || minBitrate > maxBitrate || minFrameRate <= 0 || minFrameRate > maxFrameRate) {
+            throw new IllegalArgumentException("bitrate=[" + minBitrate + "," + maxBitrate + "] frameRate=["
+                    + minFrameRate + "," + maxFrameRate + "]");
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.listener = listener;
+        bitrate = maxBitrate;
+        frameRate = maxFrameRate;
+    }
+
+    /**
+     * @param nowMs              单调递增的时间，不小于0
+     * @param encoderLatencyUs   统计周期内编码器输出的最大延迟
+     * @param queueFill          封装队列的水位，0到1
+     * @param writtenBytesPerSec 统计周期内存储的写入速度
+     */
+    public void onStats(long nowMs, long encoderLatencyUs, float queueFill, long writtenBytesPerSec) {
+        if (queueFill >= QUEUE_HIGH || encoderLatencyUs >= LATENCY_HIGH_US) {
+            clearSinceMs = -1;
+            if (lastDecreaseMs < 0 || nowMs - lastDecreaseMs >= DECREASE_INTERVAL_MS) {
+                lastDecreaseMs = nowMs;
+                boolean storageLimited = queueFill >= QUEUE_HIGH && writtenBytesPerSec * 8 < bitrate;
+                decrease(storageLimited ? writtenBytesPerSec * 8 : -1);
+            }
+        } else if (queueFill <= QUEUE_LOW && encoderLatencyUs <= LATENCY_LOW_US) {
+            if (clearSinceMs < 0) {
+                clearSinceMs = nowMs;
+            }
+            if (nowMs - clearSinceMs >= INCREASE_HOLD_MS
+                    && (lastIncreaseMs < 0 || nowMs - lastIncreaseMs >= INCREASE_INTERVAL_MS)) {
+                lastIncreaseMs = nowMs;
+                increase();
+            }
+        } else {
+            clearSinceMs = -1;
+        }
+    }
+
+    /**
+     * @param throughputBps 存储的写入速度，-1表示不受存储限制
+     */
+    private void decrease(long throughputBps) {
+        long target = (long) (bitrate * DECREASE_FACTOR);
+        if (throughputBps >= 0) {
+            target = Math.min(target, (long) (throughputBps * THROUGHPUT_HEADROOM));
+        }
+        int newBitrate = (int) Math.max(minBitrate, target);
+        if (newBitrate < bitrate) {
+            congestedAtMinBitrate = 0;
+            setBitrate(newBitrate);
+            return;
+        }
+        if (++congestedAtMinBitrate >= FRAME_RATE_DECREASE_COUNT && frameRate > minFrameRate) {
+            congestedAtMinBitrate = 0;
+            setFrameRate(Math.max(minFrameRate, frameRate * 2 / 3));
+        }
+    }
+
+    /**
+     * 先恢复帧率，帧率降低比码率降低更容易被看出来
+     */
+    private void increase() {
+        congestedAtMinBitrate = 0;
+        if (frameRate < maxFrameRate) {
+            setFrameRate(maxFrameRate);
+        } else if (bitrate < maxBitrate) {
+            setBitrate((int) Math.min(maxBitrate, (long) (bitrate * INCREASE_FACTOR)));
+        }
+    }
+
+    private void setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+        listener.onBitrateChanged(bitrate);
+    }
+
+    private void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+        listener.onFrameRateChanged(frameRate);
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+}
@@ -0,0 +1,180 @@
+package com.bylijian.medialibrary.record.video;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 一个视频编码器的能力快照，由{@link EncoderCapabilityProbe}从MediaCodecList读取
+ * 只保存{@link #resolve(EncoderProfile)}需要的字段，不依赖MediaCodecInfo
+ */
+public class EncoderCapabilities {
+    /**
+     * 取值和MediaCodecInfo.CodecCapabilities.COLOR_Format*相同
+     */
+    public static final int COLOR_FORMAT_YUV420_PLANAR = 19;
+    public static final int COLOR_FORMAT_YUV420_SEMI_PLANAR = 21;
+    public static final int COLOR_FORMAT_YUV420_FLEXIBLE = 0x7F420888;
+    public static final int COLOR_FORMAT_SURFACE = 0x7F000789;
+
+    /**
+     * ByteBuffer输入时颜色格式的优先顺序，Flexible可以通过Image拿到准确的平面布局
+     */
+    private static final int[] BYTE_BUFFER_COLOR_FORMATS = {
+            COLOR_FORMAT_YUV420_FLEXIBLE,
+            COLOR_FORMAT_YUV420_SEMI_PLANAR,
+            COLOR_FORMAT_YUV420_PLANAR,
+    };
+
+    /**
+     * AVC从高到低的降级顺序
+     */
+    private static final int[] AVC_PROFILE_FALLBACK = {
+            EncoderProfile.AVC_PROFILE_HIGH,
+            EncoderProfile.AVC_PROFILE_MAIN,
+            EncoderProfile.AVC_PROFILE_BASELINE,
+    };
+
+    private final String codecName;
+    private final String mime;
+    private final int bitrateModes;
+    private final Map<Integer, Integer> maxLevels;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int[] colorFormats;
+
+    /**
+     * @param bitrateModes 支持的码率模式，第n位表示支持模式n
+     * @param maxLevels    支持的profile和对应的最高level
+     * @param maxBitrate   0表示未知
+     */
+    public EncoderCapabilities(String codecName, String mime, int bitrateModes,
+                               Map<Integer, Integer> maxLevels, int minBitrate, int maxBitrate) {
+        this(codecName, mime, bitrateModes, maxLevels, minBitrate, maxBitrate, new int[0]);
+    }
+
+    /**
+     * @param colorFormats 支持的输入颜色格式
+     */
+    public EncoderCapabilities(String codecName, String mime, int bitrateModes,
+                               Map<Integer, Integer> maxLevels, int minBitrate, int maxBitrate,
+                               int[] colorFormats) {
+        this.codecName = codecName;
+        this.mime = mime;
+        this.bitrateModes = bitrateModes;
+        this.maxLevels = Collections.unmodifiableMap(maxLevels);
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.colorFormats = colorFormats.clone();
+    }
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public boolean isBitrateModeSupported(int bitrateMode) {
+        return (bitrateModes & (1 << bitrateMode)) != 0;
+    }
+
+    public boolean isProfileSupported(int profile) {
+        return maxLevels.containsKey(profile);
+    }
+
+    public boolean isColorFormatSupported(int colorFormat) {
+        for (int supported : colorFormats) {
+            if (supported == colorFormat) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ByteBuffer输入时使用的颜色格式，不支持任何YUV420格式时返回-1
+     */
+    public int selectByteBufferColorFormat() {
+        for (int colorFormat : BYTE_BUFFER_COLOR_FORMATS) {
+            if (isColorFormatSupported(colorFormat)) {
+                return colorFormat;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按编码器能力调整期望的参数，返回新的对象，不修改requested
+     * 不支持的码率模式回退到VBR，不支持的profile逐级降低，level和码率限制在支持的范围内
+     */
+    public EncoderProfile resolve(EncoderProfile requested) {
+        if (!mime.equals(requested.getMime())) {
+            throw new IllegalArgumentException(codecName + " can't encode " + requested.getMime());
+        }
+        EncoderProfile resolved = requested.copy();
+
+        int bitrateMode = requested.getBitrateMode();
+        if (!isBitrateModeSupported(bitrateMode)) {
+            if (isBitrateModeSupported(EncoderProfile.BITRATE_MODE_VBR)) {
+                bitrateMode = EncoderProfile.BITRATE_MODE_VBR;
+            } else if (isBitrateModeSupported(EncoderProfile.BITRATE_MODE_CBR)) {
+                bitrateMode = EncoderProfile.BITRATE_MODE_CBR;
+            }
+            resolved.setBitrateMode(bitrateMode, requested.getQuality());
+        }
+
+        int bitrate = Math.max(requested.getBitrate(), minBitrate);
+        if (maxBitrate > 0) {
+            bitrate = Math.min(bitrate, maxBitrate);
+        }
+        resolved.setBitrate(bitrate);
+
+        int profile = resolveProfile(requested.getProfile());
+        int level = EncoderProfile.DEFAULT;
+        if (profile != EncoderProfile.DEFAULT && requested.getLevel() != EncoderProfile.DEFAULT) {
+            //level的取值是递增的位标记，可以直接比较大小
+            level = Math.min(requested.getLevel(), maxLevels.get(profile));
+        }
+        resolved.setProfile(profile, level);
+
+        if (!supportsBFrames(profile)) {
+            resolved.setMaxBFrames(0);
+        }
+        return resolved;
+    }
+
+    private int resolveProfile(int profile) {
+        if (profile == EncoderProfile.DEFAULT || isProfileSupported(profile)) {
+            return profile;
+        }
+        if (EncoderProfile.MIME_AVC.equals(mime)) {
+            boolean lower = false;
+            for (int candidate : AVC_PROFILE_FALLBACK) {
+                lower |= candidate == profile;
+                if (lower && isProfileSupported(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return EncoderProfile.DEFAULT;
+    }
+
+    /**
+     * AVC的Baseline没有B帧，不指定profile时大部分编码器默认也是Baseline
+     */
+    private boolean supportsBFrames(int profile) {
+        if (EncoderProfile.MIME_AVC.equals(mime)) {
+            return profile == EncoderProfile.AVC_PROFILE_MAIN || profile == EncoderProfile.AVC_PROFILE_HIGH;
+        }
+        return profile != EncoderProfile.DEFAULT;
+    }
+
+    @Override
+    public String toString() {
+        return "EncoderCapabilities{" + codecName + " " + mime + " bitrateModes=" + bitrateModes
+                + " profiles=" + maxLevels + " bitrate=[" + minBitrate + "," + maxBitrate + "]"
+                + " colorFormats=" + Arrays.toString(colorFormats) + "}";
+    }
+}
@@ -0,0 +1,120 @@
+package com.bylijian.medialibrary.record.video;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 从MediaCodecList查询视频编码器能力，每个mime只查询一次，结果在进程内缓存
+ * 查询MediaCodecList比较耗时，可以在进入录制页面之前调用{@link #prefetch()}
+ */
+public final class EncoderCapabilityProbe {
+    private static final String TAG = "EncoderCapabilityProbe";
+
+    /**
+     * 没有编码器的mime也缓存，value为null
+     */
+    private static final Map<String, EncoderCapabilities> cache = new HashMap<>();
+
+    private EncoderCapabilityProbe() {
+    }
+
+    /**
+     * 在后台线程查询AVC和HEVC编码器
+     */
+    public static void prefetch() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                get(EncoderProfile.MIME_AVC);
+                get(EncoderProfile.MIME_HEVC);
+            }
+        }, "encoder-probe").start();
+    }
+
+    /**
+     * @return 首选的编码器能力，没有支持mime的编码器时返回null
+     */
+    public static synchronized EncoderCapabilities get(String mime) {
+        if (cache.containsKey(mime)) {
+            return cache.get(mime);
+        }
+        EncoderCapabilities capabilities = null;
+        try {
+            capabilities = query(mime);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "query " + mime + " failed", e);
+        }
+        Log.d(TAG, "probe " + mime + ": " + capabilities);
+        cache.put(mime, capabilities);
+        return capabilities;
+    }
+
+    /**
+     * 按编码器能力调整requested，不支持HEVC时改用AVC
+     * 一个编码器都没有查到时原样返回，交给MediaCodec.configure报错
+     */
+    public static EncoderProfile resolve(EncoderProfile requested) {
+        EncoderProfile profile = requested;
+        EncoderCapabilities capabilities = get(profile.getMime());
+        if (capabilities == null && EncoderProfile.MIME_HEVC.equals(profile.getMime())) {
+            Log.w(TAG, "no hevc encoder, fallback to avc");
+            profile = profile.copy().setMime(EncoderProfile.MIME_AVC).setProfile(EncoderProfile.DEFAULT,
+                    EncoderProfile.DEFAULT);
+            capabilities = get(profile.getMime());
+        }
+        return capabilities == null ? profile : capabilities.resolve(profile);
+    }
+
+    private static EncoderCapabilities query(String mime) {
+        MediaCodecInfo selected = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            //优先使用硬件编码器，软件编码器只作为备选
+            if (selected == null || (isSoftware(selected) && !isSoftware(info))) {
+                selected = info;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        MediaCodecInfo.CodecCapabilities codecCapabilities = selected.getCapabilitiesForType(mime);
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = codecCapabilities.getEncoderCapabilities();
+        int bitrateModes = 0;
+        for (int mode = EncoderProfile.BITRATE_MODE_CQ; mode <= EncoderProfile.BITRATE_MODE_CBR; mode++) {
+            if (encoderCapabilities.isBitrateModeSupported(mode)) {
+                bitrateModes |= 1 << mode;
+            }
+        }
+        Map<Integer, Integer> maxLevels = new HashMap<>();
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : codecCapabilities.profileLevels) {
+            Integer level = maxLevels.get(profileLevel.profile);
+            if (level == null || level < profileLevel.level) {
+                maxLevels.put(profileLevel.profile, profileLevel.level);
+            }
+        }
+        Range<Integer> bitrateRange = codecCapabilities.getVideoCapabilities().getBitrateRange();
+        return new EncoderCapabilities(selected.getName(), mime, bitrateModes, maxLevels,
+                bitrateRange.getLower(), bitrateRange.getUpper(), codecCapabilities.colorFormats);
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftware(MediaCodecInfo info) {
+        String name = info.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+}
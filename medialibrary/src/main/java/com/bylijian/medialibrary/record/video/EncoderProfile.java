@@ -0,0 +1,209 @@
+package com.bylijian.medialibrary.record.video;
+
+/**
+ * 视频编码参数，不依赖MediaFormat，可以在JVM上测试
+ * 设置的是期望值，实际使用前用{@link EncoderCapabilities#resolve(EncoderProfile)}按编码器能力降级
+ */
+public class EncoderProfile {
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+
+    /**
+     * 取值和MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*相同
+     */
+    public static final int BITRATE_MODE_CQ = 0;
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+
+    /**
+     * 取值和MediaCodecInfo.CodecProfileLevel相同
+     */
+    public static final int AVC_PROFILE_BASELINE = 0x01;
+    public static final int AVC_PROFILE_MAIN = 0x02;
+    public static final int AVC_PROFILE_HIGH = 0x08;
+    public static final int HEVC_PROFILE_MAIN = 0x01;
+
+    /**
+     * 不指定profile/level，由编码器决定
+     */
+    public static final int DEFAULT = 0;
+
+    /**
+     * MediaFormat.KEY_PRIORITY，0表示实时
+     */
+    public static final int PRIORITY_REALTIME = 0;
+    public static final int PRIORITY_NON_REALTIME = 1;
+
+    private String mime = MIME_AVC;
+    private int width;
+    private int height;
+    private int bitrate = 6000000;
+    private int frameRate = 25;
+    private float keyFrameIntervalSec = 1;
+    private int bitrateMode = BITRATE_MODE_VBR;
+    private int quality = -1;
+    private int profile = DEFAULT;
+    private int level = DEFAULT;
+    private int maxBFrames;
+    private int operatingRate;
+    private int priority = -1;
+
+    public EncoderProfile(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public EncoderProfile copy() {
+        EncoderProfile copy = new EncoderProfile(width, height);
+        copy.mime = mime;
+        copy.bitrate = bitrate;
+        copy.frameRate = frameRate;
+        copy.keyFrameIntervalSec = keyFrameIntervalSec;
+        copy.bitrateMode = bitrateMode;
+        copy.quality = quality;
+        copy.profile = profile;
+        copy.level = level;
+        copy.maxBFrames = maxBFrames;
+        copy.operatingRate = operatingRate;
+        copy.priority = priority;
+        return copy;
+    }
+
+    /**
+     * @param mime {@link #MIME_AVC}或者{@link #MIME_HEVC}，设备不支持HEVC时回退到AVC
+     */
+    public EncoderProfile setMime(String mime) {
+        this.mime = mime;
+        return this;
+    }
+
+    public EncoderProfile setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    public EncoderProfile setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+        return this;
+    }
+
+    public EncoderProfile setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * GOP长度，单位秒
+     */
+    public EncoderProfile setKeyFrameInterval(float keyFrameIntervalSec) {
+        this.keyFrameIntervalSec = keyFrameIntervalSec;
+        return this;
+    }
+
+    /**
+     * @param quality 只在{@link #BITRATE_MODE_CQ}下使用，-1表示编码器默认值
+     */
+    public EncoderProfile setBitrateMode(int bitrateMode, int quality) {
+        this.bitrateMode = bitrateMode;
+        this.quality = quality;
+        return this;
+    }
+
+    public EncoderProfile setBitrateMode(int bitrateMode) {
+        return setBitrateMode(bitrateMode, -1);
+    }
+
+    /**
+     * @param level {@link #DEFAULT}表示由编码器按分辨率和帧率决定
+     */
+    public EncoderProfile setProfile(int profile, int level) {
+        this.profile = profile;
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Baseline不支持B帧，编码器不支持时会忽略
+     * 只有写MediaMuxer的普通录制使用，fragmented MP4和分段录制要求按显示顺序输出，会关闭B帧
+     */
+    public EncoderProfile setMaxBFrames(int maxBFrames) {
+        this.maxBFrames = maxBFrames;
+        return this;
+    }
+
+    /**
+     * 提示编码器需要达到的帧率，0表示不设置
+     */
+    public EncoderProfile setOperatingRate(int operatingRate) {
+        this.operatingRate = operatingRate;
+        return this;
+    }
+
+    /**
+     * @param priority {@link #PRIORITY_REALTIME}、{@link #PRIORITY_NON_REALTIME}或者-1表示不设置
+     */
+    public EncoderProfile setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public float getKeyFrameInterval() {
+        return keyFrameIntervalSec;
+    }
+
+    public int getBitrateMode() {
+        return bitrateMode;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getProfile() {
+        return profile;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMaxBFrames() {
+        return maxBFrames;
+    }
+
+    public int getOperatingRate() {
+        return operatingRate;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public String toString() {
+        return "EncoderProfile{" + mime + " " + width + "x" + height + "@" + frameRate
+                + " bitrate=" + bitrate + " mode=" + bitrateMode + " gop=" + keyFrameIntervalSec
+                + "s profile=" + profile + " level=" + level + " bFrames=" + maxBFrames + "}";
+    }
+}
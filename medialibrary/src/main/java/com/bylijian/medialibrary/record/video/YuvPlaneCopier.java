@@ -0,0 +1,162 @@
+package com.bylijian.medialibrary.record.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 在CPU上拷贝YUV420的一个平面，支持行跨度、像素跨度和90度倍数的旋转
+ * 像素跨度1是平面格式(I420)，2是UV交错格式(NV12/NV21)，编码器ByteBuffer输入用它把采集帧直接拷贝成编码器要求的布局
+ */
+public final class YuvPlaneCopier {
+    /**
+     * 旋转90和270度时一次读入的源平面行数，目标平面每一行按这么长的一段写入
+     */
+    private static final int STRIP_ROWS = 128;
+
+    /**
+     * 每个线程复用的中转数组，录制时都在采集线程上拷贝
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private YuvPlaneCopier() {
+    }
+
+    /**
+     * 按下标读写，不修改src和dst的position和limit
+     * 源平面按行批量读进数组，在数组里完成旋转和像素跨度的转换，再按目标平面的行批量写出，不逐字节访问ByteBuffer
+     *
+     * @param width    源平面的宽，单位是采样点
+     * @param height   源平面的高
+     * @param rotation 顺时针旋转的角度，90和270时目标平面的宽高和源平面相反
+     */
+    public static void copyPlane(ByteBuffer src, int srcOffset, int srcRowStride, int srcPixelStride,
+                                 ByteBuffer dst, int dstOffset, int dstRowStride, int dstPixelStride,
+                                 int width, int height, int rotation) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (rotation == 0 && srcPixelStride == 1 && dstPixelStride == 1) {
+            copyRows(src, srcOffset, srcRowStride, dst, dstOffset, dstRowStride, width, height);
+            return;
+        }
+        //目标下标 = rowStart + y * rowStep + x * xStep
+        int rowStart;
+        int rowStep;
+        int xStep;
+        switch (rotation) {
+            case 0:
+                rowStart = dstOffset;
+                rowStep = dstRowStride;
+                xStep = dstPixelStride;
+                break;
+            case 90:
+                //源(x, y)落到目标(height - 1 - y, x)
+                rowStart = dstOffset + (height - 1) * dstPixelStride;
+                rowStep = -dstPixelStride;
+                xStep = dstRowStride;
+                break;
+            case 180:
+                rowStart = dstOffset + (height - 1) * dstRowStride + (width - 1) * dstPixelStride;
+                rowStep = -dstRowStride;
+                xStep = -dstPixelStride;
+                break;
+            case 270:
+                //源(x, y)落到目标(y, width - 1 - x)
+                rowStart = dstOffset + (width - 1) * dstRowStride;
+                rowStep = dstPixelStride;
+                xStep = -dstRowStride;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer srcView = src.duplicate();
+        ByteBuffer dstView = dst.duplicate();
+        int srcRowLength = (width - 1) * srcPixelStride + 1;
+        //0和180度时源平面的一行是目标平面的一行；90和270度时源平面的一列是目标平面的一行，一次处理一段
+        boolean transposed = rotation % 180 != 0;
+        int stripRows = transposed ? Math.min(STRIP_ROWS, height) : 1;
+        byte[] strip = scratch.strip(stripRows * srcRowLength);
+        for (int y0 = 0; y0 < height; y0 += stripRows) {
+            int rows = Math.min(stripRows, height - y0);
+            for (int i = 0; i < rows; i++) {
+                srcView.clear();
+                srcView.position(srcOffset + (y0 + i) * srcRowStride);
+                srcView.get(strip, i * srcRowLength, srcRowLength);
+            }
+            if (!transposed) {
+                //xStep为负时目标行是源行倒过来
+                int first = rowStart + y0 * rowStep + (xStep > 0 ? 0 : (width - 1) * xStep);
+                writeRun(dstView, first, dstPixelStride, strip, 0, srcPixelStride, width, xStep < 0,
+                        scratch);
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int first = rowStart + x * xStep + (rowStep > 0 ? y0 : y0 + rows - 1) * rowStep;
+                writeRun(dstView, first, dstPixelStride, strip, x * srcPixelStride, srcRowLength, rows,
+                        rowStep < 0, scratch);
+            }
+        }
+    }
+
+    /**
+     * 从samples的start开始每隔step取count个采样，按像素跨度写到dst从first开始的位置，reversed时倒序写
+     * 像素跨度大于1时，中间属于另一个分量的字节先读出来再原样写回
+     */
+    private static void writeRun(ByteBuffer dst, int first, int pixelStride, byte[] samples, int start,
+                                 int step, int count, boolean reversed, Scratch scratch) {
+        int spanLength = (count - 1) * pixelStride + 1;
+        byte[] span = scratch.span(spanLength);
+        dst.clear();
+        dst.position(first);
+        if (pixelStride != 1) {
+            dst.get(span, 0, spanLength);
+            dst.position(first);
+        }
+        int index = reversed ? spanLength - 1 : 0;
+        int indexStep = reversed ? -pixelStride : pixelStride;
+        for (int i = 0; i < count; i++) {
+            span[index] = samples[start + i * step];
+            index += indexStep;
+        }
+        dst.put(span, 0, spanLength);
+    }
+
+    private static void copyRows(ByteBuffer src, int srcOffset, int srcRowStride,
+                                 ByteBuffer dst, int dstOffset, int dstRowStride, int width, int height) {
+        ByteBuffer srcRow = src.duplicate();
+        ByteBuffer dstRow = dst.duplicate();
+        for (int y = 0; y < height; y++) {
+            int srcStart = srcOffset + y * srcRowStride;
+            srcRow.clear();
+            srcRow.position(srcStart);
+            srcRow.limit(srcStart + width);
+            dstRow.clear();
+            dstRow.position(dstOffset + y * dstRowStride);
+            dstRow.put(srcRow);
+        }
+    }
+
+    private static final class Scratch {
+        private byte[] strip = new byte[0];
+        private byte[] span = new byte[0];
+
+        byte[] strip(int length) {
+            if (strip.length < length) {
+                strip = new byte[length];
+            }
+            return strip;
+        }
+
+        byte[] span(int length) {
+            if (span.length < length) {
+                span = new byte[length];
+            }
+            return span;
+        }
+    }
+}
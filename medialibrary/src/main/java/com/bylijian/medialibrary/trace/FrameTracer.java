@@ -0,0 +1,258 @@
+package com.bylijian.medialibrary.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 逐帧记录各个阶段的时间，统计从采集时间戳到每个阶段的延迟
+ * 1.帧用采集时间戳(VideoFrame.getTimestampNs())标识，时间戳需要和System.nanoTime()同一个时钟，
+ * 比如SurfaceTextureHelper打开alignTimestamps
+ * 2.记录写进固定大小的环形数组，多个线程可以同时写，不加锁也不分配，关闭时只有一次volatile读
+ * 3.编码器的时间戳是画到编码器surface时交给它的时间，不是采集时间戳，所以{@link #STAGE_OUTPUT_SWAP}
+ * 记录的时间就是交给编码器的时间戳，统计时用它把{@link #STAGE_ENCODER_OUTPUT}对应回采集的帧
+ * 环形数组只保留最近的记录，统计结果反映最近几秒
+ */
+public class FrameTracer {
+    /**
+     * CameraCapturer收到帧
+     */
+    public static final int STAGE_CAPTURED = 0;
+    /**
+     * 渲染线程取出帧
+     */
+    public static final int STAGE_RENDER_DEQUEUE = 1;
+    /**
+     * 画到输出surface(编码器)并swapBuffers以后，时间用交给编码器的时间戳
+     */
+    public static final int STAGE_OUTPUT_SWAP = 2;
+    /**
+     * 预览绘制完成，还没有swapBuffers
+     */
+    public static final int STAGE_DRAW = 3;
+    /**
+     * 预览swapBuffers返回
+     */
+    public static final int STAGE_SWAP = 4;
+    /**
+     * 编码器输出，帧标识用编码输出的时间戳
+     */
+    public static final int STAGE_ENCODER_OUTPUT = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "captured", "render dequeue", "output swap", "draw", "swap", "encoder output"};
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * 每条记录：序号、帧时间戳、阶段、时间
+     */
+    private static final int SLOT_LONGS = 4;
+    /**
+     * 正在写的记录序号先设成这个值，读的时候跳过
+     */
+    private static final long WRITING = -1;
+
+    private static final FrameTracer instance = new FrameTracer(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile boolean enabled;
+
+    /**
+     * @param capacity 保留的记录数，必须是2的幂
+     */
+    FrameTracer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        slots = new AtomicLongArray(capacity * SLOT_LONGS);
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i * SLOT_LONGS, WRITING);
+        }
+    }
+
+    /**
+     * 进程内共用的实例，采集、渲染和编码都记录到这里
+     */
+    public static FrameTracer getInstance() {
+        return instance;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 用当前时间记录帧到达|stage|
+     */
+    public void mark(int stage, long frameTimestampNs) {
+        if (enabled) {
+            record(stage, frameTimestampNs, System.nanoTime());
+        }
+    }
+
+    public void mark(int stage, long frameTimestampNs, long timeNs) {
+        if (enabled) {
+            record(stage, frameTimestampNs, timeNs);
+        }
+    }
+
+    private void record(int stage, long frameTimestampNs, long timeNs) {
+        final long sequence = cursor.getAndIncrement();
+        final int base = (int) (sequence & mask) * SLOT_LONGS;
+        // 序号最后写，读的时候前后两次读到相同的序号才说明中间没有被改写
+        slots.set(base, WRITING);
+        slots.set(base + 1, frameTimestampNs);
+        slots.set(base + 2, stage);
+        slots.set(base + 3, timeNs);
+        slots.set(base, sequence);
+    }
+
+    /**
+     * 清空已有的记录
+     */
+    public void reset() {
+        final long end = cursor.get();
+        for (int i = 0; i <= mask; i++) {
+            final int base = i * SLOT_LONGS;
+            final long sequence = slots.get(base);
+            if (sequence != WRITING && sequence < end) {
+                slots.compareAndSet(base, sequence, WRITING);
+            }
+        }
+    }
+
+    /**
+     * 统计环形数组里现有的记录，不影响同时进行的写入。会分配内存，不要在每一帧调用
+     */
+    public Report getReport() {
+        final long end = cursor.get();
+        final long start = Math.max(0, end - mask - 1);
+        // 帧时间戳 -> 各阶段的时间
+        final Map<Long, long[]> frames = new HashMap<>();
+        // 交给编码器的时间戳(us) -> 帧时间戳
+        final Map<Long, Long> encoderInputs = new HashMap<>();
+        final List<long[]> encoderOutputs = new ArrayList<>();
+        for (int i = 0; i <= mask; i++) {
+            final int base = i * SLOT_LONGS;
+            final long sequence = slots.get(base);
+            if (sequence < start || sequence >= end) {
+                continue;
+            }
+            final long frameTimestampNs = slots.get(base + 1);
+            final int stage = (int) slots.get(base + 2);
+            final long timeNs = slots.get(base + 3);
+            if (slots.get(base) != sequence) {
+                continue;
+            }
+            if (stage == STAGE_ENCODER_OUTPUT) {
+                encoderOutputs.add(new long[]{frameTimestampNs, timeNs});
+                continue;
+            }
+            if (stage == STAGE_OUTPUT_SWAP) {
+                encoderInputs.put(timeNs / 1000, frameTimestampNs);
+            }
+            getStageTimes(frames, frameTimestampNs)[stage] = timeNs;
+        }
+        for (long[] output : encoderOutputs) {
+            final Long frameTimestampNs = encoderInputs.get(output[0] / 1000);
+            if (frameTimestampNs != null) {
+                getStageTimes(frames, frameTimestampNs)[STAGE_ENCODER_OUTPUT] = output[1];
+            }
+        }
+
+        final long[][] latencies = new long[STAGE_COUNT][frames.size()];
+        final int[] counts = new int[STAGE_COUNT];
+        for (Map.Entry<Long, long[]> frame : frames.entrySet()) {
+            final long[] times = frame.getValue();
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (times[stage] != Long.MIN_VALUE) {
+                    latencies[stage][counts[stage]++] = times[stage] - frame.getKey();
+                }
+            }
+        }
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            latencies[stage] = Arrays.copyOf(latencies[stage], counts[stage]);
+            Arrays.sort(latencies[stage]);
+        }
+        return new Report(latencies);
+    }
+
+    private static long[] getStageTimes(Map<Long, long[]> frames, long frameTimestampNs) {
+        long[] times = frames.get(frameTimestampNs);
+        if (times == null) {
+            times = new long[STAGE_COUNT];
+            Arrays.fill(times, Long.MIN_VALUE);
+            frames.put(frameTimestampNs, times);
+        }
+        return times;
+    }
+
+    /**
+     * 每个阶段相对采集时间戳的延迟分布
+     */
+    public static class Report {
+        /**
+         * [阶段][帧]，已经排好序
+         */
+        private final long[][] latencies;
+
+        Report(long[][] latencies) {
+            this.latencies = latencies;
+        }
+
+        /**
+         * 记录到这个阶段的帧数
+         */
+        public int getCount(int stage) {
+            return latencies[stage].length;
+        }
+
+        /**
+         * 没有记录时返回0
+         *
+         * @param percentile 0到100
+         */
+        public long getPercentileNs(int stage, double percentile) {
+            final long[] values = latencies[stage];
+            if (values.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * values.length);
+            return values[Math.max(0, Math.min(values.length, rank) - 1)];
+        }
+
+        /**
+         * 每个阶段一行，单位ms
+         */
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (getCount(stage) == 0) {
+                    continue;
+                }
+                builder.append(String.format(Locale.US, "%s n=%d p50=%.2f p95=%.2f p99=%.2f\n",
+                        STAGE_NAMES[stage], getCount(stage), getPercentileNs(stage, 50) / 1e6,
+                        getPercentileNs(stage, 95) / 1e6, getPercentileNs(stage, 99) / 1e6));
+            }
+            return builder.toString();
+        }
+    }
+}
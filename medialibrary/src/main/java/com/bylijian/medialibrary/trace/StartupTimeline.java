@@ -0,0 +1,181 @@
+package com.bylijian.medialibrary.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 记录启动过程中各阶段的开始和结束时间，不同阶段可以在不同线程同时进行
+ * 1.时间相对于{@link #start()}，start()之前的记录忽略
+ * 2.每个阶段只记录第一次，比如onPause/onResume以后再次打开摄像头不会覆盖启动时的记录
+ * 3.报告按开始时间排列，同时给出各阶段耗时之和和实际经过的时间，两者的差是并行节省的时间
+ */
+public class StartupTimeline {
+    /**
+     * 查询摄像头列表和支持的分辨率，创建capturer
+     */
+    public static final String PHASE_CAMERA_ENUMERATE = "camera enumerate";
+    /**
+     * 从startCapture()到摄像头打开、开始输出
+     */
+    public static final String PHASE_CAMERA_OPEN = "camera open";
+    /**
+     * 采集线程创建EGL context和SurfaceTexture
+     */
+    public static final String PHASE_CAPTURE_EGL = "capture EGL";
+    /**
+     * 预览渲染线程创建EGL context
+     */
+    public static final String PHASE_RENDER_EGL = "render EGL";
+    /**
+     * 预览的EGL surface创建以后编译着色器
+     */
+    public static final String PHASE_SHADER_COMPILE = "shader compile";
+    public static final String PHASE_AUDIO_RECORD = "audio record";
+    /**
+     * CameraCapturer收到第一帧
+     */
+    public static final String EVENT_FIRST_FRAME = "first frame";
+    /**
+     * 第一帧画到预览上
+     */
+    public static final String EVENT_FIRST_RENDER = "first render";
+
+    private static final StartupTimeline instance = new StartupTimeline();
+
+    private static class Phase {
+        final String name;
+        final String thread;
+        final long beginNs;
+        long endNs = -1;
+
+        Phase(String name, String thread, long beginNs) {
+            this.name = name;
+            this.thread = thread;
+            this.beginNs = beginNs;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private long originNs = -1;
+
+    StartupTimeline() {
+    }
+
+    /**
+     * 进程内共用的实例
+     */
+    public static StartupTimeline getInstance() {
+        return instance;
+    }
+
+    /**
+     * 清空已有记录，以当前时间作为原点
+     */
+    public void start() {
+        start(System.nanoTime());
+    }
+
+    synchronized void start(long timeNs) {
+        phases.clear();
+        originNs = timeNs;
+    }
+
+    public void begin(String name) {
+        begin(name, System.nanoTime());
+    }
+
+    synchronized void begin(String name, long timeNs) {
+        if (originNs < 0 || find(name) != null) {
+            return;
+        }
+        phases.add(new Phase(name, Thread.currentThread().getName(), timeNs));
+    }
+
+    /**
+     * 没有对应的{@link #begin(String)}或者已经结束时忽略
+     */
+    public void end(String name) {
+        end(name, System.nanoTime());
+    }
+
+    synchronized void end(String name, long timeNs) {
+        final Phase phase = find(name);
+        if (phase != null && phase.endNs < 0) {
+            phase.endNs = timeNs;
+        }
+    }
+
+    /**
+     * 记录一个没有持续时间的事件，比如第一帧
+     */
+    public void mark(String name) {
+        final long timeNs = System.nanoTime();
+        synchronized (this) {
+            begin(name, timeNs);
+            end(name, timeNs);
+        }
+    }
+
+    /**
+     * @return 阶段结束时距离原点的时间，没有记录或者还没结束返回-1
+     */
+    public synchronized long getEndMs(String name) {
+        final Phase phase = find(name);
+        return phase == null || phase.endNs < 0 ? -1 : (phase.endNs - originNs) / 1000000;
+    }
+
+    /**
+     * @return 阶段的耗时，没有记录或者还没结束返回-1
+     */
+    public synchronized long getDurationMs(String name) {
+        final Phase phase = find(name);
+        return phase == null || phase.endNs < 0 ? -1 : (phase.endNs - phase.beginNs) / 1000000;
+    }
+
+    /**
+     * 每行一个阶段：开始、结束、耗时(ms)、名字和线程，没结束的阶段结束时间显示为"-"
+     */
+    public synchronized String getReport() {
+        final List<Phase> sorted = new ArrayList<>(phases);
+        Collections.sort(sorted, new Comparator<Phase>() {
+            @Override
+            public int compare(Phase a, Phase b) {
+                return Long.compare(a.beginNs, b.beginNs);
+            }
+        });
+        final StringBuilder builder = new StringBuilder();
+        long sumNs = 0;
+        long lastEndNs = originNs;
+        for (Phase phase : sorted) {
+            if (phase.endNs < 0) {
+                builder.append(String.format(Locale.US, "%8.1f        -          %s [%s]\n",
+                        toMs(phase.beginNs - originNs), phase.name, phase.thread));
+                continue;
+            }
+            sumNs += phase.endNs - phase.beginNs;
+            lastEndNs = Math.max(lastEndNs, phase.endNs);
+            builder.append(String.format(Locale.US, "%8.1f %8.1f %8.1f  %s [%s]\n",
+                    toMs(phase.beginNs - originNs), toMs(phase.endNs - originNs),
+                    toMs(phase.endNs - phase.beginNs), phase.name, phase.thread));
+        }
+        builder.append(String.format(Locale.US, "elapsed %.1f ms, sum of phases %.1f ms",
+                toMs(lastEndNs - originNs), toMs(sumNs)));
+        return builder.toString();
+    }
+
+    private Phase find(String name) {
+        for (Phase phase : phases) {
+            if (phase.name.equals(name)) {
+                return phase;
+            }
+        }
+        return null;
+    }
+
+    private static double toMs(long ns) {
+        return ns / 1e6;
+    }
+}
@@ -0,0 +1,106 @@
+package com.bylijian.medialibrary.record.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioTimestamperTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BYTES_PER_FRAME = 2;
+    /**
+     * 441个采样点，10ms
+     */
+    private static final int PERIOD_BYTES = 882;
+
+    private static class FakeClock implements AudioTimestamper.Clock {
+        long nowUs;
+
+        @Override
+        public long nowUs() {
+            return nowUs;
+        }
+    }
+
+    @Test
+    public void anchorsNewestSampleToClock() {
+        FakeClock clock = new FakeClock();
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE, BYTES_PER_FRAME, clock);
+        clock.nowUs = 5000000;
+
+        // 已经采集了3个周期，读到的是第一个周期
+        long pts = timestamper.getPresentationTimeUs(0, PERIOD_BYTES, 3 * PERIOD_BYTES);
+
+        assertTrue(timestamper.isAnchored());
+        assertEquals(5000000 - 30000, pts);
+        assertEquals(5000000 - 20000, timestamper.getNextPresentationTimeUs());
+    }
+
+    @Test
+    public void callbackJitterDoesNotAffectTimestamps() {
+        FakeClock clock = new FakeClock();
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE, BYTES_PER_FRAME, clock);
+        clock.nowUs = 1000000;
+        long first = timestamper.getPresentationTimeUs(0, PERIOD_BYTES, PERIOD_BYTES);
+
+        for (int i = 1; i < 1000; i++) {
+            // 编码器回调的时间随意抖动
+            clock.nowUs += (i % 7) * 3000;
+            long pts = timestamper.getPresentationTimeUs((long) i * PERIOD_BYTES, PERIOD_BYTES,
+                    (long) (i + 1) * PERIOD_BYTES);
+            assertEquals(first + i * 10000L, pts);
+        }
+    }
+
+    @Test
+    public void noDriftOverLongRecording() {
+        FakeClock clock = new FakeClock();
+        // 1024个采样点的周期不能被整除成微秒，逐段累加会漂移
+        int period = 1024 * BYTES_PER_FRAME;
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE, BYTES_PER_FRAME, clock);
+        timestamper.getPresentationTimeUs(0, period, 0);
+
+        long periods = 3600L * SAMPLE_RATE / 1024;
+        long pts = timestamper.getPresentationTimeUs(periods * period, period, periods * period);
+
+        assertEquals(periods * 1024 * 1000000L / SAMPLE_RATE, pts);
+    }
+
+    @Test
+    public void droppedPeriodsLeaveGap() {
+        FakeClock clock = new FakeClock();
+        clock.nowUs = 2000000;
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(2, PERIOD_BYTES, PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE, BYTES_PER_FRAME, clock);
+        ByteBuffer input = ByteBuffer.allocate(PERIOD_BYTES);
+
+        for (int i = 0; i < 5; i++) {
+            ringBuffer.write(ByteBuffer.allocate(PERIOD_BYTES));
+        }
+        // 周期0、1、2被丢弃，读到的是周期3
+        int size = ringBuffer.read(input);
+        long pts = timestamper.getPresentationTimeUs(ringBuffer.getLastReadPosition(), size,
+                ringBuffer.getWritePosition());
+        input.clear();
+        size = ringBuffer.read(input);
+        long next = timestamper.getPresentationTimeUs(ringBuffer.getLastReadPosition(), size,
+                ringBuffer.getWritePosition());
+
+        assertEquals(5L * PERIOD_BYTES, ringBuffer.getWritePosition());
+        assertEquals(2000000 - 20000, pts);
+        assertEquals(pts + 10000, next);
+    }
+
+    @Test
+    public void unanchoredFallsBackToClock() {
+        FakeClock clock = new FakeClock();
+        clock.nowUs = 1234;
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE, BYTES_PER_FRAME, clock);
+
+        assertFalse(timestamper.isAnchored());
+        assertEquals(1234, timestamper.getNextPresentationTimeUs());
+    }
+}
@@ -0,0 +1,206 @@
+package com.bylijian.medialibrary.record.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+    private static final int SLOT_SIZE = 882;
+
+    /**
+     * 模拟AudioRecord的采集源，每个槽位写入递增的序号，方便检查顺序和丢失
+     */
+    private static class FakeAudioSource implements AudioSource {
+        private final int periods;
+        private PcmRingBuffer ringBuffer;
+        private Thread thread;
+
+        FakeAudioSource(int periods) {
+            this.periods = periods;
+        }
+
+        @Override
+        public void init(PcmRingBuffer ringBuffer) {
+            this.ringBuffer = ringBuffer;
+        }
+
+        @Override
+        public void start() {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < periods; i++) {
+                        ByteBuffer slot = ringBuffer.beginWrite();
+                        if (slot == null) {
+                            return;
+                        }
+                        fill(slot, i);
+                        ringBuffer.commitWrite(SLOT_SIZE);
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        @Override
+        public void stop() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+
+        void period(int sequence) {
+            ByteBuffer slot = ringBuffer.beginWrite();
+            fill(slot, sequence);
+            ringBuffer.commitWrite(SLOT_SIZE);
+        }
+
+        private static void fill(ByteBuffer slot, int sequence) {
+            while (slot.remaining() >= 4) {
+                slot.putInt(sequence);
+            }
+        }
+    }
+
+    @Test
+    public void readsPeriodsInOrder() {
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(4, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        FakeAudioSource source = new FakeAudioSource(0);
+        source.init(ringBuffer);
+        ByteBuffer input = ByteBuffer.allocateDirect(SLOT_SIZE);
+
+        source.period(0);
+        source.period(1);
+
+        assertEquals(2, ringBuffer.available());
+        assertEquals(SLOT_SIZE, readInto(ringBuffer, input));
+        assertSequence(input, 0);
+        assertEquals(SLOT_SIZE, readInto(ringBuffer, input));
+        assertSequence(input, 1);
+        assertEquals(0, readInto(ringBuffer, input));
+        assertEquals(1, ringBuffer.getUnderrunCount());
+        assertEquals(0, ringBuffer.getOverrunCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestPeriods() {
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(4, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        FakeAudioSource source = new FakeAudioSource(0);
+        source.init(ringBuffer);
+        ByteBuffer input = ByteBuffer.allocateDirect(SLOT_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            source.period(i);
+        }
+
+        assertEquals(6, ringBuffer.getOverrunCount());
+        assertEquals(4, ringBuffer.available());
+        for (int i = 6; i < 10; i++) {
+            readInto(ringBuffer, input);
+            assertSequence(input, i);
+        }
+    }
+
+    @Test
+    public void blockPolicyLosesNothing() throws InterruptedException {
+        final int periods = 2000;
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(3, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.BLOCK);
+        FakeAudioSource source = new FakeAudioSource(periods);
+        source.init(ringBuffer);
+        source.start();
+        ByteBuffer input = ByteBuffer.allocateDirect(SLOT_SIZE);
+
+        int expected = 0;
+        while (expected < periods) {
+            if (readInto(ringBuffer, input) > 0) {
+                assertSequence(input, expected);
+                expected++;
+            }
+        }
+        source.stop();
+
+        assertEquals(0, ringBuffer.available());
+    }
+
+    @Test
+    public void concurrentDropOldestNeverReturnsTornSlots() {
+        final int periods = 20000;
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(2, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        FakeAudioSource source = new FakeAudioSource(periods);
+        source.init(ringBuffer);
+        source.start();
+        ByteBuffer input = ByteBuffer.allocateDirect(SLOT_SIZE);
+
+        int last = -1;
+        int received = 0;
+        while (last < periods - 1) {
+            if (readInto(ringBuffer, input) > 0) {
+                int sequence = input.getInt(0);
+                assertSequence(input, sequence);
+                assertTrue(sequence > last);
+                last = sequence;
+                received++;
+            }
+        }
+        source.stop();
+
+        assertEquals(periods, received + ringBuffer.getOverrunCount());
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws InterruptedException {
+        final PcmRingBuffer ringBuffer = new PcmRingBuffer(1, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.BLOCK);
+        ringBuffer.write(ByteBuffer.allocate(SLOT_SIZE));
+        final boolean[] written = {true};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                written[0] = ringBuffer.write(ByteBuffer.allocate(SLOT_SIZE));
+            }
+        });
+        producer.start();
+        Thread.sleep(20);
+
+        ringBuffer.close();
+        producer.join(1000);
+
+        assertFalse(producer.isAlive());
+        assertFalse(written[0]);
+        assertNull(ringBuffer.beginWrite());
+    }
+
+    @Test
+    public void readTruncatesToDestination() {
+        PcmRingBuffer ringBuffer = new PcmRingBuffer(2, SLOT_SIZE, PcmRingBuffer.OverrunPolicy.DROP_OLDEST);
+        ringBuffer.write(ByteBuffer.allocate(SLOT_SIZE));
+        ByteBuffer input = ByteBuffer.allocateDirect(100);
+
+        assertEquals(100, ringBuffer.read(input));
+        assertEquals(100, input.position());
+        assertEquals(0, ringBuffer.available());
+    }
+
+    private static int readInto(PcmRingBuffer ringBuffer, ByteBuffer input) {
+        input.clear();
+        int size = ringBuffer.read(input);
+        input.flip();
+        return size;
+    }
+
+    private static void assertSequence(ByteBuffer input, int sequence) {
+        for (int i = 0; i + 4 <= SLOT_SIZE; i += 4) {
+            assertEquals(sequence, input.getInt(i));
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.bylijian.medialibrary.record.mux;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] ASC = {0x12, 0x08};
+
+    /**
+     * 解析出来的box，容器box带子节点
+     */
+    private static class Box {
+        final String type;
+        final long offset;
+        final ByteBuffer payload;
+        final List<Box> children = new ArrayList<>();
+
+        Box(String type, long offset, ByteBuffer payload) {
+            this.type = type;
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        Box child(String type) {
+            for (Box box : children) {
+                if (box.type.equals(type)) {
+                    return box;
+                }
+            }
+            return null;
+        }
+
+        List<Box> all(String type) {
+            List<Box> result = new ArrayList<>();
+            for (Box box : children) {
+                if (box.type.equals(type)) {
+                    result.add(box);
+                }
+            }
+            return result;
+        }
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fragmented", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writesInitSegmentAndFragments() throws IOException {
+        FragmentedMp4Writer writer = newWriter(500);
+        int video = writer.addTrack(TrackFormat.createAvc(640, 480, SPS, PPS));
+        int audio = writer.addTrack(TrackFormat.createAac(44100, 1, ASC));
+        writer.start();
+        // 2秒，25fps视频和44.1k的AAC
+        for (int i = 0; i < 50; i++) {
+            long videoUs = i * 40000L;
+            writer.writeSampleData(video, annexBFrame(i), videoUs, i % 25 == 0 ? 1 : 0);
+            while (audioUs(audioCount) <= videoUs) {
+                writer.writeSampleData(audio, aacFrame(audioCount), audioUs(audioCount), 1);
+                audioCount++;
+            }
+        }
+        writer.stop();
+        writer.release();
+
+        List<Box> boxes = parse(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), 0);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        int fragments = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            assertEquals("moof", boxes.get(i).type);
+            assertEquals("mdat", boxes.get(i + 1).type);
+            fragments++;
+        }
+        assertEquals(writer.getFragmentCount(), fragments);
+        assertTrue(fragments >= 4);
+
+        Box moov = boxes.get(1);
+        assertEquals(2, moov.all("trak").size());
+        assertEquals(2, moov.child("mvex").all("trex").size());
+        ByteBuffer avcC = stsdEntry(moov.all("trak").get(0)).child("avcC").payload;
+        assertEquals(0x42, avcC.get(1));
+        assertEquals((byte) 0xFF, avcC.get(4));
+        assertEquals(6, avcC.getShort(6));
+        ByteBuffer esds = stsdEntry(moov.all("trak").get(1)).child("esds").payload;
+        assertTrue(containsSequence(esds, new byte[]{0x05, 2, 0x12, 0x08}));
+
+        verifySamples(boxes, 1, 50, true);
+        verifySamples(boxes, 2, audioCount, false);
+    }
+
+    @Test
+    public void fragmentsAreReadableBeforeStop() throws IOException {
+        FragmentedMp4Writer writer = newWriter(100);
+        int video = writer.addTrack(TrackFormat.createAvc(320, 240, SPS, PPS));
+        writer.start();
+        for (int i = 0; i < 10; i++) {
+            writer.writeSampleData(video, annexBFrame(i), i * 40000L, i == 0 ? 1 : 0);
+        }
+        // 模拟进程被杀：不调用stop()，已经写出的片段也是完整的
+        List<Box> boxes = parse(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), 0);
+        writer.release();
+
+        assertEquals("moov", boxes.get(1).type);
+        assertEquals(3, writer.getFragmentCount());
+        assertEquals("mdat", boxes.get(boxes.size() - 1).type);
+        // 最后两帧还在内存里
+        verifySamples(boxes, 1, 8, true);
+    }
+
+    @Test
+    public void rejectsReorderedVideo() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000);
+        int video = writer.addTrack(TrackFormat.createAvc(320, 240, SPS, PPS));
+        writer.start();
+        // 解码顺序I0 P2，下一个B1比P2早显示
+        writer.writeSampleData(video, annexBFrame(0), 0, 1);
+        writer.writeSampleData(video, annexBFrame(2), 80000, 0);
+        try {
+            writer.writeSampleData(video, annexBFrame(1), 40000, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            writer.release();
+        }
+    }
+
+    private int audioCount;
+
+    private FragmentedMp4Writer newWriter(int fragmentDurationMs) throws IOException {
+        return new FragmentedMp4Writer(new RandomAccessFile(file, "rw").getChannel(), fragmentDurationMs);
+    }
+
+    private static long audioUs(int index) {
+        return index * 1024L * 1000000L / 44100;
+    }
+
+    /**
+     * 一个4字节起始码的SEI和一个3字节起始码的slice，真实的NAL以rbsp_stop_one_bit结尾，最后一个字节不会是0
+     */
+    private static ByteBuffer annexBFrame(int index) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[]{0, 0, 0, 1, 0x06, (byte) (0x80 | index)});
+        buffer.put(new byte[]{0, 0, 1, (byte) (index % 25 == 0 ? 0x65 : 0x41)});
+        for (int i = 0; i < index % 7 + 1; i++) {
+            buffer.put((byte) (0x80 | (index + i)));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer aacFrame(int index) {
+        ByteBuffer buffer = ByteBuffer.allocate(10 + index % 5);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) index);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 按照trun里的偏移和大小取出每个样本，检查数据、时间连续性和同步帧标记
+     */
+    private void verifySamples(List<Box> boxes, int trackId, int expectedCount, boolean video) {
+        int index = 0;
+        long expectedDecodeTime = 0;
+        for (Box moof : boxes) {
+            if (!moof.type.equals("moof")) {
+                continue;
+            }
+            for (Box traf : moof.all("traf")) {
+                if (traf.child("tfhd").payload.getInt(4) != trackId) {
+                    continue;
+                }
+                long decodeTime = traf.child("tfdt").payload.getLong(4);
+                assertTrue(decodeTime >= expectedDecodeTime);
+                ByteBuffer trun = traf.child("trun").payload;
+                int count = trun.getInt(4);
+                long dataOffset = moof.offset + trun.getInt(8);
+                for (int s = 0; s < count; s++) {
+                    int duration = trun.getInt(12 + s * 12);
+                    int size = trun.getInt(16 + s * 12);
+                    int flags = trun.getInt(20 + s * 12);
+                    ByteBuffer sample = slice(dataOffset, size);
+                    if (video) {
+                        assertVideoSample(sample, index);
+                        assertEquals(index % 25 == 0, flags == 0x02000000);
+                        assertEquals(3600, duration);
+                    } else {
+                        assertEquals(aacFrame(index), sample);
+                        assertTrue(duration == 1023 || duration == 1024 || duration == 1025);
+                    }
+                    dataOffset += size;
+                    decodeTime += duration;
+                    index++;
+                }
+                expectedDecodeTime = decodeTime;
+            }
+        }
+        assertEquals(expectedCount, index);
+    }
+
+    private static void assertVideoSample(ByteBuffer sample, int index) {
+        ByteBuffer expected = annexBFrame(index);
+        // SEI: 00 00 00 01 06 xx -> 长度2
+        assertEquals(2, sample.getInt());
+        assertEquals(0x06, sample.get());
+        assertEquals((byte) (0x80 | index), sample.get());
+        expected.position(6 + 3);
+        assertEquals(expected.remaining(), sample.getInt());
+        assertEquals(expected, sample);
+    }
+
+    private ByteBuffer slice(long offset, int size) {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[size];
+            input.seek(offset);
+            input.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Box stsdEntry(Box trak) {
+        Box stsd = trak.child("mdia").child("minf").child("stbl").child("stsd");
+        assertNotNull(stsd);
+        ByteBuffer payload = stsd.payload;
+        String type = fourCc(payload, 12);
+        int headerSize = type.equals("avc1") ? 8 + 78 : 8 + 28;
+        ByteBuffer entry = slice(payload, 8 + headerSize, payload.getInt(8) - headerSize);
+        Box box = new Box(type, 0, null);
+        box.children.addAll(parse(entry, 0));
+        return box;
+    }
+
+    private static List<Box> parse(ByteBuffer buffer, long baseOffset) {
+        List<Box> boxes = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= buffer.limit()) {
+            int size = buffer.getInt(position);
+            assertTrue("bad box size " + size, size >= 8 && position + size <= buffer.limit());
+            String type = fourCc(buffer, position + 4);
+            Box box = new Box(type, baseOffset + position, slice(buffer, position + 8, size - 8));
+            if (isContainer(type)) {
+                box.children.addAll(parse(box.payload, box.offset + 8));
+            }
+            boxes.add(box);
+            position += size;
+        }
+        assertEquals(buffer.limit(), position);
+        return boxes;
+    }
+
+    private static boolean isContainer(String type) {
+        return "moov trak mdia minf dinf stbl mvex moof traf".contains(type);
+    }
+
+    private static String fourCc(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int size) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + size);
+        return duplicate.slice();
+    }
+
+    private static boolean containsSequence(ByteBuffer buffer, byte[] sequence) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        for (int i = 0; i + sequence.length <= bytes.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < sequence.length; j++) {
+                match &= bytes[i + j] == sequence[j];
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,385 @@
+package com.bylijian.medialibrary.record.mux;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4RemuxerTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] ASC = {0x11, (byte) 0x90};
+    private static final long FRAME_US = 40000;
+    private static final long AUDIO_US = 20000;
+    /**
+     * 296字节的NAL，长度前缀是00 00 01 28，和起始码一样开头
+     */
+    private static final int NAL_SIZE = 296;
+
+    /**
+     * 从输出文件读出来的一帧
+     */
+    private static class Sample {
+        final boolean video;
+        final long timeUs;
+        final boolean key;
+        final byte[] data;
+
+        Sample(boolean video, long timeUs, boolean key, byte[] data) {
+            this.video = video;
+            this.timeUs = timeUs;
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    private final List<File> files = new ArrayList<>();
+    private Mp4Remuxer<TrackFormat> remuxer;
+
+    @Before
+    public void setUp() {
+        remuxer = new Mp4Remuxer<>(new FragmentedRemuxFactory(100));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void concatRebasesTimestampsAndCopiesData() throws IOException {
+        File first = writeInput(1280, 6, 3, 12, 5000000);
+        File second = writeInput(1280, 6, 3, 12, 9000000);
+        File output = newFile();
+
+        long durationUs = remuxer.concat(Arrays.asList(first, second), output);
+
+        assertEquals(12 * FRAME_US, durationUs);
+        List<Sample> samples = readAll(output);
+        List<Long> videoTimes = new ArrayList<>();
+        List<Long> audioTimes = new ArrayList<>();
+        for (Sample sample : samples) {
+            (sample.video ? videoTimes : audioTimes).add(sample.timeUs);
+        }
+        List<Long> expectedVideo = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            expectedVideo.add(i * FRAME_US);
+        }
+        List<Long> expectedAudio = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            expectedAudio.add(i * AUDIO_US);
+        }
+        assertEquals(expectedVideo, videoTimes);
+        assertEquals(expectedAudio, audioTimes);
+
+        // 帧数据原样拷贝，长度前缀不会被当成起始码
+        int frame = 0;
+        for (Sample sample : samples) {
+            if (sample.video) {
+                int index = frame % 6;
+                assertArrayEquals(lengthPrefixed(index), sample.data);
+                assertEquals(index % 3 == 0, sample.key);
+                frame++;
+            }
+        }
+        assertTrue(remuxer.getCopiedBytes() > 0);
+    }
+
+    @Test
+    public void trimStartsAtPreviousKeyFrame() throws IOException {
+        File input = writeInput(1280, 9, 3, 18, 0);
+        File output = newFile();
+
+        // 第5帧开始，向前对齐到第3帧的关键帧
+        long durationUs = remuxer.trim(input, output, 5 * FRAME_US, 8 * FRAME_US);
+
+        List<Sample> samples = readAll(output);
+        List<Long> videoTimes = new ArrayList<>();
+        long lastAudioUs = -1;
+        for (Sample sample : samples) {
+            if (sample.video) {
+                videoTimes.add(sample.timeUs);
+            } else {
+                assertTrue(sample.timeUs > lastAudioUs);
+                lastAudioUs = sample.timeUs;
+            }
+        }
+        assertEquals(Arrays.asList(0L, FRAME_US, 2 * FRAME_US, 3 * FRAME_US, 4 * FRAME_US), videoTimes);
+        assertTrue(samples.get(0).video);
+        assertTrue(samples.get(0).key);
+        assertArrayEquals(lengthPrefixed(3), samples.get(0).data);
+        // 关键帧之前的音频丢掉，结束时间之后的音频也不要
+        assertEquals(5 * FRAME_US - AUDIO_US, lastAudioUs);
+        assertEquals(5 * FRAME_US, durationUs);
+    }
+
+    @Test
+    public void incompatibleInputIsRejected() throws IOException {
+        File first = writeInput(1280, 3, 3, 6, 0);
+        File second = writeInput(640, 3, 3, 6, 0);
+        File output = newFile();
+
+        try {
+            remuxer.concat(Arrays.asList(first, second), output);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 分辨率不同，不能直接拼接
+        }
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void seekMovesAudioToKeyFrame() throws IOException {
+        File input = writeInput(1280, 9, 3, 18, 0);
+        Mp4SampleSource source = new Mp4SampleSource(input);
+        try {
+            assertEquals(2, source.getTrackCount());
+            source.selectTrack(0);
+            source.selectTrack(1);
+            source.seekToPreviousSync(7 * FRAME_US);
+
+            assertEquals(6 * FRAME_US, source.getSampleTime());
+            assertEquals(SampleSource.FLAG_KEY_FRAME, source.getSampleFlags());
+            assertTrue(source.getTrackFormat(source.getSampleTrackIndex()).isVideo());
+            assertTrue(source.advance());
+            // 音频从关键帧的时间开始
+            assertEquals(6 * FRAME_US, source.getSampleTime());
+            assertFalse(source.getTrackFormat(source.getSampleTrackIndex()).isVideo());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void trimEndsAtFirstLateFrameInDecodeOrder() throws IOException {
+        // 视频解码顺序I0 P3 B1 B2 P6 B4 B5，B4和B5参考P6，音频按时间交错在中间
+        final long[][] samples = {
+                {0, 0}, {1, 0}, {1, AUDIO_US}, {0, 3 * FRAME_US}, {0, FRAME_US}, {1, 2 * AUDIO_US},
+                {1, 3 * AUDIO_US}, {0, 2 * FRAME_US}, {1, 4 * AUDIO_US}, {1, 5 * AUDIO_US},
+                {0, 6 * FRAME_US}, {1, 6 * AUDIO_US}, {0, 4 * FRAME_US}, {1, 7 * AUDIO_US},
+                {0, 5 * FRAME_US}, {1, 8 * AUDIO_US}, {1, 9 * AUDIO_US}, {1, 10 * AUDIO_US}};
+        final RecordingMuxer muxer = new RecordingMuxer();
+        Mp4Remuxer<String> reorderedRemuxer = new Mp4Remuxer<>(new Mp4Remuxer.Factory<String>() {
+            @Override
+            public SampleSource<String> openSource(File file) {
+                return new ListSource(samples);
+            }
+
+            @Override
+            public SampleMuxer<String> createMuxer(File output) {
+                return muxer;
+            }
+
+            @Override
+            public boolean isVideo(String format) {
+                return "video".equals(format);
+            }
+
+            @Override
+            public boolean isCompatible(String format, String other) {
+                return format.equals(other);
+            }
+        });
+
+        reorderedRemuxer.trim(newFile(), newFile(), 0, 5 * FRAME_US);
+
+        // P6超出结束时间，解码顺序在它之后、显示时间更早的B4也不能要
+        assertEquals(Arrays.asList(0L, 3 * FRAME_US, FRAME_US, 2 * FRAME_US), muxer.videoTimes);
+        // 音频仍然按时间截止
+        assertEquals(10, muxer.audioCount);
+    }
+
+    /**
+     * 轨道0是视频，轨道1是音频，按给出的顺序返回{轨道, 时间}，第一帧视频是关键帧
+     */
+    private static class ListSource implements SampleSource<String> {
+        final long[][] samples;
+        int position;
+
+        ListSource(long[][] samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public int getTrackCount() {
+            return 2;
+        }
+
+        @Override
+        public String getTrackFormat(int track) {
+            return track == 0 ? "video" : "audio";
+        }
+
+        @Override
+        public void selectTrack(int track) {
+        }
+
+        @Override
+        public void seekToPreviousSync(long timeUs) {
+            position = 0;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (position >= samples.length) {
+                return -1;
+            }
+            buffer.put(offset, (byte) position);
+            return 1;
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return position < samples.length ? (int) samples[position][0] : -1;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return position < samples.length ? samples[position][1] : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return position == 0 ? FLAG_KEY_FRAME : 0;
+        }
+
+        @Override
+        public boolean advance() {
+            return ++position < samples.length;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static class RecordingMuxer implements SampleMuxer<String> {
+        final List<Long> videoTimes = new ArrayList<>();
+        int audioCount;
+        private int trackCount;
+
+        @Override
+        public int addTrack(String format) {
+            return trackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            if (trackIndex == 0) {
+                videoTimes.add(presentationTimeUs);
+            } else {
+                audioCount++;
+            }
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * 视频每keyInterval帧一个关键帧，音频和视频从同一时间开始
+     */
+    private File writeInput(int width, int frames, int keyInterval, int audioSamples, long baseUs)
+            throws IOException {
+        File file = newFile();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(file).getChannel(), 100);
+        int video = writer.addTrack(TrackFormat.createAvc(width, 720, SPS, PPS));
+        int audio = writer.addTrack(TrackFormat.createAac(48000, 1, ASC));
+        writer.start();
+        int frame = 0;
+        int audioSample = 0;
+        while (frame < frames || audioSample < audioSamples) {
+            long videoUs = frame < frames ? frame * FRAME_US : Long.MAX_VALUE;
+            long audioUs = audioSample < audioSamples ? audioSample * AUDIO_US : Long.MAX_VALUE;
+            if (videoUs <= audioUs) {
+                writer.writeSampleData(video, ByteBuffer.wrap(annexB(frame)), baseUs + videoUs,
+                        frame % keyInterval == 0 ? SampleSource.FLAG_KEY_FRAME : 0);
+                frame++;
+            } else {
+                byte[] data = new byte[8];
+                Arrays.fill(data, (byte) audioSample);
+                writer.writeSampleData(audio, ByteBuffer.wrap(data), baseUs + audioUs, 0);
+                audioSample++;
+            }
+        }
+        writer.stop();
+        writer.release();
+        return file;
+    }
+
+    private List<Sample> readAll(File file) throws IOException {
+        Mp4SampleSource source = new Mp4SampleSource(file);
+        List<Sample> samples = new ArrayList<>();
+        try {
+            for (int i = 0; i < source.getTrackCount(); i++) {
+                source.selectTrack(i);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            do {
+                int size = source.readSampleData(buffer, 0);
+                if (size < 0) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                ByteBuffer read = buffer.duplicate();
+                read.get(data);
+                samples.add(new Sample(source.getTrackFormat(source.getSampleTrackIndex()).isVideo(),
+                        source.getSampleTime(), source.getSampleFlags() == SampleSource.FLAG_KEY_FRAME, data));
+            } while (source.advance());
+        } finally {
+            source.release();
+        }
+        return samples;
+    }
+
+    private static byte[] annexB(int frame) {
+        byte[] data = new byte[4 + NAL_SIZE];
+        data[3] = 1;
+        fillNal(data, 4, frame);
+        return data;
+    }
+
+    private static byte[] lengthPrefixed(int frame) {
+        byte[] data = new byte[4 + NAL_SIZE];
+        ByteBuffer.wrap(data).putInt(NAL_SIZE);
+        fillNal(data, 4, frame);
+        return data;
+    }
+
+    private static void fillNal(byte[] data, int offset, int frame) {
+        data[offset] = 0x65;
+        for (int i = offset + 1; i < data.length; i++) {
+            data[i] = (byte) (frame + 2 + i);
+        }
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("remux", ".mp4");
+        files.add(file);
+        return file;
+    }
+}
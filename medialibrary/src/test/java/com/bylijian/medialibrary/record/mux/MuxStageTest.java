@@ -0,0 +1,242 @@
+package com.bylijian.medialibrary.record.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MuxStageTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    /**
+     * 写到内存里的封装器，可以用一个latch模拟很慢的存储
+     */
+    private static class InMemoryMuxer implements SampleMuxer<String> {
+        static class Written {
+            final int track;
+            final long presentationTimeUs;
+            final int flags;
+            final byte[] data;
+
+            Written(int track, long presentationTimeUs, int flags, byte[] data) {
+                this.track = track;
+                this.presentationTimeUs = presentationTimeUs;
+                this.flags = flags;
+                this.data = data;
+            }
+        }
+
+        final List<String> formats = new ArrayList<>();
+        final List<Written> samples = new ArrayList<>();
+        volatile CountDownLatch storage;
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        @Override
+        public int addTrack(String format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            assertTrue(started);
+            CountDownLatch latch = storage;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            synchronized (samples) {
+                samples.add(new Written(trackIndex, presentationTimeUs, flags, bytes));
+            }
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    @Test
+    public void samplesBeforeStartAreKept() {
+        InMemoryMuxer muxer = new InMemoryMuxer();
+        MuxStage<String> stage = new MuxStage<>(muxer, 2, 1 << 20, MuxStage.OverflowPolicy.BLOCK);
+        int video = stage.addTrack("video", true);
+
+        assertTrue(stage.writeSample(video, frame(1, 100), 0, MuxStage.FLAG_KEY_FRAME));
+        assertTrue(stage.writeSample(video, frame(2, 100), 40000, 0));
+        assertFalse(stage.isStarted());
+
+        int audio = stage.addTrack("audio", false);
+        stage.writeSample(audio, frame(3, 10), 10000, 0);
+        stage.stop();
+
+        assertEquals(3, muxer.samples.size());
+        assertEquals(MuxStage.FLAG_KEY_FRAME, muxer.samples.get(0).flags);
+        assertArrayEquals(frame(1, 100).array(), muxer.samples.get(0).data);
+        assertTrue(muxer.stopped);
+        assertTrue(muxer.released);
+    }
+
+    @Test
+    public void tracksAreInterleavedByTimestamp() {
+        InMemoryMuxer muxer = new InMemoryMuxer();
+        MuxStage<String> stage = new MuxStage<>(muxer, 2, 1 << 20, MuxStage.OverflowPolicy.BLOCK);
+        int video = stage.addTrack("video", true);
+        int audio = stage.addTrack("audio", false);
+
+        // 视频一次性来了很多帧，音频稍后才到
+        for (int i = 0; i < 10; i++) {
+            stage.writeSample(video, frame(i, 50), i * 40000L, i == 0 ? MuxStage.FLAG_KEY_FRAME : 0);
+        }
+        for (int i = 0; i < 20; i++) {
+            stage.writeSample(audio, frame(i, 8), i * 23220L, 0);
+        }
+        stage.stop();
+
+        assertEquals(30, muxer.samples.size());
+        long last = -1;
+        for (InMemoryMuxer.Written written : muxer.samples) {
+            assertTrue(written.presentationTimeUs >= last);
+            last = written.presentationTimeUs;
+        }
+        assertEquals(30, stage.getWrittenCount());
+        assertEquals(10 * 50 + 20 * 8, stage.getWrittenBytes());
+        assertEquals(0, stage.getQueuedBytes());
+    }
+
+    @Test
+    public void dropPolicySkipsToNextKeyFrameWhenStorageIsSlow() {
+        InMemoryMuxer muxer = new InMemoryMuxer();
+        muxer.storage = new CountDownLatch(1);
+        MuxStage<String> stage = new MuxStage<>(muxer, 1, 300, MuxStage.OverflowPolicy.DROP);
+        int video = stage.addTrack("video", true);
+
+        // 第0帧被写入线程取走后卡在存储上，队列只能再放3帧
+        assertTrue(stage.writeSample(video, frame(0, 100), 0, MuxStage.FLAG_KEY_FRAME));
+        assertTrue(stage.writeSample(video, frame(1, 100), 1, 0));
+        assertTrue(stage.writeSample(video, frame(2, 100), 2, 0));
+        assertFalse(stage.writeSample(video, frame(3, 100), 3, 0));
+        // 依赖第3帧，也要丢弃
+        muxer.storage.countDown();
+        waitUntilQueueEmpty(stage);
+        assertFalse(stage.writeSample(video, frame(4, 100), 4, 0));
+        assertTrue(stage.writeSample(video, frame(5, 100), 5, MuxStage.FLAG_KEY_FRAME));
+        stage.stop();
+
+        assertEquals(2, stage.getDroppedCount());
+        long[] expected = {0, 1, 2, 5};
+        assertEquals(expected.length, muxer.samples.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], muxer.samples.get(i).presentationTimeUs);
+        }
+    }
+
+    @Test
+    public void blockPolicyAppliesBackpressure() throws InterruptedException {
+        final InMemoryMuxer muxer = new InMemoryMuxer();
+        muxer.storage = new CountDownLatch(1);
+        final MuxStage<String> stage = new MuxStage<>(muxer, 2, 300, MuxStage.OverflowPolicy.BLOCK);
+        final int video = stage.addTrack("video", true);
+        stage.addTrack("audio", false);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    stage.writeSample(video, frame(i, 100), i, 0);
+                }
+                done.countDown();
+            }
+        });
+        encoder.start();
+
+        // 存储卡住的时候编码线程被阻塞
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(stage.getQueuedBytes() <= 300);
+        muxer.storage.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        stage.stop();
+
+        // 音频一直没有数据，队列满了以后视频不再等待交错
+        assertEquals(20, muxer.samples.size());
+        assertEquals(0, stage.getDroppedCount());
+    }
+
+    @Test
+    public void overflowBeforeStartDropsInsteadOfBlocking() {
+        InMemoryMuxer muxer = new InMemoryMuxer();
+        MuxStage<String> stage = new MuxStage<>(muxer, 2, 250, MuxStage.OverflowPolicy.BLOCK);
+        int video = stage.addTrack("video", true);
+
+        assertTrue(stage.writeSample(video, frame(0, 100), 0, MuxStage.FLAG_KEY_FRAME));
+        assertTrue(stage.writeSample(video, frame(1, 100), 1, 0));
+        assertFalse(stage.writeSample(video, frame(2, 100), 2, 0));
+        stage.stop();
+
+        assertFalse(muxer.started);
+        assertFalse(muxer.stopped);
+        assertTrue(muxer.released);
+        assertEquals(3, stage.getDroppedCount());
+    }
+
+    @Test
+    public void endOfStreamStopsWaitingForTrack() {
+        InMemoryMuxer muxer = new InMemoryMuxer();
+        MuxStage<String> stage = new MuxStage<>(muxer, 2, 1 << 20, MuxStage.OverflowPolicy.BLOCK);
+        int video = stage.addTrack("video", true);
+        int audio = stage.addTrack("audio", false);
+
+        stage.writeSample(audio, ByteBuffer.allocate(0), 0, MuxStage.FLAG_END_OF_STREAM);
+        stage.writeSample(video, frame(0, 10), 0, MuxStage.FLAG_KEY_FRAME);
+        waitUntilQueueEmpty(stage);
+
+        assertEquals(1, muxer.samples.size());
+        assertFalse(stage.writeSample(audio, frame(1, 10), 1, 0));
+        stage.stop();
+    }
+
+    private static ByteBuffer frame(int value, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (value + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void waitUntilQueueEmpty(MuxStage<?> stage) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stage.getQueuedBytes() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+}
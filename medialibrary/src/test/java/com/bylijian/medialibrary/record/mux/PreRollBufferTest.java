@@ -0,0 +1,144 @@
+package com.bylijian.medialibrary.record.mux;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final int KEY = MuxStage.FLAG_KEY_FRAME;
+
+    /**
+     * 记录输出的帧，数据第一个字节是写入时的编号
+     */
+    private static class Collector implements PreRollBuffer.Consumer {
+        final List<Long> video = new ArrayList<>();
+        final List<Long> audio = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final List<Integer> ids = new ArrayList<>();
+
+        @Override
+        public void onSample(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+            (track == VIDEO ? video : audio).add(presentationTimeUs);
+            if (track == VIDEO) {
+                this.flags.add(flags);
+            }
+            ids.add(data.get(data.position()) & 0xFF);
+        }
+    }
+
+    private int nextId;
+
+    @Test
+    public void startsAtKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(1024, 10000000);
+        assertFalse(video(buffer, 0, 0, 10));
+        assertFalse(audio(buffer, 10, 10));
+        assertTrue(video(buffer, 33, KEY, 10));
+        assertTrue(audio(buffer, 40, 10));
+        assertTrue(video(buffer, 66, 0, 10));
+
+        Collector collector = new Collector();
+        assertEquals(3, buffer.drainTo(collector));
+        assertEquals(Arrays.asList(33L, 66L), collector.video);
+        assertEquals(Arrays.asList(40L), collector.audio);
+        assertEquals(KEY, (int) collector.flags.get(0));
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(0, buffer.getSampleCount());
+    }
+
+    @Test
+    public void keepsDurationAlignedToGop() {
+        // 每秒一个关键帧，保留2秒
+        PreRollBuffer buffer = new PreRollBuffer(1024 * 1024, 2000000);
+        for (int i = 0; i < 50; i++) {
+            long timeUs = i * 100000L;
+            video(buffer, timeUs, i % 10 == 0 ? KEY : 0, 100);
+            audio(buffer, timeUs + 50000, 20);
+        }
+
+        Collector collector = new Collector();
+        buffer.drainTo(collector);
+        // 最后一个GOP从4秒开始，往前保留2秒以上，从2秒的关键帧开始
+        assertEquals(2000000L, (long) collector.video.get(0));
+        assertEquals(4900000L, (long) collector.video.get(collector.video.size() - 1));
+        assertEquals(KEY, (int) collector.flags.get(0));
+        assertEquals(2050000L, (long) collector.audio.get(0));
+    }
+
+    @Test
+    public void evictsWholeGopWhenFull() {
+        // 一个GOP是3帧x100字节，最多放下两个GOP
+        PreRollBuffer buffer = new PreRollBuffer(700, 100000000);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(video(buffer, i * 33, i % 3 == 0 ? KEY : 0, 100));
+            assertTrue(buffer.getBytes() <= 700);
+        }
+
+        Collector collector = new Collector();
+        buffer.drainTo(collector);
+        assertEquals(Arrays.asList(99L, 132L, 165L, 198L, 231L, 264L), collector.video);
+        // 环形写入以后数据没有被覆盖
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7, 8), collector.ids);
+    }
+
+    @Test
+    public void audioBeforeFirstKeyFrameIsSkipped() {
+        PreRollBuffer buffer = new PreRollBuffer(1000, 100000000);
+        video(buffer, 0, KEY, 300);
+        video(buffer, 33, 0, 300);
+        video(buffer, 66, KEY, 300);
+        // 编码延迟不同，音频比视频晚到但时间戳更早
+        audio(buffer, 50, 10);
+        audio(buffer, 70, 10);
+        // 放不下，淘汰第一个GOP
+        video(buffer, 99, 0, 300);
+
+        Collector collector = new Collector();
+        buffer.drainTo(collector);
+        assertEquals(Arrays.asList(66L, 99L), collector.video);
+        assertEquals(Arrays.asList(70L), collector.audio);
+    }
+
+    @Test
+    public void gopLargerThanBufferWaitsForNextKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(500, 100000000);
+        assertTrue(video(buffer, 0, KEY, 200));
+        assertTrue(video(buffer, 33, 0, 200));
+        // 当前GOP放不下，后面的帧都无法解码，直到下一个关键帧
+        assertFalse(video(buffer, 66, 0, 200));
+        assertFalse(audio(buffer, 70, 10));
+        assertFalse(video(buffer, 99, 0, 200));
+        assertTrue(video(buffer, 132, KEY, 200));
+        // 比整个缓存还大
+        assertFalse(video(buffer, 165, KEY, 600));
+        assertEquals(0, buffer.getSampleCount());
+        assertTrue(video(buffer, 198, KEY, 200));
+
+        Collector collector = new Collector();
+        buffer.drainTo(collector);
+        assertEquals(Arrays.asList(198L), collector.video);
+    }
+
+    private boolean video(PreRollBuffer buffer, long timeUs, int flags, int size) {
+        return buffer.write(VIDEO, true, sample(size), timeUs, flags);
+    }
+
+    private boolean audio(PreRollBuffer buffer, long timeUs, int size) {
+        return buffer.write(AUDIO, false, sample(size), timeUs, 0);
+    }
+
+    private ByteBuffer sample(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) nextId++);
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,234 @@
+package com.bylijian.medialibrary.record.mux;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentMuxerTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final int KEY = MuxStage.FLAG_KEY_FRAME;
+
+    /**
+     * 每个分段一个，记录写入的时间戳，创建时生成一个空文件
+     */
+    private static class SegmentFile implements SampleMuxer<String> {
+        final List<String> formats = new ArrayList<>();
+        final List<Long> video = new ArrayList<>();
+        final List<Long> audio = new ArrayList<>();
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        @Override
+        public int addTrack(String format) {
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            assertTrue(started);
+            assertFalse(stopped);
+            (trackIndex == VIDEO ? video : audio).add(presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private final Map<File, SegmentFile> created = new LinkedHashMap<>();
+    private File dir;
+    private SegmentMuxer<String> muxer;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segments", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        muxer = new SegmentMuxer<>(new SegmentMuxer.MuxerFactory<String>() {
+            @Override
+            public SampleMuxer<String> create(File file) throws IOException {
+                assertTrue(file.createNewFile());
+                SegmentFile segment = new SegmentFile();
+                created.put(file, segment);
+                return segment;
+            }
+
+            @Override
+            public boolean isVideo(String format) {
+                return format.startsWith("video/");
+            }
+        });
+        muxer.addTrack("video/avc");
+        muxer.addTrack("audio/mp4a-latm");
+        muxer.start();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void segmentStartsOnKeyFrameAfterRequest() {
+        File file = new File(dir, "0.mp4");
+        // 开始之前的帧都丢弃
+        video(0, KEY);
+        muxer.startSegment(file, 50);
+        // 请求之前编码的关键帧不能作为开始
+        video(40, KEY);
+        audio(60);
+        video(66, 0);
+        video(100, KEY);
+        audio(110);
+        video(133, 0);
+        muxer.endSegment(140);
+        audio(150);
+        video(166, 0);
+
+        SegmentFile segment = created.get(file);
+        assertEquals(Arrays.asList(100L, 133L), segment.video);
+        assertEquals(Arrays.asList(110L), segment.audio);
+        assertEquals(Arrays.asList("video/avc", "audio/mp4a-latm"), segment.formats);
+        assertTrue(segment.stopped);
+        assertTrue(segment.released);
+        assertEquals(Arrays.asList(file), muxer.getFinishedSegments());
+        assertEquals(33, muxer.getDurationUs());
+        assertEquals(6, muxer.getDroppedCount());
+    }
+
+    @Test
+    public void encoderOutputBetweenSegmentsIsDropped() {
+        File first = new File(dir, "0.mp4");
+        File second = new File(dir, "1.mp4");
+        muxer.startSegment(first, 0);
+        video(0, KEY);
+        video(33, 0);
+        muxer.endSegment(50);
+        video(66, 0);
+        video(100, KEY);
+        muxer.startSegment(second, 120);
+        video(133, 0);
+        // 请求的关键帧
+        video(166, KEY);
+        video(200, 0);
+        muxer.stop();
+
+        assertEquals(Arrays.asList(0L, 33L), created.get(first).video);
+        assertEquals(Arrays.asList(166L, 200L), created.get(second).video);
+        assertTrue(created.get(second).stopped);
+        assertEquals(Arrays.asList(first, second), muxer.getFinishedSegments());
+    }
+
+    @Test
+    public void startingAgainEndsTheCurrentSegment() {
+        File first = new File(dir, "0.mp4");
+        File second = new File(dir, "1.mp4");
+        muxer.startSegment(first, 0);
+        video(0, KEY);
+        muxer.startSegment(second, 20);
+        // 上一个分段结束之前的帧仍然属于它
+        audio(10);
+        video(33, KEY);
+        muxer.stop();
+
+        assertEquals(Arrays.asList(0L), created.get(first).video);
+        assertEquals(Arrays.asList(10L), created.get(first).audio);
+        assertEquals(Arrays.asList(33L), created.get(second).video);
+    }
+
+    @Test
+    public void deleteLastSegmentRemovesOnlyItsFile() {
+        File first = new File(dir, "0.mp4");
+        File second = new File(dir, "1.mp4");
+        muxer.startSegment(first, 0);
+        video(0, KEY);
+        muxer.endSegment(10);
+        video(33, 0);
+        muxer.startSegment(second, 40);
+        video(66, KEY);
+        muxer.endSegment(70);
+        video(100, 0);
+        assertTrue(second.exists());
+
+        assertTrue(muxer.deleteLastSegment(110));
+
+        assertFalse(second.exists());
+        assertTrue(first.exists());
+        assertEquals(Arrays.asList(first), muxer.getFinishedSegments());
+        assertEquals(1, muxer.getSegmentCount());
+    }
+
+    @Test
+    public void deletingSegmentBeingRecordedDeletesItWhenFinished() {
+        File file = new File(dir, "0.mp4");
+        muxer.startSegment(file, 0);
+        video(0, KEY);
+        assertTrue(muxer.isRecordingSegment());
+
+        assertTrue(muxer.deleteLastSegment(20));
+        assertFalse(muxer.isRecordingSegment());
+        // 还没有写完，写入线程结束分段以后再删除
+        assertTrue(file.exists());
+        video(33, 0);
+
+        assertFalse(file.exists());
+        assertTrue(created.get(file).stopped);
+        assertEquals(0, muxer.getSegmentCount());
+        assertFalse(muxer.deleteLastSegment(40));
+    }
+
+    @Test
+    public void segmentWithoutKeyFrameHasNoFile() {
+        File file = new File(dir, "0.mp4");
+        muxer.startSegment(file, 0);
+        video(10, 0);
+        muxer.endSegment(20);
+        video(33, KEY);
+
+        assertFalse(created.containsKey(file));
+        assertEquals(0, muxer.getSegmentCount());
+        assertTrue(muxer.getFinishedSegments().isEmpty());
+    }
+
+    private void video(long presentationTimeUs, int flags) {
+        muxer.writeSampleData(VIDEO, ByteBuffer.allocate(4), presentationTimeUs, flags);
+    }
+
+    private void audio(long presentationTimeUs) {
+        muxer.writeSampleData(AUDIO, ByteBuffer.allocate(4), presentationTimeUs, 0);
+    }
+}
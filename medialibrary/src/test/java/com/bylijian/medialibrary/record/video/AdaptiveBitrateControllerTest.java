@@ -0,0 +1,107 @@
+package com.bylijian.medialibrary.record.video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBitrateControllerTest {
+    private static final int MIN_BITRATE = 1000000;
+    private static final int MAX_BITRATE = 6000000;
+    private static final long HEALTHY_BYTES_PER_SEC = MAX_BITRATE / 8 * 2;
+
+    private final List<Integer> bitrates = new ArrayList<>();
+    private final List<Integer> frameRates = new ArrayList<>();
+    private AdaptiveBitrateController controller;
+    private long nowMs;
+
+    @Before
+    public void setUp() {
+        controller = new AdaptiveBitrateController(MIN_BITRATE, MAX_BITRATE, 15, 30,
+                new AdaptiveBitrateController.Listener() {
+                    @Override
+                    public void onBitrateChanged(int bitrate) {
+                        bitrates.add(bitrate);
+                    }
+
+                    @Override
+                    public void onFrameRateChanged(int frameRate) {
+                        frameRates.add(frameRate);
+                    }
+                });
+    }
+
+    @Test
+    public void healthyTraceKeepsMaximum() {
+        run(60000, 20000, 0.02f, HEALTHY_BYTES_PER_SEC);
+
+        assertTrue(bitrates.isEmpty());
+        assertTrue(frameRates.isEmpty());
+        assertEquals(MAX_BITRATE, controller.getBitrate());
+    }
+
+    @Test
+    public void thermalThrottlingLowersBitrateThenFrameRate() {
+        // 编码器降频：输出延迟持续升高，存储没有问题
+        run(20000, 500000, 0.05f, HEALTHY_BYTES_PER_SEC);
+
+        assertEquals(MIN_BITRATE, controller.getBitrate());
+        for (int i = 1; i < bitrates.size(); i++) {
+            assertTrue(bitrates.get(i) < bitrates.get(i - 1));
+        }
+        assertTrue(frameRates.size() >= 1);
+        assertEquals(15, controller.getFrameRate());
+
+        // 恢复以后先恢复帧率，再逐步提高码率
+        bitrates.clear();
+        run(AdaptiveBitrateController.INCREASE_HOLD_MS + 100, 20000, 0.02f, HEALTHY_BYTES_PER_SEC);
+        assertEquals(30, controller.getFrameRate());
+        assertEquals(MIN_BITRATE, controller.getBitrate());
+        run(120000, 20000, 0.02f, HEALTHY_BYTES_PER_SEC);
+        assertEquals(MAX_BITRATE, controller.getBitrate());
+    }
+
+    @Test
+    public void storageLimitFollowsMeasuredThroughput() {
+        // 存储只能写2Mbps，队列开始堆积
+        run(300, 30000, 0.7f, 2000000 / 8);
+
+        assertEquals(1, bitrates.size());
+        assertEquals((int) (2000000 * 0.85f), controller.getBitrate());
+        assertTrue(frameRates.isEmpty());
+    }
+
+    @Test
+    public void decreasesAreRateLimited() {
+        run(AdaptiveBitrateController.DECREASE_INTERVAL_MS * 3 - 1, 500000, 0.05f, HEALTHY_BYTES_PER_SEC);
+
+        assertEquals(3, bitrates.size());
+        assertEquals((int) (MAX_BITRATE * 0.75f), (int) bitrates.get(0));
+    }
+
+    @Test
+    public void noisyTraceDoesNotIncrease() {
+        // 水位在两个阈值之间波动，既不降低也不恢复
+        for (int i = 0; i < 600; i++) {
+            float fill = i % 2 == 0 ? 0.05f : 0.3f;
+            controller.onStats(nowMs, 20000, fill, HEALTHY_BYTES_PER_SEC);
+            nowMs += 100;
+        }
+        assertTrue(bitrates.isEmpty());
+    }
+
+    /**
+     * 每100ms上报一次相同的统计
+     */
+    private void run(long durationMs, long latencyUs, float queueFill, long writtenBytesPerSec) {
+        long end = nowMs + durationMs;
+        while (nowMs < end) {
+            controller.onStats(nowMs, latencyUs, queueFill, writtenBytesPerSec);
+            nowMs += 100;
+        }
+    }
+}
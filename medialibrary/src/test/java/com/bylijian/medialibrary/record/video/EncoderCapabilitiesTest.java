@@ -0,0 +1,126 @@
+package com.bylijian.medialibrary.record.video;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderCapabilitiesTest {
+    private static final int AVC_LEVEL_31 = 0x200;
+    private static final int AVC_LEVEL_41 = 0x1000;
+    private static final int AVC_LEVEL_51 = 0x8000;
+
+    @Test
+    public void supportedProfileIsKept() {
+        EncoderCapabilities capabilities = avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR, EncoderProfile.BITRATE_MODE_CBR),
+                EncoderProfile.AVC_PROFILE_BASELINE, EncoderProfile.AVC_PROFILE_MAIN, EncoderProfile.AVC_PROFILE_HIGH);
+        EncoderProfile requested = new EncoderProfile(1080, 1920)
+                .setBitrateMode(EncoderProfile.BITRATE_MODE_CBR)
+                .setProfile(EncoderProfile.AVC_PROFILE_HIGH, AVC_LEVEL_41)
+                .setMaxBFrames(1);
+
+        EncoderProfile resolved = capabilities.resolve(requested);
+
+        assertEquals(EncoderProfile.BITRATE_MODE_CBR, resolved.getBitrateMode());
+        assertEquals(EncoderProfile.AVC_PROFILE_HIGH, resolved.getProfile());
+        assertEquals(AVC_LEVEL_41, resolved.getLevel());
+        assertEquals(1, resolved.getMaxBFrames());
+        assertEquals(requested.getBitrate(), resolved.getBitrate());
+    }
+
+    @Test
+    public void unsupportedFeaturesAreDowngraded() {
+        EncoderCapabilities capabilities = avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR),
+                EncoderProfile.AVC_PROFILE_BASELINE);
+        EncoderProfile requested = new EncoderProfile(1080, 1920)
+                .setBitrateMode(EncoderProfile.BITRATE_MODE_CQ, 80)
+                .setProfile(EncoderProfile.AVC_PROFILE_HIGH, AVC_LEVEL_51)
+                .setMaxBFrames(2);
+
+        EncoderProfile resolved = capabilities.resolve(requested);
+
+        assertEquals(EncoderProfile.BITRATE_MODE_VBR, resolved.getBitrateMode());
+        assertEquals(EncoderProfile.AVC_PROFILE_BASELINE, resolved.getProfile());
+        assertEquals(AVC_LEVEL_31, resolved.getLevel());
+        // Baseline没有B帧
+        assertEquals(0, resolved.getMaxBFrames());
+        // 不修改请求的参数
+        assertEquals(EncoderProfile.AVC_PROFILE_HIGH, requested.getProfile());
+        assertEquals(2, requested.getMaxBFrames());
+    }
+
+    @Test
+    public void profileFallsBackOneStepAtATime() {
+        EncoderCapabilities capabilities = avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR),
+                EncoderProfile.AVC_PROFILE_BASELINE, EncoderProfile.AVC_PROFILE_MAIN);
+        EncoderProfile resolved = capabilities.resolve(new EncoderProfile(640, 480)
+                .setProfile(EncoderProfile.AVC_PROFILE_HIGH, EncoderProfile.DEFAULT).setMaxBFrames(1));
+
+        assertEquals(EncoderProfile.AVC_PROFILE_MAIN, resolved.getProfile());
+        assertEquals(EncoderProfile.DEFAULT, resolved.getLevel());
+        assertEquals(1, resolved.getMaxBFrames());
+    }
+
+    @Test
+    public void defaultProfileDisablesBFramesAndBitrateIsClamped() {
+        EncoderCapabilities capabilities = avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR),
+                EncoderProfile.AVC_PROFILE_BASELINE);
+        EncoderProfile resolved = capabilities.resolve(new EncoderProfile(640, 480)
+                .setBitrate(100000000).setMaxBFrames(1));
+
+        assertEquals(EncoderProfile.DEFAULT, resolved.getProfile());
+        assertEquals(0, resolved.getMaxBFrames());
+        assertEquals(20000000, resolved.getBitrate());
+        assertEquals(EncoderProfile.BITRATE_MODE_VBR, resolved.getBitrateMode());
+    }
+
+    @Test
+    public void otherMimeIsRejected() {
+        EncoderCapabilities capabilities = avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR));
+        try {
+            capabilities.resolve(new EncoderProfile(640, 480).setMime(EncoderProfile.MIME_HEVC));
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(EncoderProfile.MIME_HEVC));
+            return;
+        }
+        throw new AssertionError("expected IllegalArgumentException");
+    }
+
+    @Test
+    public void byteBufferColorFormatPrefersFlexible() {
+        Map<Integer, Integer> maxLevels = new HashMap<>();
+        EncoderCapabilities flexible = new EncoderCapabilities("OMX.test.avc.encoder", EncoderProfile.MIME_AVC,
+                modes(EncoderProfile.BITRATE_MODE_VBR), maxLevels, 1000, 20000000,
+                new int[]{EncoderCapabilities.COLOR_FORMAT_SURFACE, EncoderCapabilities.COLOR_FORMAT_YUV420_PLANAR,
+                        EncoderCapabilities.COLOR_FORMAT_YUV420_SEMI_PLANAR, EncoderCapabilities.COLOR_FORMAT_YUV420_FLEXIBLE});
+        EncoderCapabilities planar = new EncoderCapabilities("OMX.test.avc.encoder", EncoderProfile.MIME_AVC,
+                modes(EncoderProfile.BITRATE_MODE_VBR), maxLevels, 1000, 20000000,
+                new int[]{EncoderCapabilities.COLOR_FORMAT_SURFACE, EncoderCapabilities.COLOR_FORMAT_YUV420_PLANAR});
+
+        assertEquals(EncoderCapabilities.COLOR_FORMAT_YUV420_FLEXIBLE, flexible.selectByteBufferColorFormat());
+        assertEquals(EncoderCapabilities.COLOR_FORMAT_YUV420_PLANAR, planar.selectByteBufferColorFormat());
+        assertTrue(planar.isColorFormatSupported(EncoderCapabilities.COLOR_FORMAT_SURFACE));
+        // 只支持surface输入时不能用ByteBuffer输入
+        assertEquals(-1, avcEncoder(modes(EncoderProfile.BITRATE_MODE_VBR)).selectByteBufferColorFormat());
+    }
+
+    private static int modes(int... bitrateModes) {
+        int result = 0;
+        for (int mode : bitrateModes) {
+            result |= 1 << mode;
+        }
+        return result;
+    }
+
+    private static EncoderCapabilities avcEncoder(int bitrateModes, int... profiles) {
+        Map<Integer, Integer> maxLevels = new HashMap<>();
+        for (int profile : profiles) {
+            maxLevels.put(profile, profile == EncoderProfile.AVC_PROFILE_BASELINE ? AVC_LEVEL_31 : AVC_LEVEL_51);
+        }
+        return new EncoderCapabilities("OMX.test.avc.encoder", EncoderProfile.MIME_AVC, bitrateModes, maxLevels,
+                1000, 20000000);
+    }
+}
@@ -0,0 +1,156 @@
+package com.bylijian.medialibrary.record.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class YuvPlaneCopierTest {
+    // 3x2的平面，值是10 * y + x
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void copyKeepsStridesAndPadding() {
+        ByteBuffer src = plane(5, 1);
+        ByteBuffer dst = filled(4 * HEIGHT, (byte) -1);
+
+        YuvPlaneCopier.copyPlane(src, 0, 5, 1, dst, 0, 4, 1, WIDTH, HEIGHT, 0);
+
+        assertRow(dst, 0, 1, 0, 1, 2);
+        assertRow(dst, 4, 1, 10, 11, 12);
+        // 行尾的填充不改写
+        assertEquals(-1, dst.get(3));
+        assertEquals(-1, dst.get(7));
+        assertEquals(0, src.position());
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void interleavedChromaIsSplitAndMerged() {
+        // U和V交错，U在前
+        ByteBuffer nv12 = ByteBuffer.allocate(2 * 2 * 2);
+        for (int i = 0; i < 4; i++) {
+            nv12.put(2 * i, (byte) i);
+            nv12.put(2 * i + 1, (byte) (100 + i));
+        }
+        ByteBuffer u = ByteBuffer.allocate(4);
+        ByteBuffer v = ByteBuffer.allocate(4);
+        YuvPlaneCopier.copyPlane(nv12, 0, 4, 2, u, 0, 2, 1, 2, 2, 0);
+        YuvPlaneCopier.copyPlane(nv12, 1, 4, 2, v, 0, 2, 1, 2, 2, 0);
+        assertRow(u, 0, 1, 0, 1, 2, 3);
+        assertRow(v, 0, 1, 100, 101, 102, 103);
+
+        // 再交错回去，V在前
+        ByteBuffer nv21 = ByteBuffer.allocate(8);
+        YuvPlaneCopier.copyPlane(u, 0, 2, 1, nv21, 1, 4, 2, 2, 2, 0);
+        YuvPlaneCopier.copyPlane(v, 0, 2, 1, nv21, 0, 4, 2, 2, 2, 0);
+        assertRow(nv21, 0, 1, 100, 0, 101, 1, 102, 2, 103, 3);
+    }
+
+    @Test
+    public void rotate90() {
+        ByteBuffer dst = ByteBuffer.allocate(HEIGHT * WIDTH);
+
+        YuvPlaneCopier.copyPlane(plane(WIDTH, 1), 0, WIDTH, 1, dst, 0, HEIGHT, 1, WIDTH, HEIGHT, 90);
+
+        // 顺时针旋转以后是2x3
+        assertRow(dst, 0, 1, 10, 0);
+        assertRow(dst, 2, 1, 11, 1);
+        assertRow(dst, 4, 1, 12, 2);
+    }
+
+    @Test
+    public void rotate180() {
+        ByteBuffer dst = ByteBuffer.allocate(WIDTH * HEIGHT);
+
+        YuvPlaneCopier.copyPlane(plane(WIDTH, 1), 0, WIDTH, 1, dst, 0, WIDTH, 1, WIDTH, HEIGHT, 180);
+
+        assertRow(dst, 0, 1, 12, 11, 10);
+        assertRow(dst, 3, 1, 2, 1, 0);
+    }
+
+    @Test
+    public void rotate270IntoInterleavedPlane() {
+        // 目标像素跨度为2，写到偏移1的位置，不影响另一个分量
+        ByteBuffer dst = filled(2 * HEIGHT * WIDTH + 1, (byte) -1);
+
+        YuvPlaneCopier.copyPlane(plane(WIDTH, 1), 0, WIDTH, 1, dst, 1, 2 * HEIGHT, 2, WIDTH, HEIGHT, 270);
+
+        assertRow(dst, 1, 2, 2, 12);
+        assertRow(dst, 5, 2, 1, 11);
+        assertRow(dst, 9, 2, 0, 10);
+        assertEquals(-1, dst.get(0));
+        assertEquals(-1, dst.get(2));
+    }
+
+    @Test
+    public void largePlaneMatchesPerSampleCopy() {
+        // 比一次读入的行数多，最后一段不满；源和目标都交错，目标行尾有填充
+        int width = 37;
+        int height = 45;
+        ByteBuffer src = ByteBuffer.allocate(100 * height);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) (i * 7));
+        }
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            int dstWidth = rotation % 180 == 0 ? width : height;
+            int dstHeight = rotation % 180 == 0 ? height : width;
+            int dstRowStride = 2 * dstWidth + 5;
+            ByteBuffer expected = filled(dstRowStride * dstHeight, (byte) -1);
+            ByteBuffer actual = filled(dstRowStride * dstHeight, (byte) -1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int dstX = x;
+                    int dstY = y;
+                    if (rotation == 90) {
+                        dstX = height - 1 - y;
+                        dstY = x;
+                    } else if (rotation == 180) {
+                        dstX = width - 1 - x;
+                        dstY = height - 1 - y;
+                    } else if (rotation == 270) {
+                        dstX = y;
+                        dstY = width - 1 - x;
+                    }
+                    expected.put(1 + dstY * dstRowStride + dstX * 2, src.get(3 + y * 100 + x * 2));
+                }
+            }
+
+            YuvPlaneCopier.copyPlane(src, 3, 100, 2, actual, 1, dstRowStride, 2, width, height, rotation);
+
+            assertEquals("rotation " + rotation, expected, actual);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherRotationIsRejected() {
+        YuvPlaneCopier.copyPlane(plane(WIDTH, 1), 0, WIDTH, 1, ByteBuffer.allocate(6), 0, WIDTH, 1,
+                WIDTH, HEIGHT, 45);
+    }
+
+    private static ByteBuffer plane(int rowStride, int pixelStride) {
+        ByteBuffer buffer = filled(rowStride * HEIGHT, (byte) -1);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                buffer.put(y * rowStride + x * pixelStride, (byte) (10 * y + x));
+            }
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer filled(int size, byte value) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, value);
+        }
+        return buffer;
+    }
+
+    private static void assertRow(ByteBuffer buffer, int offset, int step, int... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + (offset + i * step), expected[i], buffer.get(offset + i * step));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.bylijian.medialibrary.trace;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameTracerTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void disabledTracerRecordsNothing() {
+        final FrameTracer tracer = new FrameTracer(64);
+        tracer.mark(FrameTracer.STAGE_CAPTURED, 0);
+        tracer.mark(FrameTracer.STAGE_SWAP, 0, 10 * MS);
+
+        assertEquals(0, tracer.getReport().getCount(FrameTracer.STAGE_CAPTURED));
+        assertEquals(0, tracer.getReport().getCount(FrameTracer.STAGE_SWAP));
+    }
+
+    @Test
+    public void latencyIsMeasuredFromCaptureTimestamp() {
+        final FrameTracer tracer = new FrameTracer(1024);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 100; i++) {
+            final long frameNs = i * 33 * MS;
+            // 第i帧渲染多花i/10 ms
+            final long extraNs = i * MS / 10;
+            // 交给编码器的时间戳和采集时间戳无关
+            final long encoderInputNs = 1000000 * MS + frameNs + 123;
+            tracer.mark(FrameTracer.STAGE_CAPTURED, frameNs, frameNs + MS);
+            tracer.mark(FrameTracer.STAGE_RENDER_DEQUEUE, frameNs, frameNs + 3 * MS);
+            tracer.mark(FrameTracer.STAGE_OUTPUT_SWAP, frameNs, encoderInputNs);
+            tracer.mark(FrameTracer.STAGE_DRAW, frameNs, frameNs + 8 * MS + extraNs);
+            tracer.mark(FrameTracer.STAGE_SWAP, frameNs, frameNs + 10 * MS + extraNs);
+            if (i % 2 == 0) {
+                // 编码器输出的时间戳只有us精度
+                tracer.mark(FrameTracer.STAGE_ENCODER_OUTPUT, encoderInputNs / 1000 * 1000,
+                        frameNs + 20 * MS);
+            }
+        }
+
+        final FrameTracer.Report report = tracer.getReport();
+        assertEquals(100, report.getCount(FrameTracer.STAGE_CAPTURED));
+        assertEquals(MS, report.getPercentileNs(FrameTracer.STAGE_CAPTURED, 99));
+        assertEquals(3 * MS, report.getPercentileNs(FrameTracer.STAGE_RENDER_DEQUEUE, 50));
+        assertEquals(8 * MS + 49 * MS / 10, report.getPercentileNs(FrameTracer.STAGE_DRAW, 50));
+        assertEquals(10 * MS + 94 * MS / 10, report.getPercentileNs(FrameTracer.STAGE_SWAP, 95));
+        assertEquals(10 * MS + 98 * MS / 10, report.getPercentileNs(FrameTracer.STAGE_SWAP, 99));
+        assertEquals(50, report.getCount(FrameTracer.STAGE_ENCODER_OUTPUT));
+        assertEquals(20 * MS, report.getPercentileNs(FrameTracer.STAGE_ENCODER_OUTPUT, 50));
+    }
+
+    @Test
+    public void ringKeepsOnlyRecentRecords() {
+        final FrameTracer tracer = new FrameTracer(16);
+        tracer.setEnabled(true);
+        for (int i = 0; i < 100; i++) {
+            tracer.mark(FrameTracer.STAGE_SWAP, i * MS, i * MS + i);
+        }
+
+        final FrameTracer.Report report = tracer.getReport();
+        assertEquals(16, report.getCount(FrameTracer.STAGE_SWAP));
+        assertEquals(84, report.getPercentileNs(FrameTracer.STAGE_SWAP, 0));
+        assertEquals(99, report.getPercentileNs(FrameTracer.STAGE_SWAP, 100));
+
+        tracer.reset();
+        assertEquals(0, tracer.getReport().getCount(FrameTracer.STAGE_SWAP));
+    }
+
+    @Test
+    public void concurrentWritersAreNotLost() throws InterruptedException {
+        final FrameTracer tracer = new FrameTracer(8192);
+        tracer.setEnabled(true);
+        final int threads = 4;
+        final int framesPerThread = 1000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < framesPerThread; i++) {
+                        final long frameNs = (i * threads + thread) * MS;
+                        tracer.mark(FrameTracer.STAGE_CAPTURED, frameNs, frameNs + MS);
+                        tracer.mark(FrameTracer.STAGE_SWAP, frameNs, frameNs + 2 * MS);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        final FrameTracer.Report report = tracer.getReport();
+        assertEquals(threads * framesPerThread, report.getCount(FrameTracer.STAGE_CAPTURED));
+        assertEquals(threads * framesPerThread, report.getCount(FrameTracer.STAGE_SWAP));
+        assertEquals(MS, report.getPercentileNs(FrameTracer.STAGE_CAPTURED, 0));
+        assertEquals(2 * MS, report.getPercentileNs(FrameTracer.STAGE_SWAP, 100));
+    }
+}
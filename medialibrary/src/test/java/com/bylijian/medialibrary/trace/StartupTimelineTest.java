@@ -0,0 +1,65 @@
+package com.bylijian.medialibrary.trace;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTimelineTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void ignoresRecordsBeforeStart() {
+        final StartupTimeline timeline = new StartupTimeline();
+        timeline.begin("camera open", 0);
+        timeline.end("camera open", 10 * MS);
+
+        assertEquals(-1, timeline.getDurationMs("camera open"));
+    }
+
+    @Test
+    public void overlappingPhasesAreReportedRelativeToStart() {
+        final StartupTimeline timeline = new StartupTimeline();
+        timeline.start(1000 * MS);
+        timeline.begin("capture EGL", 1002 * MS);
+        timeline.begin("camera enumerate", 1001 * MS);
+        timeline.end("camera enumerate", 1031 * MS);
+        timeline.end("capture EGL", 1022 * MS);
+        timeline.begin("camera open", 1031 * MS);
+        timeline.begin("audio record", 1005 * MS);
+
+        assertEquals(30, timeline.getDurationMs("camera enumerate"));
+        assertEquals(22, timeline.getEndMs("capture EGL"));
+        // 还没结束
+        assertEquals(-1, timeline.getEndMs("camera open"));
+
+        timeline.end("camera open", 1231 * MS);
+        final String report = timeline.getReport();
+        // 按开始时间排列
+        assertTrue(report.indexOf("camera enumerate") < report.indexOf("capture EGL"));
+        assertTrue(report.indexOf("capture EGL") < report.indexOf("audio record"));
+        assertTrue(report.indexOf("audio record") < report.indexOf("camera open"));
+        assertTrue(report.contains("     1.0     31.0     30.0  camera enumerate"));
+        // 没结束的阶段不计入总和
+        assertTrue(report.endsWith("elapsed 231.0 ms, sum of phases 250.0 ms"));
+    }
+
+    @Test
+    public void onlyFirstOccurrenceIsRecorded() {
+        final StartupTimeline timeline = new StartupTimeline();
+        timeline.start(0);
+        timeline.begin("camera open", 10 * MS);
+        timeline.end("camera open", 100 * MS);
+        // onResume以后再次打开
+        timeline.begin("camera open", 500 * MS);
+        timeline.end("camera open", 550 * MS);
+
+        assertEquals(90, timeline.getDurationMs("camera open"));
+        assertEquals(100, timeline.getEndMs("camera open"));
+
+        timeline.start(1000 * MS);
+        assertEquals(-1, timeline.getEndMs("camera open"));
+    }
+}